@@ -23,57 +23,709 @@
 import java.util.Collections;
 import java.util.Map;
 import java.util.HashMap;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentHashMap;
+
+import javax.inject.Provider;
 
 /**
  * Contains all state data related to the current user action. Note that the execution context is independent of the
  * environment and all environment-dependent data are stored in the Container component instead.
+ * <p>
+ * A context can be copied in constant time with {@link #ExecutionContext(ExecutionContext)}: the properties are frozen
+ * in read-only layers shared by the copies, each context keeping its own modifications on top of them.
+ * <p>
+ * Properties registered as {@link Key}s are stored in an array indexed by the key slot instead of a map, which makes
+ * accessing them through their key as cheap as a field access. They can still be accessed through their name.
+ * <p>
+ * A context can be used by several threads, for example while it's being copied for a task run by another thread: the
+ * accesses to the properties are synchronized on the context. The values of the lazy properties are computed outside
+ * of the lock, so they can be computed more than once when several threads read them concurrently.
  *
  * @version $Id$ 
  * @since 1.5M2
  */
 public class ExecutionContext
 {
+    /**
+     * Typed key of a well known property. Each registered key gets its own slot in the contexts.
+     * <p>
+     * Keys should be registered in a static field of the class owning the property. A property set by name before its
+     * key is registered is moved to the slot of the key the first time it's accessed through the key.
+     * 
+     * @param <T> the type of the property value
+     * @version $Id$
+     * @since 3.1M2
+     */
+    public static final class Key<T>
+    {
+        /**
+         * The registered keys, indexed by name.
+         */
+        private static final Map<String, Key< ? >> KEYS = new ConcurrentHashMap<String, Key< ? >>();
+
+        /**
+         * The registered keys, indexed by slot.
+         */
+        private static volatile Key< ? >[] slotKeys = new Key< ? >[0];
+
+        /**
+         * The name of the property.
+         */
+        private final String name;
+
+        /**
+         * The type of the property value.
+         */
+        private final Class<T> type;
+
+        /**
+         * The index of the property value in the contexts.
+         */
+        private final int slot;
+
+        /**
+         * @param name the name of the property
+         * @param type the type of the property value
+         * @param slot the index of the property value in the contexts
+         */
+        private Key(String name, Class<T> type, int slot)
+        {
+            this.name = name;
+            this.type = type;
+            this.slot = slot;
+        }
+
+        /**
+         * Register a key, or return the existing key if a key with the same name and type is already registered.
+         * 
+         * @param <T> the type of the property value
+         * @param name the name of the property
+         * @param type the type of the property value
+         * @return the key
+         * @throws IllegalArgumentException if a key with the same name but a different type is already registered
+         */
+        public static synchronized <T> Key<T> register(String name, Class<T> type)
+        {
+            Key< ? > existingKey = KEYS.get(name);
+            if (existingKey != null) {
+                if (existingKey.type != type) {
+                    throw new IllegalArgumentException("Execution context key [" + name
+                        + "] is already registered with type [" + existingKey.type.getName() + "]");
+                }
+                // Safe since the types are the same
+                @SuppressWarnings("unchecked")
+                Key<T> typedKey = (Key<T>) existingKey;
+                return typedKey;
+            }
+
+            Key<T> key = new Key<T>(name, type, slotKeys.length);
+            Key< ? >[] newSlotKeys = new Key< ? >[slotKeys.length + 1];
+            System.arraycopy(slotKeys, 0, newSlotKeys, 0, slotKeys.length);
+            newSlotKeys[key.slot] = key;
+            slotKeys = newSlotKeys;
+            KEYS.put(name, key);
+
+            return key;
+        }
+
+        /**
+         * @return the name of the property
+         */
+        public String getName()
+        {
+            return this.name;
+        }
+
+        /**
+         * @return the type of the property value
+         */
+        public Class<T> getType()
+        {
+            return this.type;
+        }
+
+        /**
+         * {@inheritDoc}
+         * 
+         * @see java.lang.Object#toString()
+         */
+        @Override
+        public String toString()
+        {
+            return this.name;
+        }
+    }
+
+    /**
+     * The maximum number of frozen layers before they are merged into a single one, to bound the cost of lookups.
+     */
+    private static final int MAX_DEPTH = 8;
+
+    /**
+     * Marks a property removed from a context while it's still defined in the frozen layers.
+     */
+    private static final Object REMOVED = new Object();
+
+    /**
+     * Marks a <code>null</code> value in a slot, since an empty slot means the property is not set in the context.
+     */
+    private static final Object NULL = new Object();
+
+    /**
+     * The properties set since the context was created or last copied.
+     */
     private Map<String, Object> properties = new HashMap<String, Object>();
 
+    /**
+     * The values of the properties registered as {@link Key}s set since the context was created or last copied,
+     * indexed by key slot, <code>null</code> until such a property is set.
+     */
+    private Object[] slots;
+
+    /**
+     * The properties frozen when the context was last copied, shared with the copies, <code>null</code> if the context
+     * has never been copied.
+     */
+    private Layer base;
+
+    /**
+     * Create an empty context.
+     */
+    public ExecutionContext()
+    {
+        // Empty context
+    }
+
+    /**
+     * Create a copy of the passed context. The properties are not copied one by one: the properties of the passed
+     * context are frozen in a read-only layer shared by both contexts, and each context keeps its own modifications
+     * on top of it. Copying a context is thus very cheap whatever the number of properties, and the modifications
+     * made to either context after the copy are not visible in the other one. Lazy properties which have not been
+     * computed yet when the context is copied are computed separately by each context reading them.
+     * 
+     * @param context the context to copy
+     * @since 3.1M2
+     */
+    public ExecutionContext(ExecutionContext context)
+    {
+        synchronized (context) {
+            context.freeze();
+            this.base = context.base;
+        }
+    }
+
     /**
      * @param key the key under which is stored the property to retrieve
      * @return the property matching the passed key
      */
     public Object getProperty(String key)
     {
-        return this.properties.get(key);
+        Key< ? > registeredKey = Key.KEYS.get(key);
+        if (registeredKey != null) {
+            return getProperty(registeredKey);
+        }
+
+        Object value = lookup(key);
+        if (value == REMOVED) {
+            value = null;
+        } else if (value instanceof LazyProperty) {
+            value = materialize(key, (LazyProperty) value);
+        }
+
+        return value;
     }
 
     /**
-     * @return all the context properties
+     * @param <T> the type of the property value
+     * @param key the key of the property to retrieve
+     * @return the property matching the passed key
+     * @since 3.1M2
      */
-    public Map<String, Object> getProperties()
+    public <T> T getProperty(Key<T> key)
     {
-        return Collections.unmodifiableMap(this.properties);
+        Object value = lookup(key);
+        if (value == NULL || value == REMOVED) {
+            value = null;
+        } else if (value instanceof LazyProperty) {
+            value = materialize(key, (LazyProperty) value);
+        }
+
+        if (value != null && !key.type.isInstance(value)) {
+            throw new ClassCastException("The value of the execution context property [" + key.name + "] is a ["
+                + value.getClass().getName() + "] instead of a [" + key.type.getName() + "]");
+        }
+        // Safe since the type of the value has been checked
+        @SuppressWarnings("unchecked")
+        T typedValue = (T) value;
+
+        return typedValue;
     }
-    
+
+    /**
+     * Same as {@link #getProperty(String)} but without computing the value of a lazy property, and without building
+     * the map of all the properties as {@link #getProperties()} does.
+     * 
+     * @param key the key under which is stored the property to retrieve
+     * @return the property matching the passed key, <code>null</code> if it's a lazy property whose value has not been
+     *         computed yet
+     * @since 3.1M2
+     */
+    public Object getComputedProperty(String key)
+    {
+        Key< ? > registeredKey = Key.KEYS.get(key);
+        Object value = registeredKey != null ? lookup(registeredKey) : lookup(key);
+
+        return (value == NULL || value == REMOVED || value instanceof LazyProperty) ? null : value;
+    }
+
+    /**
+     * @return all the context properties, except the lazy properties whose value has not been computed yet (getting
+     *         the properties never computes them)
+     */
+    public synchronized Map<String, Object> getProperties()
+    {
+        Map<String, Object> allProperties = new HashMap<String, Object>();
+        if (this.base != null) {
+            this.base.collect(allProperties);
+        }
+        collect(allProperties, this.properties, this.slots);
+
+        for (Iterator<Object> it = allProperties.values().iterator(); it.hasNext();) {
+            if (it.next() instanceof LazyProperty) {
+                it.remove();
+            }
+        }
+
+        return Collections.unmodifiableMap(allProperties);
+    }
+
     /**
      * @param key remove the property whose key matches the passed key
      */
-    public void removeProperty(String key)
+    public synchronized void removeProperty(String key)
+    {
+        Key< ? > registeredKey = Key.KEYS.get(key);
+        if (registeredKey != null) {
+            removeProperty(registeredKey);
+        } else if (this.base != null) {
+            // Hide the frozen property
+            this.properties.put(key, REMOVED);
+        } else {
+            this.properties.remove(key);
+        }
+    }
+
+    /**
+     * @param key the key of the property to remove
+     * @since 3.1M2
+     */
+    public synchronized void removeProperty(Key< ? > key)
     {
-        this.properties.remove(key);
+        if (this.base != null) {
+            // Hide the frozen property
+            setSlot(key, REMOVED);
+        } else {
+            this.properties.remove(key.name);
+            if (this.slots != null && key.slot < this.slots.length) {
+                this.slots[key.slot] = null;
+            }
+        }
     }
 
     /**
      * @param key the key under which to save the passed property value
      * @param value the value to set
+     * @throws IllegalArgumentException if the property is registered as a {@link Key} and the value is not of the
+     *             type of the key
+     */
+    public synchronized void setProperty(String key, Object value)
+    {
+        Key< ? > registeredKey = Key.KEYS.get(key);
+        if (registeredKey != null) {
+            if (value != null && !registeredKey.type.isInstance(value)) {
+                throw new IllegalArgumentException("The execution context property [" + key + "] must be a ["
+                    + registeredKey.type.getName() + "]");
+            }
+            setSlot(registeredKey, value != null ? value : NULL);
+        } else {
+            this.properties.put(key, value);
+        }
+    }
+
+    /**
+     * @param <T> the type of the property value
+     * @param key the key of the property to set
+     * @param value the value to set
+     * @since 3.1M2
+     */
+    public synchronized <T> void setProperty(Key<T> key, T value)
+    {
+        setSlot(key, value != null ? value : NULL);
+    }
+
+    /**
+     * Set a property whose value is only computed the first time it's needed, which avoids computing values that are
+     * expensive to create but not used by every request. The value is computed once and then kept in the context
+     * like any other property, and it's never computed if the property is set or removed before being accessed. When
+     * the provider returns <code>null</code> (for example because it failed to create the value), the property stays
+     * lazy and the provider is called again the next time the property is accessed.
+     * 
+     * @param key the key under which to save the property value
+     * @param provider provides the property value the first time it's accessed
+     * @since 3.1M2
+     */
+    public synchronized void setLazyProperty(String key, Provider< ? > provider)
+    {
+        Key< ? > registeredKey = Key.KEYS.get(key);
+        if (registeredKey != null) {
+            setSlot(registeredKey, new LazyProperty(provider));
+        } else {
+            this.properties.put(key, new LazyProperty(provider));
+        }
+    }
+
+    /**
+     * Same as {@link #setLazyProperty(String, Provider)} for a property registered as a {@link Key}.
+     * 
+     * @param <T> the type of the property value
+     * @param key the key of the property to set
+     * @param provider provides the property value the first time it's accessed
+     * @since 3.1M2
      */
-    public void setProperty(String key, Object value)
+    public synchronized <T> void setLazyProperty(Key<T> key, Provider< ? extends T> provider)
     {
-        this.properties.put(key, value);
+        setSlot(key, new LazyProperty(provider));
     }
 
     /**
      * @param properties the properties to add to the context
      */
-    public void setProperties(Map<String, Object> properties)
+    public synchronized void setProperties(Map<String, Object> properties)
+    {
+        for (Map.Entry<String, Object> entry : properties.entrySet()) {
+            setProperty(entry.getKey(), entry.getValue());
+        }
+    }
+
+    /**
+     * @param key the name of a property not registered as a {@link Key}
+     * @return the stored value, {@link #REMOVED} or <code>null</code> if not found
+     */
+    private synchronized Object lookup(String key)
+    {
+        Object value = this.properties.get(key);
+        if (value == null && this.base != null && !this.properties.containsKey(key)) {
+            value = this.base.get(key);
+        }
+
+        return value;
+    }
+
+    /**
+     * @param key the key of a property
+     * @return the stored value, {@link #NULL}, {@link #REMOVED} or <code>null</code> if not found
+     */
+    private synchronized Object lookup(Key< ? > key)
+    {
+        Object value = getSlot(this.slots, key);
+        if (value == null) {
+            value = migrate(key);
+        }
+        if (value == null && this.base != null) {
+            value = this.base.get(key);
+        }
+
+        return value;
+    }
+
+    /**
+     * Move the properties set since the context was created or last copied to a new frozen layer.
+     */
+    private void freeze()
+    {
+        if (!this.properties.isEmpty() || this.slots != null) {
+            this.base = new Layer(this.properties, this.slots, this.base);
+            if (this.base.depth > MAX_DEPTH) {
+                this.base = this.base.flatten();
+            }
+
+            this.properties = new HashMap<String, Object>();
+            this.slots = null;
+        }
+    }
+
+    /**
+     * Move the value of a property set by name before its key was registered to the slot of the key.
+     * 
+     * @param key the key of the property
+     * @return the value moved to the slot, <code>null</code> if the property was not set by name in this context
+     */
+    private Object migrate(Key< ? > key)
+    {
+        Object value = null;
+        if (!this.properties.isEmpty() && this.properties.containsKey(key.name)) {
+            value = this.properties.get(key.name);
+            if (value == null) {
+                value = NULL;
+            }
+            setSlot(key, value);
+        }
+
+        return value;
+    }
+
+    /**
+     * @param key the key of the property
+     * @param value the value to store in the slot of the key, replacing the value set by name before the key was
+     *            registered if any
+     */
+    private void setSlot(Key< ? > key, Object value)
+    {
+        if (!this.properties.isEmpty()) {
+            this.properties.remove(key.name);
+        }
+        if (this.slots == null || key.slot >= this.slots.length) {
+            Object[] newSlots = new Object[Math.max(key.slot + 1, Key.slotKeys.length)];
+            if (this.slots != null) {
+                System.arraycopy(this.slots, 0, newSlots, 0, this.slots.length);
+            }
+            this.slots = newSlots;
+        }
+        this.slots[key.slot] = value;
+    }
+
+    /**
+     * @param slots the slots, can be <code>null</code>
+     * @param key the key of the property
+     * @return the value stored in the slot of the key, <code>null</code> if none
+     */
+    private static Object getSlot(Object[] slots, Key< ? > key)
+    {
+        return (slots != null && key.slot < slots.length) ? slots[key.slot] : null;
+    }
+
+    /**
+     * Add properties to a map, taking into account the special values used to store the properties.
+     * 
+     * @param map the map to add the properties to
+     * @param properties the properties stored by name
+     * @param slots the properties stored in the slots of their key, can be <code>null</code>
+     */
+    private static void collect(Map<String, Object> map, Map<String, Object> properties, Object[] slots)
+    {
+        for (Map.Entry<String, Object> entry : properties.entrySet()) {
+            putProperty(map, entry.getKey(), entry.getValue());
+        }
+        if (slots != null) {
+            Key< ? >[] keys = Key.slotKeys;
+            for (int slot = 0; slot < slots.length; slot++) {
+                if (slots[slot] != null) {
+                    putProperty(map, keys[slot].name, slots[slot] != NULL ? slots[slot] : null);
+                }
+            }
+        }
+    }
+
+    /**
+     * Add a property to a map, taking into account the special values used to store the properties.
+     * 
+     * @param map the map to add the property to
+     * @param key the key of the property
+     * @param value the value of the property
+     */
+    private static void putProperty(Map<String, Object> map, String key, Object value)
+    {
+        if (value == REMOVED) {
+            map.remove(key);
+        } else {
+            map.put(key, value);
+        }
+    }
+
+    /**
+     * Compute the value of a lazy property and keep it in this context. The value is computed without holding the lock
+     * of the context since the provider can be slow or access other objects.
+     * 
+     * @param key the key of the property
+     * @param lazyProperty the lazy property, set in this context or in the frozen layers
+     * @return the value of the property
+     */
+    private Object materialize(String key, LazyProperty lazyProperty)
     {
-        this.properties.putAll(properties);
+        Object value = lazyProperty.provider.get();
+        synchronized (this) {
+            // Keep the value in this context, unless the property has been replaced while computing it
+            if (value != null && (this.properties.get(key) == lazyProperty || !this.properties.containsKey(key))) {
+                this.properties.put(key, value);
+            }
+        }
+
+        return value;
+    }
+
+    /**
+     * Same as {@link #materialize(String, LazyProperty)} for a property registered as a {@link Key}.
+     * 
+     * @param key the key of the property
+     * @param lazyProperty the lazy property, set in this context or in the frozen layers
+     * @return the value of the property
+     */
+    private Object materialize(Key< ? > key, LazyProperty lazyProperty)
+    {
+        Object value = lazyProperty.provider.get();
+        synchronized (this) {
+            // Keep the value in this context, unless the property has been replaced while computing it
+            Object current = getSlot(this.slots, key);
+            if (value != null && (current == null || current == lazyProperty)) {
+                setSlot(key, value);
+            }
+        }
+
+        return value;
+    }
+
+    /**
+     * Read-only properties shared by a context and its copies, hiding or overriding the properties of the layer
+     * below. Lazy properties are never computed in place: each context reading them keeps the value for itself.
+     * 
+     * @version $Id$
+     */
+    private static final class Layer
+    {
+        /**
+         * The properties stored by name.
+         */
+        private final Map<String, Object> properties;
+
+        /**
+         * The properties stored in the slots of their key, <code>null</code> if none.
+         */
+        private final Object[] slots;
+
+        /**
+         * The layer below, <code>null</code> if this is the bottom layer.
+         */
+        private final Layer parent;
+
+        /**
+         * The number of layers, including this one.
+         */
+        private final int depth;
+
+        /**
+         * @param properties the properties stored by name
+         * @param slots the properties stored in the slots of their key, can be <code>null</code>
+         * @param parent the layer below, <code>null</code> if this is the bottom layer
+         */
+        Layer(Map<String, Object> properties, Object[] slots, Layer parent)
+        {
+            this.properties = properties;
+            this.slots = slots;
+            this.parent = parent;
+            this.depth = parent != null ? parent.depth + 1 : 1;
+        }
+
+        /**
+         * @param key the name of a property not registered as a {@link Key}
+         * @return the stored value, {@link ExecutionContext#REMOVED} or <code>null</code> if not found
+         */
+        Object get(String key)
+        {
+            for (Layer layer = this; layer != null; layer = layer.parent) {
+                Object value = layer.properties.get(key);
+                if (value != null || layer.properties.containsKey(key)) {
+                    return value;
+                }
+            }
+
+            return null;
+        }
+
+        /**
+         * @param key the key of a property
+         * @return the stored value, {@link ExecutionContext#NULL}, {@link ExecutionContext#REMOVED} or
+         *         <code>null</code> if not found
+         */
+        Object get(Key< ? > key)
+        {
+            for (Layer layer = this; layer != null; layer = layer.parent) {
+                Object value = getSlot(layer.slots, key);
+                if (value == null && layer.properties.containsKey(key.name)) {
+                    // Set by name before the key was registered
+                    value = layer.properties.get(key.name);
+                    if (value == null) {
+                        value = NULL;
+                    }
+                }
+                if (value != null) {
+                    return value;
+                }
+            }
+
+            return null;
+        }
+
+        /**
+         * @param map the map to add the properties of the layers to, the upper layers overriding the lower ones
+         */
+        void collect(Map<String, Object> map)
+        {
+            if (this.parent != null) {
+                this.parent.collect(map);
+            }
+            ExecutionContext.collect(map, this.properties, this.slots);
+        }
+
+        /**
+         * @return a single layer with the same properties as all the layers
+         */
+        Layer flatten()
+        {
+            Map<String, Object> flatProperties = new HashMap<String, Object>();
+            Object[] flatSlots = new Object[Key.slotKeys.length];
+            for (Layer layer = this; layer != null; layer = layer.parent) {
+                for (Map.Entry<String, Object> entry : layer.properties.entrySet()) {
+                    if (!flatProperties.containsKey(entry.getKey())) {
+                        flatProperties.put(entry.getKey(), entry.getValue());
+                    }
+                }
+                for (int slot = 0; layer.slots != null && slot < layer.slots.length; slot++) {
+                    if (flatSlots[slot] == null) {
+                        flatSlots[slot] = layer.slots[slot];
+                    }
+                }
+            }
+
+            // Nothing is left to hide below the single layer
+            flatProperties.values().removeAll(Collections.singleton(REMOVED));
+            for (int slot = 0; slot < flatSlots.length; slot++) {
+                if (flatSlots[slot] == REMOVED) {
+                    flatSlots[slot] = null;
+                }
+            }
+
+            return new Layer(flatProperties, flatSlots, null);
+        }
+    }
+
+    /**
+     * Wraps the provider of a lazy property so that it can't be confused with a property value which would be a
+     * provider.
+     */
+    private static class LazyProperty
+    {
+        /**
+         * Provides the property value.
+         */
+        private final Provider< ? > provider;
+
+        /**
+         * @param provider provides the property value
+         */
+        LazyProperty(Provider< ? > provider)
+        {
+            this.provider = provider;
+        }
     }
 }
@@ -0,0 +1,81 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ *
+ */
+package org.xwiki.context.concurrent;
+
+import java.util.concurrent.Callable;
+
+import org.xwiki.context.Execution;
+import org.xwiki.context.ExecutionContext;
+
+/**
+ * Calls a task with a copy of the {@link ExecutionContext} which was current when the task was created, whatever the
+ * thread calling it. The copy is pushed on the {@link Execution} stack of the calling thread before the task is called
+ * and popped afterwards.
+ * 
+ * @param <V> the type of the result of the task
+ * @version $Id$
+ * @since 3.1M2
+ */
+public class ExecutionContextCallable<V> implements Callable<V>
+{
+    /**
+     * The task to call.
+     */
+    private final Callable<V> callable;
+
+    /**
+     * Used to push and pop the context.
+     */
+    private final Execution execution;
+
+    /**
+     * The copy of the context to call the task with.
+     */
+    private final ExecutionContext context;
+
+    /**
+     * @param callable the task to call with the current execution context
+     * @param execution used to get the current execution context and to push it when the task is called
+     */
+    public ExecutionContextCallable(Callable<V> callable, Execution execution)
+    {
+        this.callable = callable;
+        this.execution = execution;
+        // Copy the context so that the task and the creating thread don't modify the same context concurrently
+        ExecutionContext currentContext = execution.getContext();
+        this.context = currentContext != null ? new ExecutionContext(currentContext) : null;
+    }
+
+    /**
+     * {@inheritDoc}
+     * 
+     * @see java.util.concurrent.Callable#call()
+     */
+    public V call() throws Exception
+    {
+        this.execution.pushContext(this.context);
+        try {
+            return this.callable.call();
+        } finally {
+            this.execution.popContext();
+        }
+    }
+}
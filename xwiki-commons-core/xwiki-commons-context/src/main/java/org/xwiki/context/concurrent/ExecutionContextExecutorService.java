@@ -0,0 +1,126 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ *
+ */
+package org.xwiki.context.concurrent;
+
+import java.util.List;
+import java.util.concurrent.AbstractExecutorService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import org.xwiki.context.Execution;
+
+/**
+ * Executor service running the submitted tasks with a copy of the {@link org.xwiki.context.ExecutionContext} which was
+ * current when they were submitted. Tasks are executed by the wrapped executor service.
+ * <p>
+ * Note that the context properties are copied, not their values: tasks running in parallel must not modify the
+ * objects stored in the context without synchronization. Use
+ * {@link org.xwiki.context.ExecutionContextManager#clone(org.xwiki.context.ExecutionContext)} before submitting the
+ * tasks if they need their own values.
+ * 
+ * @version $Id$
+ * @since 3.1M2
+ */
+public class ExecutionContextExecutorService extends AbstractExecutorService
+{
+    /**
+     * The executor service running the tasks.
+     */
+    private final ExecutorService executorService;
+
+    /**
+     * Used to get the current context and to push it when the tasks are run.
+     */
+    private final Execution execution;
+
+    /**
+     * @param executorService the executor service running the tasks
+     * @param execution used to get the current context and to push it when the tasks are run
+     */
+    public ExecutionContextExecutorService(ExecutorService executorService, Execution execution)
+    {
+        this.executorService = executorService;
+        this.execution = execution;
+    }
+
+    /**
+     * {@inheritDoc}
+     * <p>
+     * All the submission methods end up calling this method from the submitting thread, which is where the current
+     * context is captured.
+     * 
+     * @see java.util.concurrent.Executor#execute(java.lang.Runnable)
+     */
+    public void execute(Runnable command)
+    {
+        this.executorService.execute(new ExecutionContextRunnable(command, this.execution));
+    }
+
+    /**
+     * {@inheritDoc}
+     * 
+     * @see java.util.concurrent.ExecutorService#shutdown()
+     */
+    public void shutdown()
+    {
+        this.executorService.shutdown();
+    }
+
+    /**
+     * {@inheritDoc}
+     * 
+     * @see java.util.concurrent.ExecutorService#shutdownNow()
+     */
+    public List<Runnable> shutdownNow()
+    {
+        return this.executorService.shutdownNow();
+    }
+
+    /**
+     * {@inheritDoc}
+     * 
+     * @see java.util.concurrent.ExecutorService#isShutdown()
+     */
+    public boolean isShutdown()
+    {
+        return this.executorService.isShutdown();
+    }
+
+    /**
+     * {@inheritDoc}
+     * 
+     * @see java.util.concurrent.ExecutorService#isTerminated()
+     */
+    public boolean isTerminated()
+    {
+        return this.executorService.isTerminated();
+    }
+
+    /**
+     * {@inheritDoc}
+     * 
+     * @see java.util.concurrent.ExecutorService#awaitTermination(long, java.util.concurrent.TimeUnit)
+     */
+    public boolean awaitTermination(long timeout, TimeUnit unit) throws InterruptedException
+    {
+        return this.executorService.awaitTermination(timeout, unit);
+    }
+}
@@ -20,8 +20,9 @@
  */
 package org.xwiki.context.internal;
 
-import java.util.Stack;
+import java.util.EmptyStackException;
 
+import javax.inject.Inject;
 import javax.inject.Singleton;
 
 import org.xwiki.component.annotation.Component;
@@ -40,8 +41,18 @@
 @Singleton
 public class DefaultExecution implements Execution
 {
-    private ThreadLocal<Stack<ExecutionContext>> context =
-        new ThreadLocal<Stack<ExecutionContext>>();
+    /**
+     * The stack of contexts of each thread. The stack is only created when a context is set or pushed so that threads
+     * only asking for the context don't allocate anything.
+     */
+    private ThreadLocal<ExecutionContextStack> context = new ThreadLocal<ExecutionContextStack>();
+
+    /**
+     * Used to track the contexts set on threads when the diagnostic mode is enabled, <code>null</code> when this
+     * component is not created by the Component Manager.
+     */
+    @Inject
+    private ExecutionContextDiagnostics diagnostics;
 
     /**
      * {@inheritDoc}
@@ -49,7 +60,7 @@ public class DefaultExecution implements Execution
      */
     public void pushContext(ExecutionContext context)
     {
-        this.context.get().push(context);
+        getStack().push(context);
     }
 
     /**
@@ -58,7 +69,11 @@ public void pushContext(ExecutionContext context)
      */
     public void popContext()
     {
-        this.context.get().pop();
+        ExecutionContextStack stack = this.context.get();
+        if (stack == null) {
+            throw new EmptyStackException();
+        }
+        stack.pop();
     }
 
     /**
@@ -67,7 +82,7 @@ public void popContext()
      */
     public ExecutionContext getContext()
     {
-        Stack<ExecutionContext> stack = this.context.get();
+        ExecutionContextStack stack = this.context.get();
         return stack == null ? null : stack.peek();
     }
 
@@ -77,9 +92,13 @@ public ExecutionContext getContext()
      */
     public void setContext(ExecutionContext context)
     {
-        Stack<ExecutionContext> stack = new Stack<ExecutionContext>();
+        ExecutionContextStack stack = new ExecutionContextStack();
         stack.push(context);
         this.context.set(stack);
+
+        if (this.diagnostics != null) {
+            this.diagnostics.contextSet();
+        }
     }
 
     /**
@@ -89,5 +108,23 @@ public void setContext(ExecutionContext context)
     public void removeContext()
     {
         this.context.remove();
+
+        if (this.diagnostics != null) {
+            this.diagnostics.contextRemoved();
+        }
+    }
+
+    /**
+     * @return the stack of contexts of the current thread, created if needed
+     */
+    private ExecutionContextStack getStack()
+    {
+        ExecutionContextStack stack = this.context.get();
+        if (stack == null) {
+            stack = new ExecutionContextStack();
+            this.context.set(stack);
+        }
+
+        return stack;
     }
 }
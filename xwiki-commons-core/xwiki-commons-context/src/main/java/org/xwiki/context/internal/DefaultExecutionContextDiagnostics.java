@@ -0,0 +1,240 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ *
+ */
+package org.xwiki.context.internal;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.WeakHashMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import javax.inject.Inject;
+import javax.inject.Singleton;
+
+import org.xwiki.component.annotation.Component;
+import org.xwiki.component.phase.Initializable;
+import org.xwiki.component.phase.InitializationException;
+import org.xwiki.context.internal.jmx.JMXExecutionContextDiagnostics;
+import org.xwiki.management.JMXBeanRegistration;
+
+/**
+ * Default implementation of {@link ExecutionContextDiagnostics}. The diagnostic mode is controlled through the
+ * <code>org.xwiki:type=Execution,name=Diagnostics</code> MBean, and can also be enabled at startup with the
+ * <code>xwiki.context.diagnostics</code> system property.
+ * 
+ * @version $Id$
+ * @since 3.1M2
+ */
+@Component
+@Singleton
+public class DefaultExecutionContextDiagnostics implements ExecutionContextDiagnostics, Initializable
+{
+    /**
+     * The default age after which a context is considered as leaked: 10 minutes.
+     */
+    private static final long DEFAULT_MAX_AGE = 10 * 60 * 1000L;
+
+    /**
+     * Orders the tracked contexts from the oldest to the most recent.
+     */
+    private static final Comparator<TrackedContext> OLDEST_FIRST = new Comparator<TrackedContext>()
+    {
+        public int compare(TrackedContext context1, TrackedContext context2)
+        {
+            return Long.valueOf(context1.getCreationTime()).compareTo(context2.getCreationTime());
+        }
+    };
+
+    /**
+     * Used to register the diagnostics MBean.
+     */
+    @Inject
+    private JMXBeanRegistration jmxRegistration;
+
+    /**
+     * Indicates if the diagnostic mode is enabled.
+     */
+    private volatile boolean enabled = Boolean.getBoolean("xwiki.context.diagnostics");
+
+    /**
+     * The age in milliseconds after which a context is considered as leaked.
+     */
+    private volatile long maxAge = DEFAULT_MAX_AGE;
+
+    /**
+     * The contexts set on threads and not removed yet. Dead threads are forgotten automatically.
+     */
+    private final Map<Thread, TrackedContext> liveContexts =
+        Collections.synchronizedMap(new WeakHashMap<Thread, TrackedContext>());
+
+    /**
+     * The time spent in each timed operation.
+     */
+    private final ConcurrentMap<String, OperationTiming> timings = new ConcurrentHashMap<String, OperationTiming>();
+
+    /**
+     * {@inheritDoc}
+     * 
+     * @see org.xwiki.component.phase.Initializable#initialize()
+     */
+    public void initialize() throws InitializationException
+    {
+        this.jmxRegistration.registerMBean(new JMXExecutionContextDiagnostics(this), "type=Execution,name=Diagnostics");
+    }
+
+    /**
+     * {@inheritDoc}
+     * 
+     * @see org.xwiki.context.internal.ExecutionContextDiagnostics#isEnabled()
+     */
+    public boolean isEnabled()
+    {
+        return this.enabled;
+    }
+
+    /**
+     * {@inheritDoc}
+     * 
+     * @see org.xwiki.context.internal.ExecutionContextDiagnostics#setEnabled(boolean)
+     */
+    public void setEnabled(boolean enabled)
+    {
+        this.enabled = enabled;
+        if (!enabled) {
+            this.liveContexts.clear();
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     * 
+     * @see org.xwiki.context.internal.ExecutionContextDiagnostics#getMaxAge()
+     */
+    public long getMaxAge()
+    {
+        return this.maxAge;
+    }
+
+    /**
+     * {@inheritDoc}
+     * 
+     * @see org.xwiki.context.internal.ExecutionContextDiagnostics#setMaxAge(long)
+     */
+    public void setMaxAge(long maxAge)
+    {
+        this.maxAge = maxAge;
+    }
+
+    /**
+     * {@inheritDoc}
+     * 
+     * @see org.xwiki.context.internal.ExecutionContextDiagnostics#contextSet()
+     */
+    public void contextSet()
+    {
+        if (this.enabled) {
+            Thread thread = Thread.currentThread();
+            this.liveContexts.put(thread, new TrackedContext(thread, System.currentTimeMillis(),
+                new Throwable().getStackTrace()));
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     * 
+     * @see org.xwiki.context.internal.ExecutionContextDiagnostics#contextRemoved()
+     */
+    public void contextRemoved()
+    {
+        if (this.enabled) {
+            this.liveContexts.remove(Thread.currentThread());
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     * 
+     * @see org.xwiki.context.internal.ExecutionContextDiagnostics#startTimer()
+     */
+    public long startTimer()
+    {
+        return this.enabled ? System.nanoTime() : 0;
+    }
+
+    /**
+     * {@inheritDoc}
+     * 
+     * @see org.xwiki.context.internal.ExecutionContextDiagnostics#stopTimer(java.lang.String, long)
+     */
+    public void stopTimer(String name, long start)
+    {
+        // A start of 0 means the diagnostic mode was disabled when the operation started
+        if (this.enabled && start != 0) {
+            long time = System.nanoTime() - start;
+            OperationTiming timing = this.timings.get(name);
+            if (timing == null) {
+                this.timings.putIfAbsent(name, new OperationTiming());
+                timing = this.timings.get(name);
+            }
+            timing.record(time);
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     * 
+     * @see org.xwiki.context.internal.ExecutionContextDiagnostics#getLiveContexts()
+     */
+    public List<TrackedContext> getLiveContexts()
+    {
+        List<TrackedContext> contexts;
+        synchronized (this.liveContexts) {
+            contexts = new ArrayList<TrackedContext>(this.liveContexts.values());
+        }
+        Collections.sort(contexts, OLDEST_FIRST);
+
+        return contexts;
+    }
+
+    /**
+     * {@inheritDoc}
+     * 
+     * @see org.xwiki.context.internal.ExecutionContextDiagnostics#getTimings()
+     */
+    public Map<String, OperationTiming> getTimings()
+    {
+        return new HashMap<String, OperationTiming>(this.timings);
+    }
+
+    /**
+     * {@inheritDoc}
+     * 
+     * @see org.xwiki.context.internal.ExecutionContextDiagnostics#resetTimings()
+     */
+    public void resetTimings()
+    {
+        this.timings.clear();
+    }
+}
@@ -37,21 +37,41 @@ public class DefaultExecutionContextManager implements ExecutionContextManager
 {
     @Inject
     private List<ExecutionContextInitializer> initializers = new ArrayList<ExecutionContextInitializer>();
-    
+
+    /**
+     * Used to time the initializers and the cloning when the diagnostic mode is enabled, <code>null</code> when this
+     * manager is not created by the Component Manager.
+     */
+    @Inject
+    private ExecutionContextDiagnostics diagnostics;
+
     public ExecutionContext clone(ExecutionContext context) throws ExecutionContextException
     {
-        ExecutionContext clonedContext = new ExecutionContext();
+        if (this.diagnostics == null) {
+            return cloneContext(context);
+        }
+
+        long start = this.diagnostics.startTimer();
+        try {
+            return cloneContext(context);
+        } finally {
+            this.diagnostics.stopTimer(ExecutionContextDiagnostics.CLONE, start);
+        }
+    }
+
+    private ExecutionContext cloneContext(ExecutionContext context) throws ExecutionContextException
+    {
+        // The properties of the passed context are frozen in a layer shared with the cloned context instead of being
+        // copied, so that cloning doesn't depend on the number of properties. Modifications made to either context
+        // after the clone are not visible in the other one.
+        ExecutionContext clonedContext = new ExecutionContext(context);
 
         // Ideally we would like to do a deep cloning here. However it's just too hard since we don't control
         // objects put in the Execution Context and they can be of any type, including Maps which are cloneable
         // but only do shallow clones. 
-        // Thus instead we recreate the Execution Context from scratch and reinitialize it by calling all the
-        // Execution Context Initializers on it.
+        // Thus instead we reinitialize the properties which need to be fresh by calling all the Execution Context
+        // Initializers on the cloned context, which hides the corresponding inherited properties.
         initialize(clonedContext);
-        
-        // Manually add the XWiki Context so that old code continues to work.
-        // Note that we need to add it manually here since there's no Context Initializer that adds it.
-        clonedContext.setProperty("xwikicontext", context.getProperty("xwikicontext"));
 
         // Manually clone the Velocity Context too since currently the XWikiVelocityContextInitializer is not yet 
         // implemented.
@@ -61,7 +81,10 @@ public ExecutionContext clone(ExecutionContext context) throws ExecutionContextE
         // Note that Velocity doesn't provide a method for cloning a Velocity Context
         // (see https://issues.apache.org/jira/browse/VELOCITY-712). Thus we're not cloning the Velocity Context
         // which can raise problems if the included page modifies the Velocity Context...
-        Object velocityContext = context.getProperty("velocityContext");
+        // The Velocity Context is created lazily: if it hasn't been created yet there's nothing to clone, and the
+        // cloned context gets its own lazy Velocity Context from the initializers. getComputedProperty() doesn't
+        // create it.
+        Object velocityContext = context.getComputedProperty("velocityContext");
         if (velocityContext != null) {
             try {
                 clonedContext.setProperty("velocityContext", 
@@ -77,7 +100,16 @@ public ExecutionContext clone(ExecutionContext context) throws ExecutionContextE
     public void initialize(ExecutionContext context) throws ExecutionContextException
     {
         for (ExecutionContextInitializer initializer: this.initializers) {
-            initializer.initialize(context);
+            if (this.diagnostics == null) {
+                initializer.initialize(context);
+            } else {
+                long start = this.diagnostics.startTimer();
+                try {
+                    initializer.initialize(context);
+                } finally {
+                    this.diagnostics.stopTimer(initializer.getClass().getName(), start);
+                }
+            }
         }
     }
     
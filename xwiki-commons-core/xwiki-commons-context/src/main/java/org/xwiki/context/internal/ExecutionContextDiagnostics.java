@@ -0,0 +1,102 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ *
+ */
+package org.xwiki.context.internal;
+
+import java.util.List;
+import java.util.Map;
+
+import org.xwiki.component.annotation.ComponentRole;
+
+/**
+ * Diagnostic mode of the execution contexts, disabled by default and meant to be enabled through JMX when
+ * investigating a problem. When enabled it tracks the contexts set on each thread so that contexts which are never
+ * removed (and thus retain everything they reference) can be found, and it measures the time spent in each
+ * {@link org.xwiki.context.ExecutionContextInitializer} and in context cloning.
+ * 
+ * @version $Id$
+ * @since 3.1M2
+ */
+@ComponentRole
+public interface ExecutionContextDiagnostics
+{
+    /**
+     * The name under which the time spent cloning contexts is recorded.
+     */
+    String CLONE = "clone";
+
+    /**
+     * @return <code>true</code> if the diagnostic mode is enabled
+     */
+    boolean isEnabled();
+
+    /**
+     * @param enabled <code>true</code> to enable the diagnostic mode
+     */
+    void setEnabled(boolean enabled);
+
+    /**
+     * @return the age in milliseconds after which a context which has not been removed is considered as leaked
+     */
+    long getMaxAge();
+
+    /**
+     * @param maxAge the age in milliseconds after which a context which has not been removed is considered as leaked
+     */
+    void setMaxAge(long maxAge);
+
+    /**
+     * Called when a context is set on the current thread.
+     */
+    void contextSet();
+
+    /**
+     * Called when the context of the current thread is removed.
+     */
+    void contextRemoved();
+
+    /**
+     * @return a value to pass to {@link #stopTimer(String, long)}
+     */
+    long startTimer();
+
+    /**
+     * Record the time elapsed since {@link #startTimer()} was called.
+     * 
+     * @param name the name of the timed operation
+     * @param start the value returned by {@link #startTimer()}
+     */
+    void stopTimer(String name, long start);
+
+    /**
+     * @return the contexts set on threads and not removed yet, oldest first
+     */
+    List<TrackedContext> getLiveContexts();
+
+    /**
+     * @return the time spent in each operation, indexed by operation name
+     */
+    Map<String, OperationTiming> getTimings();
+
+    /**
+     * Forget the timings recorded so far.
+     */
+    void resetTimings();
+}
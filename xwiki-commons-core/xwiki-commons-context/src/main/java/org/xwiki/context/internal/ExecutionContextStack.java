@@ -0,0 +1,120 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ *
+ */
+package org.xwiki.context.internal;
+
+import java.util.EmptyStackException;
+
+import org.xwiki.context.ExecutionContext;
+
+/**
+ * Stack of the {@link ExecutionContext}s of a thread. Since it's only accessed by the thread owning it, it doesn't
+ * need any synchronization, unlike {@link java.util.Stack}. The top of the stack is kept in its own field so that
+ * getting the current context, which is by far the most common operation, is a single field read.
+ * 
+ * @version $Id$
+ * @since 3.1M2
+ */
+public class ExecutionContextStack
+{
+    /**
+     * The initial capacity of the stack, enough for most threads which rarely push more than a few contexts.
+     */
+    private static final int INITIAL_CAPACITY = 4;
+
+    /**
+     * The contexts below the top of the stack, the first one being the bottom of the stack.
+     */
+    private ExecutionContext[] elements = new ExecutionContext[INITIAL_CAPACITY];
+
+    /**
+     * The number of contexts in {@link #elements}.
+     */
+    private int size;
+
+    /**
+     * The top of the stack, <code>null</code> when the stack is empty.
+     */
+    private ExecutionContext top;
+
+    /**
+     * Indicates if the stack contains a context, needed since <code>null</code> contexts can be pushed.
+     */
+    private boolean empty = true;
+
+    /**
+     * @return the context at the top of the stack or <code>null</code> if the stack is empty
+     */
+    public ExecutionContext peek()
+    {
+        return this.top;
+    }
+
+    /**
+     * @param context the context to put at the top of the stack
+     */
+    public void push(ExecutionContext context)
+    {
+        if (!this.empty) {
+            if (this.size == this.elements.length) {
+                ExecutionContext[] newElements = new ExecutionContext[this.elements.length * 2];
+                System.arraycopy(this.elements, 0, newElements, 0, this.size);
+                this.elements = newElements;
+            }
+            this.elements[this.size++] = this.top;
+        }
+
+        this.top = context;
+        this.empty = false;
+    }
+
+    /**
+     * Remove the context at the top of the stack.
+     * 
+     * @return the removed context
+     * @throws EmptyStackException if the stack is empty
+     */
+    public ExecutionContext pop()
+    {
+        if (this.empty) {
+            throw new EmptyStackException();
+        }
+
+        ExecutionContext context = this.top;
+        if (this.size > 0) {
+            this.top = this.elements[--this.size];
+            // Don't keep a reference to the context, it could be big
+            this.elements[this.size] = null;
+        } else {
+            this.top = null;
+            this.empty = true;
+        }
+
+        return context;
+    }
+
+    /**
+     * @return <code>true</code> if the stack doesn't contain any context
+     */
+    public boolean isEmpty()
+    {
+        return this.empty;
+    }
+}
@@ -0,0 +1,85 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ *
+ */
+package org.xwiki.context.internal;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Time spent in an operation timed by the {@link ExecutionContextDiagnostics}.
+ * 
+ * @version $Id$
+ * @since 3.1M2
+ */
+public class OperationTiming
+{
+    /**
+     * The number of times the operation has been executed.
+     */
+    private final AtomicLong count = new AtomicLong();
+
+    /**
+     * The total time spent in the operation, in nanoseconds.
+     */
+    private final AtomicLong totalTime = new AtomicLong();
+
+    /**
+     * The longest execution of the operation, in nanoseconds.
+     */
+    private final AtomicLong maxTime = new AtomicLong();
+
+    /**
+     * @param time the duration of an execution of the operation, in nanoseconds
+     */
+    public void record(long time)
+    {
+        this.count.incrementAndGet();
+        this.totalTime.addAndGet(time);
+
+        long max = this.maxTime.get();
+        while (time > max && !this.maxTime.compareAndSet(max, time)) {
+            max = this.maxTime.get();
+        }
+    }
+
+    /**
+     * @return the number of times the operation has been executed
+     */
+    public long getCount()
+    {
+        return this.count.get();
+    }
+
+    /**
+     * @return the total time spent in the operation, in nanoseconds
+     */
+    public long getTotalTime()
+    {
+        return this.totalTime.get();
+    }
+
+    /**
+     * @return the longest execution of the operation, in nanoseconds
+     */
+    public long getMaxTime()
+    {
+        return this.maxTime.get();
+    }
+}
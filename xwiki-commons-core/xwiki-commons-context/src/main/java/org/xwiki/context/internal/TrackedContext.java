@@ -0,0 +1,123 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ *
+ */
+package org.xwiki.context.internal;
+
+import java.lang.ref.WeakReference;
+
+/**
+ * A context set on a thread, tracked by the {@link ExecutionContextDiagnostics}.
+ * 
+ * @version $Id$
+ * @since 3.1M2
+ */
+public class TrackedContext
+{
+    /**
+     * The separator between the elements of the creation stack trace.
+     */
+    private static final String STACK_TRACE_SEPARATOR = "\n\tat ";
+
+    /**
+     * The thread on which the context has been set. The reference is weak since the tracked contexts are kept in a
+     * map with weak thread keys, which would never be cleared if the values referenced the keys.
+     */
+    private final WeakReference<Thread> thread;
+
+    /**
+     * The identifier of the thread on which the context has been set.
+     */
+    private final long threadId;
+
+    /**
+     * The name of the thread on which the context has been set.
+     */
+    private final String threadName;
+
+    /**
+     * The time at which the context has been set, in milliseconds.
+     */
+    private final long creationTime;
+
+    /**
+     * Where the context has been set.
+     */
+    private final StackTraceElement[] creationStackTrace;
+
+    /**
+     * @param thread the thread on which the context has been set
+     * @param creationTime the time at which the context has been set, in milliseconds
+     * @param creationStackTrace where the context has been set
+     */
+    public TrackedContext(Thread thread, long creationTime, StackTraceElement[] creationStackTrace)
+    {
+        this.thread = new WeakReference<Thread>(thread);
+        this.threadId = thread.getId();
+        this.threadName = thread.getName();
+        this.creationTime = creationTime;
+        this.creationStackTrace = creationStackTrace;
+    }
+
+    /**
+     * @return the identifier of the thread on which the context has been set
+     */
+    public long getThreadId()
+    {
+        return this.threadId;
+    }
+
+    /**
+     * @return the name of the thread on which the context has been set
+     */
+    public String getThreadName()
+    {
+        return this.threadName;
+    }
+
+    /**
+     * @return <code>true</code> if the thread on which the context has been set is still running
+     */
+    public boolean isThreadAlive()
+    {
+        Thread currentThread = this.thread.get();
+        return currentThread != null && currentThread.isAlive();
+    }
+
+    /**
+     * @return the time at which the context has been set, in milliseconds
+     */
+    public long getCreationTime()
+    {
+        return this.creationTime;
+    }
+
+    /**
+     * @return where the context has been set
+     */
+    public String getCreationStackTrace()
+    {
+        StringBuilder builder = new StringBuilder();
+        for (StackTraceElement element : this.creationStackTrace) {
+            builder.append(STACK_TRACE_SEPARATOR).append(element);
+        }
+
+        return builder.toString();
+    }
+}
@@ -0,0 +1,212 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ *
+ */
+package org.xwiki.context.internal.jmx;
+
+import java.util.Map;
+
+import javax.management.openmbean.CompositeDataSupport;
+import javax.management.openmbean.CompositeType;
+import javax.management.openmbean.OpenDataException;
+import javax.management.openmbean.OpenType;
+import javax.management.openmbean.SimpleType;
+import javax.management.openmbean.TabularData;
+import javax.management.openmbean.TabularDataSupport;
+import javax.management.openmbean.TabularType;
+
+import org.xwiki.context.internal.ExecutionContextDiagnostics;
+import org.xwiki.context.internal.OperationTiming;
+import org.xwiki.context.internal.TrackedContext;
+
+/**
+ * Exposes the {@link ExecutionContextDiagnostics} through JMX.
+ * 
+ * @version $Id$
+ * @since 3.1M2
+ */
+public class JMXExecutionContextDiagnostics implements JMXExecutionContextDiagnosticsMBean
+{
+    /**
+     * The columns of the contexts tables.
+     */
+    private static final String[] CONTEXT_COLUMNS = new String[] {"threadId", "threadName", "alive", "age",
+        "creationStackTrace"};
+
+    /**
+     * The columns of the timings table.
+     */
+    private static final String[] TIMING_COLUMNS = new String[] {"operation", "count", "totalTime", "averageTime",
+        "maxTime"};
+
+    /**
+     * The number of nanoseconds in a microsecond.
+     */
+    private static final long NANOS_PER_MICRO = 1000L;
+
+    /**
+     * The diagnostics to expose.
+     */
+    private final ExecutionContextDiagnostics diagnostics;
+
+    /**
+     * @param diagnostics the diagnostics to expose
+     */
+    public JMXExecutionContextDiagnostics(ExecutionContextDiagnostics diagnostics)
+    {
+        this.diagnostics = diagnostics;
+    }
+
+    /**
+     * {@inheritDoc}
+     * 
+     * @see JMXExecutionContextDiagnosticsMBean#isEnabled()
+     */
+    public boolean isEnabled()
+    {
+        return this.diagnostics.isEnabled();
+    }
+
+    /**
+     * {@inheritDoc}
+     * 
+     * @see JMXExecutionContextDiagnosticsMBean#setEnabled(boolean)
+     */
+    public void setEnabled(boolean enabled)
+    {
+        this.diagnostics.setEnabled(enabled);
+    }
+
+    /**
+     * {@inheritDoc}
+     * 
+     * @see JMXExecutionContextDiagnosticsMBean#getMaxAge()
+     */
+    public long getMaxAge()
+    {
+        return this.diagnostics.getMaxAge();
+    }
+
+    /**
+     * {@inheritDoc}
+     * 
+     * @see JMXExecutionContextDiagnosticsMBean#setMaxAge(long)
+     */
+    public void setMaxAge(long maxAge)
+    {
+        this.diagnostics.setMaxAge(maxAge);
+    }
+
+    /**
+     * {@inheritDoc}
+     * 
+     * @see JMXExecutionContextDiagnosticsMBean#getLiveContexts()
+     */
+    public TabularData getLiveContexts()
+    {
+        return getContexts(0);
+    }
+
+    /**
+     * {@inheritDoc}
+     * 
+     * @see JMXExecutionContextDiagnosticsMBean#getLeakedContexts()
+     */
+    public TabularData getLeakedContexts()
+    {
+        return getContexts(this.diagnostics.getMaxAge());
+    }
+
+    /**
+     * {@inheritDoc}
+     * 
+     * @see JMXExecutionContextDiagnosticsMBean#getTimings()
+     */
+    public TabularData getTimings()
+    {
+        try {
+            String[] descriptions = new String[] {"The timed operation (initializer class or clone)",
+                "The number of executions", "The total time in milliseconds", "The average time in microseconds",
+                "The longest execution in microseconds"};
+            OpenType< ? >[] types =
+                new OpenType< ? >[] {SimpleType.STRING, SimpleType.LONG, SimpleType.LONG, SimpleType.LONG,
+                    SimpleType.LONG};
+            CompositeType rowType =
+                new CompositeType("timing", "Time spent in an operation", TIMING_COLUMNS, descriptions, types);
+            TabularData data = new TabularDataSupport(new TabularType("timings",
+                "Time spent in the execution context operations", rowType, new String[] {TIMING_COLUMNS[0]}));
+
+            for (Map.Entry<String, OperationTiming> entry : this.diagnostics.getTimings().entrySet()) {
+                OperationTiming timing = entry.getValue();
+                long count = timing.getCount();
+                long average = count > 0 ? timing.getTotalTime() / count / NANOS_PER_MICRO : 0;
+                data.put(new CompositeDataSupport(rowType, TIMING_COLUMNS, new Object[] {entry.getKey(), count,
+                    timing.getTotalTime() / NANOS_PER_MICRO / NANOS_PER_MICRO, average,
+                    timing.getMaxTime() / NANOS_PER_MICRO}));
+            }
+
+            return data;
+        } catch (OpenDataException e) {
+            throw new RuntimeException("Failed to gather the execution context timings", e);
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     * 
+     * @see JMXExecutionContextDiagnosticsMBean#resetTimings()
+     */
+    public void resetTimings()
+    {
+        this.diagnostics.resetTimings();
+    }
+
+    /**
+     * @param minAge the minimum age in milliseconds of the contexts to return
+     * @return the contexts set on threads and not removed yet, older than the passed age
+     */
+    private TabularData getContexts(long minAge)
+    {
+        try {
+            String[] descriptions = new String[] {"The identifier of the thread", "The name of the thread",
+                "Whether the thread is still running", "The age of the context in milliseconds",
+                "Where the context was set"};
+            OpenType< ? >[] types =
+                new OpenType< ? >[] {SimpleType.LONG, SimpleType.STRING, SimpleType.BOOLEAN, SimpleType.LONG,
+                    SimpleType.STRING};
+            CompositeType rowType =
+                new CompositeType("context", "A context set on a thread", CONTEXT_COLUMNS, descriptions, types);
+            TabularData data = new TabularDataSupport(new TabularType("contexts",
+                "Contexts set on threads and not removed yet", rowType, new String[] {CONTEXT_COLUMNS[0]}));
+
+            long now = System.currentTimeMillis();
+            for (TrackedContext context : this.diagnostics.getLiveContexts()) {
+                long age = now - context.getCreationTime();
+                if (age >= minAge) {
+                    data.put(new CompositeDataSupport(rowType, CONTEXT_COLUMNS, new Object[] {context.getThreadId(),
+                        context.getThreadName(), context.isThreadAlive(), age, context.getCreationStackTrace()}));
+                }
+            }
+
+            return data;
+        } catch (OpenDataException e) {
+            throw new RuntimeException("Failed to gather the execution contexts", e);
+        }
+    }
+}
@@ -0,0 +1,78 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ *
+ */
+package org.xwiki.context.internal.jmx;
+
+import javax.management.openmbean.TabularData;
+
+/**
+ * MBean API of the execution context diagnostic mode. Supports the following features:
+ * <ul>
+ *   <li>Enable and disable the diagnostic mode</li>
+ *   <li>List the contexts set on threads and not removed yet, along with where they were set</li>
+ *   <li>List the contexts older than a configurable age, which are most probably leaked</li>
+ *   <li>Report the time spent in each Execution Context Initializer and in context cloning</li>
+ * </ul>
+ * 
+ * @version $Id$
+ * @since 3.1M2
+ */
+public interface JMXExecutionContextDiagnosticsMBean
+{
+    /**
+     * @return <code>true</code> if the diagnostic mode is enabled
+     */
+    boolean isEnabled();
+
+    /**
+     * @param enabled <code>true</code> to enable the diagnostic mode
+     */
+    void setEnabled(boolean enabled);
+
+    /**
+     * @return the age in milliseconds after which a context which has not been removed is considered as leaked
+     */
+    long getMaxAge();
+
+    /**
+     * @param maxAge the age in milliseconds after which a context which has not been removed is considered as leaked
+     */
+    void setMaxAge(long maxAge);
+
+    /**
+     * @return the contexts set on threads and not removed yet, oldest first
+     */
+    TabularData getLiveContexts();
+
+    /**
+     * @return the contexts older than the maximum age, oldest first
+     */
+    TabularData getLeakedContexts();
+
+    /**
+     * @return the time spent in each Execution Context Initializer and in context cloning
+     */
+    TabularData getTimings();
+
+    /**
+     * Forget the timings recorded so far.
+     */
+    void resetTimings();
+}
@@ -0,0 +1,339 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ *
+ */
+package org.xwiki.context;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.inject.Provider;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * Unit tests for {@link ExecutionContext}.
+ * 
+ * @version $Id$
+ * @since 3.1M2
+ */
+public class ExecutionContextTest
+{
+    @Test
+    public void testCopyIsASnapshot()
+    {
+        ExecutionContext parent = new ExecutionContext();
+        parent.setProperty("inherited", "parent value");
+        parent.setProperty("overridden", "parent value");
+
+        ExecutionContext child = new ExecutionContext(parent);
+        child.setProperty("overridden", "child value");
+        child.setProperty("local", "child value");
+
+        Assert.assertEquals("parent value", child.getProperty("inherited"));
+        Assert.assertEquals("child value", child.getProperty("overridden"));
+        Assert.assertEquals("child value", child.getProperty("local"));
+
+        // The parent is not modified by the child
+        Assert.assertEquals("parent value", parent.getProperty("overridden"));
+        Assert.assertNull(parent.getProperty("local"));
+
+        // Modifications of the parent after the copy are not visible in the child
+        parent.setProperty("inherited", "new parent value");
+        parent.setProperty("new", "parent value");
+        parent.removeProperty("overridden");
+        Assert.assertEquals("parent value", child.getProperty("inherited"));
+        Assert.assertNull(child.getProperty("new"));
+        Assert.assertEquals("new parent value", parent.getProperty("inherited"));
+        Assert.assertNull(parent.getProperty("overridden"));
+        Assert.assertEquals(3, child.getProperties().size());
+    }
+
+    @Test
+    public void testDeepCopies()
+    {
+        ExecutionContext.Key<String> key = ExecutionContext.Key.register("test.deepCopies", String.class);
+        ExecutionContext context = new ExecutionContext();
+        context.setProperty("removed", "value");
+        for (int i = 0; i < 50; i++) {
+            context.setProperty("key" + i, i);
+            context.setProperty(key, "value" + i);
+            if (i == 10) {
+                context.removeProperty("removed");
+            }
+            context = new ExecutionContext(context);
+        }
+
+        Assert.assertEquals(0, context.getProperty("key0"));
+        Assert.assertEquals(49, context.getProperty("key49"));
+        Assert.assertEquals("value49", context.getProperty(key));
+        Assert.assertNull(context.getProperty("removed"));
+        Assert.assertEquals(51, context.getProperties().size());
+    }
+
+    @Test
+    public void testRemovePropertyHidesParentProperty()
+    {
+        ExecutionContext parent = new ExecutionContext();
+        parent.setProperty("key", "value");
+
+        ExecutionContext child = new ExecutionContext(parent);
+        child.removeProperty("key");
+
+        Assert.assertNull(child.getProperty("key"));
+        Assert.assertFalse(child.getProperties().containsKey("key"));
+        Assert.assertEquals("value", parent.getProperty("key"));
+
+        child.setProperty("key", null);
+        Assert.assertNull(child.getProperty("key"));
+        Assert.assertTrue(child.getProperties().containsKey("key"));
+    }
+
+    @Test
+    public void testGetPropertiesMergesParentProperties()
+    {
+        ExecutionContext grandParent = new ExecutionContext();
+        grandParent.setProperty("a", "grand parent");
+        grandParent.setProperty("b", "grand parent");
+
+        ExecutionContext parent = new ExecutionContext(grandParent);
+        parent.setProperty("b", "parent");
+        parent.setProperty("c", "parent");
+
+        ExecutionContext child = new ExecutionContext(parent);
+        child.setProperty("c", "child");
+
+        Assert.assertEquals(3, child.getProperties().size());
+        Assert.assertEquals("grand parent", child.getProperties().get("a"));
+        Assert.assertEquals("parent", child.getProperties().get("b"));
+        Assert.assertEquals("child", child.getProperties().get("c"));
+    }
+
+    @Test
+    public void testLazyProperty()
+    {
+        final AtomicInteger calls = new AtomicInteger();
+        ExecutionContext context = new ExecutionContext();
+        context.setLazyProperty("key", new Provider<String>()
+        {
+            public String get()
+            {
+                calls.incrementAndGet();
+                return "value";
+            }
+        });
+
+        Assert.assertEquals(0, calls.get());
+        // Getting all the properties doesn't compute the lazy ones
+        Assert.assertFalse(context.getProperties().containsKey("key"));
+        Assert.assertNull(context.getComputedProperty("key"));
+        Assert.assertNull(new ExecutionContext(context).getComputedProperty("key"));
+        Assert.assertEquals(0, calls.get());
+        Assert.assertEquals("value", context.getProperty("key"));
+        Assert.assertEquals("value", context.getProperty("key"));
+        Assert.assertEquals("value", context.getProperties().get("key"));
+        Assert.assertEquals("value", context.getComputedProperty("key"));
+        Assert.assertEquals(1, calls.get());
+    }
+
+    @Test
+    public void testLazyPropertyComputedAgainWhenNull()
+    {
+        final AtomicInteger calls = new AtomicInteger();
+        ExecutionContext context = new ExecutionContext();
+        context.setLazyProperty("key", new Provider<String>()
+        {
+            public String get()
+            {
+                return calls.incrementAndGet() > 1 ? "value" : null;
+            }
+        });
+
+        Assert.assertNull(context.getProperty("key"));
+        Assert.assertEquals("value", context.getProperty("key"));
+        Assert.assertEquals("value", context.getProperty("key"));
+        Assert.assertEquals(2, calls.get());
+    }
+
+    @Test
+    public void testLazyPropertyNotComputedWhenOverridden()
+    {
+        ExecutionContext context = new ExecutionContext();
+        context.setLazyProperty("key", new Provider<String>()
+        {
+            public String get()
+            {
+                throw new AssertionError("Should not be called");
+            }
+        });
+        context.setProperty("key", "value");
+
+        Assert.assertEquals("value", context.getProperty("key"));
+    }
+
+    @Test
+    public void testLazyPropertyIsComputedByEachCopy()
+    {
+        final AtomicInteger calls = new AtomicInteger();
+        ExecutionContext parent = new ExecutionContext();
+        parent.setLazyProperty("key", new Provider<Object>()
+        {
+            public Object get()
+            {
+                calls.incrementAndGet();
+                return new Object();
+            }
+        });
+
+        ExecutionContext child1 = new ExecutionContext(parent);
+        ExecutionContext child2 = new ExecutionContext(parent);
+
+        // Each context keeps the value it computed, the shared layer is never modified
+        Assert.assertNotSame(child1.getProperty("key"), child2.getProperty("key"));
+        Assert.assertSame(child1.getProperty("key"), child1.getProperty("key"));
+        Assert.assertNotSame(parent.getProperty("key"), child1.getProperty("key"));
+        Assert.assertEquals(3, calls.get());
+
+        // A value computed before the copy is shared
+        ExecutionContext child3 = new ExecutionContext(parent);
+        Assert.assertSame(parent.getProperty("key"), child3.getProperty("key"));
+        Assert.assertEquals(3, calls.get());
+    }
+
+    @Test
+    public void testKeys()
+    {
+        ExecutionContext.Key<String> key = ExecutionContext.Key.register("test.keys", String.class);
+        Assert.assertSame(key, ExecutionContext.Key.register("test.keys", String.class));
+
+        ExecutionContext parent = new ExecutionContext();
+        parent.setProperty(key, "value");
+
+        // Properties registered as keys are also accessible by name
+        Assert.assertEquals("value", parent.getProperty("test.keys"));
+        Assert.assertEquals("value", parent.getProperties().get("test.keys"));
+        parent.setProperty("test.keys", "other value");
+        Assert.assertEquals("other value", parent.getProperty(key));
+
+        ExecutionContext child = new ExecutionContext(parent);
+        Assert.assertEquals("other value", child.getProperty(key));
+        child.setProperty(key, null);
+        Assert.assertNull(child.getProperty(key));
+        Assert.assertTrue(child.getProperties().containsKey("test.keys"));
+        child.removeProperty(key);
+        Assert.assertNull(child.getProperty(key));
+        Assert.assertFalse(child.getProperties().containsKey("test.keys"));
+        Assert.assertEquals("other value", parent.getProperty(key));
+    }
+
+    @Test
+    public void testLazyKeyProperty()
+    {
+        ExecutionContext.Key<Object> key = ExecutionContext.Key.register("test.lazyKey", Object.class);
+        final Object value = new Object();
+
+        ExecutionContext context = new ExecutionContext();
+        context.setLazyProperty(key, new Provider<Object>()
+        {
+            public Object get()
+            {
+                return value;
+            }
+        });
+
+        Assert.assertSame(value, context.getProperty(key));
+        Assert.assertSame(value, context.getProperty("test.lazyKey"));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testRegisterKeyWithDifferentType()
+    {
+        ExecutionContext.Key.register("test.type", String.class);
+        ExecutionContext.Key.register("test.type", Integer.class);
+    }
+
+    @Test
+    public void testPropertySetByNameBeforeKeyRegistration()
+    {
+        ExecutionContext context = new ExecutionContext();
+        context.setProperty("test.lateKey", "value");
+        context.setProperty("test.lateKey2", "value");
+        ExecutionContext copy = new ExecutionContext(context);
+
+        ExecutionContext.Key<String> key = ExecutionContext.Key.register("test.lateKey", String.class);
+        Assert.assertEquals("value", context.getProperty(key));
+        Assert.assertEquals("value", context.getProperty("test.lateKey"));
+        Assert.assertEquals("value", copy.getProperty(key));
+        context.setProperty(key, "new value");
+        Assert.assertEquals("new value", context.getProperty(key));
+        Assert.assertEquals("new value", context.getProperties().get("test.lateKey"));
+        Assert.assertEquals("value", copy.getProperty(key));
+
+        ExecutionContext.Key<Integer> otherKey = ExecutionContext.Key.register("test.lateKey2", Integer.class);
+        try {
+            context.getProperty(otherKey);
+            Assert.fail("Should have failed");
+        } catch (ClassCastException expected) {
+            // The value set by name is not of the type of the key
+        }
+        context.removeProperty(otherKey);
+        Assert.assertNull(context.getProperty(otherKey));
+        Assert.assertFalse(context.getProperties().containsKey("test.lateKey2"));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testSetPropertyByNameChecksKeyType()
+    {
+        ExecutionContext.Key.register("test.checkedType", String.class);
+
+        new ExecutionContext().setProperty("test.checkedType", 42);
+    }
+
+    @Test
+    public void testCopyWhileWriting() throws Exception
+    {
+        final ExecutionContext context = new ExecutionContext();
+        final int count = 10000;
+        Thread writer = new Thread()
+        {
+            @Override
+            public void run()
+            {
+                for (int i = 0; i < count; i++) {
+                    context.setProperty("test.counter" + (i % 16), i);
+                    context.setProperty("test.counter", i);
+                }
+            }
+        };
+        writer.start();
+
+        int previous = -1;
+        while (writer.isAlive()) {
+            Integer value = (Integer) new ExecutionContext(context).getProperty("test.counter");
+            if (value != null) {
+                Assert.assertTrue(value >= previous);
+                previous = value;
+            }
+        }
+        writer.join();
+
+        Assert.assertEquals(count - 1, new ExecutionContext(context).getProperty("test.counter"));
+        Assert.assertEquals(17, context.getProperties().size());
+    }
+}
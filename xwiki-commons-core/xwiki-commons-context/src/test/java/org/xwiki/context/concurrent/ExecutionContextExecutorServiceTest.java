@@ -0,0 +1,151 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ *
+ */
+package org.xwiki.context.concurrent;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.xwiki.context.ExecutionContext;
+import org.xwiki.context.internal.DefaultExecution;
+
+/**
+ * Unit tests for {@link ExecutionContextExecutorService}.
+ * 
+ * @version $Id$
+ * @since 3.1M2
+ */
+public class ExecutionContextExecutorServiceTest
+{
+    private DefaultExecution execution = new DefaultExecution();
+
+    private ExecutorService pool;
+
+    private ExecutorService executorService;
+
+    private Callable<ExecutionContext> getContext = new Callable<ExecutionContext>()
+    {
+        public ExecutionContext call()
+        {
+            return execution.getContext();
+        }
+    };
+
+    @Before
+    public void setUp()
+    {
+        this.pool = Executors.newSingleThreadExecutor();
+        this.executorService = new ExecutionContextExecutorService(this.pool, this.execution);
+    }
+
+    @After
+    public void tearDown()
+    {
+        this.executorService.shutdown();
+        this.execution.removeContext();
+    }
+
+    @Test
+    public void testContextIsPropagated() throws Exception
+    {
+        ExecutionContext context1 = new ExecutionContext();
+        context1.setProperty("name", "context1");
+        this.execution.setContext(context1);
+        Future<ExecutionContext> future1 = this.executorService.submit(this.getContext);
+
+        ExecutionContext context2 = new ExecutionContext();
+        context2.setProperty("name", "context2");
+        this.execution.pushContext(context2);
+        Future<ExecutionContext> future2 = this.executorService.submit(this.getContext);
+
+        Assert.assertEquals("context1", future1.get().getProperty("name"));
+        Assert.assertEquals("context2", future2.get().getProperty("name"));
+
+        // The context is removed from the worker thread once the task is done
+        Assert.assertNull(this.pool.submit(this.getContext).get());
+    }
+
+    @Test
+    public void testInvokeAll() throws Exception
+    {
+        ExecutionContext context = new ExecutionContext();
+        context.setProperty("name", "context");
+        this.execution.setContext(context);
+
+        List<Future<ExecutionContext>> futures = this.executorService.invokeAll(Arrays.asList(this.getContext,
+            this.getContext));
+
+        Assert.assertEquals("context", futures.get(0).get().getProperty("name"));
+        Assert.assertEquals("context", futures.get(1).get().getProperty("name"));
+    }
+
+    @Test
+    public void testTaskRunsWithACopyOfTheContext() throws Exception
+    {
+        ExecutionContext context = new ExecutionContext();
+        context.setProperty("name", "before");
+        this.execution.setContext(context);
+
+        Future<ExecutionContext> future = this.executorService.submit(new Callable<ExecutionContext>()
+        {
+            public ExecutionContext call()
+            {
+                execution.getContext().setProperty("name", "task");
+                return execution.getContext();
+            }
+        });
+        ExecutionContext taskContext = future.get();
+        context.setProperty("name", "after");
+
+        Assert.assertNotSame(context, taskContext);
+        Assert.assertEquals("after", context.getProperty("name"));
+        Assert.assertEquals("task", taskContext.getProperty("name"));
+    }
+
+    @Test
+    public void testContextIsPoppedWhenTaskFails() throws Exception
+    {
+        this.execution.setContext(new ExecutionContext());
+        Future< ? > future = this.executorService.submit(new Runnable()
+        {
+            public void run()
+            {
+                throw new IllegalStateException();
+            }
+        });
+
+        try {
+            future.get();
+            Assert.fail();
+        } catch (ExecutionException expected) {
+            Assert.assertTrue(expected.getCause() instanceof IllegalStateException);
+        }
+        Assert.assertNull(this.pool.submit(this.getContext).get());
+    }
+}
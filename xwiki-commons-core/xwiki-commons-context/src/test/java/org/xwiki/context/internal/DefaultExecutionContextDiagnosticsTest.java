@@ -0,0 +1,112 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ *
+ */
+package org.xwiki.context.internal;
+
+import java.util.List;
+
+import javax.management.openmbean.TabularData;
+
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.xwiki.component.util.ReflectionUtils;
+import org.xwiki.context.ExecutionContext;
+import org.xwiki.context.ExecutionContextException;
+import org.xwiki.context.ExecutionContextInitializer;
+import org.xwiki.context.internal.jmx.JMXExecutionContextDiagnostics;
+
+/**
+ * Unit tests for {@link DefaultExecutionContextDiagnostics}.
+ * 
+ * @version $Id$
+ * @since 3.1M2
+ */
+public class DefaultExecutionContextDiagnosticsTest
+{
+    private DefaultExecutionContextDiagnostics diagnostics = new DefaultExecutionContextDiagnostics();
+
+    private DefaultExecution execution = new DefaultExecution();
+
+    private DefaultExecutionContextManager manager = new DefaultExecutionContextManager();
+
+    @Before
+    public void setUp()
+    {
+        ReflectionUtils.setFieldValue(this.execution, "diagnostics", this.diagnostics);
+        ReflectionUtils.setFieldValue(this.manager, "diagnostics", this.diagnostics);
+    }
+
+    @Test
+    public void testLiveContextsAreTracked() throws Exception
+    {
+        // Nothing is tracked while disabled
+        this.execution.setContext(new ExecutionContext());
+        Assert.assertTrue(this.diagnostics.getLiveContexts().isEmpty());
+
+        this.diagnostics.setEnabled(true);
+        this.execution.setContext(new ExecutionContext());
+
+        List<TrackedContext> contexts = this.diagnostics.getLiveContexts();
+        Assert.assertEquals(1, contexts.size());
+        Assert.assertEquals(Thread.currentThread().getId(), contexts.get(0).getThreadId());
+        Assert.assertTrue(contexts.get(0).isThreadAlive());
+        Assert.assertTrue(contexts.get(0).getCreationStackTrace().contains("testLiveContextsAreTracked"));
+
+        JMXExecutionContextDiagnostics mbean = new JMXExecutionContextDiagnostics(this.diagnostics);
+        Assert.assertEquals(1, mbean.getLiveContexts().size());
+        Assert.assertEquals(0, mbean.getLeakedContexts().size());
+        mbean.setMaxAge(0);
+        Assert.assertEquals(1, mbean.getLeakedContexts().size());
+
+        this.execution.removeContext();
+        Assert.assertTrue(this.diagnostics.getLiveContexts().isEmpty());
+    }
+
+    @Test
+    public void testInitializersAndCloneAreTimed() throws Exception
+    {
+        ExecutionContextInitializer initializer = new ExecutionContextInitializer()
+        {
+            public void initialize(ExecutionContext context) throws ExecutionContextException
+            {
+                context.setProperty("key", "value");
+            }
+        };
+        this.manager.addExecutionContextInitializer(initializer);
+
+        this.manager.initialize(new ExecutionContext());
+        Assert.assertTrue(this.diagnostics.getTimings().isEmpty());
+
+        this.diagnostics.setEnabled(true);
+        this.manager.initialize(new ExecutionContext());
+        this.manager.clone(new ExecutionContext());
+
+        Assert.assertEquals(2, this.diagnostics.getTimings().get(initializer.getClass().getName()).getCount());
+        Assert.assertEquals(1, this.diagnostics.getTimings().get(ExecutionContextDiagnostics.CLONE).getCount());
+
+        TabularData timings = new JMXExecutionContextDiagnostics(this.diagnostics).getTimings();
+        Assert.assertEquals(2, timings.size());
+        Assert.assertEquals(2L, timings.get(new Object[] {initializer.getClass().getName()}).get("count"));
+
+        this.diagnostics.resetTimings();
+        Assert.assertTrue(this.diagnostics.getTimings().isEmpty());
+    }
+}
@@ -20,9 +20,12 @@
  */
 package org.xwiki.context.internal;
 
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
 
+import javax.inject.Provider;
+
 import org.xwiki.context.ExecutionContext;
 import org.xwiki.context.ExecutionContextException;
 import org.xwiki.context.ExecutionContextInitializer;
@@ -57,4 +60,49 @@ public void initialize(ExecutionContext context) throws ExecutionContextExceptio
         assertEquals("value", ((List<String>) clonedContext.getProperty("key")).get(0));
         assertNotSame(context.getProperty("key"), clonedContext.getProperty("key"));
     }
+
+    /**
+     * Verify that the cloned context inherits the properties not set by the initializers and that modifying it
+     * doesn't modify the original context.
+     */
+    public void testCloneInheritsProperties() throws Exception
+    {
+        ExecutionContext context = new ExecutionContext();
+        context.setProperty("xwikicontext", "xwiki context");
+        context.setProperty("other", "value");
+
+        ExecutionContext clonedContext = new DefaultExecutionContextManager().clone(context);
+
+        assertEquals("xwiki context", clonedContext.getProperty("xwikicontext"));
+        assertEquals("value", clonedContext.getProperty("other"));
+
+        clonedContext.setProperty("other", "new value");
+        assertEquals("value", context.getProperty("other"));
+    }
+
+    /**
+     * Verify that the Velocity Context is cloned only if it has already been created.
+     */
+    public void testCloneDoesNotCreateLazyVelocityContext() throws Exception
+    {
+        ExecutionContext context = new ExecutionContext();
+        context.setLazyProperty("velocityContext", new Provider<List<String>>()
+        {
+            public List<String> get()
+            {
+                return new ArrayList<String>(Arrays.asList("value"));
+            }
+        });
+
+        DefaultExecutionContextManager contextManager = new DefaultExecutionContextManager();
+        ExecutionContext clonedContext = contextManager.clone(context);
+        assertFalse(context.getProperties().containsKey("velocityContext"));
+        assertFalse(clonedContext.getProperties().containsKey("velocityContext"));
+
+        Object velocityContext = context.getProperty("velocityContext");
+        clonedContext = contextManager.clone(context);
+        assertTrue(clonedContext.getProperties().containsKey("velocityContext"));
+        assertNotSame(velocityContext, clonedContext.getProperty("velocityContext"));
+        assertEquals(velocityContext, clonedContext.getProperty("velocityContext"));
+    }
 }
@@ -0,0 +1,106 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ *
+ */
+package org.xwiki.context.internal;
+
+import java.util.EmptyStackException;
+
+import org.junit.Assert;
+import org.junit.Test;
+import org.xwiki.context.ExecutionContext;
+
+/**
+ * Unit tests for {@link DefaultExecution}.
+ * 
+ * @version $Id$
+ * @since 3.1M2
+ */
+public class DefaultExecutionTest
+{
+    private DefaultExecution execution = new DefaultExecution();
+
+    @Test
+    public void testPushAndPop()
+    {
+        ExecutionContext context1 = new ExecutionContext();
+        ExecutionContext context2 = new ExecutionContext();
+
+        this.execution.setContext(context1);
+        Assert.assertSame(context1, this.execution.getContext());
+
+        // Push enough contexts to grow the stack
+        for (int i = 0; i < 10; i++) {
+            this.execution.pushContext(context2);
+            this.execution.pushContext(null);
+            Assert.assertNull(this.execution.getContext());
+        }
+        for (int i = 0; i < 10; i++) {
+            this.execution.popContext();
+            Assert.assertSame(context2, this.execution.getContext());
+            this.execution.popContext();
+        }
+        Assert.assertSame(context1, this.execution.getContext());
+
+        this.execution.popContext();
+        Assert.assertNull(this.execution.getContext());
+    }
+
+    @Test
+    public void testPushWithoutSet()
+    {
+        ExecutionContext context = new ExecutionContext();
+
+        Assert.assertNull(this.execution.getContext());
+        this.execution.pushContext(context);
+        Assert.assertSame(context, this.execution.getContext());
+
+        this.execution.removeContext();
+        Assert.assertNull(this.execution.getContext());
+    }
+
+    @Test(expected = EmptyStackException.class)
+    public void testPopEmpty()
+    {
+        this.execution.popContext();
+    }
+
+    @Test
+    public void testContextsAreThreadConfined() throws Exception
+    {
+        ExecutionContext context = new ExecutionContext();
+        this.execution.setContext(context);
+
+        final ExecutionContext[] otherThreadContext = new ExecutionContext[] {context};
+        Thread thread = new Thread()
+        {
+            @Override
+            public void run()
+            {
+                otherThreadContext[0] = execution.getContext();
+            }
+        };
+        thread.start();
+        thread.join();
+
+        Assert.assertNull(otherThreadContext[0]);
+        Assert.assertSame(context, this.execution.getContext());
+        this.execution.removeContext();
+    }
+}
@@ -0,0 +1,74 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ *
+ */
+package org.xwiki.observation.event.filter;
+
+import java.io.Serializable;
+
+/**
+ * An {@link EventFilter} that selects only events whose filter value starts with a given prefix. This is useful for
+ * hierarchical names, for example to listen to all the events affecting the documents of a given space by using the
+ * space reference followed by the separator as the prefix. Contrary to {@link RegexEventFilter} it doesn't need to
+ * compile and evaluate a regular expression for each comparison.
+ * 
+ * @version $Id$
+ * @since 3.1M2
+ */
+public class PrefixEventFilter implements EventFilter, Serializable
+{
+    /**
+     * The version identifier for this Serializable class. Increment only if the <i>serialized</i> form of the class
+     * changes.
+     */
+    private static final long serialVersionUID = 1L;
+
+    /** The prefix the filter values of the matched events must start with. */
+    private String filter;
+
+    /**
+     * Constructor initializing this event filter with a prefix that should be matched.
+     * 
+     * @param filter the prefix the names of the matched events must start with
+     */
+    public PrefixEventFilter(String filter)
+    {
+        this.filter = filter;
+    }
+
+    /**
+     * {@inheritDoc}
+     * 
+     * @see EventFilter#getFilter()
+     */
+    public String getFilter()
+    {
+        return this.filter;
+    }
+
+    /**
+     * {@inheritDoc}
+     * 
+     * @see EventFilter#matches(EventFilter)
+     */
+    public boolean matches(EventFilter eventFilter)
+    {
+        return eventFilter.getFilter().startsWith(getFilter());
+    }
+}
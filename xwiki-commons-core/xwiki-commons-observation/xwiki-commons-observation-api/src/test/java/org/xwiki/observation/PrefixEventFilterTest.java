@@ -0,0 +1,75 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ *
+ */
+package org.xwiki.observation;
+
+import org.junit.Assert;
+import org.junit.Test;
+import org.xwiki.observation.event.AbstractFilterableEvent;
+import org.xwiki.observation.event.Event;
+import org.xwiki.observation.event.filter.EventFilter;
+import org.xwiki.observation.event.filter.FixedNameEventFilter;
+import org.xwiki.observation.event.filter.PrefixEventFilter;
+
+/**
+ * Tests {@link PrefixEventFilter}.
+ * 
+ * @version $Id$
+ * @since 3.1M2
+ */
+public class PrefixEventFilterTest
+{
+    /**
+     * Tested event implementation.
+     */
+    private static class TestEvent extends AbstractFilterableEvent
+    {
+        /** Serial version ID. */
+        private static final long serialVersionUID = 1L;
+
+        public TestEvent(String name)
+        {
+            super(name);
+        }
+
+        public TestEvent(EventFilter eventFilter)
+        {
+            super(eventFilter);
+        }
+    }
+
+    @Test
+    public void testMatches()
+    {
+        PrefixEventFilter filter = new PrefixEventFilter("wiki:Space.");
+        Assert.assertTrue(filter.matches(new FixedNameEventFilter("wiki:Space.Page")));
+        Assert.assertTrue(filter.matches(new FixedNameEventFilter("wiki:Space.")));
+        Assert.assertFalse(filter.matches(new FixedNameEventFilter("wiki:Space")));
+        Assert.assertFalse(filter.matches(new FixedNameEventFilter("wiki:OtherSpace.Page")));
+    }
+
+    @Test
+    public void testMatchesEvents()
+    {
+        Event reference = new TestEvent(new PrefixEventFilter("wiki:Space."));
+        Assert.assertTrue(reference.matches(new TestEvent("wiki:Space.Page")));
+        Assert.assertFalse(reference.matches(new TestEvent("wiki:OtherSpace.Page")));
+    }
+}
@@ -0,0 +1,249 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ *
+ */
+package org.xwiki.observation.journal;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel.MapMode;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.xwiki.observation.ObservationManager;
+import org.xwiki.observation.event.Event;
+import org.xwiki.observation.journal.internal.JournalFormat;
+
+/**
+ * Reads the event journal written by the journal event listener, for example to replay the events which were
+ * notified around an incident into a test {@link ObservationManager}. The journal can be read while it is being
+ * written.
+ * 
+ * @version $Id$
+ * @since 3.1M2
+ */
+public class EventJournalReader
+{
+    /**
+     * The logger to log.
+     */
+    private static final Logger LOGGER = LoggerFactory.getLogger(EventJournalReader.class);
+
+    /**
+     * The journal file.
+     */
+    private final File file;
+
+    /**
+     * @param file the journal file
+     */
+    public EventJournalReader(File file)
+    {
+        this.file = file;
+    }
+
+    /**
+     * @return the records of the journal, oldest first
+     * @throws IOException if the file cannot be read or is not an event journal
+     */
+    public List<JournalRecord> read() throws IOException
+    {
+        ByteBuffer buffer;
+        RandomAccessFile randomAccessFile = new RandomAccessFile(this.file, "r");
+        try {
+            buffer = randomAccessFile.getChannel().map(MapMode.READ_ONLY, 0, randomAccessFile.length());
+        } finally {
+            randomAccessFile.close();
+        }
+
+        if (buffer.limit() < JournalFormat.RECORDS_OFFSET
+            || buffer.getInt(JournalFormat.MAGIC_OFFSET) != JournalFormat.MAGIC)
+        {
+            throw new IOException("[" + this.file + "] is not an event journal");
+        }
+        int version = buffer.getInt(JournalFormat.VERSION_OFFSET);
+        if (version != JournalFormat.VERSION) {
+            throw new IOException("Unsupported event journal version [" + version + "]");
+        }
+
+        String[] classNames = readDictionary(buffer);
+
+        int slotCount = buffer.getInt(JournalFormat.SLOT_COUNT_OFFSET);
+        if (slotCount < 1
+            || JournalFormat.RECORDS_OFFSET + (long) slotCount * JournalFormat.SLOT_SIZE > buffer.limit())
+        {
+            throw new IOException("Invalid event journal size [" + slotCount + "]");
+        }
+        long nextSequence = buffer.getLong(JournalFormat.NEXT_SEQUENCE_OFFSET);
+        List<JournalRecord> records = new ArrayList<JournalRecord>(slotCount);
+        for (long sequence = Math.max(0, nextSequence - slotCount); sequence < nextSequence; sequence++) {
+            JournalRecord record = readRecord(buffer, sequence, slotCount, classNames);
+            if (record != null) {
+                records.add(record);
+            }
+        }
+
+        return records;
+    }
+
+    /**
+     * Notify the recorded events again. The events are recreated from their class name and their filter using their
+     * <code>String</code> constructor, or their default constructor when they have no filter. Events which cannot be
+     * recreated this way are skipped, as well as the events whose filter was too long to be recorded in full (a
+     * warning is logged for them since notifying them with a truncated filter would notify different events). Since
+     * the source of the events is not recorded, the events are notified with a <code>null</code> source and their
+     * {@link JournalRecord} as data.
+     * 
+     * @param observationManager the observation manager to notify the events to
+     * @return the number of events notified
+     * @throws IOException if the file cannot be read or is not an event journal
+     */
+    public int replay(ObservationManager observationManager) throws IOException
+    {
+        int count = 0;
+        for (JournalRecord record : read()) {
+            if (record.isFilterTruncated()) {
+                LOGGER.warn("Event [" + record + "] not replayed because its filter was truncated in the journal");
+            } else {
+                Event event = createEvent(record);
+                if (event != null) {
+                    observationManager.notify(event, null, record);
+                    count++;
+                }
+            }
+        }
+
+        return count;
+    }
+
+    /**
+     * @param buffer the journal
+     * @return the class names, indexed by identifier
+     * @throws IOException if a class name cannot be decoded
+     */
+    private String[] readDictionary(ByteBuffer buffer) throws IOException
+    {
+        String[] classNames = new String[buffer.getInt(JournalFormat.DICTIONARY_COUNT_OFFSET)];
+        int offset = JournalFormat.HEADER_SIZE;
+        for (int i = 0; i < classNames.length; i++) {
+            byte[] bytes = new byte[buffer.getShort(offset)];
+            for (int j = 0; j < bytes.length; j++) {
+                bytes[j] = buffer.get(offset + 2 + j);
+            }
+            classNames[i] = new String(bytes, "UTF-8");
+            offset += 2 + bytes.length;
+        }
+
+        return classNames;
+    }
+
+    /**
+     * @param buffer the journal
+     * @param sequence the sequence number of the record to read
+     * @param slotCount the number of slots of the journal
+     * @param classNames the class names, indexed by identifier
+     * @return the record, <code>null</code> if it has been overwritten or is being written, including while it was
+     *         being read
+     */
+    private JournalRecord readRecord(ByteBuffer buffer, long sequence, int slotCount, String[] classNames)
+    {
+        int offset = JournalFormat.RECORDS_OFFSET + (int) (sequence % slotCount) * JournalFormat.SLOT_SIZE;
+        if (!isRecordAvailable(buffer, offset, sequence)) {
+            return null;
+        }
+
+        String filter = null;
+        int fullFilterLength = buffer.getShort(offset + JournalFormat.FILTER_LENGTH_OFFSET);
+        int filterLength = Math.min(fullFilterLength, JournalFormat.MAX_FILTER_LENGTH);
+        if (filterLength >= 0) {
+            char[] chars = new char[filterLength];
+            for (int i = 0; i < filterLength; i++) {
+                chars[i] = buffer.getChar(offset + JournalFormat.FILTER_OFFSET + i * 2);
+            }
+            filter = new String(chars);
+        }
+
+        String eventClassName = getClassName(buffer.getInt(offset + JournalFormat.EVENT_CLASS_OFFSET), classNames);
+        String sourceClassName = getClassName(buffer.getInt(offset + JournalFormat.SOURCE_CLASS_OFFSET), classNames);
+
+        long timestamp = buffer.getLong(offset + JournalFormat.TIMESTAMP_OFFSET);
+
+        // The writer may have started overwriting the slot while the fields were read
+        if (!isRecordAvailable(buffer, offset, sequence)) {
+            return null;
+        }
+
+        return new JournalRecord(sequence, timestamp, eventClassName, filter, fullFilterLength > filterLength,
+            sourceClassName);
+    }
+
+    /**
+     * @param buffer the journal
+     * @param offset the offset of the slot
+     * @param sequence the sequence number of the record expected in the slot
+     * @return <code>true</code> if the slot contains the complete record
+     */
+    private boolean isRecordAvailable(ByteBuffer buffer, int offset, long sequence)
+    {
+        return buffer.getLong(offset + JournalFormat.SEQUENCE_OFFSET) == sequence + 1;
+    }
+
+    /**
+     * @param id a class identifier
+     * @param classNames the class names, indexed by identifier
+     * @return the class name, <code>null</code> if unknown
+     */
+    private String getClassName(int id, String[] classNames)
+    {
+        return (id >= 0 && id < classNames.length) ? classNames[id] : null;
+    }
+
+    /**
+     * @param record a recorded event
+     * @return the event, <code>null</code> if it cannot be recreated
+     */
+    private Event createEvent(JournalRecord record)
+    {
+        if (record.getEventClassName() == null) {
+            return null;
+        }
+
+        try {
+            ClassLoader classLoader = Thread.currentThread().getContextClassLoader();
+            if (classLoader == null) {
+                classLoader = getClass().getClassLoader();
+            }
+            Class< ? > eventClass = Class.forName(record.getEventClassName(), true, classLoader);
+            Object event;
+            if (record.getFilter() != null) {
+                event = eventClass.getConstructor(String.class).newInstance(record.getFilter());
+            } else {
+                event = eventClass.getConstructor().newInstance();
+            }
+
+            return (Event) event;
+        } catch (Exception e) {
+            return null;
+        }
+    }
+}
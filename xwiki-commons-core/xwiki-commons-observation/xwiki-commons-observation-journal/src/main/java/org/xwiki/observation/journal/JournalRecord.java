@@ -0,0 +1,142 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ *
+ */
+package org.xwiki.observation.journal;
+
+/**
+ * An event recorded in the event journal.
+ * 
+ * @version $Id$
+ * @since 3.1M2
+ */
+public class JournalRecord
+{
+    /**
+     * The position of the event in the sequence of recorded events.
+     */
+    private final long sequence;
+
+    /**
+     * The time at which the event was notified, in milliseconds.
+     */
+    private final long timestamp;
+
+    /**
+     * The name of the event class.
+     */
+    private final String eventClassName;
+
+    /**
+     * The filter of the event.
+     */
+    private final String filter;
+
+    /**
+     * Indicates if the filter of the event was too long to be recorded in full.
+     */
+    private final boolean filterTruncated;
+
+    /**
+     * The name of the class of the source of the event.
+     */
+    private final String sourceClassName;
+
+    /**
+     * @param sequence the position of the event in the sequence of recorded events
+     * @param timestamp the time at which the event was notified, in milliseconds
+     * @param eventClassName the name of the event class, <code>null</code> if unknown
+     * @param filter the filter of the event, possibly truncated, <code>null</code> if the event has no filter
+     * @param filterTruncated <code>true</code> if the filter of the event was too long to be recorded in full
+     * @param sourceClassName the name of the class of the source of the event, <code>null</code> if there was no
+     *            source or if it is unknown
+     */
+    public JournalRecord(long sequence, long timestamp, String eventClassName, String filter,
+        boolean filterTruncated, String sourceClassName)
+    {
+        this.sequence = sequence;
+        this.timestamp = timestamp;
+        this.eventClassName = eventClassName;
+        this.filter = filter;
+        this.filterTruncated = filterTruncated;
+        this.sourceClassName = sourceClassName;
+    }
+
+    /**
+     * @return the position of the event in the sequence of recorded events
+     */
+    public long getSequence()
+    {
+        return this.sequence;
+    }
+
+    /**
+     * @return the time at which the event was notified, in milliseconds
+     */
+    public long getTimestamp()
+    {
+        return this.timestamp;
+    }
+
+    /**
+     * @return the name of the event class, <code>null</code> if unknown
+     */
+    public String getEventClassName()
+    {
+        return this.eventClassName;
+    }
+
+    /**
+     * @return the filter of the event, possibly truncated, <code>null</code> if the event has no filter
+     */
+    public String getFilter()
+    {
+        return this.filter;
+    }
+
+    /**
+     * @return <code>true</code> if the filter of the event was too long to be recorded in full, in which case
+     *         {@link #getFilter()} returns only its beginning
+     */
+    public boolean isFilterTruncated()
+    {
+        return this.filterTruncated;
+    }
+
+    /**
+     * @return the name of the class of the source of the event, <code>null</code> if there was no source or if it is
+     *         unknown
+     */
+    public String getSourceClassName()
+    {
+        return this.sourceClassName;
+    }
+
+    /**
+     * {@inheritDoc}
+     * 
+     * @see java.lang.Object#toString()
+     */
+    @Override
+    public String toString()
+    {
+        return this.sequence + " " + this.timestamp + " " + this.eventClassName + " [" + this.filter
+            + (this.filterTruncated ? "...] " : "] ") + this.sourceClassName;
+    }
+}
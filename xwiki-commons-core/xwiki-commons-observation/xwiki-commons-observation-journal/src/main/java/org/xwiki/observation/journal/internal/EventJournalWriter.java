@@ -0,0 +1,225 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ *
+ */
+package org.xwiki.observation.journal.internal;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.UnsupportedEncodingException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel.MapMode;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.xwiki.observation.event.Event;
+import org.xwiki.observation.event.FilterableEvent;
+import org.xwiki.observation.event.filter.EventFilter;
+
+/**
+ * Appends event records to a memory-mapped ring buffer file (see {@link JournalFormat}).
+ * <p>
+ * Appending a record doesn't allocate anything once the classes involved have been added to the dictionary, and
+ * doesn't involve any system call: the operating system writes the modified pages to the file in the background,
+ * including when the JVM crashes.
+ * 
+ * @version $Id$
+ * @since 3.1M2
+ */
+public class EventJournalWriter
+{
+    /**
+     * The encoding of the class names in the dictionary.
+     */
+    private static final String ENCODING = "UTF-8";
+
+    /**
+     * The mapped file.
+     */
+    private MappedByteBuffer buffer;
+
+    /**
+     * The number of slots of the ring buffer.
+     */
+    private final int slotCount;
+
+    /**
+     * The sequence number of the next record.
+     */
+    private long nextSequence;
+
+    /**
+     * The identifiers of the classes already added to the dictionary, indexed by class name so that the classes and
+     * their class loaders can be garbage collected.
+     */
+    private final Map<String, Integer> classIds = new HashMap<String, Integer>();
+
+    /**
+     * The number of bytes used in the dictionary.
+     */
+    private int dictionaryUsed;
+
+    /**
+     * Create a new journal, replacing the existing one if any.
+     * 
+     * @param file the journal file
+     * @param slotCount the maximum number of records kept in the journal, between 1 and
+     *            {@link JournalFormat#MAX_SLOT_COUNT}
+     * @throws IOException if the file cannot be created
+     */
+    public EventJournalWriter(File file, int slotCount) throws IOException
+    {
+        if (slotCount < 1 || slotCount > JournalFormat.MAX_SLOT_COUNT) {
+            throw new IllegalArgumentException("Invalid journal size [" + slotCount + "], expected between 1 and ["
+                + JournalFormat.MAX_SLOT_COUNT + "]");
+        }
+        this.slotCount = slotCount;
+
+        long size = JournalFormat.RECORDS_OFFSET + (long) slotCount * JournalFormat.SLOT_SIZE;
+        RandomAccessFile randomAccessFile = new RandomAccessFile(file, "rw");
+        try {
+            randomAccessFile.setLength(size);
+            this.buffer = randomAccessFile.getChannel().map(MapMode.READ_WRITE, 0, size);
+        } finally {
+            // The mapping stays valid after the file is closed
+            randomAccessFile.close();
+        }
+
+        for (int slot = 0; slot < slotCount; slot++) {
+            this.buffer.putLong(getSlotOffset(slot) + JournalFormat.SEQUENCE_OFFSET, 0);
+        }
+        this.buffer.putInt(JournalFormat.SLOT_COUNT_OFFSET, slotCount);
+        this.buffer.putInt(JournalFormat.DICTIONARY_COUNT_OFFSET, 0);
+        this.buffer.putInt(JournalFormat.DICTIONARY_USED_OFFSET, 0);
+        this.buffer.putLong(JournalFormat.NEXT_SEQUENCE_OFFSET, 0);
+        this.buffer.putInt(JournalFormat.VERSION_OFFSET, JournalFormat.VERSION);
+        this.buffer.putInt(JournalFormat.MAGIC_OFFSET, JournalFormat.MAGIC);
+    }
+
+    /**
+     * Append a record for the passed event, overwriting the oldest record when the journal is full.
+     * 
+     * @param event the event
+     * @param source the source of the event
+     */
+    public synchronized void append(Event event, Object source)
+    {
+        if (this.buffer == null) {
+            return;
+        }
+
+        long sequence = this.nextSequence++;
+        int offset = getSlotOffset((int) (sequence % this.slotCount));
+
+        // Mark the slot as being written so that a reader never sees a partial record
+        this.buffer.putLong(offset + JournalFormat.SEQUENCE_OFFSET, 0);
+
+        this.buffer.putLong(offset + JournalFormat.TIMESTAMP_OFFSET, System.currentTimeMillis());
+        this.buffer.putInt(offset + JournalFormat.EVENT_CLASS_OFFSET, getClassId(event.getClass()));
+        this.buffer.putInt(offset + JournalFormat.SOURCE_CLASS_OFFSET,
+            source != null ? getClassId(source.getClass()) : JournalFormat.NO_CLASS);
+
+        EventFilter filter = (event instanceof FilterableEvent) ? ((FilterableEvent) event).getEventFilter() : null;
+        String filterValue = (filter != null) ? filter.getFilter() : null;
+        if (filterValue != null) {
+            // The full length is recorded so that the reader knows when the filter has been truncated
+            this.buffer.putShort(offset + JournalFormat.FILTER_LENGTH_OFFSET,
+                (short) Math.min(filterValue.length(), Short.MAX_VALUE));
+            int length = Math.min(filterValue.length(), JournalFormat.MAX_FILTER_LENGTH);
+            for (int i = 0; i < length; i++) {
+                this.buffer.putChar(offset + JournalFormat.FILTER_OFFSET + i * 2, filterValue.charAt(i));
+            }
+        } else {
+            this.buffer.putShort(offset + JournalFormat.FILTER_LENGTH_OFFSET, (short) -1);
+        }
+
+        this.buffer.putLong(offset + JournalFormat.SEQUENCE_OFFSET, sequence + 1);
+        this.buffer.putLong(JournalFormat.NEXT_SEQUENCE_OFFSET, this.nextSequence);
+    }
+
+    /**
+     * Write the pending modifications to the file and stop recording events.
+     */
+    public synchronized void close()
+    {
+        if (this.buffer != null) {
+            this.buffer.force();
+            this.buffer = null;
+        }
+    }
+
+    /**
+     * @param slot the index of a slot
+     * @return the offset of the slot in the file
+     */
+    private int getSlotOffset(int slot)
+    {
+        return JournalFormat.RECORDS_OFFSET + slot * JournalFormat.SLOT_SIZE;
+    }
+
+    /**
+     * @param clazz a class
+     * @return the identifier of the class in the dictionary, the class being added to the dictionary if needed
+     */
+    private int getClassId(Class< ? > clazz)
+    {
+        // The name is cached by the class, so this doesn't allocate
+        String className = clazz.getName();
+        Integer id = this.classIds.get(className);
+        if (id == null) {
+            id = addClass(className);
+            this.classIds.put(className, id);
+        }
+
+        return id;
+    }
+
+    /**
+     * @param className the name of the class to add to the dictionary
+     * @return the identifier of the class or {@link JournalFormat#UNKNOWN_CLASS} if the dictionary is full
+     */
+    private int addClass(String className)
+    {
+        byte[] bytes;
+        try {
+            bytes = className.getBytes(ENCODING);
+        } catch (UnsupportedEncodingException e) {
+            // UTF-8 is always supported
+            return JournalFormat.UNKNOWN_CLASS;
+        }
+
+        if (this.dictionaryUsed + 2 + bytes.length > JournalFormat.DICTIONARY_SIZE) {
+            return JournalFormat.UNKNOWN_CLASS;
+        }
+
+        int offset = JournalFormat.HEADER_SIZE + this.dictionaryUsed;
+        this.buffer.putShort(offset, (short) bytes.length);
+        for (int i = 0; i < bytes.length; i++) {
+            this.buffer.put(offset + 2 + i, bytes[i]);
+        }
+        this.dictionaryUsed += 2 + bytes.length;
+
+        int id = this.buffer.getInt(JournalFormat.DICTIONARY_COUNT_OFFSET);
+        this.buffer.putInt(JournalFormat.DICTIONARY_USED_OFFSET, this.dictionaryUsed);
+        this.buffer.putInt(JournalFormat.DICTIONARY_COUNT_OFFSET, id + 1);
+
+        return id;
+    }
+}
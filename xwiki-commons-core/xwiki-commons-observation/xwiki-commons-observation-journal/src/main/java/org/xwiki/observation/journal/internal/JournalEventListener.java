@@ -0,0 +1,142 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ *
+ */
+package org.xwiki.observation.journal.internal;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Collections;
+import java.util.List;
+
+import javax.inject.Inject;
+import javax.inject.Named;
+import javax.inject.Singleton;
+
+import org.slf4j.Logger;
+import org.xwiki.component.annotation.Component;
+import org.xwiki.component.phase.Initializable;
+import org.xwiki.component.phase.InitializationException;
+import org.xwiki.configuration.ConfigurationSource;
+import org.xwiki.observation.EventListener;
+import org.xwiki.observation.event.AllEvent;
+import org.xwiki.observation.event.Event;
+
+/**
+ * Records all the notified events in the event journal when <code>observation.journal.enabled</code> is
+ * <code>true</code>. The journal is written in <code>observation.journal.file</code> (<code>xwiki-events.journal</code>
+ * in the temporary directory by default) and keeps the last <code>observation.journal.size</code> events (65536 by
+ * default, each event using 256 bytes).
+ * 
+ * @version $Id$
+ * @since 3.1M2
+ */
+@Component
+@Named(JournalEventListener.NAME)
+@Singleton
+public class JournalEventListener implements EventListener, Initializable
+{
+    /**
+     * The name of the listener.
+     */
+    public static final String NAME = "EventJournal";
+
+    /**
+     * Prefix of the configuration keys of the event journal.
+     */
+    private static final String PREFIX = "observation.journal.";
+
+    /**
+     * The default maximum number of events kept in the journal.
+     */
+    private static final int DEFAULT_SIZE = 65536;
+
+    /**
+     * Used to read the journal configuration.
+     */
+    @Inject
+    private ConfigurationSource configuration;
+
+    /**
+     * The logger to log.
+     */
+    @Inject
+    private Logger logger;
+
+    /**
+     * Writes the journal, <code>null</code> when the journal is disabled.
+     */
+    private EventJournalWriter writer;
+
+    /**
+     * {@inheritDoc}
+     * 
+     * @see org.xwiki.component.phase.Initializable#initialize()
+     */
+    public void initialize() throws InitializationException
+    {
+        if (this.configuration.getProperty(PREFIX + "enabled", Boolean.FALSE)) {
+            File file = new File(this.configuration.getProperty(PREFIX + "file",
+                new File(System.getProperty("java.io.tmpdir"), "xwiki-events.journal").getPath()));
+            int size = this.configuration.getProperty(PREFIX + "size", DEFAULT_SIZE);
+            if (size < 1 || size > JournalFormat.MAX_SLOT_COUNT) {
+                throw new InitializationException("Invalid event journal size [" + size + "], ["
+                    + PREFIX + "size] must be between 1 and [" + JournalFormat.MAX_SLOT_COUNT + "]");
+            }
+            try {
+                this.writer = new EventJournalWriter(file, size);
+            } catch (IOException e) {
+                this.logger.error("Failed to create the event journal [" + file + "], events won't be recorded", e);
+            }
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     * 
+     * @see org.xwiki.observation.EventListener#getName()
+     */
+    public String getName()
+    {
+        return NAME;
+    }
+
+    /**
+     * {@inheritDoc}
+     * 
+     * @see org.xwiki.observation.EventListener#getEvents()
+     */
+    public List<Event> getEvents()
+    {
+        return this.writer != null ? Collections.singletonList(AllEvent.ALLEVENT) : Collections.<Event> emptyList();
+    }
+
+    /**
+     * {@inheritDoc}
+     * 
+     * @see org.xwiki.observation.EventListener#onEvent(org.xwiki.observation.event.Event, java.lang.Object,
+     *      java.lang.Object)
+     */
+    public void onEvent(Event event, Object source, Object data)
+    {
+        if (this.writer != null) {
+            this.writer.append(event, source);
+        }
+    }
+}
@@ -0,0 +1,155 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ *
+ */
+package org.xwiki.observation.journal.internal;
+
+/**
+ * Layout of the event journal file.
+ * <p>
+ * The file starts with a header of {@link #HEADER_SIZE} bytes, followed by a dictionary of class names of
+ * {@link #DICTIONARY_SIZE} bytes (each name is written as its length on 2 bytes followed by its UTF-8 bytes, and is
+ * identified by its position in the dictionary), followed by the records. The records are written in fixed size
+ * slots used as a ring buffer: record <code>n</code> is written in slot <code>n % slotCount</code>.
+ * 
+ * @version $Id$
+ * @since 3.1M2
+ */
+public final class JournalFormat
+{
+    /**
+     * Identifies an event journal file.
+     */
+    public static final int MAGIC = 0x58454A4C;
+
+    /**
+     * The version of the file layout.
+     */
+    public static final int VERSION = 2;
+
+    /**
+     * Offset of the magic number in the header.
+     */
+    public static final int MAGIC_OFFSET = 0;
+
+    /**
+     * Offset of the version in the header.
+     */
+    public static final int VERSION_OFFSET = 4;
+
+    /**
+     * Offset of the number of slots in the header.
+     */
+    public static final int SLOT_COUNT_OFFSET = 8;
+
+    /**
+     * Offset of the number of class names in the dictionary in the header.
+     */
+    public static final int DICTIONARY_COUNT_OFFSET = 12;
+
+    /**
+     * Offset of the number of bytes used by the dictionary in the header.
+     */
+    public static final int DICTIONARY_USED_OFFSET = 16;
+
+    /**
+     * Offset in the header of the sequence number of the next record to write.
+     */
+    public static final int NEXT_SEQUENCE_OFFSET = 24;
+
+    /**
+     * The size of the header.
+     */
+    public static final int HEADER_SIZE = 64;
+
+    /**
+     * The size of the dictionary of class names.
+     */
+    public static final int DICTIONARY_SIZE = 64 * 1024;
+
+    /**
+     * Offset of the first slot.
+     */
+    public static final int RECORDS_OFFSET = HEADER_SIZE + DICTIONARY_SIZE;
+
+    /**
+     * The size of a slot.
+     */
+    public static final int SLOT_SIZE = 256;
+
+    /**
+     * The maximum number of slots, so that the offsets in the file fit in an <code>int</code> as required to map it.
+     */
+    public static final int MAX_SLOT_COUNT = (Integer.MAX_VALUE - RECORDS_OFFSET) / SLOT_SIZE;
+
+    /**
+     * Offset in a slot of the sequence number of the record plus one, 0 meaning that the slot is empty or being
+     * written.
+     */
+    public static final int SEQUENCE_OFFSET = 0;
+
+    /**
+     * Offset in a slot of the time of the event, in milliseconds.
+     */
+    public static final int TIMESTAMP_OFFSET = 8;
+
+    /**
+     * Offset in a slot of the identifier of the event class.
+     */
+    public static final int EVENT_CLASS_OFFSET = 16;
+
+    /**
+     * Offset in a slot of the identifier of the source class.
+     */
+    public static final int SOURCE_CLASS_OFFSET = 20;
+
+    /**
+     * Offset in a slot of the number of characters of the filter before truncation (at most
+     * {@link Short#MAX_VALUE}), -1 when the event has no filter.
+     */
+    public static final int FILTER_LENGTH_OFFSET = 24;
+
+    /**
+     * Offset in a slot of the characters of the filter, written as UTF-16 chars.
+     */
+    public static final int FILTER_OFFSET = 26;
+
+    /**
+     * The maximum number of characters of the filter kept in a record, longer filters are truncated.
+     */
+    public static final int MAX_FILTER_LENGTH = (SLOT_SIZE - FILTER_OFFSET) / 2;
+
+    /**
+     * Class identifier used when there's no source.
+     */
+    public static final int NO_CLASS = -1;
+
+    /**
+     * Class identifier used when the class name couldn't be added to the full dictionary.
+     */
+    public static final int UNKNOWN_CLASS = -2;
+
+    /**
+     * Utility class.
+     */
+    private JournalFormat()
+    {
+        // Utility class
+    }
+}
@@ -0,0 +1,183 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ *
+ */
+package org.xwiki.observation.journal;
+
+import java.io.File;
+import java.util.List;
+
+import org.jmock.Expectations;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.xwiki.observation.ObservationManager;
+import org.xwiki.observation.event.AbstractFilterableEvent;
+import org.xwiki.observation.event.ActionExecutionEvent;
+import org.xwiki.observation.event.ApplicationStartedEvent;
+import org.xwiki.observation.event.filter.EventFilter;
+import org.xwiki.observation.journal.internal.EventJournalWriter;
+import org.xwiki.observation.journal.internal.JournalFormat;
+import org.xwiki.test.AbstractMockingTestCase;
+
+/**
+ * Unit tests for {@link EventJournalWriter} and {@link EventJournalReader}.
+ * 
+ * @version $Id$
+ * @since 3.1M2
+ */
+public class EventJournalTest extends AbstractMockingTestCase
+{
+    /**
+     * Event which can be recreated from its filter.
+     */
+    public static class TestEvent extends AbstractFilterableEvent
+    {
+        /** Serial version ID. */
+        private static final long serialVersionUID = 1L;
+
+        public TestEvent(String name)
+        {
+            super(name);
+        }
+
+        public TestEvent(EventFilter eventFilter)
+        {
+            super(eventFilter);
+        }
+    }
+
+    private File file;
+
+    @Before
+    public void setUp() throws Exception
+    {
+        this.file = File.createTempFile("events", ".journal");
+    }
+
+    @After
+    public void tearDown() throws Exception
+    {
+        this.file.delete();
+    }
+
+    @Test
+    public void testReadRecords() throws Exception
+    {
+        EventJournalWriter writer = new EventJournalWriter(this.file, 16);
+        writer.append(new TestEvent("wiki:Space.Page"), "source");
+        writer.append(new ApplicationStartedEvent(), null);
+        writer.append(new ActionExecutionEvent("view"), this);
+
+        // The journal can be read while it's being written
+        List<JournalRecord> records = new EventJournalReader(this.file).read();
+        writer.close();
+
+        Assert.assertEquals(3, records.size());
+
+        Assert.assertEquals(0, records.get(0).getSequence());
+        Assert.assertEquals(TestEvent.class.getName(), records.get(0).getEventClassName());
+        Assert.assertEquals("wiki:Space.Page", records.get(0).getFilter());
+        Assert.assertFalse(records.get(0).isFilterTruncated());
+        Assert.assertEquals(String.class.getName(), records.get(0).getSourceClassName());
+        Assert.assertTrue(records.get(0).getTimestamp() > 0);
+
+        Assert.assertEquals(ApplicationStartedEvent.class.getName(), records.get(1).getEventClassName());
+        Assert.assertNull(records.get(1).getFilter());
+        Assert.assertNull(records.get(1).getSourceClassName());
+
+        Assert.assertEquals(ActionExecutionEvent.class.getName(), records.get(2).getEventClassName());
+        Assert.assertEquals(getClass().getName(), records.get(2).getSourceClassName());
+    }
+
+    @Test
+    public void testOldestRecordsAreOverwritten() throws Exception
+    {
+        EventJournalWriter writer = new EventJournalWriter(this.file, 4);
+        for (int i = 0; i < 10; i++) {
+            writer.append(new TestEvent("page" + i), null);
+        }
+        writer.close();
+
+        List<JournalRecord> records = new EventJournalReader(this.file).read();
+
+        Assert.assertEquals(4, records.size());
+        for (int i = 0; i < 4; i++) {
+            Assert.assertEquals(6 + i, records.get(i).getSequence());
+            Assert.assertEquals("page" + (6 + i), records.get(i).getFilter());
+        }
+    }
+
+    @Test
+    public void testLongFiltersAreTruncated() throws Exception
+    {
+        StringBuilder filter = new StringBuilder();
+        for (int i = 0; i < JournalFormat.MAX_FILTER_LENGTH + 10; i++) {
+            filter.append('a');
+        }
+
+        EventJournalWriter writer = new EventJournalWriter(this.file, 4);
+        writer.append(new TestEvent(filter.toString()), null);
+        writer.close();
+
+        JournalRecord record = new EventJournalReader(this.file).read().get(0);
+        Assert.assertEquals(filter.substring(0, JournalFormat.MAX_FILTER_LENGTH), record.getFilter());
+        Assert.assertTrue(record.isFilterTruncated());
+    }
+
+    @Test
+    public void testReplay() throws Exception
+    {
+        EventJournalWriter writer = new EventJournalWriter(this.file, 16);
+        writer.append(new TestEvent("wiki:Space.Page"), "source");
+        writer.append(new ApplicationStartedEvent(), null);
+        // Can't be recreated since its state is not the filter of a filterable event
+        writer.append(new ActionExecutionEvent("view"), null);
+        // Not replayed since it would be recreated with a different filter
+        StringBuilder longFilter = new StringBuilder();
+        for (int i = 0; i <= JournalFormat.MAX_FILTER_LENGTH; i++) {
+            longFilter.append('a');
+        }
+        writer.append(new TestEvent(longFilter.toString()), null);
+        writer.close();
+
+        final ObservationManager observationManager = getMockery().mock(ObservationManager.class);
+        getMockery().checking(new Expectations() {{
+            oneOf(observationManager).notify(with(any(TestEvent.class)), with(aNull(Object.class)),
+                with(any(JournalRecord.class)));
+            oneOf(observationManager).notify(with(any(ApplicationStartedEvent.class)), with(aNull(Object.class)),
+                with(any(JournalRecord.class)));
+        }});
+
+        Assert.assertEquals(2, new EventJournalReader(this.file).replay(observationManager));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testInvalidSizeIsRejected() throws Exception
+    {
+        new EventJournalWriter(this.file, 0);
+    }
+
+    @Test(expected = java.io.IOException.class)
+    public void testReadInvalidFile() throws Exception
+    {
+        new EventJournalReader(this.file).read();
+    }
+}
@@ -16,24 +16,20 @@
  * License along with this software; if not, write to the Free
  * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
  * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ *
  */
-package org.xwiki.velocity.internal.jmx;
-
-import javax.management.openmbean.TabularData;
+package org.xwiki.observation.remote;
 
 /**
- * MBean API related to Velocity Engines. Supports the following features:
- * <ul>
- *   <li>Retrieve list of template namespaces along with the name of macros registered in each template namespace</li>
- * </ul>
- *
+ * Called by an {@link EventTransport} for each packet received from another node.
+ * 
  * @version $Id$
- * @since 2.4M2
+ * @since 3.1M2
  */
-public interface JMXVelocityEngineMBean
+public interface EventPacketReceiver
 {
     /**
-     * @return the list of template namespaces along with the name of macros registered in each template namespace
+     * @param packet the packet received from another node
      */
-    TabularData getTemplates();
+    void onPacket(byte[] packet);
 }
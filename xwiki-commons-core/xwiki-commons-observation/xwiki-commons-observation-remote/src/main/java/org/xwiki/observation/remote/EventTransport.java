@@ -0,0 +1,57 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ *
+ */
+package org.xwiki.observation.remote;
+
+import org.xwiki.component.annotation.ComponentRole;
+
+/**
+ * Transport used by the {@link RemoteObservationManager} to exchange packets of encoded events with other nodes.
+ * Implementations only move opaque packets around and don't need to know anything about events. Since each
+ * {@link RemoteObservationManager} opens its own connection, implementations are expected to use the per lookup
+ * instantiation strategy.
+ * 
+ * @version $Id$
+ * @since 3.1M2
+ */
+@ComponentRole
+public interface EventTransport
+{
+    /**
+     * Start listening to the packets sent by other nodes.
+     * 
+     * @param receiver the receiver to call for each packet received from another node
+     * @throws RemoteEventException if the transport cannot be opened
+     */
+    void open(EventPacketReceiver receiver) throws RemoteEventException;
+
+    /**
+     * Send a packet to the other nodes.
+     * 
+     * @param packet the packet to send
+     * @throws RemoteEventException if the packet couldn't be sent
+     */
+    void send(byte[] packet) throws RemoteEventException;
+
+    /**
+     * Stop listening to other nodes and release the resources used by the transport.
+     */
+    void close();
+}
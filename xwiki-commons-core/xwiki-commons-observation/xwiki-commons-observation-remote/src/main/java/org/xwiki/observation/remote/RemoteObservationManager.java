@@ -0,0 +1,69 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ *
+ */
+package org.xwiki.observation.remote;
+
+import java.util.List;
+
+import org.xwiki.component.annotation.ComponentRole;
+import org.xwiki.observation.event.Event;
+
+/**
+ * Bridges the local {@link org.xwiki.observation.ObservationManager} with other nodes: local events matching the
+ * configured events are batched, encoded and sent through an {@link EventTransport}, and events received from other
+ * nodes are notified again locally. Events notified locally because they were received from a remote node are never
+ * sent back, which prevents echo loops between nodes.
+ * <p>
+ * Only the event and its source and data are forwarded, and only when they can be encoded: events must be
+ * {@link java.io.Serializable} and source and data which are neither strings nor serializable are replaced by
+ * <code>null</code> on the remote side.
+ * 
+ * @version $Id$
+ * @since 3.1M2
+ */
+@ComponentRole
+public interface RemoteObservationManager
+{
+    /**
+     * Start forwarding local events to the other nodes and notifying locally the events received from them.
+     * 
+     * @param transportHint the hint of the {@link EventTransport} component to use to communicate with other nodes
+     * @param events the local events to forward to the other nodes (matched the same way as
+     *            {@link org.xwiki.observation.EventListener#getEvents()})
+     * @throws RemoteEventException if the transport cannot be found or opened
+     */
+    void start(String transportHint, List<Event> events) throws RemoteEventException;
+
+    /**
+     * Send the pending events and stop communicating with the other nodes.
+     */
+    void stop();
+
+    /**
+     * Send right away the local events waiting to be sent in the next batch.
+     */
+    void flush();
+
+    /**
+     * @return the identifier of this node, sent along with the events so that a node can ignore the events it sent
+     *         itself when the transport delivers them back
+     */
+    String getNodeId();
+}
@@ -0,0 +1,513 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ *
+ */
+package org.xwiki.observation.remote.internal;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.inject.Inject;
+import javax.inject.Singleton;
+
+import org.slf4j.Logger;
+import org.xwiki.component.annotation.Component;
+import org.xwiki.component.manager.ComponentLookupException;
+import org.xwiki.component.manager.ComponentManager;
+import org.xwiki.configuration.ConfigurationSource;
+import org.xwiki.observation.EventListener;
+import org.xwiki.observation.ObservationManager;
+import org.xwiki.observation.event.Event;
+import org.xwiki.observation.remote.EventPacketReceiver;
+import org.xwiki.observation.remote.EventTransport;
+import org.xwiki.observation.remote.RemoteEventException;
+import org.xwiki.observation.remote.RemoteObservationManager;
+
+/**
+ * Default implementation of {@link RemoteObservationManager}.
+ * <p>
+ * Local events are queued and sent in batches by a background thread: a batch is sent as soon as it contains
+ * <code>observation.remote.batchSize</code> events, or at the latest <code>observation.remote.flushDelay</code>
+ * milliseconds after the previous one. Sending a batch of events in a single packet is much cheaper than sending each
+ * event separately, both for the transport and for the nodes receiving them. The threads notifying the local events
+ * never wait for the transport: when more than <code>observation.remote.maxPendingEvents</code> events are waiting
+ * to be sent (because the other nodes are slow or unreachable), the new events are dropped.
+ * <p>
+ * The sources and data which are not strings, and the events which cannot be encoded compactly, are sent using Java
+ * serialization. Besides the events, the event filters and the basic Java classes, only the classes and packages
+ * (ending with a <code>.</code>) listed in <code>observation.remote.serializableClasses</code> are deserialized.
+ * <p>
+ * Received events are notified on the thread of the transport. Any event notified in reaction to them on that thread
+ * is considered as part of the remote notification and is not sent back to the other nodes, since they already
+ * produced it themselves.
+ * 
+ * @version $Id$
+ * @since 3.1M2
+ */
+@Component
+@Singleton
+public class DefaultRemoteObservationManager implements RemoteObservationManager
+{
+    /**
+     * Prefix of the configuration keys of the remote observation.
+     */
+    private static final String PREFIX = "observation.remote.";
+
+    /**
+     * The default maximum number of events sent in one packet.
+     */
+    private static final int DEFAULT_BATCH_SIZE = 100;
+
+    /**
+     * The default maximum time in milliseconds during which a local event waits before being sent.
+     */
+    private static final long DEFAULT_FLUSH_DELAY = 100;
+
+    /**
+     * The default maximum number of events waiting to be sent.
+     */
+    private static final int DEFAULT_MAX_PENDING_EVENTS = 10000;
+
+    /**
+     * Used to listen to the local events and to notify the remote events.
+     */
+    @Inject
+    private ObservationManager observationManager;
+
+    /**
+     * Used to find the event transport.
+     */
+    @Inject
+    private ComponentManager componentManager;
+
+    /**
+     * Used to read the batching configuration.
+     */
+    @Inject
+    private ConfigurationSource configuration;
+
+    /**
+     * The logger to log.
+     */
+    @Inject
+    private Logger logger;
+
+    /**
+     * The identifier of this node.
+     */
+    private final String nodeId = UUID.randomUUID().toString();
+
+    /**
+     * Encodes and decodes the packets.
+     */
+    private volatile EventBatchCodec codec = new EventBatchCodec();
+
+    /**
+     * Indicates if the current thread is notifying events received from other nodes.
+     */
+    private final ThreadLocal<Boolean> remoteNotification = new ThreadLocal<Boolean>();
+
+    /**
+     * The local events waiting to be sent.
+     */
+    private List<RemoteEventData> pendingEvents = new ArrayList<RemoteEventData>();
+
+    /**
+     * Lock protecting {@link #pendingEvents}.
+     */
+    private final Object pendingLock = new Object();
+
+    /**
+     * Lock making sure the batches are sent in order.
+     */
+    private final Object sendLock = new Object();
+
+    /**
+     * The number of pending events triggering the sending of a batch.
+     */
+    private int batchSize;
+
+    /**
+     * The maximum number of events waiting to be sent, the new events being dropped when it's reached.
+     */
+    private int maxPendingEvents;
+
+    /**
+     * The number of events dropped since the last batch was sent.
+     */
+    private final AtomicInteger droppedEvents = new AtomicInteger();
+
+    /**
+     * The transport used to communicate with other nodes, <code>null</code> when not started.
+     */
+    private volatile EventTransport transport;
+
+    /**
+     * Sends the pending events from a background thread.
+     */
+    private volatile FlushScheduler flusher;
+
+    /**
+     * The listener forwarding the local events.
+     */
+    private ForwardingEventListener listener;
+
+    /**
+     * {@inheritDoc}
+     * 
+     * @see org.xwiki.observation.remote.RemoteObservationManager#start(java.lang.String, java.util.List)
+     */
+    public synchronized void start(String transportHint, List<Event> events) throws RemoteEventException
+    {
+        if (this.transport != null) {
+            throw new RemoteEventException("The remote observation manager is already started");
+        }
+
+        this.batchSize = this.configuration.getProperty(PREFIX + "batchSize", DEFAULT_BATCH_SIZE);
+        long flushDelay = this.configuration.getProperty(PREFIX + "flushDelay", DEFAULT_FLUSH_DELAY);
+        this.maxPendingEvents =
+            this.configuration.getProperty(PREFIX + "maxPendingEvents", DEFAULT_MAX_PENDING_EVENTS);
+        this.codec = new EventBatchCodec(this.configuration.getProperty(PREFIX + "serializableClasses",
+            Collections.<String> emptyList()));
+
+        EventTransport newTransport;
+        try {
+            newTransport = this.componentManager.lookup(EventTransport.class, transportHint);
+        } catch (ComponentLookupException e) {
+            throw new RemoteEventException("Failed to find the event transport [" + transportHint + "]", e);
+        }
+        newTransport.open(new EventPacketReceiver()
+        {
+            public void onPacket(byte[] packet)
+            {
+                notifyRemoteEvents(packet);
+            }
+        });
+        this.transport = newTransport;
+
+        this.flusher = new FlushScheduler(this);
+        this.flusher.start(flushDelay);
+
+        this.listener = new ForwardingEventListener("RemoteObservationManager-" + this.nodeId, events, this);
+        this.observationManager.addListener(this.listener);
+    }
+
+    /**
+     * {@inheritDoc}
+     * 
+     * @see org.xwiki.observation.remote.RemoteObservationManager#stop()
+     */
+    public synchronized void stop()
+    {
+        if (this.transport != null) {
+            this.observationManager.removeListener(this.listener.getName());
+            this.listener = null;
+
+            this.flusher.stop();
+            this.flusher = null;
+            flush();
+
+            this.transport.close();
+            this.transport = null;
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     * 
+     * @see org.xwiki.observation.remote.RemoteObservationManager#flush()
+     */
+    public void flush()
+    {
+        synchronized (this.sendLock) {
+            List<RemoteEventData> events;
+            synchronized (this.pendingLock) {
+                if (this.pendingEvents.isEmpty()) {
+                    return;
+                }
+                events = this.pendingEvents;
+                this.pendingEvents = new ArrayList<RemoteEventData>();
+            }
+
+            int dropped = this.droppedEvents.getAndSet(0);
+            if (dropped > 0) {
+                this.logger.warn("[" + dropped + "] events have not been sent to the other nodes because too many "
+                    + "events were waiting to be sent");
+            }
+
+            EventTransport currentTransport = this.transport;
+            if (currentTransport != null) {
+                try {
+                    currentTransport.send(this.codec.encode(this.nodeId, events));
+                } catch (IOException e) {
+                    this.logger.error("Failed to encode the events to send to the other nodes", e);
+                } catch (RemoteEventException e) {
+                    this.logger.error("Failed to send [" + events.size() + "] events to the other nodes", e);
+                }
+            }
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     * 
+     * @see org.xwiki.observation.remote.RemoteObservationManager#getNodeId()
+     */
+    public String getNodeId()
+    {
+        return this.nodeId;
+    }
+
+    /**
+     * Queue a local event to be sent to the other nodes.
+     * 
+     * @param event the event
+     * @param source the source of the event
+     * @param data the additional data related to the event
+     */
+    void onLocalEvent(Event event, Object source, Object data)
+    {
+        if (Boolean.TRUE.equals(this.remoteNotification.get())) {
+            // Don't send back the events received from other nodes
+            return;
+        }
+
+        if (!this.codec.canEncode(event)) {
+            this.logger.debug("Event [" + event.getClass().getName() + "] cannot be sent to other nodes");
+            return;
+        }
+
+        boolean queued;
+        int pendingCount;
+        synchronized (this.pendingLock) {
+            queued = this.pendingEvents.size() < this.maxPendingEvents;
+            if (queued) {
+                this.pendingEvents.add(new RemoteEventData(event, source, data));
+            }
+            pendingCount = this.pendingEvents.size();
+        }
+
+        if (!queued) {
+            this.droppedEvents.incrementAndGet();
+        } else if (pendingCount >= this.batchSize) {
+            FlushScheduler currentFlusher = this.flusher;
+            if (currentFlusher != null) {
+                currentFlusher.flushNow();
+            }
+        }
+    }
+
+    /**
+     * Notify locally the events contained in a packet received from another node.
+     * 
+     * @param packet the packet
+     */
+    private void notifyRemoteEvents(byte[] packet)
+    {
+        EventBatch batch;
+        try {
+            batch = this.codec.decode(packet);
+        } catch (IOException e) {
+            this.logger.error("Failed to decode the events received from another node", e);
+            return;
+        }
+
+        if (this.nodeId.equals(batch.getOrigin())) {
+            return;
+        }
+
+        for (IOException failure : batch.getFailures()) {
+            this.logger.warn("Skipped an event received from node [" + batch.getOrigin()
+                + "] which could not be recreated", failure);
+        }
+
+        this.remoteNotification.set(Boolean.TRUE);
+        try {
+            for (RemoteEventData eventData : batch.getEvents()) {
+                this.observationManager.notify(eventData.getEvent(), eventData.getSource(), eventData.getData());
+            }
+        } finally {
+            this.remoteNotification.remove();
+        }
+    }
+
+    /**
+     * Listener forwarding the local events to {@link DefaultRemoteObservationManager#onLocalEvent}.
+     * 
+     * @version $Id$
+     */
+    private static class ForwardingEventListener implements EventListener
+    {
+        /**
+         * The name of the listener.
+         */
+        private final String name;
+
+        /**
+         * The events to forward.
+         */
+        private final List<Event> events;
+
+        /**
+         * The remote observation manager to forward the events to.
+         */
+        private final DefaultRemoteObservationManager manager;
+
+        /**
+         * @param name the name of the listener
+         * @param events the events to forward
+         * @param manager the remote observation manager to forward the events to
+         */
+        public ForwardingEventListener(String name, List<Event> events, DefaultRemoteObservationManager manager)
+        {
+            this.name = name;
+            this.events = events;
+            this.manager = manager;
+        }
+
+        /**
+         * {@inheritDoc}
+         * 
+         * @see org.xwiki.observation.EventListener#getName()
+         */
+        public String getName()
+        {
+            return this.name;
+        }
+
+        /**
+         * {@inheritDoc}
+         * 
+         * @see org.xwiki.observation.EventListener#getEvents()
+         */
+        public List<Event> getEvents()
+        {
+            return this.events;
+        }
+
+        /**
+         * {@inheritDoc}
+         * 
+         * @see org.xwiki.observation.EventListener#onEvent(org.xwiki.observation.event.Event, java.lang.Object,
+         *      java.lang.Object)
+         */
+        public void onEvent(Event event, Object source, Object data)
+        {
+            this.manager.onLocalEvent(event, source, data);
+        }
+    }
+
+    /**
+     * Sends the pending events of a {@link RemoteObservationManager} from a daemon thread, periodically and when
+     * requested.
+     * 
+     * @version $Id$
+     */
+    private static class FlushScheduler implements Runnable, ThreadFactory
+    {
+        /**
+         * The remote observation manager to flush.
+         */
+        private final RemoteObservationManager manager;
+
+        /**
+         * Indicates if a flush has been requested and not started yet, to avoid queuing more than one.
+         */
+        private final AtomicBoolean flushRequested = new AtomicBoolean();
+
+        /**
+         * The executor running the flushes.
+         */
+        private ScheduledExecutorService executor;
+
+        /**
+         * @param manager the remote observation manager to flush
+         */
+        public FlushScheduler(RemoteObservationManager manager)
+        {
+            this.manager = manager;
+        }
+
+        /**
+         * @param delay the delay in milliseconds between two periodic flushes
+         */
+        public void start(long delay)
+        {
+            this.executor = Executors.newSingleThreadScheduledExecutor(this);
+            this.executor.scheduleWithFixedDelay(this, delay, delay, TimeUnit.MILLISECONDS);
+        }
+
+        /**
+         * Request a flush as soon as possible, without waiting for it.
+         */
+        public void flushNow()
+        {
+            if (this.flushRequested.compareAndSet(false, true)) {
+                try {
+                    this.executor.execute(this);
+                } catch (RejectedExecutionException e) {
+                    // Stopped, the pending events are flushed by the stop
+                    this.flushRequested.set(false);
+                }
+            }
+        }
+
+        /**
+         * Stop the flushes.
+         */
+        public void stop()
+        {
+            this.executor.shutdown();
+        }
+
+        /**
+         * {@inheritDoc}
+         * 
+         * @see java.lang.Runnable#run()
+         */
+        public void run()
+        {
+            this.flushRequested.set(false);
+            this.manager.flush();
+        }
+
+        /**
+         * {@inheritDoc}
+         * 
+         * @see java.util.concurrent.ThreadFactory#newThread(java.lang.Runnable)
+         */
+        public Thread newThread(Runnable runnable)
+        {
+            Thread thread = new Thread(runnable, "Remote observation flusher");
+            thread.setDaemon(true);
+
+            return thread;
+        }
+    }
+}
@@ -0,0 +1,84 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ *
+ */
+package org.xwiki.observation.remote.internal;
+
+import java.io.IOException;
+import java.util.List;
+
+/**
+ * The events contained in a packet, along with the node which sent them.
+ * 
+ * @version $Id$
+ * @since 3.1M2
+ */
+public class EventBatch
+{
+    /**
+     * The identifier of the node which sent the events.
+     */
+    private final String origin;
+
+    /**
+     * The events, in the order they were notified on the sending node.
+     */
+    private final List<RemoteEventData> events;
+
+    /**
+     * The reasons why some events of the packet could not be recreated and have been skipped.
+     */
+    private final List<IOException> failures;
+
+    /**
+     * @param origin the identifier of the node which sent the events
+     * @param events the events, in the order they were notified on the sending node
+     * @param failures the reasons why some events of the packet could not be recreated and have been skipped
+     */
+    public EventBatch(String origin, List<RemoteEventData> events, List<IOException> failures)
+    {
+        this.origin = origin;
+        this.events = events;
+        this.failures = failures;
+    }
+
+    /**
+     * @return the identifier of the node which sent the events
+     */
+    public String getOrigin()
+    {
+        return this.origin;
+    }
+
+    /**
+     * @return the events, in the order they were notified on the sending node
+     */
+    public List<RemoteEventData> getEvents()
+    {
+        return this.events;
+    }
+
+    /**
+     * @return the reasons why some events of the packet could not be recreated and have been skipped
+     */
+    public List<IOException> getFailures()
+    {
+        return this.failures;
+    }
+}
@@ -0,0 +1,466 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ *
+ */
+package org.xwiki.observation.remote.internal;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutput;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.xwiki.observation.event.Event;
+import org.xwiki.observation.event.FilterableEvent;
+import org.xwiki.observation.event.filter.EventFilter;
+
+/**
+ * Encodes batches of events in a compact binary format, much smaller and faster to produce than the default Java
+ * serialization of each event.
+ * <p>
+ * All the class names and strings (filter values, string sources and data) used in a batch are written once in a
+ * symbol table at the beginning of the packet and referenced by their index afterwards. Filterable events whose only
+ * state is their {@link EventFilter} (which is the case of most events) are written as the index of their class, the
+ * index of their filter class and the index of their filter value, and are recreated on the receiving side using
+ * their {@link EventFilter} constructor. Other events, and sources and data which are not strings, fall back on Java
+ * serialization.
+ * <p>
+ * Packets are self contained so that they can be decoded by any node, whatever the packets it received before.
+ * Decoding only instantiates events, event filters and the classes allowed by {@link JavaSerializer}, and an event
+ * which cannot be recreated is skipped without dropping the other events of the packet.
+ * 
+ * @version $Id$
+ * @since 3.1M2
+ */
+public class EventBatchCodec
+{
+    /**
+     * The version of the packet format, to be incremented whenever the format changes.
+     */
+    private static final int VERSION = 1;
+
+    /**
+     * Marks a filterable event encoded as its class, filter class and filter value.
+     */
+    private static final int FILTERABLE_EVENT = 0;
+
+    /**
+     * Marks an event encoded using Java serialization.
+     */
+    private static final int SERIALIZED_EVENT = 1;
+
+    /**
+     * Marks a <code>null</code> source or data, or one which cannot be encoded.
+     */
+    private static final int NULL_VALUE = 0;
+
+    /**
+     * Marks a string source or data, encoded as the index of the string in the symbol table.
+     */
+    private static final int STRING_VALUE = 1;
+
+    /**
+     * Marks a source or data encoded using Java serialization.
+     */
+    private static final int SERIALIZED_VALUE = 2;
+
+    /**
+     * The bits of each byte of a variable length integer holding the value.
+     */
+    private static final int VARINT_VALUE_MASK = 0x7F;
+
+    /**
+     * The bit of each byte of a variable length integer indicating that more bytes follow.
+     */
+    private static final int VARINT_CONTINUATION_BIT = 0x80;
+
+    /**
+     * The number of value bits in each byte of a variable length integer.
+     */
+    private static final int VARINT_SHIFT = 7;
+
+    /**
+     * The maximum number of bytes of a variable length integer.
+     */
+    private static final int VARINT_MAX_BYTES = 5;
+
+    /**
+     * The encoding used for the symbols.
+     */
+    private static final String SYMBOL_ENCODING = "UTF-8";
+
+    /**
+     * Returned by {@link #readValue(DataInputStream, String[], List)} when the value cannot be recreated.
+     */
+    private static final Object INVALID_VALUE = new Object();
+
+    /**
+     * Used to encode the events which cannot be encoded compactly, and the sources and data which are not strings.
+     */
+    private final JavaSerializer serializer;
+
+    /**
+     * Used to encode compactly the filterable events and to recreate them.
+     */
+    private final FilterableEventFactory eventFactory;
+
+    /**
+     * Create a codec which only deserializes the classes allowed by default by {@link JavaSerializer}.
+     */
+    public EventBatchCodec()
+    {
+        this(Collections.<String> emptyList());
+    }
+
+    /**
+     * @param allowedClasses the additional classes, and packages ending with a <code>.</code>, whose classes can be
+     *            deserialized
+     * @see JavaSerializer#JavaSerializer(Collection)
+     */
+    public EventBatchCodec(Collection<String> allowedClasses)
+    {
+        this.serializer = new JavaSerializer(allowedClasses);
+        this.eventFactory = new FilterableEventFactory(this.serializer);
+    }
+
+    /**
+     * @param event the event to encode
+     * @return <code>true</code> if the passed event can be encoded, <code>false</code> otherwise
+     */
+    public boolean canEncode(Event event)
+    {
+        return this.eventFactory.isCompact(event) || event instanceof Serializable;
+    }
+
+    /**
+     * @param origin the identifier of the node sending the events
+     * @param events the events to encode; events which cannot be serialized are skipped, and sources and data which
+     *            cannot be serialized are replaced by <code>null</code>
+     * @return the encoded packet
+     * @throws IOException if the packet cannot be written
+     */
+    public byte[] encode(String origin, List<RemoteEventData> events) throws IOException
+    {
+        Map<String, Integer> symbols = new LinkedHashMap<String, Integer>();
+
+        ByteArrayOutputStream bodyBytes = new ByteArrayOutputStream();
+        DataOutputStream body = new DataOutputStream(bodyBytes);
+        int count = 0;
+        for (RemoteEventData eventData : events) {
+            if (writeEvent(body, eventData.getEvent(), symbols)) {
+                writeValue(body, eventData.getSource(), symbols);
+                writeValue(body, eventData.getData(), symbols);
+                count++;
+            }
+        }
+        body.flush();
+
+        ByteArrayOutputStream packet = new ByteArrayOutputStream(bodyBytes.size() + symbols.size() * 16 + 64);
+        DataOutputStream out = new DataOutputStream(packet);
+        out.writeByte(VERSION);
+        out.writeUTF(origin);
+        writeVarInt(out, symbols.size());
+        for (String symbol : symbols.keySet()) {
+            byte[] bytes = symbol.getBytes(SYMBOL_ENCODING);
+            writeVarInt(out, bytes.length);
+            out.write(bytes);
+        }
+        writeVarInt(out, count);
+        bodyBytes.writeTo(out);
+        out.flush();
+
+        return packet.toByteArray();
+    }
+
+    /**
+     * @param packet the packet to decode
+     * @return the decoded events along with the identifier of the node which sent them and the reasons why some
+     *         events have been skipped
+     * @throws IOException if the packet is not valid
+     */
+    public EventBatch decode(byte[] packet) throws IOException
+    {
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(packet));
+
+        int version = in.readUnsignedByte();
+        if (version != VERSION) {
+            throw new IOException("Unsupported event packet version [" + version + "]");
+        }
+        String origin = in.readUTF();
+
+        // Each symbol and each event take at least one byte
+        String[] symbols = new String[readLength(in)];
+        for (int i = 0; i < symbols.length; i++) {
+            symbols[i] = new String(readBytes(in), SYMBOL_ENCODING);
+        }
+
+        int count = readLength(in);
+        List<RemoteEventData> events = new ArrayList<RemoteEventData>(count);
+        List<IOException> failures = new ArrayList<IOException>();
+        for (int i = 0; i < count; i++) {
+            Event event = readEvent(in, symbols, failures);
+            Object source = readValue(in, symbols, failures);
+            Object data = readValue(in, symbols, failures);
+            if (event != null && source != INVALID_VALUE && data != INVALID_VALUE) {
+                events.add(new RemoteEventData(event, source, data));
+            }
+        }
+
+        return new EventBatch(origin, events, failures);
+    }
+
+    /**
+     * @param out the stream to write to
+     * @param event the event to write
+     * @param symbols the symbol table of the packet
+     * @return <code>true</code> if the event has been written, <code>false</code> if it cannot be serialized
+     * @throws IOException if the event cannot be written
+     */
+    private boolean writeEvent(DataOutput out, Event event, Map<String, Integer> symbols) throws IOException
+    {
+        if (this.eventFactory.isCompact(event)) {
+            EventFilter filter = ((FilterableEvent) event).getEventFilter();
+            out.writeByte(FILTERABLE_EVENT);
+            writeSymbol(out, event.getClass().getName(), symbols);
+            writeSymbol(out, filter.getClass().getName(), symbols);
+            writeSymbol(out, filter.getFilter(), symbols);
+        } else {
+            byte[] bytes = this.serializer.serialize(event);
+            if (bytes == null) {
+                return false;
+            }
+            out.writeByte(SERIALIZED_EVENT);
+            writeVarInt(out, bytes.length);
+            out.write(bytes);
+        }
+
+        return true;
+    }
+
+    /**
+     * @param in the stream to read from
+     * @param symbols the symbol table of the packet
+     * @param failures where to add the reason why the event cannot be recreated
+     * @return the event, or <code>null</code> if it has been read but cannot be recreated
+     * @throws IOException if the event cannot be read
+     */
+    private Event readEvent(DataInputStream in, String[] symbols, List<IOException> failures) throws IOException
+    {
+        Object event;
+
+        int type = in.readUnsignedByte();
+        if (type == FILTERABLE_EVENT) {
+            String eventClassName = readSymbol(in, symbols);
+            String filterClassName = readSymbol(in, symbols);
+            String filterValue = readSymbol(in, symbols);
+            try {
+                event = this.eventFactory.createEvent(eventClassName, filterClassName, filterValue);
+            } catch (IOException e) {
+                failures.add(e);
+                event = null;
+            }
+        } else if (type == SERIALIZED_EVENT) {
+            event = deserialize(readBytes(in), failures);
+            if (event != INVALID_VALUE && !(event instanceof Event)) {
+                failures.add(new IOException("The serialized value [" + event + "] is not an event"));
+            }
+        } else {
+            throw new IOException("Unknown event type [" + type + "]");
+        }
+
+        return event instanceof Event ? (Event) event : null;
+    }
+
+    /**
+     * @param out the stream to write to
+     * @param value the source or data to write
+     * @param symbols the symbol table of the packet
+     * @throws IOException if the value cannot be written
+     */
+    private void writeValue(DataOutput out, Object value, Map<String, Integer> symbols) throws IOException
+    {
+        if (value instanceof String) {
+            out.writeByte(STRING_VALUE);
+            writeSymbol(out, (String) value, symbols);
+        } else {
+            byte[] bytes = (value instanceof Serializable) ? this.serializer.serialize(value) : null;
+            if (bytes != null) {
+                out.writeByte(SERIALIZED_VALUE);
+                writeVarInt(out, bytes.length);
+                out.write(bytes);
+            } else {
+                out.writeByte(NULL_VALUE);
+            }
+        }
+    }
+
+    /**
+     * @param in the stream to read from
+     * @param symbols the symbol table of the packet
+     * @param failures where to add the reason why the value cannot be recreated
+     * @return the source or data, or {@link #INVALID_VALUE} if it has been read but cannot be recreated
+     * @throws IOException if the value cannot be read
+     */
+    private Object readValue(DataInputStream in, String[] symbols, List<IOException> failures) throws IOException
+    {
+        Object value;
+
+        int type = in.readUnsignedByte();
+        if (type == STRING_VALUE) {
+            value = readSymbol(in, symbols);
+        } else if (type == SERIALIZED_VALUE) {
+            value = deserialize(readBytes(in), failures);
+        } else {
+            value = null;
+        }
+
+        return value;
+    }
+
+    /**
+     * @param bytes the serialized value
+     * @param failures where to add the reason why the value cannot be recreated
+     * @return the value, or {@link #INVALID_VALUE} if it cannot be recreated
+     */
+    private Object deserialize(byte[] bytes, List<IOException> failures)
+    {
+        try {
+            return this.serializer.deserialize(bytes);
+        } catch (IOException e) {
+            failures.add(e);
+            return INVALID_VALUE;
+        }
+    }
+
+    /**
+     * @param in the stream to read from
+     * @param symbols the symbol table of the packet
+     * @return the symbol whose index is read from the stream
+     * @throws IOException if the index cannot be read or is not in the symbol table
+     */
+    private String readSymbol(DataInputStream in, String[] symbols) throws IOException
+    {
+        int index = readVarInt(in);
+        if (index >= symbols.length) {
+            throw new IOException("Invalid symbol index [" + index + "]");
+        }
+
+        return symbols[index];
+    }
+
+    /**
+     * @param in the stream to read from
+     * @return the bytes, preceded by their number in the stream
+     * @throws IOException if the bytes cannot be read
+     */
+    private byte[] readBytes(DataInputStream in) throws IOException
+    {
+        byte[] bytes = new byte[readLength(in)];
+        in.readFully(bytes);
+
+        return bytes;
+    }
+
+    /**
+     * Read a number of bytes or of items taking at least one byte each, making sure that it's not greater than the
+     * number of bytes remaining in the packet before it's used to allocate anything.
+     * 
+     * @param in the stream to read from, reading a packet held in memory
+     * @return the length
+     * @throws IOException if the length cannot be read or is greater than the remaining bytes
+     */
+    private int readLength(DataInputStream in) throws IOException
+    {
+        int length = readVarInt(in);
+        if (length > in.available()) {
+            throw new IOException("Invalid length [" + length + "], only [" + in.available() + "] bytes remain");
+        }
+
+        return length;
+    }
+
+    /**
+     * Write the index of a symbol, adding it to the symbol table if it's not already there.
+     * 
+     * @param out the stream to write to
+     * @param symbol the symbol to write
+     * @param symbols the symbol table of the packet
+     * @throws IOException if the symbol cannot be written
+     */
+    private void writeSymbol(DataOutput out, String symbol, Map<String, Integer> symbols) throws IOException
+    {
+        Integer index = symbols.get(symbol);
+        if (index == null) {
+            index = symbols.size();
+            symbols.put(symbol, index);
+        }
+        writeVarInt(out, index);
+    }
+
+    /**
+     * Write a positive integer using as few bytes as possible.
+     * 
+     * @param out the stream to write to
+     * @param value the positive integer to write
+     * @throws IOException if the integer cannot be written
+     */
+    private void writeVarInt(DataOutput out, int value) throws IOException
+    {
+        int remaining = value;
+        while ((remaining & ~VARINT_VALUE_MASK) != 0) {
+            out.writeByte((remaining & VARINT_VALUE_MASK) | VARINT_CONTINUATION_BIT);
+            remaining >>>= VARINT_SHIFT;
+        }
+        out.writeByte(remaining);
+    }
+
+    /**
+     * @param in the stream to read from
+     * @return the positive integer written by {@link #writeVarInt(DataOutput, int)}
+     * @throws IOException if the integer cannot be read or is not a positive integer
+     */
+    private int readVarInt(DataInputStream in) throws IOException
+    {
+        int value = 0;
+        int shift = 0;
+        int current;
+        do {
+            if (shift == VARINT_SHIFT * VARINT_MAX_BYTES) {
+                throw new IOException("Invalid variable length integer");
+            }
+            current = in.readUnsignedByte();
+            value |= (current & VARINT_VALUE_MASK) << shift;
+            shift += VARINT_SHIFT;
+        } while ((current & VARINT_CONTINUATION_BIT) != 0);
+
+        if (value < 0) {
+            throw new IOException("Invalid variable length integer [" + value + "]");
+        }
+
+        return value;
+    }
+}
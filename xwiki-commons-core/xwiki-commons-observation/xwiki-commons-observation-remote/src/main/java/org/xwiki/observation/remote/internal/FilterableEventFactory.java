@@ -0,0 +1,185 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ *
+ */
+package org.xwiki.observation.remote.internal;
+
+import java.io.IOException;
+import java.lang.reflect.Constructor;
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import org.xwiki.observation.event.AbstractFilterableEvent;
+import org.xwiki.observation.event.Event;
+import org.xwiki.observation.event.filter.AlwaysMatchingEventFilter;
+import org.xwiki.observation.event.filter.EventFilter;
+
+/**
+ * Finds the filterable events which can be recreated from their class name and their filter, and recreates them.
+ * This is the case of events extending {@link AbstractFilterableEvent} without adding any state, having a public
+ * {@link EventFilter} constructor, and whose filter has a public <code>String</code> constructor.
+ * 
+ * @version $Id$
+ * @since 3.1M2
+ */
+public class FilterableEventFactory
+{
+    /**
+     * Cache telling for each event and filter class if it can be encoded using only class names and the filter value.
+     */
+    private final ConcurrentMap<Class< ? >, Boolean> compactClasses = new ConcurrentHashMap<Class< ? >, Boolean>();
+
+    /**
+     * Cache of the constructors used to recreate the events and filters, indexed by expected type and class name.
+     */
+    private final ConcurrentMap<String, Constructor< ? >> constructors =
+        new ConcurrentHashMap<String, Constructor< ? >>();
+
+    /**
+     * Used to load the classes.
+     */
+    private final JavaSerializer serializer;
+
+    /**
+     * @param serializer used to load the classes
+     */
+    public FilterableEventFactory(JavaSerializer serializer)
+    {
+        this.serializer = serializer;
+    }
+
+    /**
+     * @param eventClassName the name of the event class
+     * @param filterClassName the name of the filter class
+     * @param filterValue the filter value
+     * @return the new event
+     * @throws IOException if the event cannot be created
+     */
+    public Event createEvent(String eventClassName, String filterClassName, String filterValue) throws IOException
+    {
+        EventFilter filter;
+        if (AlwaysMatchingEventFilter.class.getName().equals(filterClassName)) {
+            filter = new AlwaysMatchingEventFilter();
+        } else {
+            filter = newInstance(filterClassName, EventFilter.class, String.class, filterValue);
+        }
+
+        return newInstance(eventClassName, Event.class, EventFilter.class, filter);
+    }
+
+    /**
+     * @param event the event to check
+     * @return <code>true</code> if the event can be encoded with only its class name and its filter
+     */
+    public boolean isCompact(Event event)
+    {
+        return event instanceof AbstractFilterableEvent && isCompactClass(event.getClass())
+            && isCompactClass(((AbstractFilterableEvent) event).getEventFilter().getClass());
+    }
+
+    /**
+     * @param clazz an event or filter class
+     * @return <code>true</code> if instances of the passed class can be recreated from their class name and filter
+     */
+    private boolean isCompactClass(Class< ? > clazz)
+    {
+        Boolean compact = this.compactClasses.get(clazz);
+        if (compact == null) {
+            if (EventFilter.class.isAssignableFrom(clazz)) {
+                compact = clazz == AlwaysMatchingEventFilter.class || getConstructor(clazz, String.class) != null;
+            } else {
+                compact = getConstructor(clazz, EventFilter.class) != null && !hasOwnState(clazz);
+            }
+            this.compactClasses.put(clazz, compact);
+        }
+
+        return compact;
+    }
+
+    /**
+     * @param eventClass a filterable event class
+     * @return <code>true</code> if the event class declares some state in addition to the event filter
+     */
+    private boolean hasOwnState(Class< ? > eventClass)
+    {
+        Class< ? > current = eventClass;
+        while (current != AbstractFilterableEvent.class) {
+            for (Field field : current.getDeclaredFields()) {
+                int modifiers = field.getModifiers();
+                if (!Modifier.isStatic(modifiers) && !Modifier.isTransient(modifiers)) {
+                    return true;
+                }
+            }
+            current = current.getSuperclass();
+        }
+
+        return false;
+    }
+
+    /**
+     * @param clazz the class for which to find a constructor
+     * @param parameterType the type of the single parameter of the constructor
+     * @return the public constructor or <code>null</code> if there's none
+     */
+    private Constructor< ? > getConstructor(Class< ? > clazz, Class< ? > parameterType)
+    {
+        try {
+            return clazz.getConstructor(parameterType);
+        } catch (NoSuchMethodException e) {
+            return null;
+        }
+    }
+
+    /**
+     * The class is checked before being instantiated, so that a packet cannot make this node instantiate arbitrary
+     * classes.
+     * 
+     * @param <T> the expected type of the instance
+     * @param className the name of the class to instantiate
+     * @param expectedType the type the class must be a subtype of
+     * @param parameterType the type of the single parameter of the constructor to use
+     * @param parameter the value to pass to the constructor
+     * @return the new instance
+     * @throws IOException if the class is not a subtype of the expected type or cannot be instantiated
+     */
+    private <T> T newInstance(String className, Class<T> expectedType, Class< ? > parameterType, Object parameter)
+        throws IOException
+    {
+        String constructorKey = expectedType.getName() + ':' + className;
+        try {
+            Constructor< ? > constructor = this.constructors.get(constructorKey);
+            if (constructor == null) {
+                Class< ? > clazz = this.serializer.loadClass(className);
+                if (!expectedType.isAssignableFrom(clazz)) {
+                    throw new IOException("[" + className + "] is not a [" + expectedType.getName() + "]");
+                }
+                constructor = clazz.getConstructor(parameterType);
+                this.constructors.put(constructorKey, constructor);
+            }
+
+            return expectedType.cast(constructor.newInstance(parameter));
+        } catch (IOException e) {
+            throw e;
+        } catch (Exception e) {
+            throw new IOException("Failed to create an instance of [" + className + "]", e);
+        }
+    }
+}
@@ -0,0 +1,224 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ *
+ */
+package org.xwiki.observation.remote.internal;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InvalidClassException;
+import java.io.NotSerializableException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.ObjectStreamClass;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+
+import org.xwiki.observation.event.Event;
+import org.xwiki.observation.event.filter.EventFilter;
+
+/**
+ * Java serialization of the events and values which cannot be encoded compactly by {@link EventBatchCodec}.
+ * <p>
+ * Only the classes of an allowlist can be deserialized: the events and event filters, the primitive types, the
+ * classes of the <code>java.lang</code>, <code>java.math</code> and <code>java.util</code> packages, and the
+ * additional classes and packages (ending with a <code>.</code>) passed to the constructor. The class of each
+ * object is checked before the object is read, so that a packet cannot make this node instantiate other classes. The
+ * structure of the stream is checked first by {@link SerializationStreamValidator}, so that a packet cannot make this
+ * node allocate huge arrays or collections, or hash deeply shared collections.
+ * 
+ * @version $Id$
+ * @since 3.1M2
+ */
+public class JavaSerializer
+{
+    /**
+     * The packages whose classes can always be deserialized.
+     */
+    private static final Set<String> ALLOWED_PACKAGES =
+        new HashSet<String>(Arrays.asList("java.lang", "java.math", "java.util"));
+
+    /**
+     * The additional classes, and packages ending with a <code>.</code>, whose classes can be deserialized.
+     */
+    private final Collection<String> allowedClasses;
+
+    /**
+     * Create a serializer which only deserializes the classes allowed by default.
+     */
+    public JavaSerializer()
+    {
+        this(Collections.<String> emptyList());
+    }
+
+    /**
+     * @param allowedClasses the additional classes, and packages ending with a <code>.</code>, whose classes can be
+     *            deserialized
+     */
+    public JavaSerializer(Collection<String> allowedClasses)
+    {
+        this.allowedClasses = allowedClasses;
+    }
+
+    /**
+     * @param value the value to serialize
+     * @return the serialized value or <code>null</code> if the value (or one of the objects it references) is not
+     *         serializable
+     * @throws IOException if the value cannot be written
+     */
+    public byte[] serialize(Object value) throws IOException
+    {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        ObjectOutputStream out = new ObjectOutputStream(bytes);
+        try {
+            out.writeObject(value);
+            out.flush();
+        } catch (NotSerializableException e) {
+            return null;
+        } finally {
+            out.close();
+        }
+
+        return bytes.toByteArray();
+    }
+
+    /**
+     * @param bytes the serialized value
+     * @return the value
+     * @throws IOException if the value cannot be read
+     */
+    public Object deserialize(byte[] bytes) throws IOException
+    {
+        new SerializationStreamValidator(bytes).validate();
+
+        ObjectInputStream in = new ContextObjectInputStream(new ByteArrayInputStream(bytes));
+        try {
+            return in.readObject();
+        } catch (ClassNotFoundException e) {
+            throw new IOException("Failed to find the class of a serialized value", e);
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * Load a class using the context class loader, which knows about the classes contributed by extensions, falling
+     * back on the class loader of this class.
+     * 
+     * @param className the name of the class to load
+     * @return the class
+     * @throws ClassNotFoundException if the class cannot be found
+     */
+    public Class< ? > loadClass(String className) throws ClassNotFoundException
+    {
+        ClassLoader classLoader = Thread.currentThread().getContextClassLoader();
+        if (classLoader != null) {
+            try {
+                return Class.forName(className, false, classLoader);
+            } catch (ClassNotFoundException e) {
+                // Try with the class loader of this class
+            }
+        }
+
+        return Class.forName(className, false, getClass().getClassLoader());
+    }
+
+    /**
+     * @param clazz the class to check
+     * @return <code>true</code> if instances of the passed class can be deserialized
+     */
+    boolean isAllowed(Class< ? > clazz)
+    {
+        if (clazz.isArray()) {
+            return isAllowed(clazz.getComponentType());
+        }
+        if (clazz.isPrimitive() || Event.class.isAssignableFrom(clazz) || EventFilter.class.isAssignableFrom(clazz)) {
+            return true;
+        }
+
+        String className = clazz.getName();
+        int separator = className.lastIndexOf('.');
+        if (separator > 0 && ALLOWED_PACKAGES.contains(className.substring(0, separator))) {
+            return true;
+        }
+        for (String allowed : this.allowedClasses) {
+            if (allowed.endsWith(".") ? className.startsWith(allowed) : className.equals(allowed)) {
+                return true;
+            }
+        }
+
+        return false;
+    }
+
+    /**
+     * Object input stream resolving classes with {@link JavaSerializer#loadClass(String)} and rejecting the classes
+     * which are not allowed.
+     * 
+     * @version $Id$
+     */
+    private class ContextObjectInputStream extends ObjectInputStream
+    {
+        /**
+         * @param in the stream to read from
+         * @throws IOException if the stream header cannot be read
+         */
+        public ContextObjectInputStream(InputStream in) throws IOException
+        {
+            super(in);
+        }
+
+        @Override
+        protected Class< ? > resolveClass(ObjectStreamClass desc) throws IOException, ClassNotFoundException
+        {
+            Class< ? > clazz;
+            try {
+                clazz = loadClass(desc.getName());
+            } catch (ClassNotFoundException e) {
+                clazz = super.resolveClass(desc);
+            }
+
+            return checkAllowed(clazz);
+        }
+
+        @Override
+        protected Class< ? > resolveProxyClass(String[] interfaces) throws IOException, ClassNotFoundException
+        {
+            throw new InvalidClassException("Proxy classes cannot be deserialized " + Arrays.toString(interfaces));
+        }
+
+        /**
+         * @param clazz the class to check
+         * @return the passed class
+         * @throws InvalidClassException if the class cannot be deserialized
+         */
+        private Class< ? > checkAllowed(Class< ? > clazz) throws InvalidClassException
+        {
+            if (!isAllowed(clazz)) {
+                throw new InvalidClassException(clazz.getName(), "Class not allowed to be deserialized");
+            }
+
+            return clazz;
+        }
+    }
+}
@@ -0,0 +1,83 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ *
+ */
+package org.xwiki.observation.remote.internal;
+
+import org.xwiki.observation.event.Event;
+
+/**
+ * An event along with the source and data it was notified with.
+ * 
+ * @version $Id$
+ * @since 3.1M2
+ */
+public class RemoteEventData
+{
+    /**
+     * The event.
+     */
+    private final Event event;
+
+    /**
+     * The source of the event.
+     */
+    private final Object source;
+
+    /**
+     * The additional data related to the event.
+     */
+    private final Object data;
+
+    /**
+     * @param event the event
+     * @param source the source of the event (or <code>null</code>)
+     * @param data the additional data related to the event (or <code>null</code>)
+     */
+    public RemoteEventData(Event event, Object source, Object data)
+    {
+        this.event = event;
+        this.source = source;
+        this.data = data;
+    }
+
+    /**
+     * @return the event
+     */
+    public Event getEvent()
+    {
+        return this.event;
+    }
+
+    /**
+     * @return the source of the event (or <code>null</code>)
+     */
+    public Object getSource()
+    {
+        return this.source;
+    }
+
+    /**
+     * @return the additional data related to the event (or <code>null</code>)
+     */
+    public Object getData()
+    {
+        return this.data;
+    }
+}
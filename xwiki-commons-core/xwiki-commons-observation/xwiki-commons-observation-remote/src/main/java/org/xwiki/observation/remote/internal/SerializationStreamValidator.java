@@ -0,0 +1,539 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ *
+ */
+package org.xwiki.observation.remote.internal;
+
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.ObjectStreamConstants;
+import java.io.StreamCorruptedException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Checks the structure of a Java serialization stream before it is deserialized, since {@link java.io.ObjectInputStream}
+ * allocates the arrays and the collections with the sizes read from the stream before reading their elements.
+ * <p>
+ * The stream is rejected when:
+ * <ul>
+ * <li>the objects are nested more than {@link #MAX_DEPTH} levels deep</li>
+ * <li>a primitive array is longer than the remaining bytes of the stream</li>
+ * <li>an object array, or a standard collection, declares more than {@link #MAX_ELEMENTS} elements</li>
+ * <li>a collection or an object array is referenced again from the content of a hashed collection, which is how
+ * small streams make the hashing of the elements take exponential time</li>
+ * <li>the stream contains a proxy class, an exception or an externalizable object written with the old protocol</li>
+ * </ul>
+ * Each stream must be checked by a new validator.
+ * 
+ * @version $Id$
+ * @since 3.1M2
+ */
+public class SerializationStreamValidator
+{
+    /**
+     * The maximum nesting of the objects.
+     */
+    public static final int MAX_DEPTH = 64;
+
+    /**
+     * The maximum number of elements of an object array or a collection.
+     */
+    public static final int MAX_ELEMENTS = 1 << 16;
+
+    /**
+     * The name of {@link java.util.HashMap}.
+     */
+    private static final String HASH_MAP = "java.util.HashMap";
+
+    /**
+     * The name of {@link java.util.HashSet}.
+     */
+    private static final String HASH_SET = "java.util.HashSet";
+
+    /**
+     * The name of {@link java.util.Hashtable}.
+     */
+    private static final String HASHTABLE = "java.util.Hashtable";
+
+    /**
+     * The bytes read at the beginning of the custom data of a class to find the collection sizes.
+     */
+    private static final int SIZE_PREFIX_LENGTH = 12;
+
+    /**
+     * The positions of the size and capacity integers at the beginning of the custom data written by the standard
+     * collections.
+     */
+    private static final Map<String, int[]> COLLECTION_SIZES = new HashMap<String, int[]>();
+
+    /**
+     * The collections which hash their elements when deserialized.
+     */
+    private static final Set<String> HASHED_COLLECTIONS =
+        new HashSet<String>(Arrays.asList(HASH_MAP, HASH_SET, HASHTABLE));
+
+    /**
+     * The size in bytes of the primitive types, indexed by type code.
+     */
+    private static final Map<Character, Integer> PRIMITIVE_SIZES = new HashMap<Character, Integer>();
+
+    /**
+     * Handle of an object which can be referenced from a hashed collection.
+     */
+    private static final Object VALUE = new Object();
+
+    /**
+     * Handle of a collection or an object array.
+     */
+    private static final Object COLLECTION = new Object();
+
+    static {
+        COLLECTION_SIZES.put("java.util.ArrayList", new int[] {0});
+        COLLECTION_SIZES.put("java.util.ArrayDeque", new int[] {0});
+        COLLECTION_SIZES.put(HASH_MAP, new int[] {0, 1});
+        COLLECTION_SIZES.put(HASH_SET, new int[] {0, 2});
+        COLLECTION_SIZES.put(HASHTABLE, new int[] {0, 1});
+        COLLECTION_SIZES.put("java.util.IdentityHashMap", new int[] {0});
+        COLLECTION_SIZES.put("java.util.LinkedList", new int[] {0});
+        COLLECTION_SIZES.put("java.util.PriorityQueue", new int[] {0});
+        COLLECTION_SIZES.put("java.util.TreeMap", new int[] {0});
+
+        PRIMITIVE_SIZES.put('B', 1);
+        PRIMITIVE_SIZES.put('Z', 1);
+        PRIMITIVE_SIZES.put('C', 2);
+        PRIMITIVE_SIZES.put('S', 2);
+        PRIMITIVE_SIZES.put('F', 4);
+        PRIMITIVE_SIZES.put('I', 4);
+        PRIMITIVE_SIZES.put('D', 8);
+        PRIMITIVE_SIZES.put('J', 8);
+    }
+
+    /**
+     * The stream being checked, used to know the number of remaining bytes.
+     */
+    private final ByteArrayInputStream bytes;
+
+    /**
+     * The stream being checked.
+     */
+    private final DataInputStream in;
+
+    /**
+     * The objects which can be referenced, indexed by handle.
+     */
+    private final List<Object> handles = new ArrayList<Object>();
+
+    /**
+     * @param bytes the serialized value to check
+     */
+    public SerializationStreamValidator(byte[] bytes)
+    {
+        this.bytes = new ByteArrayInputStream(bytes);
+        this.in = new DataInputStream(this.bytes);
+    }
+
+    /**
+     * Check the serialized value.
+     * 
+     * @throws IOException if the serialized value is malformed or exceeds the limits
+     */
+    public void validate() throws IOException
+    {
+        try {
+            if (this.in.readShort() != ObjectStreamConstants.STREAM_MAGIC
+                || this.in.readShort() != ObjectStreamConstants.STREAM_VERSION) {
+                throw invalid("Invalid stream header");
+            }
+            readContent(this.in.readByte(), 0, false);
+        } catch (EOFException e) {
+            throw invalid("Truncated stream");
+        }
+    }
+
+    /**
+     * @param typeCode the type code of the content, already read
+     * @param depth the nesting of the content
+     * @param hashed whether the content is part of the elements of a hashed collection
+     * @throws IOException if the content is malformed or exceeds the limits
+     */
+    private void readContent(byte typeCode, int depth, boolean hashed) throws IOException
+    {
+        checkDepth(depth);
+
+        byte tc = typeCode;
+        while (tc == ObjectStreamConstants.TC_RESET) {
+            this.handles.clear();
+            tc = this.in.readByte();
+        }
+
+        switch (tc) {
+            case ObjectStreamConstants.TC_OBJECT:
+                readOrdinaryObject(depth, hashed);
+                break;
+            case ObjectStreamConstants.TC_ARRAY:
+                readArray(depth, hashed);
+                break;
+            case ObjectStreamConstants.TC_ENUM:
+                readClassDesc(depth + 1);
+                this.handles.add(VALUE);
+                readContent(this.in.readByte(), depth + 1, false);
+                break;
+            case ObjectStreamConstants.TC_CLASS:
+                readClassDesc(depth + 1);
+                this.handles.add(VALUE);
+                break;
+            case ObjectStreamConstants.TC_CLASSDESC:
+                readNewClassDesc(depth);
+                break;
+            default:
+                readSimpleContent(tc, hashed);
+                break;
+        }
+    }
+
+    /**
+     * @param tc the type code of the content, already read
+     * @param hashed whether the content is part of the elements of a hashed collection
+     * @throws IOException if the content is malformed or not supported
+     */
+    private void readSimpleContent(byte tc, boolean hashed) throws IOException
+    {
+        switch (tc) {
+            case ObjectStreamConstants.TC_NULL:
+                break;
+            case ObjectStreamConstants.TC_REFERENCE:
+                if (getHandle() == COLLECTION && hashed) {
+                    throw invalid("Collection referenced several times from a hashed collection");
+                }
+                break;
+            case ObjectStreamConstants.TC_STRING:
+                this.handles.add(VALUE);
+                skip(this.in.readUnsignedShort());
+                break;
+            case ObjectStreamConstants.TC_LONGSTRING:
+                this.handles.add(VALUE);
+                long length = this.in.readLong();
+                skip(length < 0 || length > Integer.MAX_VALUE ? -1 : (int) length);
+                break;
+            default:
+                throw invalid("Unexpected type code [" + tc + "]");
+        }
+    }
+
+    /**
+     * @param depth the nesting of the object
+     * @param hashed whether the object is part of the elements of a hashed collection
+     * @throws IOException if the object is malformed or exceeds the limits
+     */
+    private void readOrdinaryObject(int depth, boolean hashed) throws IOException
+    {
+        ClassDesc desc = readClassDesc(depth + 1);
+        if (desc == null) {
+            throw invalid("Object without class");
+        }
+        this.handles.add(desc.name.startsWith("java.util.") ? COLLECTION : VALUE);
+
+        if ((desc.flags & ObjectStreamConstants.SC_EXTERNALIZABLE) != 0) {
+            if ((desc.flags & ObjectStreamConstants.SC_BLOCK_DATA) == 0) {
+                throw invalid("Externalizable object written with the old protocol");
+            }
+            readAnnotation(desc, depth + 1, hashed);
+        } else {
+            for (ClassDesc current : desc.getHierarchy()) {
+                readFieldValues(current, depth + 1, hashed);
+                if ((current.flags & ObjectStreamConstants.SC_WRITE_METHOD) != 0) {
+                    readAnnotation(current, depth + 1, hashed);
+                }
+            }
+        }
+    }
+
+    /**
+     * @param desc the class whose field values to read
+     * @param depth the nesting of the values
+     * @param hashed whether the object is part of the elements of a hashed collection
+     * @throws IOException if the values are malformed or exceed the limits
+     */
+    private void readFieldValues(ClassDesc desc, int depth, boolean hashed) throws IOException
+    {
+        for (char type : desc.fieldTypes) {
+            Integer size = PRIMITIVE_SIZES.get(type);
+            if (size != null) {
+                skip(size);
+            } else {
+                readContent(this.in.readByte(), depth, hashed);
+            }
+        }
+    }
+
+    /**
+     * Read the custom data written by a class, until the end block marker.
+     * 
+     * @param desc the class which wrote the data
+     * @param depth the nesting of the data
+     * @param hashed whether the object is part of the elements of a hashed collection
+     * @throws IOException if the data is malformed or exceeds the limits
+     */
+    private void readAnnotation(ClassDesc desc, int depth, boolean hashed) throws IOException
+    {
+        boolean hashedElements = hashed || (desc != null && HASHED_COLLECTIONS.contains(desc.name));
+        byte[] prefix = new byte[SIZE_PREFIX_LENGTH];
+        int prefixLength = 0;
+        boolean leading = true;
+        for (byte tc = this.in.readByte(); tc != ObjectStreamConstants.TC_ENDBLOCKDATA; tc = this.in.readByte()) {
+            if (tc == ObjectStreamConstants.TC_BLOCKDATA || tc == ObjectStreamConstants.TC_BLOCKDATALONG) {
+                int length = tc == ObjectStreamConstants.TC_BLOCKDATA ? this.in.readUnsignedByte() : this.in.readInt();
+                int copied = leading ? Math.max(0, Math.min(length, SIZE_PREFIX_LENGTH - prefixLength)) : 0;
+                this.in.readFully(prefix, prefixLength, copied);
+                prefixLength += copied;
+                skip(length - copied);
+            } else {
+                leading = false;
+                readContent(tc, depth, hashedElements);
+            }
+        }
+
+        if (desc != null) {
+            checkCollectionSizes(desc, prefix, prefixLength);
+        }
+    }
+
+    /**
+     * @param desc the class which wrote the custom data
+     * @param prefix the first bytes of the custom data
+     * @param prefixLength the number of bytes in the prefix
+     * @throws IOException if a size written by a standard collection exceeds the limits
+     */
+    private void checkCollectionSizes(ClassDesc desc, byte[] prefix, int prefixLength) throws IOException
+    {
+        int[] positions = COLLECTION_SIZES.get(desc.name);
+        if (positions != null) {
+            DataInputStream sizes = new DataInputStream(new ByteArrayInputStream(prefix, 0, prefixLength));
+            int position = 0;
+            for (int sizePosition : positions) {
+                for (; position < sizePosition && sizes.available() >= 4; position++) {
+                    sizes.readInt();
+                }
+                if (sizes.available() >= 4) {
+                    position++;
+                    int size = sizes.readInt();
+                    if (size < 0 || size > MAX_ELEMENTS) {
+                        throw invalid("Collection [" + desc.name + "] of size [" + size + "]");
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * @param depth the nesting of the array
+     * @param hashed whether the array is part of the elements of a hashed collection
+     * @throws IOException if the array is malformed or exceeds the limits
+     */
+    private void readArray(int depth, boolean hashed) throws IOException
+    {
+        ClassDesc desc = readClassDesc(depth + 1);
+        if (desc == null || desc.name.length() < 2 || desc.name.charAt(0) != '[') {
+            throw invalid("Invalid array class");
+        }
+        Integer elementSize = PRIMITIVE_SIZES.get(desc.name.charAt(1));
+        this.handles.add(elementSize != null ? VALUE : COLLECTION);
+
+        int length = this.in.readInt();
+        if (elementSize != null) {
+            skip(length < 0 || (long) length * elementSize > Integer.MAX_VALUE ? -1 : length * elementSize);
+        } else {
+            readElements(length, depth + 1, hashed);
+        }
+    }
+
+    /**
+     * @param length the length of the object array
+     * @param depth the nesting of the elements
+     * @param hashed whether the array is part of the elements of a hashed collection
+     * @throws IOException if the elements are malformed or exceed the limits
+     */
+    private void readElements(int length, int depth, boolean hashed) throws IOException
+    {
+        // Each element takes at least one byte.
+        if (length < 0 || length > MAX_ELEMENTS || length > this.bytes.available()) {
+            throw invalid("Object array of length [" + length + "]");
+        }
+        for (int i = 0; i < length; i++) {
+            readContent(this.in.readByte(), depth, hashed);
+        }
+    }
+
+    /**
+     * @param depth the nesting of the class descriptor
+     * @return the class descriptor or {@code null}
+     * @throws IOException if the class descriptor is malformed
+     */
+    private ClassDesc readClassDesc(int depth) throws IOException
+    {
+        byte tc = this.in.readByte();
+        switch (tc) {
+            case ObjectStreamConstants.TC_NULL:
+                return null;
+            case ObjectStreamConstants.TC_REFERENCE:
+                Object handle = getHandle();
+                if (!(handle instanceof ClassDesc)) {
+                    throw invalid("Reference to an object instead of a class");
+                }
+                return (ClassDesc) handle;
+            case ObjectStreamConstants.TC_CLASSDESC:
+                return readNewClassDesc(depth);
+            default:
+                throw invalid("Unexpected class type code [" + tc + "]");
+        }
+    }
+
+    /**
+     * @param depth the nesting of the class descriptor
+     * @return the class descriptor
+     * @throws IOException if the class descriptor is malformed
+     */
+    private ClassDesc readNewClassDesc(int depth) throws IOException
+    {
+        checkDepth(depth);
+
+        ClassDesc desc = new ClassDesc(this.in.readUTF());
+        // Serial version UID
+        this.in.readLong();
+        this.handles.add(desc);
+        desc.flags = this.in.readByte();
+        int fieldCount = this.in.readShort();
+        for (int i = 0; i < fieldCount; i++) {
+            char type = (char) this.in.readByte();
+            this.in.readUTF();
+            if (!PRIMITIVE_SIZES.containsKey(type)) {
+                // The name of the field class
+                readContent(this.in.readByte(), depth + 1, false);
+            }
+            desc.fieldTypes.add(type);
+        }
+        readAnnotation(null, depth + 1, false);
+        desc.superDesc = readClassDesc(depth + 1);
+
+        return desc;
+    }
+
+    /**
+     * @param depth the nesting of the content being read
+     * @throws IOException if the content is nested too deeply
+     */
+    private void checkDepth(int depth) throws IOException
+    {
+        if (depth > MAX_DEPTH) {
+            throw invalid("Content nested more than " + MAX_DEPTH + " levels deep");
+        }
+    }
+
+    /**
+     * @return the object referenced by the handle read from the stream
+     * @throws IOException if the handle is invalid
+     */
+    private Object getHandle() throws IOException
+    {
+        int handle = this.in.readInt() - ObjectStreamConstants.baseWireHandle;
+        if (handle < 0 || handle >= this.handles.size()) {
+            throw invalid("Invalid handle [" + handle + "]");
+        }
+
+        return this.handles.get(handle);
+    }
+
+    /**
+     * @param length the number of bytes to skip, negative if invalid
+     * @throws IOException if the stream doesn't contain enough bytes
+     */
+    private void skip(int length) throws IOException
+    {
+        if (length < 0 || length > this.bytes.available()) {
+            throw invalid("Invalid length [" + length + "]");
+        }
+        this.in.skipBytes(length);
+    }
+
+    /**
+     * @param message the reason why the stream is rejected
+     * @return the exception to throw
+     */
+    private IOException invalid(String message)
+    {
+        return new StreamCorruptedException("Serialized value rejected: " + message);
+    }
+
+    /**
+     * The description of a serialized class.
+     * 
+     * @version $Id$
+     */
+    private static final class ClassDesc
+    {
+        /**
+         * The name of the class.
+         */
+        private final String name;
+
+        /**
+         * The type codes of the serialized fields.
+         */
+        private final List<Character> fieldTypes = new ArrayList<Character>();
+
+        /**
+         * The serialization flags.
+         */
+        private byte flags;
+
+        /**
+         * The description of the super class or {@code null}.
+         */
+        private ClassDesc superDesc;
+
+        /**
+         * @param name the name of the class
+         */
+        ClassDesc(String name)
+        {
+            this.name = name;
+        }
+
+        /**
+         * @return the description of the classes of the hierarchy of this class, starting with the top super class
+         */
+        List<ClassDesc> getHierarchy()
+        {
+            List<ClassDesc> hierarchy = new ArrayList<ClassDesc>();
+            for (ClassDesc current = this; current != null; current = current.superDesc) {
+                hierarchy.add(0, current);
+            }
+
+            return hierarchy;
+        }
+    }
+}
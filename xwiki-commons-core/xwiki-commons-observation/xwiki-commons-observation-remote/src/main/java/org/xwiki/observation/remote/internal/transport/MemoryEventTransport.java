@@ -0,0 +1,90 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ *
+ */
+package org.xwiki.observation.remote.internal.transport;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import javax.inject.Named;
+
+import org.xwiki.component.annotation.Component;
+import org.xwiki.component.annotation.InstantiationStrategy;
+import org.xwiki.component.descriptor.ComponentInstantiationStrategy;
+import org.xwiki.observation.remote.EventPacketReceiver;
+import org.xwiki.observation.remote.EventTransport;
+
+/**
+ * Transport delivering the packets synchronously to all the other memory transports opened in the same JVM. Mostly
+ * useful for tests and for several applications sharing the same JVM.
+ * 
+ * @version $Id$
+ * @since 3.1M2
+ */
+@Component
+@Named("memory")
+@InstantiationStrategy(ComponentInstantiationStrategy.PER_LOOKUP)
+public class MemoryEventTransport implements EventTransport
+{
+    /**
+     * The memory transports currently opened in the JVM.
+     */
+    private static final List<MemoryEventTransport> OPENED = new CopyOnWriteArrayList<MemoryEventTransport>();
+
+    /**
+     * The receiver of the packets sent by the other transports.
+     */
+    private EventPacketReceiver receiver;
+
+    /**
+     * {@inheritDoc}
+     * 
+     * @see org.xwiki.observation.remote.EventTransport#open(org.xwiki.observation.remote.EventPacketReceiver)
+     */
+    public void open(EventPacketReceiver packetReceiver)
+    {
+        this.receiver = packetReceiver;
+        OPENED.add(this);
+    }
+
+    /**
+     * {@inheritDoc}
+     * 
+     * @see org.xwiki.observation.remote.EventTransport#send(byte[])
+     */
+    public void send(byte[] packet)
+    {
+        for (MemoryEventTransport transport : OPENED) {
+            if (transport != this) {
+                transport.receiver.onPacket(packet);
+            }
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     * 
+     * @see org.xwiki.observation.remote.EventTransport#close()
+     */
+    public void close()
+    {
+        OPENED.remove(this);
+    }
+}
@@ -0,0 +1,143 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ *
+ */
+package org.xwiki.observation.remote.internal.transport;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.net.Socket;
+import java.net.SocketAddress;
+import java.util.List;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.xwiki.observation.remote.EventPacketReceiver;
+
+/**
+ * Reads the packets sent by a peer of a {@link SocketEventTransport} until the connection is closed. A packet which
+ * fails to be handled is logged and skipped: since the packets are delimited by their length, the next packets can
+ * still be read.
+ * 
+ * @version $Id$
+ * @since 3.1M2
+ */
+public class PacketReader implements Runnable
+{
+    /**
+     * The maximum size of a packet, protects against corrupted lengths.
+     */
+    private static final int MAX_PACKET_SIZE = 64 * 1024 * 1024;
+
+    /**
+     * The logger to use to log the packets which fail to be handled.
+     */
+    private static final Logger LOGGER = LoggerFactory.getLogger(PacketReader.class);
+
+    /**
+     * The connection opened by the peer.
+     */
+    private final Socket socket;
+
+    /**
+     * The receiver of the packets.
+     */
+    private final EventPacketReceiver receiver;
+
+    /**
+     * The active readers of the transport, from which this reader removes itself when the connection is closed.
+     */
+    private final List<PacketReader> readers;
+
+    /**
+     * @param socket the connection opened by the peer
+     * @param receiver the receiver of the packets
+     * @param readers the active readers of the transport, from which this reader removes itself when the connection
+     *            is closed
+     */
+    public PacketReader(Socket socket, EventPacketReceiver receiver, List<PacketReader> readers)
+    {
+        this.socket = socket;
+        this.receiver = receiver;
+        this.readers = readers;
+    }
+
+    /**
+     * @return the address of the peer
+     */
+    public SocketAddress getRemoteAddress()
+    {
+        return this.socket.getRemoteSocketAddress();
+    }
+
+    /**
+     * {@inheritDoc}
+     * 
+     * @see java.lang.Runnable#run()
+     */
+    public void run()
+    {
+        try {
+            DataInputStream in = new DataInputStream(new BufferedInputStream(this.socket.getInputStream()));
+            while (true) {
+                int length = in.readInt();
+                if (length < 0 || length > MAX_PACKET_SIZE) {
+                    throw new IOException("Invalid packet length [" + length + "]");
+                }
+                byte[] packet = new byte[length];
+                in.readFully(packet);
+                onPacket(packet);
+            }
+        } catch (IOException e) {
+            // The connection has been closed or is corrupted
+        } finally {
+            close();
+            synchronized (this.readers) {
+                this.readers.remove(this);
+            }
+        }
+    }
+
+    /**
+     * @param packet the packet to pass to the receiver
+     */
+    private void onPacket(byte[] packet)
+    {
+        try {
+            this.receiver.onPacket(packet);
+        } catch (Exception e) {
+            // Decoding errors and listener failures must not stop the connection
+            LOGGER.warn("Failed to handle a packet of [" + packet.length + "] bytes from [" + getRemoteAddress() + "]",
+                e);
+        }
+    }
+
+    /**
+     * Close the connection, which stops the reader.
+     */
+    public void close()
+    {
+        try {
+            this.socket.close();
+        } catch (IOException e) {
+            // Nothing more can be done
+        }
+    }
+}
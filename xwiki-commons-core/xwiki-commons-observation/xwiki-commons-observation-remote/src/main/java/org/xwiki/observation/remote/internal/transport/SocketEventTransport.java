@@ -0,0 +1,367 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ *
+ */
+package org.xwiki.observation.remote.internal.transport;
+
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import javax.inject.Inject;
+import javax.inject.Named;
+
+import org.xwiki.component.annotation.Component;
+import org.xwiki.component.annotation.InstantiationStrategy;
+import org.xwiki.component.descriptor.ComponentInstantiationStrategy;
+import org.xwiki.configuration.ConfigurationSource;
+import org.xwiki.observation.remote.EventPacketReceiver;
+import org.xwiki.observation.remote.EventTransport;
+import org.xwiki.observation.remote.RemoteEventException;
+
+/**
+ * Transport exchanging packets with a fixed list of peers over TCP. Each packet is written as its length followed by
+ * its bytes on a connection opened lazily to each peer and kept open, and packets are read from the connections
+ * opened by the peers on a daemon thread per connection.
+ * <p>
+ * The transport listens on <code>observation.remote.socket.host</code> (<code>127.0.0.1</code> by default) and
+ * <code>observation.remote.socket.port</code> (<code>7900</code> by default) and sends the packets to the
+ * <code>observation.remote.socket.peers</code>, a list of <code>host:port</code>. The connections opened from other
+ * hosts than the peers are closed without reading anything.
+ * 
+ * @version $Id$
+ * @since 3.1M2
+ */
+@Component
+@Named("socket")
+@InstantiationStrategy(ComponentInstantiationStrategy.PER_LOOKUP)
+public class SocketEventTransport implements EventTransport
+{
+    /**
+     * Prefix of the configuration keys of the socket transport.
+     */
+    private static final String PREFIX = "observation.remote.socket.";
+
+    /**
+     * The default address to listen on.
+     */
+    private static final String DEFAULT_HOST = "127.0.0.1";
+
+    /**
+     * The default port to listen on.
+     */
+    private static final int DEFAULT_PORT = 7900;
+
+    /**
+     * The maximum time in milliseconds to wait when connecting to a peer.
+     */
+    private static final int CONNECT_TIMEOUT = 5000;
+
+    /**
+     * Used to read the addresses to listen on and of the peers.
+     */
+    @Inject
+    private ConfigurationSource configuration;
+
+    /**
+     * The address to listen on, read from the configuration when <code>null</code>.
+     */
+    private InetSocketAddress bindAddress;
+
+    /**
+     * The addresses of the peers to send the packets to.
+     */
+    private List<InetSocketAddress> peers;
+
+    /**
+     * Accepts the connections of the peers.
+     */
+    private ServerSocket serverSocket;
+
+    /**
+     * The connections opened to the peers, indexed by peer.
+     */
+    private final Map<InetSocketAddress, DataOutputStream> outgoing =
+        new HashMap<InetSocketAddress, DataOutputStream>();
+
+    /**
+     * Reads the packets from the connections opened by the peers.
+     */
+    private final List<PacketReader> readers = new ArrayList<PacketReader>();
+
+    /**
+     * Component constructor, the addresses are read from the configuration.
+     */
+    public SocketEventTransport()
+    {
+        // The addresses are read from the configuration when the transport is opened
+    }
+
+    /**
+     * @param bindAddress the address to listen on
+     * @param peers the addresses of the peers to send the packets to
+     */
+    public SocketEventTransport(InetSocketAddress bindAddress, List<InetSocketAddress> peers)
+    {
+        this.bindAddress = bindAddress;
+        this.peers = peers;
+    }
+
+    /**
+     * {@inheritDoc}
+     * 
+     * @see org.xwiki.observation.remote.EventTransport#open(org.xwiki.observation.remote.EventPacketReceiver)
+     */
+    public synchronized void open(final EventPacketReceiver receiver) throws RemoteEventException
+    {
+        if (this.bindAddress == null) {
+            readConfiguration();
+        }
+
+        try {
+            this.serverSocket = new ServerSocket();
+            this.serverSocket.bind(this.bindAddress);
+        } catch (IOException e) {
+            throw new RemoteEventException("Failed to listen on [" + this.bindAddress + "]", e);
+        }
+
+        final ServerSocket acceptingSocket = this.serverSocket;
+        final Set<InetAddress> peerAddresses = getPeerAddresses();
+        startDaemon(new Runnable()
+        {
+            public void run()
+            {
+                acceptConnections(acceptingSocket, peerAddresses, receiver);
+            }
+        }, "Remote observation acceptor on " + acceptingSocket.getLocalSocketAddress());
+    }
+
+    /**
+     * {@inheritDoc}
+     * 
+     * @see org.xwiki.observation.remote.EventTransport#send(byte[])
+     */
+    public synchronized void send(byte[] packet) throws RemoteEventException
+    {
+        IOException failure = null;
+        InetSocketAddress failedPeer = null;
+        for (InetSocketAddress peer : this.peers) {
+            try {
+                DataOutputStream out = this.outgoing.get(peer);
+                if (out == null) {
+                    out = connect(peer);
+                    this.outgoing.put(peer, out);
+                }
+                out.writeInt(packet.length);
+                out.write(packet);
+                out.flush();
+            } catch (IOException e) {
+                // Drop the connection, it will be opened again for the next packet
+                closeQuietly(this.outgoing.remove(peer));
+                failure = e;
+                failedPeer = peer;
+            }
+        }
+
+        if (failure != null) {
+            throw new RemoteEventException("Failed to send a packet to [" + failedPeer + "]", failure);
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     * 
+     * @see org.xwiki.observation.remote.EventTransport#close()
+     */
+    public synchronized void close()
+    {
+        if (this.serverSocket != null) {
+            closeQuietly(this.serverSocket);
+            this.serverSocket = null;
+        }
+
+        for (DataOutputStream out : this.outgoing.values()) {
+            closeQuietly(out);
+        }
+        this.outgoing.clear();
+
+        synchronized (this.readers) {
+            for (PacketReader reader : this.readers) {
+                reader.close();
+            }
+            this.readers.clear();
+        }
+    }
+
+    /**
+     * @return the address the transport is listening on, useful when listening on any free port
+     */
+    public synchronized InetSocketAddress getLocalAddress()
+    {
+        return this.serverSocket != null ? (InetSocketAddress) this.serverSocket.getLocalSocketAddress() : null;
+    }
+
+    /**
+     * Read the addresses to listen on and of the peers from the configuration.
+     * 
+     * @throws RemoteEventException if a peer address is invalid
+     */
+    private void readConfiguration() throws RemoteEventException
+    {
+        String host = this.configuration.getProperty(PREFIX + "host", DEFAULT_HOST);
+        int port = this.configuration.getProperty(PREFIX + "port", DEFAULT_PORT);
+        this.bindAddress = new InetSocketAddress(host, port);
+
+        List<String> peerList = this.configuration.getProperty(PREFIX + "peers", Collections.<String> emptyList());
+        this.peers = new ArrayList<InetSocketAddress>(peerList.size());
+        for (String peer : peerList) {
+            int separator = peer.lastIndexOf(':');
+            try {
+                this.peers.add(new InetSocketAddress(peer.substring(0, separator),
+                    Integer.parseInt(peer.substring(separator + 1).trim())));
+            } catch (Exception e) {
+                throw new RemoteEventException("Invalid peer address [" + peer + "], expected [host:port]", e);
+            }
+        }
+    }
+
+    /**
+     * @return the addresses of the hosts of the peers, from which connections are accepted
+     */
+    private Set<InetAddress> getPeerAddresses()
+    {
+        Set<InetAddress> addresses = new HashSet<InetAddress>();
+        for (InetSocketAddress peer : this.peers) {
+            if (!peer.isUnresolved()) {
+                addresses.add(peer.getAddress());
+            }
+        }
+
+        return addresses;
+    }
+
+    /**
+     * Accept the connections of the peers until the server socket is closed.
+     * 
+     * @param acceptingSocket the server socket
+     * @param peerAddresses the addresses of the hosts of the peers, the connections from other hosts are closed
+     * @param receiver the receiver of the packets read from the connections
+     */
+    private void acceptConnections(ServerSocket acceptingSocket, Set<InetAddress> peerAddresses,
+        EventPacketReceiver receiver)
+    {
+        try {
+            while (!acceptingSocket.isClosed()) {
+                Socket socket = acceptingSocket.accept();
+                if (peerAddresses.contains(socket.getInetAddress())) {
+                    PacketReader reader = new PacketReader(socket, receiver, this.readers);
+                    synchronized (this.readers) {
+                        this.readers.add(reader);
+                    }
+                    startDaemon(reader, "Remote observation reader from " + reader.getRemoteAddress());
+                } else {
+                    closeQuietly(socket);
+                }
+            }
+        } catch (IOException e) {
+            // The transport has been closed
+        }
+    }
+
+    /**
+     * @param peer the peer to connect to
+     * @return the stream to write the packets to
+     * @throws IOException if the connection fails
+     */
+    private DataOutputStream connect(InetSocketAddress peer) throws IOException
+    {
+        Socket socket = new Socket();
+        try {
+            socket.setTcpNoDelay(true);
+            socket.connect(peer, CONNECT_TIMEOUT);
+
+            return new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+        } catch (IOException e) {
+            // Don't leak a file descriptor for each attempt while the peer is down
+            closeQuietly(socket);
+            throw e;
+        }
+    }
+
+    /**
+     * @param runnable the code to run
+     * @param name the name of the thread
+     */
+    private void startDaemon(Runnable runnable, String name)
+    {
+        Thread thread = new Thread(runnable, name);
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * @param closeable the stream or socket to close, can be <code>null</code>
+     */
+    static void closeQuietly(Closeable closeable)
+    {
+        if (closeable != null) {
+            try {
+                closeable.close();
+            } catch (IOException e) {
+                // Nothing more can be done
+            }
+        }
+    }
+
+    /**
+     * @param socket the socket to close
+     */
+    static void closeQuietly(Socket socket)
+    {
+        try {
+            socket.close();
+        } catch (IOException e) {
+            // Nothing more can be done
+        }
+    }
+
+    /**
+     * @param socket the socket to close
+     */
+    static void closeQuietly(ServerSocket socket)
+    {
+        try {
+            socket.close();
+        } catch (IOException e) {
+            // Nothing more can be done
+        }
+    }
+}
@@ -0,0 +1,186 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ *
+ */
+package org.xwiki.observation.remote.internal;
+
+import java.util.Collections;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.jmock.Expectations;
+import org.jmock.api.Invocation;
+import org.jmock.lib.action.CustomAction;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.slf4j.Logger;
+import org.xwiki.component.manager.ComponentManager;
+import org.xwiki.component.util.ReflectionUtils;
+import org.xwiki.observation.EventListener;
+import org.xwiki.observation.ObservationManager;
+import org.xwiki.observation.event.ActionExecutionEvent;
+import org.xwiki.observation.event.Event;
+import org.xwiki.observation.remote.EventTransport;
+import org.xwiki.observation.remote.internal.transport.MemoryEventTransport;
+import org.xwiki.test.AbstractMockingTestCase;
+import org.xwiki.test.MockConfigurationSource;
+
+/**
+ * Unit tests for {@link DefaultRemoteObservationManager}, using two nodes communicating through the memory transport.
+ * 
+ * @version $Id$
+ * @since 3.1M2
+ */
+public class DefaultRemoteObservationManagerTest extends AbstractMockingTestCase
+{
+    private DefaultRemoteObservationManager node1;
+
+    private DefaultRemoteObservationManager node2;
+
+    private ObservationManager observationManager1;
+
+    private ObservationManager observationManager2;
+
+    @Before
+    public void setUp() throws Exception
+    {
+        this.observationManager1 = getMockery().mock(ObservationManager.class, "observationManager1");
+        this.observationManager2 = getMockery().mock(ObservationManager.class, "observationManager2");
+        this.node1 = createNode(this.observationManager1, "1");
+        this.node2 = createNode(this.observationManager2, "2");
+    }
+
+    @After
+    public void tearDown() throws Exception
+    {
+        getMockery().checking(new Expectations() {{
+            oneOf(observationManager1).removeListener(with(any(String.class)));
+            oneOf(observationManager2).removeListener(with(any(String.class)));
+        }});
+
+        this.node1.stop();
+        this.node2.stop();
+    }
+
+    private DefaultRemoteObservationManager createNode(final ObservationManager observationManager, String name)
+        throws Exception
+    {
+        final ComponentManager componentManager = getMockery().mock(ComponentManager.class, "componentManager" + name);
+        final Logger logger = getMockery().mock(Logger.class, "logger" + name);
+        getMockery().checking(new Expectations() {{
+            oneOf(componentManager).lookup(EventTransport.class, "memory");
+            will(returnValue(new MemoryEventTransport()));
+            oneOf(observationManager).addListener(with(any(EventListener.class)));
+            ignoring(logger);
+        }});
+
+        // Only send the events when explicitly flushed
+        MockConfigurationSource configuration = new MockConfigurationSource();
+        configuration.setProperty("observation.remote.batchSize", Integer.MAX_VALUE);
+        configuration.setProperty("observation.remote.flushDelay", Long.valueOf(Integer.MAX_VALUE));
+
+        DefaultRemoteObservationManager node = new DefaultRemoteObservationManager();
+        ReflectionUtils.setFieldValue(node, "observationManager", observationManager);
+        ReflectionUtils.setFieldValue(node, "componentManager", componentManager);
+        ReflectionUtils.setFieldValue(node, "configuration", configuration);
+        ReflectionUtils.setFieldValue(node, "logger", logger);
+        node.start("memory", Collections.<Event> singletonList(new ActionExecutionEvent("view")));
+
+        return node;
+    }
+
+    @Test
+    public void testEventsAreNotifiedOnOtherNodes() throws Exception
+    {
+        getMockery().checking(new Expectations() {{
+            oneOf(observationManager2).notify(new ActionExecutionEvent("view"), "source", "data");
+            oneOf(observationManager2).notify(new ActionExecutionEvent("view"), "other source", null);
+        }});
+
+        this.node1.onLocalEvent(new ActionExecutionEvent("view"), "source", "data");
+        this.node1.onLocalEvent(new ActionExecutionEvent("view"), "other source", null);
+        this.node1.flush();
+    }
+
+    @Test
+    public void testRemoteEventsAreNotSentBack() throws Exception
+    {
+        getMockery().checking(new Expectations() {{
+            // Simulate a listener notifying a new event while the remote event is notified
+            oneOf(observationManager2).notify(new ActionExecutionEvent("view"), "source", null);
+            will(new CustomAction("notify a local event") {
+                public Object invoke(Invocation invocation) throws Throwable
+                {
+                    node2.onLocalEvent(new ActionExecutionEvent("view"), "cascade", null);
+                    return null;
+                }
+            });
+        }});
+
+        this.node1.onLocalEvent(new ActionExecutionEvent("view"), "source", null);
+        this.node1.flush();
+
+        // Node 1 must not receive anything (its mock would fail)
+        this.node2.flush();
+    }
+
+    @Test
+    public void testNodeIdentifiersAreDifferent()
+    {
+        Assert.assertFalse(this.node1.getNodeId().equals(this.node2.getNodeId()));
+    }
+
+    @Test
+    public void testFullBatchIsSentInBackground() throws Exception
+    {
+        final Thread testThread = Thread.currentThread();
+        final CountDownLatch notified = new CountDownLatch(1);
+        getMockery().checking(new Expectations() {{
+            oneOf(observationManager2).notify(new ActionExecutionEvent("view"), "source", null);
+            will(new CustomAction("count down") {
+                public Object invoke(Invocation invocation) throws Throwable
+                {
+                    Assert.assertNotSame(testThread, Thread.currentThread());
+                    notified.countDown();
+                    return null;
+                }
+            });
+        }});
+
+        ReflectionUtils.setFieldValue(this.node1, "batchSize", 1);
+        this.node1.onLocalEvent(new ActionExecutionEvent("view"), "source", null);
+
+        Assert.assertTrue(notified.await(10, TimeUnit.SECONDS));
+    }
+
+    @Test
+    public void testEventsAreDroppedWhenTooManyArePending() throws Exception
+    {
+        getMockery().checking(new Expectations() {{
+            oneOf(observationManager2).notify(new ActionExecutionEvent("view"), "first", null);
+        }});
+
+        ReflectionUtils.setFieldValue(this.node1, "maxPendingEvents", 1);
+        this.node1.onLocalEvent(new ActionExecutionEvent("view"), "first", null);
+        this.node1.onLocalEvent(new ActionExecutionEvent("view"), "second", null);
+        this.node1.flush();
+    }
+}
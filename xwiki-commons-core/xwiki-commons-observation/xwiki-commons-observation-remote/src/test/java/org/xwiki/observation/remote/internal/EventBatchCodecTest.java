@@ -0,0 +1,298 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ *
+ */
+package org.xwiki.observation.remote.internal;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.junit.Assert;
+import org.junit.Test;
+import org.xwiki.observation.event.AbstractFilterableEvent;
+import org.xwiki.observation.event.ActionExecutionEvent;
+import org.xwiki.observation.event.filter.AlwaysMatchingEventFilter;
+import org.xwiki.observation.event.filter.EventFilter;
+import org.xwiki.observation.event.filter.FixedNameEventFilter;
+import org.xwiki.observation.event.filter.PrefixEventFilter;
+
+/**
+ * Unit tests for {@link EventBatchCodec}.
+ * 
+ * @version $Id$
+ * @since 3.1M2
+ */
+public class EventBatchCodecTest
+{
+    /**
+     * Event with no state besides its filter, which can be encoded compactly.
+     */
+    public static class TestEvent extends AbstractFilterableEvent
+    {
+        /** Serial version ID. */
+        private static final long serialVersionUID = 1L;
+
+        public TestEvent(EventFilter eventFilter)
+        {
+            super(eventFilter);
+        }
+    }
+
+    /**
+     * Event with its own state, which has to be serialized.
+     */
+    public static class StatefulEvent extends AbstractFilterableEvent
+    {
+        /** Serial version ID. */
+        private static final long serialVersionUID = 1L;
+
+        private String state;
+
+        public StatefulEvent(EventFilter eventFilter)
+        {
+            super(eventFilter);
+        }
+
+        public StatefulEvent(String name, String state)
+        {
+            super(name);
+            this.state = state;
+        }
+
+        public String getState()
+        {
+            return this.state;
+        }
+    }
+
+    /**
+     * Event whose state is not allowed to be deserialized by default.
+     */
+    public static class FileEvent extends StatefulEvent
+    {
+        /** Serial version ID. */
+        private static final long serialVersionUID = 1L;
+
+        private File file = new File("file");
+
+        public FileEvent(String name)
+        {
+            super(name, null);
+        }
+
+        public File getFile()
+        {
+            return this.file;
+        }
+    }
+
+    /**
+     * Class which is not an event but has the constructor of a filterable event.
+     */
+    public static class OtherType
+    {
+        private static boolean instantiated;
+
+        public OtherType(EventFilter eventFilter)
+        {
+            instantiated = true;
+        }
+    }
+
+    private EventBatchCodec codec = new EventBatchCodec();
+
+    @Test
+    public void testRoundTrip() throws Exception
+    {
+        List<RemoteEventData> events = Arrays.asList(
+            new RemoteEventData(new TestEvent(new FixedNameEventFilter("wiki:Space.Page")), "wiki:Space.Page", null),
+            new RemoteEventData(new TestEvent(new PrefixEventFilter("wiki:Space.")), null, 42),
+            new RemoteEventData(new TestEvent(new AlwaysMatchingEventFilter()), new Object(), "wiki:Space.Page"),
+            new RemoteEventData(new StatefulEvent("wiki:Space.Page", "state"), null, null),
+            new RemoteEventData(new ActionExecutionEvent("view"), "source", null));
+
+        EventBatch batch = this.codec.decode(this.codec.encode("node", events));
+
+        Assert.assertEquals("node", batch.getOrigin());
+        Assert.assertEquals(events.size(), batch.getEvents().size());
+
+        RemoteEventData first = batch.getEvents().get(0);
+        Assert.assertSame(TestEvent.class, first.getEvent().getClass());
+        EventFilter filter = ((TestEvent) first.getEvent()).getEventFilter();
+        Assert.assertSame(FixedNameEventFilter.class, filter.getClass());
+        Assert.assertEquals("wiki:Space.Page", filter.getFilter());
+        Assert.assertEquals("wiki:Space.Page", first.getSource());
+        Assert.assertNull(first.getData());
+
+        RemoteEventData second = batch.getEvents().get(1);
+        Assert.assertSame(PrefixEventFilter.class, ((TestEvent) second.getEvent()).getEventFilter().getClass());
+        Assert.assertEquals(42, second.getData());
+
+        RemoteEventData third = batch.getEvents().get(2);
+        Assert.assertSame(AlwaysMatchingEventFilter.class,
+            ((TestEvent) third.getEvent()).getEventFilter().getClass());
+        // Values which are not serializable are dropped
+        Assert.assertNull(third.getSource());
+        Assert.assertEquals("wiki:Space.Page", third.getData());
+
+        Assert.assertEquals("state", ((StatefulEvent) batch.getEvents().get(3).getEvent()).getState());
+        Assert.assertEquals(new ActionExecutionEvent("view"), batch.getEvents().get(4).getEvent());
+    }
+
+    @Test
+    public void testCompactEncodingIsSmallerThanSerialization() throws Exception
+    {
+        RemoteEventData compact =
+            new RemoteEventData(new TestEvent(new FixedNameEventFilter("wiki:Space.Page")), null, null);
+        RemoteEventData serialized = new RemoteEventData(new StatefulEvent("wiki:Space.Page", null), null, null);
+
+        int compactSize = this.codec.encode("node", Arrays.asList(compact, compact)).length;
+        int serializedSize = this.codec.encode("node", Arrays.asList(serialized, serialized)).length;
+
+        Assert.assertTrue(compactSize * 4 < serializedSize);
+    }
+
+    @Test
+    public void testEventWhichCannotBeRecreatedIsSkipped() throws Exception
+    {
+        List<RemoteEventData> events = Arrays.asList(
+            new RemoteEventData(new ActionExecutionEvent("view"), null, null),
+            new RemoteEventData(new FileEvent("wiki:Space.Page"), null, null),
+            new RemoteEventData(new ActionExecutionEvent("edit"), null, new File("data")),
+            new RemoteEventData(new ActionExecutionEvent("save"), null, null));
+
+        EventBatch batch = this.codec.decode(this.codec.encode("node", events));
+
+        Assert.assertEquals(2, batch.getEvents().size());
+        Assert.assertEquals(new ActionExecutionEvent("view"), batch.getEvents().get(0).getEvent());
+        Assert.assertEquals(new ActionExecutionEvent("save"), batch.getEvents().get(1).getEvent());
+        Assert.assertEquals(2, batch.getFailures().size());
+
+        // Unless the classes are explicitly allowed
+        EventBatchCodec allowingCodec = new EventBatchCodec(Collections.singletonList("java.io.File"));
+        Assert.assertEquals(events.size(), allowingCodec.decode(this.codec.encode("node", events)).getEvents().size());
+    }
+
+    @Test
+    public void testOnlyEventsAndFiltersAreInstantiated() throws Exception
+    {
+        byte[] packet = this.codec.encode("node", Collections.singletonList(
+            new RemoteEventData(new TestEvent(new FixedNameEventFilter("wiki:Space.Page")), null, null)));
+
+        // Replace the event class by a class which is not an event, keeping the same length
+        String eventClass = TestEvent.class.getName();
+        String otherClass = eventClass.substring(0, eventClass.length() - "TestEvent".length()) + "OtherType";
+        byte[] corrupted = new String(packet, "ISO-8859-1").replace(eventClass, otherClass).getBytes("ISO-8859-1");
+
+        EventBatch batch = this.codec.decode(corrupted);
+
+        Assert.assertTrue(batch.getEvents().isEmpty());
+        Assert.assertEquals(1, batch.getFailures().size());
+        Assert.assertFalse(OtherType.instantiated);
+    }
+
+    @Test
+    public void testInvalidLengthIsRejectedBeforeAllocating() throws Exception
+    {
+        byte[] packet = this.codec.encode("node", Collections.<RemoteEventData> emptyList());
+        // Version, origin length and origin, then a symbol count of more than 2^28 symbols
+        byte[] corrupted = Arrays.copyOf(packet, packet.length + 4);
+        int offset = 1 + 2 + "node".length();
+        corrupted[offset] = (byte) 0xFF;
+        corrupted[offset + 1] = (byte) 0xFF;
+        corrupted[offset + 2] = (byte) 0xFF;
+        corrupted[offset + 3] = (byte) 0xFF;
+        corrupted[offset + 4] = 0x07;
+
+        try {
+            this.codec.decode(corrupted);
+            Assert.fail("Should have failed");
+        } catch (IOException expected) {
+            Assert.assertTrue(expected.getMessage().startsWith("Invalid length"));
+        }
+    }
+
+    @Test
+    public void testCollectionsAreDeserialized() throws Exception
+    {
+        Map<String, List<String>> data = new HashMap<String, List<String>>();
+        data.put("first", Arrays.asList("value", "value"));
+        data.put("second", Arrays.asList("value"));
+
+        EventBatch batch = this.codec.decode(this.codec.encode("node",
+            Collections.singletonList(new RemoteEventData(new ActionExecutionEvent("view"), null, data))));
+
+        Assert.assertEquals(data, batch.getEvents().get(0).getData());
+    }
+
+    @Test
+    public void testHugeArrayIsRejectedBeforeAllocating() throws Exception
+    {
+        byte[] packet = this.codec.encode("node",
+            Collections.singletonList(new RemoteEventData(new ActionExecutionEvent("view"), null, new long[16])));
+
+        // The array length follows the class name, the serial version UID, the flags, the field count, the end of
+        // the class annotation and the null super class
+        int offset = new String(packet, "ISO-8859-1").indexOf("[J") + 2 + 8 + 1 + 2 + 1 + 1;
+        Assert.assertEquals(16, packet[offset + 3]);
+        packet[offset] = 0x7F;
+        packet[offset + 1] = (byte) 0xFF;
+        packet[offset + 2] = (byte) 0xFF;
+        packet[offset + 3] = (byte) 0xFF;
+
+        EventBatch batch = this.codec.decode(packet);
+
+        Assert.assertTrue(batch.getEvents().isEmpty());
+        Assert.assertEquals(1, batch.getFailures().size());
+    }
+
+    @Test
+    public void testSharedNestedSetsAreRejected() throws Exception
+    {
+        // Each level references the sets of the next level twice, so hashing the root takes 2^depth steps
+        Set<Object> root = new HashSet<Object>();
+        Set<Object> first = root;
+        Set<Object> second = new HashSet<Object>();
+        for (int i = 0; i < 20; i++) {
+            Set<Object> left = new HashSet<Object>();
+            Set<Object> right = new HashSet<Object>();
+            // Make the two sets different
+            left.add("value");
+            first.add(left);
+            first.add(right);
+            second.add(left);
+            second.add(right);
+            first = left;
+            second = right;
+        }
+
+        EventBatch batch = this.codec.decode(this.codec.encode("node",
+            Collections.singletonList(new RemoteEventData(new ActionExecutionEvent("view"), null, root))));
+
+        Assert.assertTrue(batch.getEvents().isEmpty());
+        Assert.assertEquals(1, batch.getFailures().size());
+    }
+}
@@ -0,0 +1,104 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ *
+ */
+package org.xwiki.observation.remote.internal.transport;
+
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.util.Collections;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Assert;
+import org.junit.Test;
+import org.xwiki.observation.remote.EventPacketReceiver;
+
+/**
+ * Unit tests for {@link SocketEventTransport}.
+ * 
+ * @version $Id$
+ * @since 3.1M2
+ */
+public class SocketEventTransportTest
+{
+    @Test
+    public void testSendReceive() throws Exception
+    {
+        final BlockingQueue<byte[]> received = new LinkedBlockingQueue<byte[]>();
+
+        // Only the host of the peers is checked when accepting a connection
+        SocketEventTransport receiver = new SocketEventTransport(new InetSocketAddress("127.0.0.1", 0),
+            Collections.singletonList(new InetSocketAddress("127.0.0.1", 1)));
+        receiver.open(new EventPacketReceiver()
+        {
+            public void onPacket(byte[] packet)
+            {
+                received.add(packet);
+            }
+        });
+
+        SocketEventTransport sender = new SocketEventTransport(new InetSocketAddress("127.0.0.1", 0),
+            Collections.singletonList(receiver.getLocalAddress()));
+        sender.open(new EventPacketReceiver()
+        {
+            public void onPacket(byte[] packet)
+            {
+                Assert.fail("The sender should not receive anything");
+            }
+        });
+
+        try {
+            sender.send(new byte[] {1, 2, 3});
+            sender.send(new byte[0]);
+
+            Assert.assertArrayEquals(new byte[] {1, 2, 3}, received.poll(10, TimeUnit.SECONDS));
+            Assert.assertArrayEquals(new byte[0], received.poll(10, TimeUnit.SECONDS));
+        } finally {
+            sender.close();
+            receiver.close();
+        }
+    }
+
+    @Test
+    public void testConnectionsFromOtherHostsAreClosed() throws Exception
+    {
+        SocketEventTransport receiver = new SocketEventTransport(new InetSocketAddress("127.0.0.1", 0),
+            Collections.singletonList(new InetSocketAddress("192.0.2.1", 7900)));
+        receiver.open(new EventPacketReceiver()
+        {
+            public void onPacket(byte[] packet)
+            {
+                Assert.fail("Packets from other hosts than the peers should not be received");
+            }
+        });
+
+        Socket socket = new Socket();
+        try {
+            socket.setSoTimeout(10000);
+            socket.connect(receiver.getLocalAddress());
+
+            Assert.assertEquals(-1, socket.getInputStream().read());
+        } finally {
+            socket.close();
+            receiver.close();
+        }
+    }
+}
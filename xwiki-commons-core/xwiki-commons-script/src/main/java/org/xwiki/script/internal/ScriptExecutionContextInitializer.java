@@ -20,7 +20,9 @@
 package org.xwiki.script.internal;
 
 import javax.inject.Named;
+import javax.inject.Provider;
 import javax.inject.Singleton;
+import javax.script.ScriptContext;
 import javax.script.SimpleScriptContext;
 
 import org.xwiki.component.annotation.Component;
@@ -44,6 +46,14 @@ public class ScriptExecutionContextInitializer implements ExecutionContextInitia
      */
     public static final String SCRIPT_CONTEXT_ID = "scriptContext";
 
+    /**
+     * The key under which the Script Context is stored in the Execution Context.
+     * 
+     * @since 3.1M2
+     */
+    public static final ExecutionContext.Key<ScriptContext> SCRIPT_CONTEXT_KEY =
+        ExecutionContext.Key.register(SCRIPT_CONTEXT_ID, ScriptContext.class);
+
     /**
      * {@inheritDoc}
      * 
@@ -52,7 +62,14 @@ public class ScriptExecutionContextInitializer implements ExecutionContextInitia
     public void initialize(ExecutionContext executionContext) throws ExecutionContextException
     {
         // We're storing an instance of the Script Context class in the Execution Context so that it can be
-        // shared between different script invocations during the lifetime of the Execution Context.        
-        executionContext.setProperty(SCRIPT_CONTEXT_ID, new SimpleScriptContext());
+        // shared between different script invocations during the lifetime of the Execution Context. It's only
+        // created the first time it's needed since many requests don't execute any script.
+        executionContext.setLazyProperty(SCRIPT_CONTEXT_KEY, new Provider<SimpleScriptContext>()
+        {
+            public SimpleScriptContext get()
+            {
+                return new SimpleScriptContext();
+            }
+        });
     }
 }
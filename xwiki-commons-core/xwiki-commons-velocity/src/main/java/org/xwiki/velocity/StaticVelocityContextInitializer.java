@@ -0,0 +1,34 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ *
+ */
+package org.xwiki.velocity;
+
+/**
+ * Velocity Context initializer whose contributions don't depend on the current request. Static initializers are only
+ * called once (and again when the list of initializers changes) to populate the read-only context shared by all the
+ * Velocity contexts, along with the Velocity tools. The objects they put in the context are thus shared by all the
+ * threads.
+ * 
+ * @version $Id$
+ * @since 3.1M2
+ */
+public interface StaticVelocityContextInitializer extends VelocityContextInitializer
+{
+}
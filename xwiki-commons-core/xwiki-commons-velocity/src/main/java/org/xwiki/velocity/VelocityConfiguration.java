@@ -44,7 +44,9 @@
 
     /**
      * @return the list of configured Velocity Tools (the key is the name under which the tool will be available
-     *         in the Velocity Context and the value is the tool's class name) 
+     *         in the Velocity Context and the value is the tool's class name). A key made of the name of a tool
+     *         followed by {@code .scope} defines which contexts share the same instance of the tool: {@code shared}
+     *         (the default), {@code thread} or {@code context}
      */
     Properties getTools();
 }
@@ -20,6 +20,7 @@
  */
 package org.xwiki.velocity;
 
+import java.util.Map;
 import java.util.Properties;
 
 import org.xwiki.component.annotation.ComponentRole;
@@ -73,4 +74,18 @@
      *       and create a new one, instead?
      */
     VelocityEngine createVelocityEngine(String key, Properties properties) throws XWikiVelocityException;
+
+    /**
+     * Creates several Velocity engine instances in parallel, as if {@link #createVelocityEngine(String, Properties)}
+     * was called for each of them. This is useful to pre-create at startup the engines which are known to be needed,
+     * since initializing an engine (and parsing its global macros) can take some time.
+     * 
+     * @param configurations the properties of the engines to create, indexed by the key used to cache them
+     * @return the created (or existing) Velocity engines, indexed by key
+     * @throws XWikiVelocityException if one of the Velocity Engines cannot be initialized for some reason; the other
+     *             engines are created anyway
+     * @since 3.1M2
+     */
+    Map<String, VelocityEngine> createVelocityEngines(Map<String, Properties> configurations)
+        throws XWikiVelocityException;
 }
@@ -0,0 +1,91 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ *
+ */
+package org.xwiki.velocity.internal;
+
+import java.io.FilterWriter;
+import java.io.IOException;
+import java.io.Writer;
+
+/**
+ * Writer counting the characters written to the wrapped writer. Not thread safe, like the renderings it's used for.
+ * 
+ * @version $Id$
+ * @since 3.1M2
+ */
+public class CountingWriter extends FilterWriter
+{
+    /**
+     * The number of characters written.
+     */
+    private long count;
+
+    /**
+     * @param out the writer to wrap
+     */
+    public CountingWriter(Writer out)
+    {
+        super(out);
+    }
+
+    /**
+     * {@inheritDoc}
+     * 
+     * @see FilterWriter#write(int)
+     */
+    @Override
+    public void write(int c) throws IOException
+    {
+        super.write(c);
+        this.count++;
+    }
+
+    /**
+     * {@inheritDoc}
+     * 
+     * @see FilterWriter#write(char[], int, int)
+     */
+    @Override
+    public void write(char[] cbuf, int off, int len) throws IOException
+    {
+        super.write(cbuf, off, len);
+        this.count += len;
+    }
+
+    /**
+     * {@inheritDoc}
+     * 
+     * @see FilterWriter#write(String, int, int)
+     */
+    @Override
+    public void write(String str, int off, int len) throws IOException
+    {
+        super.write(str, off, len);
+        this.count += len;
+    }
+
+    /**
+     * @return the number of characters written
+     */
+    public long getCount()
+    {
+        return this.count;
+    }
+}
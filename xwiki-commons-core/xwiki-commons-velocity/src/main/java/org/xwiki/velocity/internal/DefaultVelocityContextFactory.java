@@ -19,20 +19,26 @@
  */
 package org.xwiki.velocity.internal;
 
+import java.util.ArrayList;
 import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.Properties;
 
 import javax.inject.Inject;
 import javax.inject.Singleton;
 
 import org.apache.velocity.VelocityContext;
-import org.apache.velocity.context.Context;
 import org.slf4j.Logger;
 import org.xwiki.component.annotation.Component;
 import org.xwiki.component.manager.ComponentLookupException;
 import org.xwiki.component.manager.ComponentManager;
 import org.xwiki.component.phase.Initializable;
 import org.xwiki.component.phase.InitializationException;
+import org.xwiki.observation.EventListener;
+import org.xwiki.observation.ObservationManager;
+import org.xwiki.velocity.StaticVelocityContextInitializer;
 import org.xwiki.velocity.VelocityConfiguration;
 import org.xwiki.velocity.VelocityContextFactory;
 import org.xwiki.velocity.VelocityContextInitializer;
@@ -40,6 +46,13 @@
 
 /**
  * Default implementation for {@link VelocityContextFactory}.
+ * <p>
+ * The list of {@link VelocityContextInitializer}s is cached and refreshed when a Velocity Context initializer is
+ * registered or unregistered, provided an {@link ObservationManager} is available to notify it.
+ * <p>
+ * The Velocity tools are instantiated the first time they are used. The scope of a tool is configured with a
+ * {@code <tool name>.scope} entry in the tools configuration, which can be {@code shared} (the default),
+ * {@code thread} or {@code context} (see {@link VelocityTool.Scope}).
  * 
  * @version $Id$
  */
@@ -47,6 +60,11 @@
 @Singleton
 public class DefaultVelocityContextFactory implements VelocityContextFactory, Initializable
 {
+    /**
+     * The suffix of the configuration keys defining the scope of a tool (see {@link VelocityTool.Scope}).
+     */
+    private static final String SCOPE_SUFFIX = ".scope";
+
     /**
      * The component manager we used to find all components implementing the
      * {@link org.xwiki.velocity.VelocityContextInitializer} role.
@@ -67,10 +85,31 @@ public class DefaultVelocityContextFactory implements VelocityContextFactory, In
     private Logger logger;
 
     /**
-     * An internal read-only Velocity Context containing the Tools defined in the component's configuration. We reuse
-     * them across Contexts for better performance.
+     * An internal read-only Velocity Context providing the Tools defined in the component's configuration which are
+     * shared by all the contexts. We reuse them across Contexts for better performance.
+     */
+    private VelocityContext toolsContext;
+
+    /**
+     * The Tools defined in the component's configuration which are instantiated for each context, indexed by name.
+     */
+    private final Map<String, VelocityTool> contextTools = new HashMap<String, VelocityTool>();
+
+    /**
+     * The cached Velocity Context initializers or {@code null} if they have to be looked up again.
      */
-    private Context toolsContext;
+    private volatile ContextInitializers initializers;
+
+    /**
+     * Incremented each time the Velocity Context initializers change, to avoid caching a list looked up before the
+     * change. Guarded by {@code this}.
+     */
+    private int initializersVersion;
+
+    /**
+     * Whether the Velocity Context initializers can be cached, i.e. whether we are notified when they change.
+     */
+    private boolean cacheInitializers;
 
     /**
      * {@inheritDoc}
@@ -79,24 +118,63 @@ public class DefaultVelocityContextFactory implements VelocityContextFactory, In
      */
     public void initialize() throws InitializationException
     {
-        this.toolsContext = new VelocityContext();
-
-        // Instantiate Velocity tools
+        // Resolve the Velocity tools, which are only instantiated when used.
+        Map<String, VelocityTool> sharedTools = new HashMap<String, VelocityTool>();
         Properties properties = this.velocityConfiguration.getTools();
         if (properties != null) {
             for (Enumeration< ? > props = properties.propertyNames(); props.hasMoreElements();) {
                 String key = props.nextElement().toString();
-                String value = properties.getProperty(key);
-                Object toolInstance;
-                try {
-                    toolInstance = Class.forName(value).newInstance();
-                } catch (Exception e) {
-                    throw new InitializationException("Failed to initialize tool [" + value + "]", e);
+                if (!key.endsWith(SCOPE_SUFFIX)) {
+                    VelocityTool tool = createTool(key, properties);
+                    if (tool.getScope() == VelocityTool.Scope.CONTEXT) {
+                        this.contextTools.put(key, tool);
+                    } else {
+                        sharedTools.put(key, tool);
+                    }
                 }
-                this.toolsContext.put(key, toolInstance);
-                this.logger.debug("Setting tool [" + key + "] = [" + value + "]");
             }
         }
+        this.toolsContext = new ToolsContext(sharedTools);
+
+        // Listen to the registration of Velocity Context initializers in order to refresh the cached ones.
+        if (this.componentManager.hasComponent(ObservationManager.class)) {
+            EventListener listener = new VelocityContextInitializerListener(this);
+            try {
+                this.componentManager.lookup(ObservationManager.class).addListener(listener);
+            } catch (ComponentLookupException e) {
+                throw new InitializationException("Failed to listen to Velocity Context initializers changes", e);
+            }
+            this.cacheInitializers = true;
+        }
+    }
+
+    /**
+     * @param name the name of the tool
+     * @param properties the configuration of the Velocity tools
+     * @return the tool
+     * @throws InitializationException if the tool class cannot be found or if the scope is invalid
+     */
+    private VelocityTool createTool(String name, Properties properties) throws InitializationException
+    {
+        String value = properties.getProperty(name);
+        Class< ? > toolClass;
+        try {
+            toolClass = Class.forName(value);
+        } catch (Exception e) {
+            throw new InitializationException("Failed to initialize tool [" + value + "]", e);
+        }
+
+        String scope = properties.getProperty(name + SCOPE_SUFFIX, VelocityTool.Scope.SHARED.name());
+        VelocityTool tool;
+        try {
+            tool = new VelocityTool(name, toolClass, VelocityTool.Scope.valueOf(scope.trim().toUpperCase()),
+                this.logger);
+        } catch (IllegalArgumentException e) {
+            throw new InitializationException("Invalid scope [" + scope + "] for tool [" + name + "]", e);
+        }
+        this.logger.debug("Setting tool [" + name + "] = [" + value + "] with scope [" + tool.getScope() + "]");
+
+        return tool;
     }
 
     /**
@@ -106,18 +184,118 @@ public void initialize() throws InitializationException
      */
     public VelocityContext createContext() throws XWikiVelocityException
     {
-        // Note: This constructor uses the passed context as an internal read-only context.
-        VelocityContext context = new VelocityContext(this.toolsContext);
+        ContextInitializers contextInitializers = getInitializers();
+
+        // Note: This constructor uses the passed context as an internal read-only context. The created context is
+        // layered so that cloning it (e.g. when the execution context is cloned) doesn't copy its entries.
+        VelocityContext context =
+            new ToolsVelocityContext(contextInitializers.getSharedContext(), this.contextTools);
 
         // Call all components implementing the VelocityContextInitializer's role.
-        try {
-            for (Object interceptor : this.componentManager.lookupList(VelocityContextInitializer.class)) {
-                ((VelocityContextInitializer) interceptor).initialize(context);
-            }
-        } catch (ComponentLookupException e) {
-            throw new XWikiVelocityException("Failed to locate some Velocity Context initializers", e);
+        for (VelocityContextInitializer initializer : contextInitializers.getInitializers()) {
+            initializer.initialize(context);
         }
 
         return context;
     }
+
+    /**
+     * Forget the cached Velocity Context initializers.
+     */
+    synchronized void invalidateInitializers()
+    {
+        ++this.initializersVersion;
+        this.initializers = null;
+    }
+
+    /**
+     * @return the Velocity Context initializers
+     * @throws XWikiVelocityException when failing to lookup the Velocity Context initializers
+     */
+    private ContextInitializers getInitializers() throws XWikiVelocityException
+    {
+        ContextInitializers contextInitializers = this.initializers;
+        if (contextInitializers == null) {
+            int version;
+            synchronized (this) {
+                version = this.initializersVersion;
+            }
+
+            List<VelocityContextInitializer> list;
+            try {
+                list = this.componentManager.lookupList(VelocityContextInitializer.class);
+            } catch (ComponentLookupException e) {
+                throw new XWikiVelocityException("Failed to locate some Velocity Context initializers", e);
+            }
+            contextInitializers = new ContextInitializers(this.toolsContext, list);
+
+            synchronized (this) {
+                if (this.cacheInitializers && version == this.initializersVersion) {
+                    this.initializers = contextInitializers;
+                }
+            }
+        }
+
+        return contextInitializers;
+    }
+
+    /**
+     * The Velocity Context initializers to call for each new context along with the read-only context populated with
+     * the Velocity tools and the contributions of the static initializers.
+     * 
+     * @version $Id$
+     */
+    private static class ContextInitializers
+    {
+        /**
+         * The read-only context shared by all the Velocity contexts.
+         */
+        private final VelocityContext sharedContext;
+
+        /**
+         * The initializers to call for each new context.
+         */
+        private final List<VelocityContextInitializer> initializers = new ArrayList<VelocityContextInitializer>();
+
+        /**
+         * @param toolsContext the context containing the Velocity tools
+         * @param allInitializers all the Velocity Context initializers
+         */
+        public ContextInitializers(VelocityContext toolsContext, List<VelocityContextInitializer> allInitializers)
+        {
+            List<VelocityContextInitializer> staticInitializers = new ArrayList<VelocityContextInitializer>();
+            for (VelocityContextInitializer initializer : allInitializers) {
+                if (initializer instanceof StaticVelocityContextInitializer) {
+                    staticInitializers.add(initializer);
+                } else {
+                    this.initializers.add(initializer);
+                }
+            }
+
+            if (staticInitializers.isEmpty()) {
+                this.sharedContext = toolsContext;
+            } else {
+                this.sharedContext = new VelocityContext(toolsContext);
+                for (VelocityContextInitializer initializer : staticInitializers) {
+                    initializer.initialize(this.sharedContext);
+                }
+            }
+        }
+
+        /**
+         * @return the read-only context shared by all the Velocity contexts
+         */
+        public VelocityContext getSharedContext()
+        {
+            return this.sharedContext;
+        }
+
+        /**
+         * @return the initializers to call for each new context
+         */
+        public List<VelocityContextInitializer> getInitializers()
+        {
+            return this.initializers;
+        }
+    }
 }
@@ -19,12 +19,10 @@
  */
 package org.xwiki.velocity.internal;
 
+import java.io.IOException;
 import java.io.Reader;
-import java.io.StringReader;
 import java.io.Writer;
 import java.util.Enumeration;
-import java.util.HashMap;
-import java.util.Map;
 import java.util.Properties;
 
 import javax.inject.Inject;
@@ -34,7 +32,6 @@
 import org.apache.velocity.runtime.RuntimeConstants;
 import org.apache.velocity.runtime.RuntimeServices;
 import org.apache.velocity.runtime.log.LogChute;
-import org.apache.velocity.runtime.parser.node.SimpleNode;
 import org.slf4j.Logger;
 import org.xwiki.component.annotation.Component;
 import org.xwiki.component.annotation.InstantiationStrategy;
@@ -55,6 +52,56 @@
 @InstantiationStrategy(ComponentInstantiationStrategy.PER_LOOKUP)
 public class DefaultVelocityEngine implements VelocityEngine, LogChute
 {
+    /**
+     * The Velocity property holding the maximum number of parsed templates to keep in the cache. A value lower than 1
+     * disables the cache.
+     */
+    public static final String PARSE_CACHE_SIZE = "parser.cache.size";
+
+    /**
+     * The Velocity property holding the maximum number of macro namespaces to keep when macros are local to the
+     * templates defining them. The least recently used namespaces are cleared first. A value lower than 1 means no
+     * limit.
+     */
+    public static final String NAMESPACE_MAX_COUNT = "velocimacro.namespace.maxcount";
+
+    /**
+     * The Velocity property holding the maximum estimated memory, in bytes, used by the macro namespaces when macros
+     * are local to the templates defining them. A value lower than 1 means no limit.
+     */
+    public static final String NAMESPACE_MAX_SIZE = "velocimacro.namespace.maxsize";
+
+    /**
+     * The Velocity property holding the time in milliseconds after which a macro namespace marked as being used but
+     * not accessed anymore is considered leaked, and can thus be cleared to respect the limits.
+     */
+    public static final String NAMESPACE_MAX_USAGE_TIME = "velocimacro.namespace.maxusagetime";
+
+    /**
+     * The default maximum number of parsed templates to keep in the cache.
+     */
+    private static final int DEFAULT_PARSE_CACHE_SIZE = 256;
+
+    /**
+     * The default maximum number of macro namespaces.
+     */
+    private static final int DEFAULT_NAMESPACE_MAX_COUNT = 1000;
+
+    /**
+     * The default maximum estimated memory used by the macro namespaces: 64MB.
+     */
+    private static final long DEFAULT_NAMESPACE_MAX_SIZE = 64L * 1024 * 1024;
+
+    /**
+     * The default time after which a macro namespace in use but not accessed anymore is considered leaked: 1 hour.
+     */
+    private static final long DEFAULT_NAMESPACE_MAX_USAGE_TIME = 60L * 60 * 1000;
+
+    /**
+     * The size of the buffer used to read the templates passed as {@link Reader}.
+     */
+    private static final int READ_BUFFER_SIZE = 4096;
+
     /**
      * Used to set it as a Velocity Application Attribute so that Velocity extensions done by XWiki can use it to
      * lookup other components.
@@ -84,8 +131,23 @@ public class DefaultVelocityEngine implements VelocityEngine, LogChute
      */
     private RuntimeServices rsvc;
 
+    /**
+     * The templates already parsed, or {@code null} if the cache is disabled.
+     */
+    private ParsedTemplateCache parseCache;
+
     /** Counter for the number of active rendering processes using each namespace. */
-    private final Map<String, Integer> namespaceUsageCount = new HashMap<String, Integer>();
+    private final MacroNamespaceUsage namespaceUsage = new MacroNamespaceUsage(this);
+
+    /**
+     * The macro namespaces holding macros.
+     */
+    private MacroNamespaceStore namespaceStore;
+
+    /**
+     * The statistics of the evaluations.
+     */
+    private final RenderStatistics statistics = new RenderStatistics();
 
     /**
      * {@inheritDoc}
@@ -107,9 +169,46 @@ public void initialize(Properties overridingProperties) throws XWikiVelocityExce
             throw new XWikiVelocityException("Cannot start the Velocity engine", e);
         }
 
+        int parseCacheSize = this.rsvc.getInt(PARSE_CACHE_SIZE, DEFAULT_PARSE_CACHE_SIZE);
+        this.parseCache = parseCacheSize > 0 ? new ParsedTemplateCache(parseCacheSize) : null;
+
+        int namespaceMaxCount = this.rsvc.getInt(NAMESPACE_MAX_COUNT, DEFAULT_NAMESPACE_MAX_COUNT);
+        long namespaceMaxSize = this.rsvc.getConfiguration().getLong(NAMESPACE_MAX_SIZE, DEFAULT_NAMESPACE_MAX_SIZE);
+        this.namespaceStore = new MacroNamespaceStore(this, this.namespaceUsage,
+            this.rsvc.getBoolean(RuntimeConstants.VM_PERM_INLINE_LOCAL, false), namespaceMaxCount, namespaceMaxSize,
+            this.rsvc.getConfiguration().getLong(NAMESPACE_MAX_USAGE_TIME, DEFAULT_NAMESPACE_MAX_USAGE_TIME));
+        this.namespaceStore.addLibraryMacros(this.rsvc);
+
         this.engine = velocityEngine;
     }
 
+    /**
+     * @return the templates already parsed, or {@code null} if the cache is disabled
+     * @since 3.1M2
+     */
+    public ParsedTemplateCache getParseCache()
+    {
+        return this.parseCache;
+    }
+
+    /**
+     * @return the macro namespaces holding macros
+     * @since 3.1M2
+     */
+    public MacroNamespaceStore getNamespaceStore()
+    {
+        return this.namespaceStore;
+    }
+
+    /**
+     * @return the statistics of the evaluations done by this engine
+     * @since 3.1M2
+     */
+    public RenderStatistics getStatistics()
+    {
+        return this.statistics;
+    }
+
     /**
      * @param velocityEngine the Velocity engine against which to initialize Velocity properties
      * @param configurationProperties the Velocity properties coming from XWiki's configuration
@@ -156,18 +255,6 @@ private void initializeProperties(org.apache.velocity.app.VelocityEngine velocit
      */
     public boolean evaluate(Context context, Writer out, String templateName, String source)
         throws XWikiVelocityException
-    {
-        return evaluate(context, out, templateName, new StringReader(source));
-    }
-
-    /**
-     * {@inheritDoc}
-     * 
-     * @see VelocityEngine#evaluate(Context, java.io.Writer, String, String)
-     * @see #init(RuntimeServices)
-     */
-    public boolean evaluate(Context context, Writer out, String templateName, Reader source)
-        throws XWikiVelocityException
     {
         // Ensure that initialization has been called
         if (this.engine == null) {
@@ -178,33 +265,76 @@ public boolean evaluate(Context context, Writer out, String templateName, Reader
         // We override the default implementation here. See #init(RuntimeServices)
         // for explanations.
         try {
-            SimpleNode nodeTree = null;
-
-            // The trick is done here: We use the signature that allows
-            // passing a boolean and we pass false, thus preventing Velocity
-            // from cleaning the context of its velocimacros even though the
-            // config property velocimacro.permissions.allow.inline.local.scope
-            // is set to true.
-            nodeTree = this.rsvc.parse(source, templateName, false);
-
-            if (nodeTree != null) {
-                InternalContextAdapterImpl ica = new InternalContextAdapterImpl(context);
-                ica.pushCurrentTemplateName(templateName);
+            long start = System.nanoTime();
+            ParsedTemplateCache.ParsedTemplate template =
+                this.parseCache != null ? this.parseCache.get(templateName, source) : null;
+
+            boolean parsed = template == null;
+            if (parsed) {
                 try {
-                    nodeTree.init(ica, this.rsvc);
-                    nodeTree.render(ica, out);
+                    template = ParsedTemplateCache.ParsedTemplate.parse(this.rsvc, templateName, source);
                 } finally {
-                    ica.popCurrentTemplateName();
+                    this.statistics.parsed(System.nanoTime() - start);
+                }
+                if (template == null) {
+                    this.statistics.failed();
+                    return false;
                 }
-                return true;
             }
 
-            return false;
+            CountingWriter writer = new CountingWriter(out);
+            start = System.nanoTime();
+            InternalContextAdapterImpl ica = new InternalContextAdapterImpl(context);
+            ica.pushCurrentTemplateName(templateName);
+            this.statistics.startRendering();
+            try {
+                if (parsed) {
+                    template.init(ica, this.rsvc);
+                    if (this.parseCache != null) {
+                        this.parseCache.put(templateName, template);
+                    }
+                } else {
+                    template.registerMacros(ica, this.rsvc);
+                }
+
+                template.render(ica, writer);
+                this.statistics.rendered(templateName, System.nanoTime() - start, writer.getCount());
+            } finally {
+                this.statistics.stopRendering();
+                this.namespaceStore.touch(templateName, template);
+                ica.popCurrentTemplateName();
+            }
+
+            return true;
         } catch (Exception e) {
+            this.statistics.failed();
             throw new XWikiVelocityException("Failed to evaluate content with id [" + templateName + "]", e);
         }
     }
 
+    /**
+     * {@inheritDoc}
+     * 
+     * @see VelocityEngine#evaluate(Context, java.io.Writer, String, String)
+     * @see #init(RuntimeServices)
+     */
+    public boolean evaluate(Context context, Writer out, String templateName, Reader source)
+        throws XWikiVelocityException
+    {
+        // The whole source is needed to look for the template in the cache of parsed templates
+        StringBuilder builder = new StringBuilder();
+        char[] buffer = new char[READ_BUFFER_SIZE];
+        try {
+            for (int read = source.read(buffer); read != -1; read = source.read(buffer)) {
+                builder.append(buffer, 0, read);
+            }
+        } catch (IOException e) {
+            throw new XWikiVelocityException("Failed to read content with id [" + templateName + "]", e);
+        }
+
+        return evaluate(context, out, templateName, builder.toString());
+    }
+
     /**
      * {@inheritDoc}
      * 
@@ -214,6 +344,10 @@ public boolean evaluate(Context context, Writer out, String templateName, Reader
     public void clearMacroNamespace(String templateName)
     {
         this.rsvc.dumpVMNamespace(templateName);
+        if (this.namespaceStore != null) {
+            // The namespace store is created once the engine is initialized
+            this.namespaceStore.remove(templateName);
+        }
     }
 
     /**
@@ -224,14 +358,7 @@ public void clearMacroNamespace(String templateName)
      */
     public void startedUsingMacroNamespace(String namespace)
     {
-        synchronized (this.namespaceUsageCount) {
-            Integer count = this.namespaceUsageCount.get(namespace);
-            if (count == null) {
-                count = Integer.valueOf(0);
-            }
-            count = count + 1;
-            this.namespaceUsageCount.put(namespace, count);
-        }
+        this.namespaceUsage.start(namespace);
     }
 
     /**
@@ -242,20 +369,9 @@ public void startedUsingMacroNamespace(String namespace)
      */
     public void stoppedUsingMacroNamespace(String namespace)
     {
-        synchronized (this.namespaceUsageCount) {
-            Integer count = this.namespaceUsageCount.get(namespace);
-            if (count == null) {
-                // This shouldn't happen
-                this.log(LogChute.WARN_ID, "Wrong usage count for namespace [" + namespace + "]");
-                return;
-            }
-            count = count - 1;
-            if (count <= 0) {
-                this.namespaceUsageCount.remove(namespace);
-                this.clearMacroNamespace(namespace);
-            } else {
-                this.namespaceUsageCount.put(namespace, count);
-            }
+        if (!this.namespaceUsage.stop(namespace)) {
+            // This shouldn't happen
+            this.log(LogChute.WARN_ID, "Wrong usage count for namespace [" + namespace + "]");
         }
     }
 
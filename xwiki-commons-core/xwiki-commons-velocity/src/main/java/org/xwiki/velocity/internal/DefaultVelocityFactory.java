@@ -19,9 +19,17 @@
  */
 package org.xwiki.velocity.internal;
 
-import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.Map;
 import java.util.Properties;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
 
 import javax.inject.Inject;
 import javax.inject.Singleton;
@@ -34,10 +42,15 @@
 import org.xwiki.velocity.VelocityFactory;
 import org.xwiki.velocity.XWikiVelocityException;
 import org.xwiki.velocity.internal.jmx.JMXVelocityEngine;
-import org.xwiki.velocity.internal.jmx.JMXVelocityEngineMBean;
+import org.xwiki.velocity.internal.jmx.JMXVelocityEngineMXBean;
 
 /**
  * Default implementation for {@link VelocityFactory}.
+ * <p>
+ * Reading the cache of engines doesn't require any lock: only the threads asking for an engine which is being created
+ * wait for its creation to end, and a given engine is created only once even when several threads ask for it at the
+ * same time. Creating an engine again from its own creation (e.g. while loading its global macros) fails instead of
+ * waiting forever for the creation to end, and getting it from there returns {@code null}.
  * 
  * @see VelocityFactory
  * @version $Id$
@@ -60,18 +73,20 @@ public class DefaultVelocityFactory implements VelocityFactory
 
     /**
      * A cache of Velocity Engines. See {@link org.xwiki.velocity.VelocityFactory} for more details as to why we need
-     * this cache.
+     * this cache. The engines are stored as futures so that engines being created are visible to the other threads,
+     * which then wait for the creation instead of creating the engine again.
      */
-    private Map<String, VelocityEngine> velocityEngines = new HashMap<String, VelocityEngine>();
+    private final ConcurrentMap<String, EngineCreation> velocityEngines =
+        new ConcurrentHashMap<String, EngineCreation>();
 
     /**
      * {@inheritDoc}
      * 
      * @see VelocityFactory#hasVelocityEngine(String)
      */
-    public synchronized boolean hasVelocityEngine(String key)
+    public boolean hasVelocityEngine(String key)
     {
-        return this.velocityEngines.containsKey(key);
+        return getVelocityEngine(key) != null;
     }
 
     /**
@@ -79,9 +94,20 @@ public synchronized boolean hasVelocityEngine(String key)
      * 
      * @see VelocityFactory#getVelocityEngine(String)
      */
-    public synchronized VelocityEngine getVelocityEngine(String key)
+    public VelocityEngine getVelocityEngine(String key)
     {
-        return this.velocityEngines.get(key);
+        EngineCreation future = this.velocityEngines.get(key);
+        if (future == null || future.isRunningInCurrentThread()) {
+            // The engine doesn't exist or is not created yet from the point of view of the current thread.
+            return null;
+        }
+
+        try {
+            return getEngine(key, future);
+        } catch (XWikiVelocityException e) {
+            // The engine failed to be created: the thread which created it reported the error.
+            return null;
+        }
     }
 
     /**
@@ -89,8 +115,110 @@ public synchronized VelocityEngine getVelocityEngine(String key)
      * 
      * @see VelocityFactory#createVelocityEngine(String, Properties)
      */
-    public synchronized VelocityEngine createVelocityEngine(String key, Properties properties)
+    public VelocityEngine createVelocityEngine(final String key, final Properties properties)
+        throws XWikiVelocityException
+    {
+        EngineCreation future = this.velocityEngines.get(key);
+        if (future == null) {
+            EngineCreation task = new EngineCreation(new Callable<VelocityEngine>()
+            {
+                public VelocityEngine call() throws XWikiVelocityException
+                {
+                    return doCreateVelocityEngine(key, properties);
+                }
+            });
+            future = this.velocityEngines.putIfAbsent(key, task);
+            if (future == null) {
+                future = task;
+                task.run();
+            }
+        } else if (future.isRunningInCurrentThread()) {
+            throw new XWikiVelocityException("Velocity Engine [" + key + "] is already being created by this thread");
+        }
+
+        return getEngine(key, future);
+    }
+
+    /**
+     * {@inheritDoc}
+     * 
+     * @see VelocityFactory#createVelocityEngines(Map)
+     */
+    public Map<String, VelocityEngine> createVelocityEngines(Map<String, Properties> configurations)
         throws XWikiVelocityException
+    {
+        Map<String, VelocityEngine> engines = new LinkedHashMap<String, VelocityEngine>();
+        if (configurations.isEmpty()) {
+            return engines;
+        }
+
+        int threads = Math.min(configurations.size(), Runtime.getRuntime().availableProcessors());
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        Map<String, Future<VelocityEngine>> futures = new LinkedHashMap<String, Future<VelocityEngine>>();
+        try {
+            for (final Map.Entry<String, Properties> configuration : configurations.entrySet()) {
+                futures.put(configuration.getKey(), executor.submit(new Callable<VelocityEngine>()
+                {
+                    public VelocityEngine call() throws XWikiVelocityException
+                    {
+                        return createVelocityEngine(configuration.getKey(), configuration.getValue());
+                    }
+                }));
+            }
+        } finally {
+            // Let the submitted creations end but don't accept new ones.
+            executor.shutdown();
+        }
+
+        XWikiVelocityException error = null;
+        for (Map.Entry<String, Future<VelocityEngine>> future : futures.entrySet()) {
+            try {
+                engines.put(future.getKey(), getEngine(future.getKey(), future.getValue()));
+            } catch (XWikiVelocityException e) {
+                if (error == null) {
+                    error = e;
+                }
+            }
+        }
+        if (error != null) {
+            throw error;
+        }
+
+        return engines;
+    }
+
+    /**
+     * Wait for the passed engine to be created.
+     * 
+     * @param key the key of the engine
+     * @param future the creation of the engine
+     * @return the created engine
+     * @throws XWikiVelocityException if the engine failed to be created or if the current thread was interrupted
+     */
+    private VelocityEngine getEngine(String key, Future<VelocityEngine> future) throws XWikiVelocityException
+    {
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new XWikiVelocityException("Interrupted while waiting for Velocity Engine [" + key + "]", e);
+        } catch (ExecutionException e) {
+            // Allow a later attempt to create the engine again.
+            this.velocityEngines.remove(key, future);
+            if (e.getCause() instanceof XWikiVelocityException) {
+                throw (XWikiVelocityException) e.getCause();
+            }
+            throw new XWikiVelocityException("Failed to create Velocity Engine [" + key + "]", e.getCause());
+        }
+    }
+
+    /**
+     * @param key the key used to cache the Velocity engine instance
+     * @param properties the properties overriding the default properties of the engine
+     * @return the new Velocity engine, initialized
+     * @throws XWikiVelocityException if the Velocity Engine cannot be initialized for some reason
+     */
+    private VelocityEngine doCreateVelocityEngine(String key, Properties properties) throws XWikiVelocityException
     {
         VelocityEngine engine;
         try {
@@ -99,13 +227,58 @@ public synchronized VelocityEngine createVelocityEngine(String key, Properties p
             throw new XWikiVelocityException("Failed to create Velocity Engine", e);
         }
         engine.initialize(properties);
-        this.velocityEngines.put(key, engine);
 
         // Register a JMX MBean for providing information about the created Velocity Engine (template namespaces,
         // macros, etc).
-        JMXVelocityEngineMBean mbean = new JMXVelocityEngine(engine);
+        JMXVelocityEngineMXBean mbean = new JMXVelocityEngine(engine);
         this.jmxRegistration.registerMBean(mbean, "type=Velocity,domain=Engines,name=" + key);
 
         return engine;
     }
+
+    /**
+     * The creation of an engine, which remembers the thread running it.
+     * 
+     * @version $Id$
+     */
+    private static final class EngineCreation extends FutureTask<VelocityEngine>
+    {
+        /**
+         * The thread creating the engine, {@code null} when the creation is not running.
+         */
+        private volatile Thread creator;
+
+        /**
+         * @param callable creates the engine
+         */
+        EngineCreation(Callable<VelocityEngine> callable)
+        {
+            super(callable);
+        }
+
+        /**
+         * {@inheritDoc}
+         * 
+         * @see FutureTask#run()
+         */
+        @Override
+        public void run()
+        {
+            this.creator = Thread.currentThread();
+            try {
+                super.run();
+            } finally {
+                this.creator = null;
+            }
+        }
+
+        /**
+         * @return {@code true} if the engine is being created by the current thread, i.e. if the engine is asked for
+         *         during its own creation
+         */
+        boolean isRunningInCurrentThread()
+        {
+            return this.creator == Thread.currentThread();
+        }
+    }
 }
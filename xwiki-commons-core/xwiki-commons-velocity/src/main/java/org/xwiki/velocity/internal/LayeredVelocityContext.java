@@ -0,0 +1,306 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ *
+ */
+package org.xwiki.velocity.internal;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
+
+import org.apache.velocity.VelocityContext;
+import org.apache.velocity.context.Context;
+
+/**
+ * Velocity context which can be cloned in constant time. When cloned, the entries of the context are frozen in a
+ * read-only layer shared by the context and its clone, and both keep their own changes in a new overlay on top of it.
+ * Nested clones (e.g. for nested includes) are thus isolated without copying all the entries of the context.
+ * <p>
+ * Since cloning changes the layers of the cloned context, the accesses to a context are synchronized: a context can be
+ * cloned from a thread while another thread keeps using it, and the clone never sees the changes made after it was
+ * taken. The locks are not contended when the context is used by a single thread, as Velocity does.
+ * 
+ * @version $Id$
+ * @since 3.1M2
+ */
+public class LayeredVelocityContext extends VelocityContext
+{
+    /**
+     * The maximum number of frozen layers before they are merged into a single one, to bound the cost of lookups.
+     */
+    private static final int MAX_DEPTH = 8;
+
+    /**
+     * Returned by {@link Layer#lookup(String)} when the key is not found in the layers.
+     */
+    private static final Object ABSENT = new Object();
+
+    /**
+     * The entries modified since the context was created or last cloned.
+     */
+    private Map<String, Object> entries = new HashMap<String, Object>();
+
+    /**
+     * The keys removed since the context was created or last cloned, hiding the entries of the frozen layers.
+     */
+    private Set<String> removed = new HashSet<String>();
+
+    /**
+     * The frozen entries, shared with the clones, or {@code null} if the context has never been cloned.
+     */
+    private Layer base;
+
+    /**
+     * Create an empty context.
+     */
+    public LayeredVelocityContext()
+    {
+        super();
+    }
+
+    /**
+     * @param innerContext the read-only context in which to look for the entries not found in this context
+     */
+    public LayeredVelocityContext(Context innerContext)
+    {
+        super(innerContext);
+    }
+
+    /**
+     * {@inheritDoc}
+     * 
+     * @see VelocityContext#internalGet(String)
+     */
+    @Override
+    public synchronized Object internalGet(String key)
+    {
+        return lookup(key);
+    }
+
+    /**
+     * @param key the key to look for
+     * @return the value associated with the key in this context or its frozen layers, {@code null} if not found
+     */
+    private Object lookup(String key)
+    {
+        Object value = this.entries.get(key);
+        if (value == null && this.base != null && !this.entries.containsKey(key) && !this.removed.contains(key)) {
+            value = this.base.lookup(key);
+            if (value == ABSENT) {
+                value = null;
+            }
+        }
+
+        return value;
+    }
+
+    /**
+     * {@inheritDoc}
+     * 
+     * @see VelocityContext#internalPut(String, Object)
+     */
+    @Override
+    public synchronized Object internalPut(String key, Object value)
+    {
+        Object previous = lookup(key);
+        this.entries.put(key, value);
+        this.removed.remove(key);
+
+        return previous;
+    }
+
+    /**
+     * {@inheritDoc}
+     * 
+     * @see VelocityContext#internalContainsKey(Object)
+     */
+    @Override
+    public synchronized boolean internalContainsKey(Object key)
+    {
+        if (this.entries.containsKey(key)) {
+            return true;
+        }
+
+        return !this.removed.contains(key) && this.base != null && this.base.lookup((String) key) != ABSENT;
+    }
+
+    /**
+     * {@inheritDoc}
+     * 
+     * @see VelocityContext#internalGetKeys()
+     */
+    @Override
+    public synchronized Object[] internalGetKeys()
+    {
+        Set<String> keys = new LinkedHashSet<String>(this.entries.keySet());
+        if (this.base != null) {
+            Set<String> hidden = new HashSet<String>(this.removed);
+            hidden.addAll(this.entries.keySet());
+            this.base.collectKeys(keys, hidden);
+        }
+
+        return keys.toArray();
+    }
+
+    /**
+     * {@inheritDoc}
+     * 
+     * @see VelocityContext#internalRemove(Object)
+     */
+    @Override
+    public synchronized Object internalRemove(Object key)
+    {
+        Object previous = lookup((String) key);
+        this.entries.remove(key);
+        if (this.base != null && this.base.lookup((String) key) != ABSENT) {
+            this.removed.add((String) key);
+        }
+
+        return previous;
+    }
+
+    /**
+     * {@inheritDoc}
+     * <p>
+     * The entries are not copied: they are frozen in a layer shared by this context and its clone.
+     * 
+     * @see VelocityContext#clone()
+     */
+    @Override
+    public synchronized Object clone()
+    {
+        freeze();
+
+        LayeredVelocityContext clone = (LayeredVelocityContext) super.clone();
+        clone.entries = new HashMap<String, Object>();
+        clone.removed = new HashSet<String>();
+
+        return clone;
+    }
+
+    /**
+     * Move the current changes to a new frozen layer.
+     */
+    private void freeze()
+    {
+        if (!this.entries.isEmpty() || !this.removed.isEmpty()) {
+            this.base = new Layer(this.entries, this.removed, this.base);
+            if (this.base.depth > MAX_DEPTH) {
+                this.base = this.base.flatten();
+            }
+
+            this.entries = new HashMap<String, Object>();
+            this.removed = new HashSet<String>();
+        }
+    }
+
+    /**
+     * Read-only set of entries, hiding or overriding the entries of the layer below.
+     * 
+     * @version $Id$
+     */
+    private static final class Layer
+    {
+        /**
+         * The entries of the layer.
+         */
+        private final Map<String, Object> entries;
+
+        /**
+         * The keys hidden by this layer.
+         */
+        private final Set<String> removed;
+
+        /**
+         * The layer below or {@code null} if this is the bottom layer.
+         */
+        private final Layer parent;
+
+        /**
+         * The number of layers, including this one.
+         */
+        private final int depth;
+
+        /**
+         * @param entries the entries of the layer
+         * @param removed the keys hidden by this layer
+         * @param parent the layer below or {@code null} if this is the bottom layer
+         */
+        Layer(Map<String, Object> entries, Set<String> removed, Layer parent)
+        {
+            this.entries = entries;
+            this.removed = removed;
+            this.parent = parent;
+            this.depth = parent != null ? parent.depth + 1 : 1;
+        }
+
+        /**
+         * @param key the key to look for
+         * @return the value associated with the key or {@link LayeredVelocityContext#ABSENT} if not found
+         */
+        Object lookup(String key)
+        {
+            for (Layer layer = this; layer != null; layer = layer.parent) {
+                Object value = layer.entries.get(key);
+                if (value != null || layer.entries.containsKey(key)) {
+                    return value;
+                }
+                if (layer.removed.contains(key)) {
+                    break;
+                }
+            }
+
+            return ABSENT;
+        }
+
+        /**
+         * @param keys where to add the keys of the layers
+         * @param hidden the keys hidden by the upper layers, updated with the keys found in the layers
+         */
+        void collectKeys(Set<String> keys, Set<String> hidden)
+        {
+            for (Layer layer = this; layer != null; layer = layer.parent) {
+                for (String key : layer.entries.keySet()) {
+                    if (hidden.add(key)) {
+                        keys.add(key);
+                    }
+                }
+                hidden.addAll(layer.removed);
+            }
+        }
+
+        /**
+         * @return a single layer with the same entries as all the layers
+         */
+        Layer flatten()
+        {
+            Set<String> keys = new LinkedHashSet<String>();
+            collectKeys(keys, new HashSet<String>());
+
+            Map<String, Object> flatEntries = new HashMap<String, Object>();
+            for (String key : keys) {
+                flatEntries.put(key, lookup(key));
+            }
+
+            return new Layer(flatEntries, new HashSet<String>(), null);
+        }
+    }
+}
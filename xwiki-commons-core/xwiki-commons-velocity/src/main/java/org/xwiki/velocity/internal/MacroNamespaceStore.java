@@ -0,0 +1,578 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ *
+ */
+package org.xwiki.velocity.internal;
+
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.velocity.runtime.RuntimeConstants;
+import org.apache.velocity.runtime.RuntimeServices;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.xwiki.velocity.VelocityEngine;
+
+/**
+ * Keeps track of the macros registered in each namespace. When macros are local to the templates defining them, the
+ * namespaces are also bounded, in number and in estimated memory, by clearing the least recently used ones first. A
+ * namespace is not evicted while a rendering is using it, unless it has not been accessed for so long that its usage
+ * count has most likely been leaked by a caller, in which case a warning is logged.
+ * <p>
+ * Recording the evaluation of a template takes no lock: only the first evaluation of a new template source in a
+ * namespace locks that namespace, and a single thread at a time looks for namespaces to evict, the others going on
+ * without waiting for it. The namespaces are evicted in batches, until they are a tenth below the limits, so that they
+ * are not sorted for each new namespace once the limits are reached.
+ * <p>
+ * Eviction is best effort: a namespace accessed concurrently with its eviction can lose its macros, which are then
+ * registered again the next time the template defining them is evaluated.
+ * 
+ * @version $Id$
+ * @since 3.1M2
+ */
+public class MacroNamespaceStore
+{
+    /**
+     * The name under which the global macros are reported.
+     */
+    public static final String GLOBAL_NAMESPACE = "<global>";
+
+    /**
+     * The estimated number of bytes used by the parsed macros for each character of the template defining them.
+     */
+    private static final int ESTIMATED_BYTES_PER_CHARACTER = 16;
+
+    /**
+     * The maximum number of template sources whose estimated size is remembered for each namespace. Older sources
+     * of a template have most likely been replaced by the newer ones, which redefine the same macros.
+     */
+    private static final int MAX_SOURCES_PER_NAMESPACE = 4;
+
+    /**
+     * The namespaces are evicted until they are this fraction of the limits below the limits.
+     */
+    private static final int EVICTION_RATIO = 10;
+
+    /**
+     * The logger to use to log the namespaces evicted while in use.
+     */
+    private static final Logger LOGGER = LoggerFactory.getLogger(MacroNamespaceStore.class);
+
+    /**
+     * The engine whose namespaces are stored.
+     */
+    private final VelocityEngine engine;
+
+    /**
+     * Used to know which namespaces are in use.
+     */
+    private final MacroNamespaceUsage usage;
+
+    /**
+     * Whether the inline macros are local to the templates defining them.
+     */
+    private final boolean localScope;
+
+    /**
+     * The maximum number of namespaces, lower than 1 for no limit.
+     */
+    private final int maxCount;
+
+    /**
+     * The maximum estimated memory used by the namespaces in bytes, lower than 1 for no limit.
+     */
+    private final long maxSize;
+
+    /**
+     * The time in nanoseconds after which a namespace still in use but not accessed is considered leaked.
+     */
+    private final long maxUsageTime;
+
+    /**
+     * The namespaces holding macros.
+     */
+    private final ConcurrentMap<String, Namespace> namespaces = new ConcurrentHashMap<String, Namespace>();
+
+    /**
+     * The number of namespaces holding macros, maintained apart since counting the entries of a concurrent map is not
+     * cheap.
+     */
+    private final AtomicInteger count = new AtomicInteger();
+
+    /**
+     * The names of the global macros, replaced by a new set when macros are added so that it can be read without lock.
+     */
+    private volatile Set<String> globalMacros = new LinkedHashSet<String>();
+
+    /**
+     * The estimated memory used by all the namespaces in bytes.
+     */
+    private final AtomicLong size = new AtomicLong();
+
+    /**
+     * Incremented each time a namespace or a macro is added or removed.
+     */
+    private final AtomicLong version = new AtomicLong();
+
+    /**
+     * The number of namespaces evicted.
+     */
+    private final AtomicLong evictions = new AtomicLong();
+
+    /**
+     * Whether a thread is looking for namespaces to evict.
+     */
+    private final AtomicBoolean evicting = new AtomicBoolean();
+
+    /**
+     * @param engine the engine whose namespaces are stored
+     * @param usage used to know which namespaces are in use
+     * @param localScope whether the inline macros are local to the templates defining them; the namespaces are not
+     *            bounded otherwise
+     * @param maxCount the maximum number of namespaces, lower than 1 for no limit
+     * @param maxSize the maximum estimated memory used by the namespaces in bytes, lower than 1 for no limit
+     * @param maxUsageTime the time in milliseconds after which a namespace still in use but not accessed is
+     *            considered leaked and can be evicted
+     */
+    public MacroNamespaceStore(VelocityEngine engine, MacroNamespaceUsage usage, boolean localScope, int maxCount,
+        long maxSize, long maxUsageTime)
+    {
+        this.engine = engine;
+        this.usage = usage;
+        this.localScope = localScope;
+        this.maxCount = maxCount;
+        this.maxSize = maxSize;
+        this.maxUsageTime = TimeUnit.MILLISECONDS.toNanos(maxUsageTime);
+    }
+
+    /**
+     * Record that a template has been evaluated in the passed namespace, and evict the least recently used namespaces
+     * if the limits are exceeded.
+     * 
+     * @param namespace the namespace in which the template was evaluated
+     * @param template the evaluated template
+     */
+    public void touch(String namespace, ParsedTemplateCache.ParsedTemplate template)
+    {
+        if (!this.localScope) {
+            if (template.hasMacros()) {
+                addGlobalMacros(template.getMacroNames());
+            }
+            return;
+        }
+
+        Namespace entry = this.namespaces.get(namespace);
+        if (entry == null) {
+            if (!template.hasMacros()) {
+                return;
+            }
+            entry = new Namespace();
+            Namespace existing = this.namespaces.putIfAbsent(namespace, entry);
+            if (existing != null) {
+                entry = existing;
+            } else {
+                this.count.incrementAndGet();
+                this.version.incrementAndGet();
+            }
+        }
+
+        long now = System.nanoTime();
+        entry.lastAccess = now;
+        if (template.hasMacros() && !entry.isCurrentSource(template.getSource().hashCode())) {
+            addTemplate(entry, template);
+        }
+
+        evict(namespace, now);
+    }
+
+    /**
+     * Forget the passed namespace, called when it's cleared.
+     * 
+     * @param namespace the cleared namespace
+     */
+    public void remove(String namespace)
+    {
+        Namespace entry = this.namespaces.get(namespace);
+        if (entry != null) {
+            remove(namespace, entry);
+        }
+    }
+
+    /**
+     * Record the macros defined by the Velocity macro libraries, which are global. The libraries are only parsed, not
+     * initialized, so that their macros are not registered again.
+     * 
+     * @param runtimeServices the Velocity runtime which loaded the libraries
+     */
+    public void addLibraryMacros(RuntimeServices runtimeServices)
+    {
+        for (String library : runtimeServices.getConfiguration().getStringArray(RuntimeConstants.VM_LIBRARY)) {
+            if (library.trim().length() > 0) {
+                try {
+                    ParsedTemplateCache.ParsedTemplate template = ParsedTemplateCache.ParsedTemplate.parse(
+                        runtimeServices, library, (String) runtimeServices.getContent(library).getData());
+                    if (template != null) {
+                        addGlobalMacros(template.getMacroNames());
+                    }
+                } catch (Exception e) {
+                    // Velocity already reported the libraries it failed to load when initializing.
+                    continue;
+                }
+            }
+        }
+    }
+
+    /**
+     * @return the names of the macros, indexed by namespace, starting with the {@link #GLOBAL_NAMESPACE global} ones
+     *         followed by the namespaces sorted by name
+     */
+    public Map<String, String[]> getMacroNames()
+    {
+        Map<String, String[]> result = new LinkedHashMap<String, String[]>();
+        Set<String> global = this.globalMacros;
+        result.put(GLOBAL_NAMESPACE, global.toArray(new String[global.size()]));
+        for (Map.Entry<String, Namespace> entry : new TreeMap<String, Namespace>(this.namespaces).entrySet()) {
+            result.put(entry.getKey(), entry.getValue().getMacroNames());
+        }
+
+        return result;
+    }
+
+    /**
+     * @return a number which changes each time a namespace or a macro is added or removed
+     */
+    public long getVersion()
+    {
+        return this.version.get();
+    }
+
+    /**
+     * @return the number of namespaces holding macros
+     */
+    public int size()
+    {
+        return this.count.get();
+    }
+
+    /**
+     * @return the estimated memory used by the namespaces in bytes
+     */
+    public long getEstimatedSize()
+    {
+        return this.size.get();
+    }
+
+    /**
+     * @return the number of namespaces evicted
+     */
+    public long getEvictions()
+    {
+        return this.evictions.get();
+    }
+
+    /**
+     * @param macroNames the names of global macros
+     */
+    private void addGlobalMacros(Collection<String> macroNames)
+    {
+        if (!this.globalMacros.containsAll(macroNames)) {
+            synchronized (this) {
+                Set<String> newGlobalMacros = new LinkedHashSet<String>(this.globalMacros);
+                if (newGlobalMacros.addAll(macroNames)) {
+                    this.globalMacros = newGlobalMacros;
+                    this.version.incrementAndGet();
+                }
+            }
+        }
+    }
+
+    /**
+     * Record the macros and the estimated size of a template source evaluated for the first time in a namespace.
+     * 
+     * @param entry the namespace in which the template was evaluated
+     * @param template the evaluated template
+     */
+    private void addTemplate(Namespace entry, ParsedTemplateCache.ParsedTemplate template)
+    {
+        synchronized (entry) {
+            if (!entry.removed) {
+                long templateSize = (long) template.getSource().length() * ESTIMATED_BYTES_PER_CHARACTER;
+                this.size.addAndGet(entry.setTemplateSize(template.getSource().hashCode(), templateSize));
+                if (entry.macroNames.addAll(template.getMacroNames())) {
+                    this.version.incrementAndGet();
+                }
+            }
+        }
+    }
+
+    /**
+     * @param namespace the name of the namespace to forget
+     * @param entry the namespace to forget
+     * @return {@code true} if the namespace was forgotten, {@code false} if it was already
+     */
+    private boolean remove(String namespace, Namespace entry)
+    {
+        if (!this.namespaces.remove(namespace, entry)) {
+            return false;
+        }
+
+        synchronized (entry) {
+            entry.removed = true;
+            this.size.addAndGet(-entry.size);
+        }
+        this.count.decrementAndGet();
+        this.version.incrementAndGet();
+
+        return true;
+    }
+
+    /**
+     * Clear the least recently used namespaces which can be evicted when the limits are exceeded, until the namespaces
+     * are a tenth below the limits. Nothing is done if another thread is already evicting namespaces.
+     * 
+     * @param current the namespace being accessed, which is never evicted
+     * @param now the current time
+     */
+    private void evict(String current, long now)
+    {
+        if (isOverLimits(0) && this.evicting.compareAndSet(false, true)) {
+            Set<String> victims;
+            try {
+                victims = selectVictims(current, now);
+            } finally {
+                this.evicting.set(false);
+            }
+
+            // Clear the evicted namespaces outside of the eviction.
+            for (String victim : victims) {
+                this.evictions.incrementAndGet();
+                this.engine.clearMacroNamespace(victim);
+            }
+        }
+    }
+
+    /**
+     * Forget the least recently used namespaces which can be evicted, until the namespaces are a tenth below the
+     * limits.
+     * 
+     * @param current the namespace being accessed, which is never evicted
+     * @param now the current time
+     * @return the forgotten namespaces, to clear
+     */
+    private Set<String> selectVictims(String current, long now)
+    {
+        Set<Candidate> evictable = new LinkedHashSet<Candidate>();
+        for (Map.Entry<String, Namespace> entry : this.namespaces.entrySet()) {
+            if (isEvictable(entry.getKey(), entry.getValue(), current, now)) {
+                evictable.add(new Candidate(entry.getKey(), entry.getValue()));
+            }
+        }
+        // Sorted from the least recently accessed to the most recently accessed
+        Candidate[] candidates = evictable.toArray(new Candidate[evictable.size()]);
+        Arrays.sort(candidates);
+
+        Set<String> victims = new LinkedHashSet<String>();
+        for (Candidate candidate : candidates) {
+            if (!isOverLimits(EVICTION_RATIO)) {
+                break;
+            }
+            // Skip the namespaces accessed since they were selected
+            if (candidate.isUnchanged() && remove(candidate.name, candidate.namespace)) {
+                if (this.usage.isUsed(candidate.name)) {
+                    LOGGER.warn("Evicted the macros of namespace [" + candidate.name + "] which has not been accessed"
+                        + " for [" + TimeUnit.NANOSECONDS.toSeconds(now - candidate.lastAccess)
+                        + "] seconds but is still in use, its usage has most likely not been ended");
+                }
+                victims.add(candidate.name);
+            }
+        }
+
+        return victims;
+    }
+
+    /**
+     * @param name the name of a namespace
+     * @param namespace the namespace
+     * @param current the namespace being accessed, which is never evicted
+     * @param now the current time
+     * @return {@code true} if the namespace is not in use, or has not been accessed for so long that its usage count
+     *         has most likely been leaked
+     */
+    private boolean isEvictable(String name, Namespace namespace, String current, long now)
+    {
+        return !name.equals(current) && (!this.usage.isUsed(name) || now - namespace.lastAccess > this.maxUsageTime);
+    }
+
+    /**
+     * @param margin the fraction of the limits to keep free, 0 for none
+     * @return {@code true} if there are too many namespaces or if they use too much memory
+     */
+    private boolean isOverLimits(int margin)
+    {
+        int countLimit = margin > 0 ? this.maxCount - this.maxCount / margin : this.maxCount;
+        long sizeLimit = margin > 0 ? this.maxSize - this.maxSize / margin : this.maxSize;
+
+        return (this.maxCount > 0 && this.count.get() > countLimit)
+            || (this.maxSize > 0 && this.size.get() > sizeLimit);
+    }
+
+    /**
+     * A namespace which can be evicted, with the time it was last accessed when it was selected.
+     * 
+     * @version $Id$
+     */
+    private static final class Candidate implements Comparable<Candidate>
+    {
+        /**
+         * The name of the namespace.
+         */
+        private final String name;
+
+        /**
+         * The namespace.
+         */
+        private final Namespace namespace;
+
+        /**
+         * The time the namespace was last accessed when it was selected, which doesn't change while sorting.
+         */
+        private final long lastAccess;
+
+        /**
+         * @param name the name of the namespace
+         * @param namespace the namespace
+         */
+        Candidate(String name, Namespace namespace)
+        {
+            this.name = name;
+            this.namespace = namespace;
+            this.lastAccess = namespace.lastAccess;
+        }
+
+        /**
+         * @return {@code true} if the namespace has not been accessed since it was selected
+         */
+        boolean isUnchanged()
+        {
+            return this.namespace.lastAccess == this.lastAccess;
+        }
+
+        /**
+         * {@inheritDoc}
+         * 
+         * @see java.lang.Comparable#compareTo(java.lang.Object)
+         */
+        public int compareTo(Candidate candidate)
+        {
+            return this.lastAccess < candidate.lastAccess ? -1 : (this.lastAccess == candidate.lastAccess ? 0 : 1);
+        }
+    }
+
+    /**
+     * The macros of a namespace. The accessed time and the current source are read and written without lock, the
+     * other fields are guarded by the namespace itself.
+     * 
+     * @version $Id$
+     */
+    private static class Namespace
+    {
+        /**
+         * The estimated size of the macros defined by the last template sources evaluated in the namespace, indexed by
+         * the hash code of the template source, from the least recently added to the most recently added.
+         */
+        private final Map<Integer, Long> templateSizes = new LinkedHashMap<Integer, Long>();
+
+        /**
+         * The names of the macros defined in the namespace.
+         */
+        private final Set<String> macroNames = new LinkedHashSet<String>();
+
+        /**
+         * The estimated memory used by the macros of the namespace.
+         */
+        private long size;
+
+        /**
+         * Whether the namespace has been removed from the store.
+         */
+        private boolean removed;
+
+        /**
+         * The last time, in nanoseconds, a template was evaluated in the namespace.
+         */
+        private volatile long lastAccess;
+
+        /**
+         * The hash code of the last template source added to the namespace, {@code null} if none was added.
+         */
+        private volatile Integer currentSource;
+
+        /**
+         * @param sourceHash the hash code of the source of a template evaluated in the namespace
+         * @return {@code true} if the source is the last one added to the namespace
+         */
+        boolean isCurrentSource(int sourceHash)
+        {
+            Integer current = this.currentSource;
+
+            return current != null && current == sourceHash;
+        }
+
+        /**
+         * @param sourceHash the hash code of the source of a template defining macros in the namespace
+         * @param templateSize the estimated size of the macros defined by the template
+         * @return the change of the estimated size of the namespace
+         */
+        long setTemplateSize(int sourceHash, long templateSize)
+        {
+            Long previous = this.templateSizes.remove(sourceHash);
+            this.templateSizes.put(sourceHash, templateSize);
+            long delta = previous != null ? templateSize - previous : templateSize;
+            if (this.templateSizes.size() > MAX_SOURCES_PER_NAMESPACE) {
+                Iterator<Long> eldest = this.templateSizes.values().iterator();
+                delta -= eldest.next();
+                eldest.remove();
+            }
+            this.size += delta;
+            this.currentSource = sourceHash;
+
+            return delta;
+        }
+
+        /**
+         * @return the names of the macros defined in the namespace
+         */
+        synchronized String[] getMacroNames()
+        {
+            return this.macroNames.toArray(new String[this.macroNames.size()]);
+        }
+    }
+}
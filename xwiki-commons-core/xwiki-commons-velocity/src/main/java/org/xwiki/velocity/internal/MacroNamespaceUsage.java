@@ -0,0 +1,129 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ *
+ */
+package org.xwiki.velocity.internal;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.xwiki.velocity.VelocityEngine;
+
+/**
+ * Counts the renderings using each macro namespace, without any global lock, and clears a namespace exactly once when
+ * the last rendering using it stops. A counter is set to {@link #DEAD} by the thread which releases the last usage of
+ * the namespace and is removed only once the namespace is cleared, so that a rendering starting in the meantime waits
+ * for the clear to end instead of losing the macros it registers.
+ * 
+ * @version $Id$
+ * @since 3.1M2
+ */
+public class MacroNamespaceUsage
+{
+    /**
+     * The value of a counter once the namespace is not used anymore and is being cleared.
+     */
+    private static final int DEAD = -1;
+
+    /**
+     * Counter for the number of active rendering processes using each namespace.
+     */
+    private final ConcurrentMap<String, AtomicInteger> counters = new ConcurrentHashMap<String, AtomicInteger>();
+
+    /**
+     * The engine whose macro namespaces are counted.
+     */
+    private final VelocityEngine engine;
+
+    /**
+     * @param engine the engine whose macro namespaces are counted
+     */
+    public MacroNamespaceUsage(VelocityEngine engine)
+    {
+        this.engine = engine;
+    }
+
+    /**
+     * Notify that a rendering is starting in the given namespace.
+     * 
+     * @param namespace the namespace being used
+     */
+    public void start(String namespace)
+    {
+        while (true) {
+            AtomicInteger counter = this.counters.get(namespace);
+            if (counter == null) {
+                if (this.counters.putIfAbsent(namespace, new AtomicInteger(1)) == null) {
+                    return;
+                }
+            } else {
+                int count = counter.get();
+                if (count == DEAD) {
+                    // The namespace is being cleared: wait for the dead counter to be removed.
+                    Thread.yield();
+                } else if (counter.compareAndSet(count, count + 1)) {
+                    return;
+                }
+            }
+        }
+    }
+
+    /**
+     * Notify that a rendering in the given namespace just finished, and clear the namespace if it was the last one.
+     * 
+     * @param namespace the namespace which was used
+     * @return {@code false} if the namespace was not in use, {@code true} otherwise
+     */
+    public boolean stop(String namespace)
+    {
+        AtomicInteger counter = this.counters.get(namespace);
+        while (counter != null) {
+            int count = counter.get();
+            if (count == DEAD) {
+                break;
+            } else if (count > 1) {
+                if (counter.compareAndSet(count, count - 1)) {
+                    return true;
+                }
+            } else if (counter.compareAndSet(count, DEAD)) {
+                // Only the thread which killed the counter clears the namespace.
+                try {
+                    this.engine.clearMacroNamespace(namespace);
+                } finally {
+                    this.counters.remove(namespace, counter);
+                }
+                return true;
+            }
+        }
+
+        return false;
+    }
+
+    /**
+     * @param namespace the namespace
+     * @return {@code true} if a rendering is currently using the passed namespace
+     */
+    public boolean isUsed(String namespace)
+    {
+        AtomicInteger counter = this.counters.get(namespace);
+
+        return counter != null && counter.get() > 0;
+    }
+}
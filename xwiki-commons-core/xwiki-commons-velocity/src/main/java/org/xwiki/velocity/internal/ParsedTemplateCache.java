@@ -0,0 +1,325 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ *
+ */
+package org.xwiki.velocity.internal;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.velocity.context.InternalContextAdapter;
+import org.apache.velocity.exception.MethodInvocationException;
+import org.apache.velocity.exception.ParseErrorException;
+import org.apache.velocity.exception.ResourceNotFoundException;
+import org.apache.velocity.exception.TemplateInitException;
+import org.apache.velocity.runtime.RuntimeServices;
+import org.apache.velocity.runtime.directive.Macro;
+import org.apache.velocity.runtime.parser.ParseException;
+import org.apache.velocity.runtime.parser.node.ASTDirective;
+import org.apache.velocity.runtime.parser.node.Node;
+import org.apache.velocity.runtime.parser.node.SimpleNode;
+import org.apache.velocity.util.introspection.IntrospectionCacheData;
+
+/**
+ * Bounded cache of parsed and initialized Velocity templates, evicting the least recently used entries first. The
+ * cached trees are shared between concurrent renderings the same way Velocity shares the trees of the templates it
+ * loads from its resource loaders.
+ * 
+ * @version $Id$
+ * @since 3.1M2
+ */
+public class ParsedTemplateCache
+{
+    /**
+     * The name of the Velocity directive used to define macros.
+     */
+    private static final String MACRO_DIRECTIVE = "macro";
+
+    /**
+     * The cached templates, indexed by template name and source hash.
+     */
+    private final Map<String, ParsedTemplate> templates;
+
+    /**
+     * The number of lookups which found a template.
+     */
+    private final AtomicLong hits = new AtomicLong();
+
+    /**
+     * The number of lookups which didn't find a template.
+     */
+    private final AtomicLong misses = new AtomicLong();
+
+    /**
+     * @param maxSize the maximum number of templates to keep in the cache
+     */
+    public ParsedTemplateCache(final int maxSize)
+    {
+        this.templates = Collections.synchronizedMap(new LinkedHashMap<String, ParsedTemplate>(16, 0.75f, true)
+        {
+            /** Class version. */
+            private static final long serialVersionUID = 1L;
+
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, ParsedTemplate> eldest)
+            {
+                return size() > maxSize;
+            }
+        });
+    }
+
+    /**
+     * @param templateName the name of the template
+     * @param source the source of the template
+     * @return the cached template or {@code null} if the passed source has not been cached under this name
+     */
+    public ParsedTemplate get(String templateName, String source)
+    {
+        ParsedTemplate template = this.templates.get(getKey(templateName, source));
+
+        // Different sources can have the same hash so make sure it's really the same template
+        if (template != null && template.getSource().equals(source)) {
+            this.hits.incrementAndGet();
+            return template;
+        }
+
+        this.misses.incrementAndGet();
+        return null;
+    }
+
+    /**
+     * @param templateName the name of the template
+     * @param template the parsed and initialized template
+     */
+    public void put(String templateName, ParsedTemplate template)
+    {
+        this.templates.put(getKey(templateName, template.getSource()), template);
+    }
+
+    /**
+     * @return the number of cached templates
+     */
+    public int size()
+    {
+        return this.templates.size();
+    }
+
+    /**
+     * @return the number of lookups which found a template
+     */
+    public long getHits()
+    {
+        return this.hits.get();
+    }
+
+    /**
+     * @return the number of lookups which didn't find a template
+     */
+    public long getMisses()
+    {
+        return this.misses.get();
+    }
+
+    /**
+     * @param templateName the name of the template
+     * @param source the source of the template
+     * @return the key under which the template is cached
+     */
+    private String getKey(String templateName, String source)
+    {
+        return templateName + '#' + source.hashCode();
+    }
+
+    /**
+     * A parsed template along with the macros it defines and the introspection data resolved while rendering it.
+     * 
+     * @version $Id$
+     */
+    public static class ParsedTemplate
+    {
+        /**
+         * The source of the template.
+         */
+        private final String source;
+
+        /**
+         * The parsed template.
+         */
+        private final SimpleNode nodeTree;
+
+        /**
+         * The {@code #macro} directives of the template.
+         */
+        private final List<Node> macros = new ArrayList<Node>();
+
+        /**
+         * The methods and properties resolved for the call sites of the template, shared by all its renderings.
+         */
+        private final ConcurrentMap<Object, IntrospectionCacheData> introspectionCache =
+            new ConcurrentHashMap<Object, IntrospectionCacheData>();
+
+        /**
+         * @param source the source of the template
+         * @param nodeTree the parsed template
+         */
+        public ParsedTemplate(String source, SimpleNode nodeTree)
+        {
+            this.source = source;
+            this.nodeTree = nodeTree;
+
+            collectMacros(nodeTree);
+        }
+
+        /**
+         * Parse the passed template, without initializing it.
+         * 
+         * @param runtimeServices the Velocity runtime
+         * @param templateName the name of the template
+         * @param source the source of the template
+         * @return the parsed template, or {@code null} if Velocity failed to parse it without reporting why
+         * @throws ParseException when the template is invalid
+         */
+        public static ParsedTemplate parse(RuntimeServices runtimeServices, String templateName, String source)
+            throws ParseException
+        {
+            // The trick is done here: We use the signature that allows passing a boolean and we pass false, thus
+            // preventing Velocity from cleaning the context of its velocimacros even though the config property
+            // velocimacro.permissions.allow.inline.local.scope is set to true.
+            SimpleNode nodeTree = runtimeServices.parse(new StringReader(source), templateName, false);
+
+            return nodeTree != null ? new ParsedTemplate(source, nodeTree) : null;
+        }
+
+        /**
+         * @return the source of the template
+         */
+        public String getSource()
+        {
+            return this.source;
+        }
+
+        /**
+         * @return the parsed template
+         */
+        public SimpleNode getNodeTree()
+        {
+            return this.nodeTree;
+        }
+
+        /**
+         * @return {@code true} if the template defines macros
+         */
+        public boolean hasMacros()
+        {
+            return !this.macros.isEmpty();
+        }
+
+        /**
+         * @return the names of the macros defined by the template
+         */
+        public List<String> getMacroNames()
+        {
+            List<String> names = new ArrayList<String>(this.macros.size());
+            for (Node macro : this.macros) {
+                // The first argument of the #macro directive is the name of the macro
+                if (macro.jjtGetNumChildren() > 0) {
+                    names.add(macro.jjtGetChild(0).getFirstToken().image);
+                }
+            }
+
+            return names;
+        }
+
+        /**
+         * Initializes the parsed template, which also registers the macros it defines.
+         * 
+         * @param context the context of the current rendering
+         * @param runtimeServices the Velocity runtime
+         * @throws TemplateInitException when failing to initialize the template
+         */
+        public void init(InternalContextAdapter context, RuntimeServices runtimeServices) throws TemplateInitException
+        {
+            this.nodeTree.init(getContextAdapter(context), runtimeServices);
+        }
+
+        /**
+         * @param context the context of the current rendering
+         * @param out the writer where to render the template
+         * @throws IOException when failing to write the result
+         * @throws MethodInvocationException when a method called by the template throws an exception
+         * @throws ParseErrorException when a template included by the template is invalid
+         * @throws ResourceNotFoundException when a template included by the template cannot be found
+         */
+        public void render(InternalContextAdapter context, Writer out) throws IOException, MethodInvocationException,
+            ParseErrorException, ResourceNotFoundException
+        {
+            this.nodeTree.render(getContextAdapter(context), out);
+        }
+
+        /**
+         * Registers the macros defined by the template. Velocity registers macros when initializing the template so a
+         * cached template has to register them again since its namespace might have been cleared or another template
+         * might have redefined them since.
+         * 
+         * @param context the context of the evaluation
+         * @param runtimeServices the Velocity runtime in which to register the macros
+         * @throws TemplateInitException when failing to register a macro
+         */
+        public void registerMacros(InternalContextAdapter context, RuntimeServices runtimeServices)
+            throws TemplateInitException
+        {
+            for (Node macro : this.macros) {
+                new Macro().init(runtimeServices, context, macro);
+            }
+        }
+
+        /**
+         * @param context the context of the current rendering
+         * @return the context to use to initialize and render the template, reusing the methods and properties
+         *         already resolved by the previous renderings
+         */
+        private InternalContextAdapter getContextAdapter(InternalContextAdapter context)
+        {
+            return new SharedIntrospectionContextAdapter(context, this.introspectionCache);
+        }
+
+        /**
+         * @param node the node in which to look for {@code #macro} directives
+         */
+        private void collectMacros(Node node)
+        {
+            if (node instanceof ASTDirective && MACRO_DIRECTIVE.equals(((ASTDirective) node).getDirectiveName())) {
+                this.macros.add(node);
+            }
+
+            for (int i = 0; i < node.jjtGetNumChildren(); ++i) {
+                collectMacros(node.jjtGetChild(i));
+            }
+        }
+    }
+}
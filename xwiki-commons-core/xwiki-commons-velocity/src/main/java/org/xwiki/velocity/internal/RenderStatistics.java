@@ -0,0 +1,500 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ *
+ */
+package org.xwiki.velocity.internal;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Statistics about the evaluations done by a Velocity engine. The counters are cheap to update and are only
+ * aggregated when read.
+ * <p>
+ * The time and the characters of the templates evaluated while rendering another template, for example when a
+ * template includes another one, are included in the statistics of the including template: to avoid counting them
+ * twice, the total rendering time and written characters only count the outermost rendering of each thread, as
+ * delimited by {@link #startRendering()} and {@link #stopRendering()}.
+ * 
+ * @version $Id$
+ * @since 3.1M2
+ */
+public class RenderStatistics
+{
+    /**
+     * The name under which the statistics of the templates evicted from the statistics are aggregated.
+     */
+    public static final String OTHER_TEMPLATES = "<other>";
+
+    /**
+     * The maximum number of templates for which to keep statistics, to bound the memory used when template names are
+     * generated. When it's reached, the least recently rendered templates are aggregated in the
+     * {@link #OTHER_TEMPLATES} statistics to make room for the new ones.
+     */
+    private static final int MAX_TEMPLATES = 1000;
+
+    /**
+     * The number of templates aggregated at once when {@link #MAX_TEMPLATES} is reached, so that the templates are
+     * not sorted for each new template.
+     */
+    private static final int EVICTION_BATCH = MAX_TEMPLATES / 10;
+
+    /**
+     * Sorts the templates from the most evaluated to the least evaluated.
+     */
+    private static final Comparator<TemplateStatistics> BY_HITS = new Comparator<TemplateStatistics>()
+    {
+        public int compare(TemplateStatistics template1, TemplateStatistics template2)
+        {
+            return compareLongs(template2.getHits(), template1.getHits());
+        }
+    };
+
+    /**
+     * Sorts the templates from the slowest to the fastest.
+     */
+    private static final Comparator<TemplateStatistics> BY_MAX_TIME = new Comparator<TemplateStatistics>()
+    {
+        public int compare(TemplateStatistics template1, TemplateStatistics template2)
+        {
+            return compareLongs(template2.getMaxTime(), template1.getMaxTime());
+        }
+    };
+
+    /**
+     * The number of evaluations, successful or not.
+     */
+    private final AtomicLong evaluations = new AtomicLong();
+
+    /**
+     * The number of evaluations which failed.
+     */
+    private final AtomicLong errors = new AtomicLong();
+
+    /**
+     * The number of templates parsed.
+     */
+    private final AtomicLong parses = new AtomicLong();
+
+    /**
+     * The time spent parsing templates, in nanoseconds.
+     */
+    private final AtomicLong parseTime = new AtomicLong();
+
+    /**
+     * The time spent rendering templates, in nanoseconds.
+     */
+    private final AtomicLong renderTime = new AtomicLong();
+
+    /**
+     * The number of characters written by the renderings.
+     */
+    private final AtomicLong writtenCharacters = new AtomicLong();
+
+    /**
+     * The statistics of each template, indexed by template name.
+     */
+    private final ConcurrentMap<String, TemplateStatistics> templates =
+        new ConcurrentHashMap<String, TemplateStatistics>();
+
+    /**
+     * The aggregated statistics of the templates evicted from {@link #templates}.
+     */
+    private volatile TemplateStatistics otherTemplates = new TemplateStatistics(OTHER_TEMPLATES);
+
+    /**
+     * Whether a thread is evicting templates.
+     */
+    private final AtomicBoolean evicting = new AtomicBoolean();
+
+    /**
+     * The number of renderings in progress in each thread, used to recognize the outermost rendering.
+     */
+    private final ThreadLocal<int[]> renderingDepth = new ThreadLocal<int[]>()
+    {
+        @Override
+        protected int[] initialValue()
+        {
+            return new int[1];
+        }
+    };
+
+    /**
+     * Record the parsing of a template.
+     * 
+     * @param time the time spent parsing the template, in nanoseconds
+     */
+    public void parsed(long time)
+    {
+        this.parses.incrementAndGet();
+        this.parseTime.addAndGet(time);
+    }
+
+    /**
+     * Record that the current thread starts rendering a template, to be called before rendering it.
+     */
+    public void startRendering()
+    {
+        this.renderingDepth.get()[0]++;
+    }
+
+    /**
+     * Record that the current thread stopped rendering a template, to be called after rendering it, successfully or
+     * not.
+     */
+    public void stopRendering()
+    {
+        this.renderingDepth.get()[0]--;
+    }
+
+    /**
+     * Record the successful rendering of a template. The time and the characters are only added to the totals if the
+     * rendering is not done while rendering another template, since they are included in the including rendering.
+     * 
+     * @param templateName the name of the template
+     * @param time the time spent rendering the template, in nanoseconds
+     * @param characters the number of characters written
+     */
+    public void rendered(String templateName, long time, long characters)
+    {
+        // The evaluation count orders the renderings, to find the least recently rendered templates.
+        long evaluation = this.evaluations.incrementAndGet();
+        if (this.renderingDepth.get()[0] <= 1) {
+            this.renderTime.addAndGet(time);
+            this.writtenCharacters.addAndGet(characters);
+        }
+
+        TemplateStatistics template = this.templates.get(templateName);
+        if (template == null) {
+            if (this.templates.size() >= MAX_TEMPLATES) {
+                evictTemplates();
+            }
+            template = new TemplateStatistics(templateName);
+            TemplateStatistics existing = this.templates.putIfAbsent(templateName, template);
+            if (existing != null) {
+                template = existing;
+            }
+        }
+        template.rendered(time, evaluation);
+    }
+
+    /**
+     * Aggregate the least recently rendered templates in the {@link #OTHER_TEMPLATES} statistics. Nothing is done if
+     * another thread is already evicting templates.
+     */
+    private void evictTemplates()
+    {
+        if (this.evicting.compareAndSet(false, true)) {
+            try {
+                List<TemplateStatistics> candidates = new ArrayList<TemplateStatistics>(this.templates.values());
+                long threshold = getLastRenderThreshold(candidates);
+                TemplateStatistics others = this.otherTemplates;
+                int evicted = 0;
+                for (TemplateStatistics template : candidates) {
+                    if (evicted < EVICTION_BATCH && template.lastRender <= threshold
+                        && this.templates.remove(template.getTemplateName(), template)) {
+                        template.aggregateIn(others);
+                        evicted++;
+                    }
+                }
+            } finally {
+                this.evicting.set(false);
+            }
+        }
+    }
+
+    /**
+     * The last renderings are copied before being sorted since the templates can be rendered while they are sorted.
+     * 
+     * @param candidates the templates which can be evicted
+     * @return the last rendering of the {@link #EVICTION_BATCH}th least recently rendered template
+     */
+    private long getLastRenderThreshold(List<TemplateStatistics> candidates)
+    {
+        long[] lastRenders = new long[candidates.size()];
+        for (int i = 0; i < lastRenders.length; i++) {
+            lastRenders[i] = candidates.get(i).lastRender;
+        }
+        Arrays.sort(lastRenders);
+
+        return lastRenders.length > 0 ? lastRenders[Math.min(EVICTION_BATCH, lastRenders.length) - 1] : 0;
+    }
+
+    /**
+     * Record a failed evaluation.
+     */
+    public void failed()
+    {
+        this.evaluations.incrementAndGet();
+        this.errors.incrementAndGet();
+    }
+
+    /**
+     * Reset all the statistics.
+     */
+    public void reset()
+    {
+        this.evaluations.set(0);
+        this.errors.set(0);
+        this.parses.set(0);
+        this.parseTime.set(0);
+        this.renderTime.set(0);
+        this.writtenCharacters.set(0);
+        this.templates.clear();
+        this.otherTemplates = new TemplateStatistics(OTHER_TEMPLATES);
+    }
+
+    /**
+     * @return the number of evaluations, successful or not
+     */
+    public long getEvaluations()
+    {
+        return this.evaluations.get();
+    }
+
+    /**
+     * @return the number of evaluations which failed
+     */
+    public long getErrors()
+    {
+        return this.errors.get();
+    }
+
+    /**
+     * @return the number of templates parsed
+     */
+    public long getParses()
+    {
+        return this.parses.get();
+    }
+
+    /**
+     * @return the time spent parsing templates, in nanoseconds
+     */
+    public long getParseTime()
+    {
+        return this.parseTime.get();
+    }
+
+    /**
+     * @return the time spent rendering templates, in nanoseconds
+     */
+    public long getRenderTime()
+    {
+        return this.renderTime.get();
+    }
+
+    /**
+     * @return the number of characters written by the renderings
+     */
+    public long getWrittenCharacters()
+    {
+        return this.writtenCharacters.get();
+    }
+
+    /**
+     * @return the statistics of the templates, from the most evaluated to the least evaluated, including the
+     *         {@link #OTHER_TEMPLATES} statistics if templates have been evicted
+     */
+    public List<TemplateStatistics> getTemplates()
+    {
+        List<TemplateStatistics> result = getAllTemplates();
+        Collections.sort(result, BY_HITS);
+
+        return result;
+    }
+
+    /**
+     * @param count the maximum number of templates to return
+     * @return the statistics of the templates with the longest rendering, from the slowest to the fastest
+     */
+    public List<TemplateStatistics> getSlowestTemplates(int count)
+    {
+        List<TemplateStatistics> result = getAllTemplates();
+        Collections.sort(result, BY_MAX_TIME);
+
+        return result.size() > count ? new ArrayList<TemplateStatistics>(result.subList(0, count)) : result;
+    }
+
+    /**
+     * @return the statistics of the templates, including the {@link #OTHER_TEMPLATES} statistics if templates have
+     *         been evicted
+     */
+    private List<TemplateStatistics> getAllTemplates()
+    {
+        List<TemplateStatistics> result = new ArrayList<TemplateStatistics>(this.templates.values());
+        TemplateStatistics others = this.otherTemplates;
+        if (others.getHits() > 0) {
+            result.add(others);
+        }
+
+        return result;
+    }
+
+    /**
+     * @param value1 the first value to compare
+     * @param value2 the second value to compare
+     * @return a negative integer, zero, or a positive integer as the first value is less than, equal to, or greater
+     *         than the second
+     */
+    private static int compareLongs(long value1, long value2)
+    {
+        return value1 < value2 ? -1 : (value1 == value2 ? 0 : 1);
+    }
+
+    /**
+     * The statistics of a template.
+     * 
+     * @version $Id$
+     */
+    public static class TemplateStatistics
+    {
+        /**
+         * The name of the template.
+         */
+        private final String templateName;
+
+        /**
+         * The number of successful renderings of the template.
+         */
+        private final AtomicLong hits = new AtomicLong();
+
+        /**
+         * The time spent rendering the template, in nanoseconds.
+         */
+        private final AtomicLong totalTime = new AtomicLong();
+
+        /**
+         * The longest rendering of the template, in nanoseconds.
+         */
+        private final AtomicLong maxTime = new AtomicLong();
+
+        /**
+         * The number of evaluations done by the engine when the template was last rendered.
+         */
+        private volatile long lastRender;
+
+        /**
+         * The statistics in which these statistics have been aggregated when the template was evicted, {@code null}
+         * if it has not been evicted.
+         */
+        private volatile TemplateStatistics aggregatedIn;
+
+        /**
+         * @param templateName the name of the template
+         */
+        TemplateStatistics(String templateName)
+        {
+            this.templateName = templateName;
+        }
+
+        /**
+         * @param time the time spent rendering the template, in nanoseconds
+         * @param evaluation the number of evaluations done by the engine, including this rendering
+         */
+        void rendered(long time, long evaluation)
+        {
+            this.lastRender = evaluation;
+            add(1, time, time);
+
+            TemplateStatistics target = this.aggregatedIn;
+            if (target != null) {
+                // Evicted concurrently: move the rendering to the aggregated statistics so that it's not lost
+                moveTo(target);
+            }
+        }
+
+        /**
+         * Aggregate these statistics in other statistics, the renderings recorded afterwards being moved there too.
+         * 
+         * @param target the statistics in which to aggregate these statistics
+         */
+        void aggregateIn(TemplateStatistics target)
+        {
+            // Set before moving the counters, so that a rendering recorded after the move moves itself
+            this.aggregatedIn = target;
+            moveTo(target);
+        }
+
+        /**
+         * Move the counters to other statistics. Each rendering is moved exactly once, even when several threads move
+         * the counters concurrently, since the counters are reset atomically when read.
+         * 
+         * @param target the statistics to move the counters to
+         */
+        private void moveTo(TemplateStatistics target)
+        {
+            target.add(this.hits.getAndSet(0), this.totalTime.getAndSet(0), this.maxTime.get());
+        }
+
+        /**
+         * @param addedHits the number of renderings to add
+         * @param addedTime the rendering time to add, in nanoseconds
+         * @param addedMaxTime the longest of the added renderings, in nanoseconds
+         */
+        private void add(long addedHits, long addedTime, long addedMaxTime)
+        {
+            this.hits.addAndGet(addedHits);
+            this.totalTime.addAndGet(addedTime);
+            long max = this.maxTime.get();
+            while (addedMaxTime > max && !this.maxTime.compareAndSet(max, addedMaxTime)) {
+                max = this.maxTime.get();
+            }
+        }
+
+        /**
+         * @return the name of the template
+         */
+        public String getTemplateName()
+        {
+            return this.templateName;
+        }
+
+        /**
+         * @return the number of successful renderings of the template
+         */
+        public long getHits()
+        {
+            return this.hits.get();
+        }
+
+        /**
+         * @return the time spent rendering the template, in nanoseconds
+         */
+        public long getTotalTime()
+        {
+            return this.totalTime.get();
+        }
+
+        /**
+         * @return the longest rendering of the template, in nanoseconds
+         */
+        public long getMaxTime()
+        {
+            return this.maxTime.get();
+        }
+    }
+}
@@ -0,0 +1,77 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ *
+ */
+package org.xwiki.velocity.internal;
+
+import java.util.concurrent.ConcurrentMap;
+
+import org.apache.velocity.context.ChainedInternalContextAdapter;
+import org.apache.velocity.context.InternalContextAdapter;
+import org.apache.velocity.util.introspection.IntrospectionCacheData;
+
+/**
+ * Context adapter storing the introspection data resolved while rendering a template (the methods and properties
+ * found by the uberspector for each call site) in a map shared by all the renderings of the template instead of in
+ * the Velocity context, which usually lives for a single request.
+ * 
+ * @version $Id$
+ * @since 3.1M2
+ */
+public class SharedIntrospectionContextAdapter extends ChainedInternalContextAdapter
+{
+    /**
+     * The introspection data shared by all the renderings of the template.
+     */
+    private final ConcurrentMap<Object, IntrospectionCacheData> introspectionCache;
+
+    /**
+     * @param innerContext the context of the current rendering
+     * @param introspectionCache the introspection data shared by all the renderings of the template
+     */
+    public SharedIntrospectionContextAdapter(InternalContextAdapter innerContext,
+        ConcurrentMap<Object, IntrospectionCacheData> introspectionCache)
+    {
+        super(innerContext);
+
+        this.introspectionCache = introspectionCache;
+    }
+
+    /**
+     * {@inheritDoc}
+     * 
+     * @see ChainedInternalContextAdapter#icacheGet(Object)
+     */
+    @Override
+    public IntrospectionCacheData icacheGet(Object key)
+    {
+        return this.introspectionCache.get(key);
+    }
+
+    /**
+     * {@inheritDoc}
+     * 
+     * @see ChainedInternalContextAdapter#icachePut(Object, IntrospectionCacheData)
+     */
+    @Override
+    public void icachePut(Object key, IntrospectionCacheData o)
+    {
+        this.introspectionCache.put(key, o);
+    }
+}
@@ -0,0 +1,97 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ *
+ */
+package org.xwiki.velocity.internal;
+
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
+
+import org.apache.velocity.VelocityContext;
+
+/**
+ * Read-only Velocity context providing the Velocity tools shared by all the Velocity contexts, i.e. the tools whose
+ * scope is {@link VelocityTool.Scope#SHARED} or {@link VelocityTool.Scope#THREAD}. The tools are instantiated the
+ * first time they are used.
+ * 
+ * @version $Id$
+ * @since 3.1M2
+ */
+public class ToolsContext extends VelocityContext
+{
+    /**
+     * The tools provided by this context, indexed by name.
+     */
+    private final Map<String, VelocityTool> tools;
+
+    /**
+     * @param tools the tools provided by this context, indexed by name
+     */
+    public ToolsContext(Map<String, VelocityTool> tools)
+    {
+        this.tools = tools;
+    }
+
+    /**
+     * {@inheritDoc}
+     * 
+     * @see VelocityContext#internalGet(String)
+     */
+    @Override
+    public Object internalGet(String key)
+    {
+        Object value = super.internalGet(key);
+        if (value == null) {
+            VelocityTool tool = this.tools.get(key);
+            if (tool != null) {
+                value = tool.getInstance();
+            }
+        }
+
+        return value;
+    }
+
+    /**
+     * {@inheritDoc}
+     * 
+     * @see VelocityContext#internalContainsKey(Object)
+     */
+    @Override
+    public boolean internalContainsKey(Object key)
+    {
+        return super.internalContainsKey(key) || this.tools.containsKey(key);
+    }
+
+    /**
+     * {@inheritDoc}
+     * 
+     * @see VelocityContext#internalGetKeys()
+     */
+    @Override
+    public Object[] internalGetKeys()
+    {
+        Set<Object> keys = new LinkedHashSet<Object>(this.tools.keySet());
+        for (Object key : super.internalGetKeys()) {
+            keys.add(key);
+        }
+
+        return keys.toArray();
+    }
+}
@@ -0,0 +1,93 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ *
+ */
+package org.xwiki.velocity.internal;
+
+import java.util.Map;
+
+import org.apache.velocity.context.Context;
+
+/**
+ * Velocity context instantiating its own instance of the Velocity tools whose scope is
+ * {@link VelocityTool.Scope#CONTEXT}, the first time they are used.
+ * 
+ * @version $Id$
+ * @since 3.1M2
+ */
+public class ToolsVelocityContext extends LayeredVelocityContext
+{
+    /**
+     * The tools to instantiate for each context, indexed by name.
+     */
+    private final Map<String, VelocityTool> contextTools;
+
+    /**
+     * @param innerContext the read-only context providing the shared entries
+     * @param contextTools the tools to instantiate for each context, indexed by name
+     */
+    public ToolsVelocityContext(Context innerContext, Map<String, VelocityTool> contextTools)
+    {
+        super(innerContext);
+
+        this.contextTools = contextTools;
+    }
+
+    /**
+     * {@inheritDoc}
+     * 
+     * @see LayeredVelocityContext#internalGet(String)
+     */
+    @Override
+    public Object internalGet(String key)
+    {
+        Object value = super.internalGet(key);
+        if (value == null) {
+            VelocityTool tool = this.contextTools.get(key);
+            if (tool != null) {
+                value = getToolInstance(key, tool);
+            }
+        }
+
+        return value;
+    }
+
+    /**
+     * Get the instance of a tool in this context, creating it if needed. The check and the creation are done while
+     * holding the lock of the context, like all the accesses to the entries, so that concurrent reads of the tool
+     * don't create several instances.
+     * 
+     * @param key the name of the tool
+     * @param tool the tool
+     * @return the instance of the tool in this context, {@code null} if it has been removed or set to {@code null}
+     *         or if the tool couldn't be instantiated
+     */
+    private synchronized Object getToolInstance(String key, VelocityTool tool)
+    {
+        Object value = super.internalGet(key);
+        if (value == null && !super.internalContainsKey(key)) {
+            value = tool.getInstance();
+            if (value != null) {
+                super.internalPut(key, value);
+            }
+        }
+
+        return value;
+    }
+}
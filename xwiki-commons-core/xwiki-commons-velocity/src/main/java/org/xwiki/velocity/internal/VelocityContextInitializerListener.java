@@ -0,0 +1,90 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ *
+ */
+package org.xwiki.velocity.internal;
+
+import java.util.Arrays;
+import java.util.List;
+
+import org.xwiki.component.event.ComponentDescriptorAddedEvent;
+import org.xwiki.component.event.ComponentDescriptorRemovedEvent;
+import org.xwiki.observation.EventListener;
+import org.xwiki.observation.event.Event;
+import org.xwiki.velocity.VelocityContextInitializer;
+
+/**
+ * Refreshes the Velocity Context initializers cached by {@link DefaultVelocityContextFactory} when a Velocity Context
+ * initializer is registered or unregistered.
+ * 
+ * @version $Id$
+ * @since 3.1M2
+ */
+public class VelocityContextInitializerListener implements EventListener
+{
+    /**
+     * The events this listener is interested in.
+     */
+    private static final List<Event> EVENTS = Arrays.<Event> asList(
+        new ComponentDescriptorAddedEvent(VelocityContextInitializer.class),
+        new ComponentDescriptorRemovedEvent(VelocityContextInitializer.class));
+
+    /**
+     * The factory caching the Velocity Context initializers.
+     */
+    private final DefaultVelocityContextFactory factory;
+
+    /**
+     * @param factory the factory caching the Velocity Context initializers
+     */
+    public VelocityContextInitializerListener(DefaultVelocityContextFactory factory)
+    {
+        this.factory = factory;
+    }
+
+    /**
+     * {@inheritDoc}
+     * 
+     * @see EventListener#getName()
+     */
+    public String getName()
+    {
+        return getClass().getName();
+    }
+
+    /**
+     * {@inheritDoc}
+     * 
+     * @see EventListener#getEvents()
+     */
+    public List<Event> getEvents()
+    {
+        return EVENTS;
+    }
+
+    /**
+     * {@inheritDoc}
+     * 
+     * @see EventListener#onEvent(Event, Object, Object)
+     */
+    public void onEvent(Event event, Object source, Object data)
+    {
+        this.factory.invalidateInitializers();
+    }
+}
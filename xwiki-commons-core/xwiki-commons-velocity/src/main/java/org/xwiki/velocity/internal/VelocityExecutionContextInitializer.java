@@ -21,9 +21,11 @@
 
 import javax.inject.Inject;
 import javax.inject.Named;
+import javax.inject.Provider;
 import javax.inject.Singleton;
 
 import org.apache.velocity.VelocityContext;
+import org.slf4j.Logger;
 import org.xwiki.component.annotation.Component;
 import org.xwiki.context.ExecutionContext;
 import org.xwiki.context.ExecutionContextInitializer;
@@ -33,7 +35,9 @@
 
 /**
  * Allow registering the Velocity Context in the Execution Context object since it's shared during the whole execution
- * of the current request.
+ * of the current request. The Velocity Context is only created the first time it's needed since many requests don't
+ * use Velocity at all. If it cannot be created, the error is logged and the property is <code>null</code> until the
+ * next attempt.
  * 
  * @see org.xwiki.context.ExecutionContextInitializer
  * @since 1.5M1
@@ -49,6 +53,14 @@ public class VelocityExecutionContextInitializer implements ExecutionContextInit
      */
     public static final String VELOCITY_CONTEXT_ID = "velocityContext";
 
+    /**
+     * The key under which the Velocity Context is stored in the Execution Context.
+     * 
+     * @since 3.1M2
+     */
+    public static final ExecutionContext.Key<VelocityContext> VELOCITY_CONTEXT_KEY =
+        ExecutionContext.Key.register(VELOCITY_CONTEXT_ID, VelocityContext.class);
+
     /**
      * The Velocity context factory component used for creating the Velocity Context (injected automatically by the
      * Component subsystem).
@@ -56,6 +68,12 @@ public class VelocityExecutionContextInitializer implements ExecutionContextInit
     @Inject
     private VelocityContextFactory velocityContextFactory;
 
+    /**
+     * The logger to log.
+     */
+    @Inject
+    private Logger logger;
+
     /**
      * {@inheritDoc}
      * 
@@ -63,11 +81,18 @@ public class VelocityExecutionContextInitializer implements ExecutionContextInit
      */
     public void initialize(ExecutionContext executionContext) throws ExecutionContextException
     {
-        try {
-            VelocityContext context = this.velocityContextFactory.createContext();
-            executionContext.setProperty(VelocityExecutionContextInitializer.VELOCITY_CONTEXT_ID, context);
-        } catch (XWikiVelocityException e) {
-            throw new ExecutionContextException("Failed to initialize Velocity Context", e);
-        }
+        executionContext.setLazyProperty(VELOCITY_CONTEXT_KEY, new Provider<VelocityContext>()
+        {
+            public VelocityContext get()
+            {
+                try {
+                    return velocityContextFactory.createContext();
+                } catch (XWikiVelocityException e) {
+                    // The provider can't throw checked exceptions, and getting a property is not expected to fail
+                    logger.error("Failed to initialize Velocity Context", e);
+                    return null;
+                }
+            }
+        });
     }
 }
@@ -0,0 +1,175 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ *
+ */
+package org.xwiki.velocity.internal;
+
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.slf4j.Logger;
+
+/**
+ * A Velocity tool configured in the Velocity configuration, instantiated the first time it is used from a template.
+ * A tool which fails to be instantiated is not instantiated again and the failure is logged only once.
+ * 
+ * @version $Id$
+ * @since 3.1M2
+ */
+public class VelocityTool
+{
+    /**
+     * Defines which Velocity contexts share the same instance of a tool.
+     */
+    public enum Scope
+    {
+        /** A single instance shared by all contexts and threads, for thread-safe tools. */
+        SHARED,
+
+        /**
+         * One instance per thread, for tools which are not thread-safe. The instance is kept by the thread as long as
+         * the tool is configured, including between the requests handled by a pooled thread, so such tools must not
+         * keep state related to a request.
+         */
+        THREAD,
+
+        /** One instance per Velocity context, for tools keeping state related to the current rendering. */
+        CONTEXT
+    }
+
+    /**
+     * The name under which the tool is available in the Velocity context.
+     */
+    private final String name;
+
+    /**
+     * The class of the tool.
+     */
+    private final Class< ? > toolClass;
+
+    /**
+     * Defines which Velocity contexts share the same instance of the tool.
+     */
+    private final Scope scope;
+
+    /**
+     * The logger to use to log the instantiation failures.
+     */
+    private final Logger logger;
+
+    /**
+     * The instance shared by all contexts when the scope is {@link Scope#SHARED}.
+     */
+    private final AtomicReference<Object> sharedInstance = new AtomicReference<Object>();
+
+    /**
+     * The instance of the current thread when the scope is {@link Scope#THREAD}. It's never removed: a thread local
+     * can only be cleared by its own thread, and the instances are released when the threads end or when the tool is
+     * garbage collected.
+     */
+    private final ThreadLocal<Object> threadInstance = new ThreadLocal<Object>();
+
+    /**
+     * Whether the tool failed to be instantiated.
+     */
+    private final AtomicBoolean failed = new AtomicBoolean();
+
+    /**
+     * @param name the name under which the tool is available in the Velocity context
+     * @param toolClass the class of the tool
+     * @param scope defines which Velocity contexts share the same instance of the tool
+     * @param logger the logger to use to log the instantiation failures
+     */
+    public VelocityTool(String name, Class< ? > toolClass, Scope scope, Logger logger)
+    {
+        this.name = name;
+        this.toolClass = toolClass;
+        this.scope = scope;
+        this.logger = logger;
+    }
+
+    /**
+     * @return the name under which the tool is available in the Velocity context
+     */
+    public String getName()
+    {
+        return this.name;
+    }
+
+    /**
+     * @return defines which Velocity contexts share the same instance of the tool
+     */
+    public Scope getScope()
+    {
+        return this.scope;
+    }
+
+    /**
+     * @return the instance of the tool to use in the current thread or {@code null} if the tool could not be
+     *         instantiated, now or before. A new instance is returned at each call when the scope is {@link Scope#CONTEXT}
+     */
+    public Object getInstance()
+    {
+        Object instance;
+
+        switch (this.scope) {
+            case SHARED:
+                instance = this.sharedInstance.get();
+                if (instance == null) {
+                    // Concurrent first uses might instantiate the tool several times but only one instance is kept
+                    instance = newInstance();
+                    if (instance != null && !this.sharedInstance.compareAndSet(null, instance)) {
+                        instance = this.sharedInstance.get();
+                    }
+                }
+                break;
+            case THREAD:
+                instance = this.threadInstance.get();
+                if (instance == null) {
+                    instance = newInstance();
+                    this.threadInstance.set(instance);
+                }
+                break;
+            default:
+                instance = newInstance();
+                break;
+        }
+
+        return instance;
+    }
+
+    /**
+     * @return a new instance of the tool or {@code null} if the tool could not be instantiated
+     */
+    private Object newInstance()
+    {
+        if (this.failed.get()) {
+            return null;
+        }
+
+        try {
+            return this.toolClass.newInstance();
+        } catch (Exception e) {
+            if (this.failed.compareAndSet(false, true)) {
+                this.logger.error("Failed to instantiate tool [" + this.name + "]", e);
+            }
+            return null;
+        }
+    }
+}
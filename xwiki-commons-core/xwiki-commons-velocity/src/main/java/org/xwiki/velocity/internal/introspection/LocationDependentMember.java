@@ -0,0 +1,34 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ *
+ */
+package org.xwiki.velocity.internal.introspection;
+
+/**
+ * Marks a method, getter or setter returned by an uberspector which does something specific to the template location
+ * where it's resolved (for example logging a warning for that location). Such members are not cached by the heads
+ * of the uberspector chains, which would otherwise return them for other locations without asking the uberspector
+ * again. Velocity still caches them for each location since they are cacheable.
+ * 
+ * @version $Id$
+ * @since 3.1M2
+ */
+public interface LocationDependentMember
+{
+}
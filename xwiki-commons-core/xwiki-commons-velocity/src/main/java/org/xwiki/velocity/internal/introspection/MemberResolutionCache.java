@@ -0,0 +1,339 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ *
+ */
+package org.xwiki.velocity.internal.introspection;
+
+import java.lang.ref.Reference;
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.SoftReference;
+import java.lang.ref.WeakReference;
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Cache of the methods, getters and setters resolved by an uberspector, including the members which could not be
+ * resolved. The resolutions are indexed by receiver class and released when the class is unloaded: the classes are
+ * weakly referenced and the resolutions of each class are softly referenced since they usually reference the class
+ * themselves.
+ * <p>
+ * Looking up a resolution doesn't take any lock, since it's done for each method call and property access of each
+ * rendered template.
+ * 
+ * @version $Id$
+ * @since 3.1M2
+ */
+public class MemberResolutionCache
+{
+    /**
+     * The kind of member being resolved.
+     */
+    public enum Kind
+    {
+        /** A method call. */
+        METHOD,
+
+        /** A property read. */
+        GETTER,
+
+        /** A property write. */
+        SETTER
+    }
+
+    /**
+     * The resolution of a member which could not be found.
+     */
+    private static final Resolution NOT_FOUND = new Resolution(null);
+
+    /**
+     * The resolutions of each receiver class, indexed by {@link ClassKey}.
+     */
+    private final ConcurrentMap<Object, SoftReference<ConcurrentMap<Key, Resolution>>> resolutions =
+        new ConcurrentHashMap<Object, SoftReference<ConcurrentMap<Key, Resolution>>>();
+
+    /**
+     * The keys of the classes which have been garbage collected, whose resolutions must be removed.
+     */
+    private final ReferenceQueue<Class< ? >> collectedClasses = new ReferenceQueue<Class< ? >>();
+
+    /**
+     * The members resolved on a {@link Class} receiver can't be cached by receiver class: they include the static
+     * methods of the class passed as receiver, while all the classes have the same class.
+     * 
+     * @param receiver the object on which the member is resolved
+     * @return {@code true} if the members resolved on the receiver can be cached by receiver class
+     */
+    public static boolean isCacheable(Object receiver)
+    {
+        return receiver != null && !(receiver instanceof Class);
+    }
+
+    /**
+     * @param type the class of the receiver
+     * @param key the resolved member
+     * @return the resolution of the member or {@code null} if the member has not been resolved yet
+     */
+    public Resolution get(Class< ? > type, Key key)
+    {
+        ConcurrentMap<Key, Resolution> classResolutions = getClassResolutions(type, false);
+
+        return classResolutions != null ? classResolutions.get(key) : null;
+    }
+
+    /**
+     * @param type the class of the receiver
+     * @param key the resolved member
+     * @param member the resolved member or {@code null} if it could not be found
+     */
+    public void put(Class< ? > type, Key key, Object member)
+    {
+        getClassResolutions(type, true).put(key, member != null ? new Resolution(member) : NOT_FOUND);
+    }
+
+    /**
+     * @param type the class of the receiver
+     * @param create whether to create the resolutions of the class if they don't exist yet
+     * @return the resolutions of the class
+     */
+    private ConcurrentMap<Key, Resolution> getClassResolutions(Class< ? > type, boolean create)
+    {
+        SoftReference<ConcurrentMap<Key, Resolution>> reference = this.resolutions.get(new ClassKey(type));
+        ConcurrentMap<Key, Resolution> classResolutions = reference != null ? reference.get() : null;
+        if (classResolutions == null && create) {
+            removeCollectedClasses();
+            classResolutions = new ConcurrentHashMap<Key, Resolution>();
+            // Concurrent creations for the same class only lose a few resolutions, which are resolved again
+            this.resolutions.put(new WeakClassKey(type, this.collectedClasses),
+                new SoftReference<ConcurrentMap<Key, Resolution>>(classResolutions));
+        }
+
+        return classResolutions;
+    }
+
+    /**
+     * Remove the resolutions of the classes which have been garbage collected.
+     */
+    private void removeCollectedClasses()
+    {
+        for (Reference< ? > key = this.collectedClasses.poll(); key != null; key = this.collectedClasses.poll()) {
+            this.resolutions.remove(key);
+        }
+    }
+
+    /**
+     * Key used to look up the resolutions of a class, equal to the {@link WeakClassKey} of the same class.
+     * 
+     * @version $Id$
+     */
+    private static final class ClassKey
+    {
+        /**
+         * The class.
+         */
+        private final Class< ? > type;
+
+        /**
+         * @param type the class
+         */
+        ClassKey(Class< ? > type)
+        {
+            this.type = type;
+        }
+
+        /**
+         * {@inheritDoc}
+         * 
+         * @see Object#hashCode()
+         */
+        @Override
+        public int hashCode()
+        {
+            return System.identityHashCode(this.type);
+        }
+
+        /**
+         * {@inheritDoc}
+         * 
+         * @see Object#equals(Object)
+         */
+        @Override
+        public boolean equals(Object object)
+        {
+            return object instanceof WeakClassKey ? ((WeakClassKey) object).get() == this.type
+                : object instanceof ClassKey && ((ClassKey) object).type == this.type;
+        }
+    }
+
+    /**
+     * Key under which the resolutions of a class are stored, which doesn't prevent the class from being unloaded.
+     * 
+     * @version $Id$
+     */
+    private static final class WeakClassKey extends WeakReference<Class< ? >>
+    {
+        /**
+         * The identity hash code of the class, kept since the class can be collected.
+         */
+        private final int hashCode;
+
+        /**
+         * @param type the class
+         * @param queue the queue to which the key is added when the class is collected
+         */
+        WeakClassKey(Class< ? > type, ReferenceQueue<Class< ? >> queue)
+        {
+            super(type, queue);
+
+            this.hashCode = System.identityHashCode(type);
+        }
+
+        /**
+         * {@inheritDoc}
+         * 
+         * @see Object#hashCode()
+         */
+        @Override
+        public int hashCode()
+        {
+            return this.hashCode;
+        }
+
+        /**
+         * {@inheritDoc}
+         * 
+         * @see Object#equals(Object)
+         */
+        @Override
+        public boolean equals(Object object)
+        {
+            if (object == this) {
+                return true;
+            }
+
+            Class< ? > type = get();
+            return type != null && (object instanceof WeakClassKey ? ((WeakClassKey) object).get() == type
+                : object instanceof ClassKey && ((ClassKey) object).type == type);
+        }
+    }
+
+    /**
+     * The member resolved on a receiver class: its kind, name and the classes of the arguments.
+     * 
+     * @version $Id$
+     */
+    public static final class Key
+    {
+        /**
+         * The kind of member.
+         */
+        private final Kind kind;
+
+        /**
+         * The name of the method or property.
+         */
+        private final String name;
+
+        /**
+         * The classes of the arguments, {@code null} for the {@code null} arguments.
+         */
+        private final Class< ? >[] argumentClasses;
+
+        /**
+         * The hash code, computed once since keys are looked up much more often than they are created.
+         */
+        private final int hashCode;
+
+        /**
+         * @param kind the kind of member
+         * @param name the name of the method or property
+         * @param arguments the arguments passed to the method or setter
+         */
+        public Key(Kind kind, String name, Object... arguments)
+        {
+            this.kind = kind;
+            this.name = name;
+            this.argumentClasses = new Class< ? >[arguments != null ? arguments.length : 0];
+            for (int i = 0; i < this.argumentClasses.length; ++i) {
+                this.argumentClasses[i] = arguments[i] != null ? arguments[i].getClass() : null;
+            }
+            this.hashCode = (kind.hashCode() * 31 + name.hashCode()) * 31 + Arrays.hashCode(this.argumentClasses);
+        }
+
+        /**
+         * {@inheritDoc}
+         * 
+         * @see Object#hashCode()
+         */
+        @Override
+        public int hashCode()
+        {
+            return this.hashCode;
+        }
+
+        /**
+         * {@inheritDoc}
+         * 
+         * @see Object#equals(Object)
+         */
+        @Override
+        public boolean equals(Object object)
+        {
+            if (object == this) {
+                return true;
+            }
+            if (!(object instanceof Key)) {
+                return false;
+            }
+
+            Key other = (Key) object;
+            return this.hashCode == other.hashCode && this.kind == other.kind && this.name.equals(other.name)
+                && Arrays.equals(this.argumentClasses, other.argumentClasses);
+        }
+    }
+
+    /**
+     * The result of the resolution of a member.
+     * 
+     * @version $Id$
+     */
+    public static final class Resolution
+    {
+        /**
+         * The resolved member or {@code null} if it could not be found.
+         */
+        private final Object member;
+
+        /**
+         * @param member the resolved member or {@code null} if it could not be found
+         */
+        private Resolution(Object member)
+        {
+            this.member = member;
+        }
+
+        /**
+         * @return the resolved member or {@code null} if it could not be found
+         */
+        public Object getMember()
+        {
+            return this.member;
+        }
+    }
+}
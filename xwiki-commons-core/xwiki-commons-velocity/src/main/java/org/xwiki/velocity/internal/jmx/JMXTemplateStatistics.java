@@ -0,0 +1,99 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ *
+ */
+package org.xwiki.velocity.internal.jmx;
+
+import java.beans.ConstructorProperties;
+
+/**
+ * The evaluation statistics of a template, as exposed through JMX.
+ * 
+ * @version $Id$
+ * @since 3.1M2
+ */
+public class JMXTemplateStatistics
+{
+    /**
+     * The name of the template.
+     */
+    private final String templateName;
+
+    /**
+     * The number of successful evaluations of the template.
+     */
+    private final long hits;
+
+    /**
+     * The average time spent rendering the template, in microseconds.
+     */
+    private final long averageTime;
+
+    /**
+     * The longest rendering of the template, in microseconds.
+     */
+    private final long maxTime;
+
+    /**
+     * @param templateName the name of the template
+     * @param hits the number of successful evaluations of the template
+     * @param averageTime the average time spent rendering the template, in microseconds
+     * @param maxTime the longest rendering of the template, in microseconds
+     */
+    @ConstructorProperties({"templateName", "hits", "averageTime", "maxTime" })
+    public JMXTemplateStatistics(String templateName, long hits, long averageTime, long maxTime)
+    {
+        this.templateName = templateName;
+        this.hits = hits;
+        this.averageTime = averageTime;
+        this.maxTime = maxTime;
+    }
+
+    /**
+     * @return the name of the template
+     */
+    public String getTemplateName()
+    {
+        return this.templateName;
+    }
+
+    /**
+     * @return the number of successful evaluations of the template
+     */
+    public long getHits()
+    {
+        return this.hits;
+    }
+
+    /**
+     * @return the average time spent rendering the template, in microseconds
+     */
+    public long getAverageTime()
+    {
+        return this.averageTime;
+    }
+
+    /**
+     * @return the longest rendering of the template, in microseconds
+     */
+    public long getMaxTime()
+    {
+        return this.maxTime;
+    }
+}
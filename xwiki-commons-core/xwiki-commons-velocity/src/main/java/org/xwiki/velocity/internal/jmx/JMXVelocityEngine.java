@@ -19,36 +19,66 @@
  */
 package org.xwiki.velocity.internal.jmx;
 
-import org.xwiki.velocity.VelocityEngine;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
 
 import javax.management.openmbean.ArrayType;
-import javax.management.openmbean.CompositeData;
 import javax.management.openmbean.CompositeDataSupport;
 import javax.management.openmbean.CompositeType;
+import javax.management.openmbean.OpenDataException;
 import javax.management.openmbean.OpenType;
 import javax.management.openmbean.SimpleType;
 import javax.management.openmbean.TabularData;
 import javax.management.openmbean.TabularDataSupport;
 import javax.management.openmbean.TabularType;
-import java.lang.reflect.Field;
-import java.util.HashMap;
-import java.util.Map;
+
+import org.xwiki.velocity.VelocityEngine;
+import org.xwiki.velocity.internal.DefaultVelocityEngine;
+import org.xwiki.velocity.internal.MacroNamespaceStore;
+import org.xwiki.velocity.internal.ParsedTemplateCache;
+import org.xwiki.velocity.internal.RenderStatistics;
 
 /**
- * Uses non-stable (ie might need to be modified when we upgrade the Velocity JAR) introspection to access private
- * fields of Velocity. This is needed since Velocity doesn't offer a way to access information about the template
- * namespaces and the macros within them.
+ * Exposes the management data kept by {@link DefaultVelocityEngine}: the macros registered in each template namespace,
+ * the cache of parsed templates and the statistics of the evaluations. Other implementations of {@link VelocityEngine}
+ * don't provide any data.
  *
  * @version $Id$
  * @since 2.4M2
  */
-public class JMXVelocityEngine implements JMXVelocityEngineMBean
+public class JMXVelocityEngine implements JMXVelocityEngineMXBean
 {
+    /**
+     * The number of templates returned by {@link #getSlowestTemplates()}.
+     */
+    private static final int SLOWEST_TEMPLATES = 10;
+
+    /**
+     * The number of nanoseconds in a microsecond.
+     */
+    private static final long NANOS_PER_MICRO = 1000L;
+
+    /**
+     * The columns of the templates table.
+     */
+    private static final String[] TEMPLATE_COLUMNS = new String[] {"templateName", "macroNames"};
+
     /**
      * The Velocity Engine for which to return management data.
      */
     private VelocityEngine engine;
 
+    /**
+     * The last table returned by {@link #getTemplates()}, rebuilt only when the namespaces change.
+     */
+    private TabularData templates;
+
+    /**
+     * The version of the namespaces when {@link #templates} was built.
+     */
+    private long templatesVersion;
+
     /**
      * @param engine the Velocity Engine for which to return management data
      */
@@ -59,103 +89,243 @@ public JMXVelocityEngine(VelocityEngine engine)
 
     /**
      * {@inheritDoc}
-     * @see JMXVelocityEngineMBean#getTemplates()
+     * @see JMXVelocityEngineMXBean#getTemplates()
      */
-    public TabularData getTemplates()
+    public synchronized TabularData getTemplates()
     {
-        TabularData data;
+        MacroNamespaceStore store = getNamespaceStore();
+        long version = store != null ? store.getVersion() : 0;
+        if (this.templates == null || version != this.templatesVersion) {
+            try {
+                this.templates = buildTemplates(store);
+                this.templatesVersion = version;
+            } catch (OpenDataException e) {
+                throw new RuntimeException("Failed to gather information on Velocity Templates/Macros", e);
+            }
+        }
 
-        try {
-            Map<String, String[]> result = getInternalTemplates();
+        return this.templates;
+    }
 
-            // Note: JDK 1.6 has the notion of MXBean which support returning a Map type but since we must use
-            // JDK 1.5 for now we have to output a TabularData value.
+    /**
+     * {@inheritDoc}
+     * @see JMXVelocityEngineMXBean#getParseCacheSize()
+     */
+    public int getParseCacheSize()
+    {
+        ParsedTemplateCache cache = getParseCache();
+        return cache != null ? cache.size() : 0;
+    }
 
-            // Represents the list of macro names
-            ArrayType macroNameType = new ArrayType(1, SimpleType.STRING);
+    /**
+     * {@inheritDoc}
+     * @see JMXVelocityEngineMXBean#getParseCacheHits()
+     */
+    public long getParseCacheHits()
+    {
+        ParsedTemplateCache cache = getParseCache();
+        return cache != null ? cache.getHits() : 0;
+    }
 
-            // Represents one row (template name, macro names) in the returned table data
-            String[] columnNames = new String[] {"templateName", "macroNames"};
-            String[] descriptions = new String[] {"The Template Name (namespace)", "The names of registered Macros"};
-            CompositeType rowType = new CompositeType("template",
-                "Template management data (namespaces, macros) for a row", columnNames, descriptions,
-                new OpenType[]{SimpleType.STRING, macroNameType});
+    /**
+     * {@inheritDoc}
+     * @see JMXVelocityEngineMXBean#getParseCacheMisses()
+     */
+    public long getParseCacheMisses()
+    {
+        ParsedTemplateCache cache = getParseCache();
+        return cache != null ? cache.getMisses() : 0;
+    }
 
-            TabularType type = new TabularType("templates", "Template management data (namespaces, macros)", rowType,
-                columnNames);
-            data = new TabularDataSupport(type);
+    /**
+     * {@inheritDoc}
+     * @see JMXVelocityEngineMXBean#getMacroNamespaceCount()
+     */
+    public int getMacroNamespaceCount()
+    {
+        MacroNamespaceStore store = getNamespaceStore();
+        return store != null ? store.size() : 0;
+    }
 
-            for (Map.Entry<String, String[]> entry : result.entrySet()) {
+    /**
+     * {@inheritDoc}
+     * @see JMXVelocityEngineMXBean#getMacroNamespaceEstimatedSize()
+     */
+    public long getMacroNamespaceEstimatedSize()
+    {
+        MacroNamespaceStore store = getNamespaceStore();
+        return store != null ? store.getEstimatedSize() : 0;
+    }
 
-                String templateName = entry.getKey();
-                String[] macroNames = entry.getValue();
+    /**
+     * {@inheritDoc}
+     * @see JMXVelocityEngineMXBean#getMacroNamespaceEvictions()
+     */
+    public long getMacroNamespaceEvictions()
+    {
+        MacroNamespaceStore store = getNamespaceStore();
+        return store != null ? store.getEvictions() : 0;
+    }
 
-                CompositeData rowData = new CompositeDataSupport(rowType, columnNames, new Object[]{
-                    templateName, macroNames});
-                data.put(rowData);
-            }
+    /**
+     * {@inheritDoc}
+     * @see JMXVelocityEngineMXBean#getEvaluations()
+     */
+    public long getEvaluations()
+    {
+        RenderStatistics statistics = getStatistics();
+        return statistics != null ? statistics.getEvaluations() : 0;
+    }
 
-        } catch (Exception e) {
-            throw new RuntimeException("Failed to gather information on Velocity Templates/Macros", e);
-        }
+    /**
+     * {@inheritDoc}
+     * @see JMXVelocityEngineMXBean#getErrors()
+     */
+    public long getErrors()
+    {
+        RenderStatistics statistics = getStatistics();
+        return statistics != null ? statistics.getErrors() : 0;
+    }
 
-        return data;
+    /**
+     * {@inheritDoc}
+     * @see JMXVelocityEngineMXBean#getParses()
+     */
+    public long getParses()
+    {
+        RenderStatistics statistics = getStatistics();
+        return statistics != null ? statistics.getParses() : 0;
+    }
+
+    /**
+     * {@inheritDoc}
+     * @see JMXVelocityEngineMXBean#getParseTime()
+     */
+    public long getParseTime()
+    {
+        RenderStatistics statistics = getStatistics();
+        return statistics != null ? statistics.getParseTime() / NANOS_PER_MICRO / NANOS_PER_MICRO : 0;
     }
 
     /**
-     * @return the data using standard Java classes, {@link #getTemplates()} wraps it in generic Open types to make the
-     *         returned data portable and accessible remotely from a JMX management console
-     * @throws NoSuchFieldException in case of an exception in getting the data
-     * @throws IllegalAccessException in case of an exception in getting the data
-     * @see #getTemplates()
+     * {@inheritDoc}
+     * @see JMXVelocityEngineMXBean#getRenderTime()
      */
-    private Map<String, String[]> getInternalTemplates() throws NoSuchFieldException, IllegalAccessException
+    public long getRenderTime()
     {
-        // Get the internal Velocity Engine (not the XWiki wrapping one)
-        Object velocityEngine = getField(this.engine, "engine");
+        RenderStatistics statistics = getStatistics();
+        return statistics != null ? statistics.getRenderTime() / NANOS_PER_MICRO / NANOS_PER_MICRO : 0;
+    }
 
-        Object runtimeInstance = getField(velocityEngine, "ri");
-        Object vmFactory = getField(runtimeInstance, "vmFactory");
-        Object vmManager = getField(vmFactory, "vmManager");
+    /**
+     * {@inheritDoc}
+     * @see JMXVelocityEngineMXBean#getWrittenCharacters()
+     */
+    public long getWrittenCharacters()
+    {
+        RenderStatistics statistics = getStatistics();
+        return statistics != null ? statistics.getWrittenCharacters() : 0;
+    }
 
-        Map<String, Map<String, ?>> namespaceHash =
-            (Map<String, Map<String, ?>>) getField(vmManager, "namespaceHash");
+    /**
+     * {@inheritDoc}
+     * @see JMXVelocityEngineMXBean#getTemplateStatistics()
+     */
+    public List<JMXTemplateStatistics> getTemplateStatistics()
+    {
+        RenderStatistics statistics = getStatistics();
+        return statistics != null ? toJMX(statistics.getTemplates()) : new ArrayList<JMXTemplateStatistics>();
+    }
+
+    /**
+     * {@inheritDoc}
+     * @see JMXVelocityEngineMXBean#getSlowestTemplates()
+     */
+    public List<JMXTemplateStatistics> getSlowestTemplates()
+    {
+        RenderStatistics statistics = getStatistics();
+        return statistics != null ? toJMX(statistics.getSlowestTemplates(SLOWEST_TEMPLATES))
+            : new ArrayList<JMXTemplateStatistics>();
+    }
 
-        Map<String, ?> globalNamespace = (Map<String, ?>) getField(vmManager, "globalNamespace");
+    /**
+     * {@inheritDoc}
+     * @see JMXVelocityEngineMXBean#resetStatistics()
+     */
+    public void resetStatistics()
+    {
+        RenderStatistics statistics = getStatistics();
+        if (statistics != null) {
+            statistics.reset();
+        }
+    }
 
-        Map<String, String[]> result = new HashMap<String, String[]>();
+    /**
+     * @param store the namespaces of the engine or {@code null} if the engine doesn't provide them
+     * @return the list of template namespaces along with the name of macros registered in each template namespace
+     * @throws OpenDataException when failing to build the table
+     */
+    private TabularData buildTemplates(MacroNamespaceStore store) throws OpenDataException
+    {
+        // Represents one row (template name, macro names) in the returned table data
+        String[] descriptions = new String[] {"The Template Name (namespace)", "The names of registered Macros"};
+        OpenType< ? >[] types = new OpenType< ? >[] {SimpleType.STRING, new ArrayType<String[]>(1, SimpleType.STRING)};
+        CompositeType rowType = new CompositeType("template",
+            "Template management data (namespaces, macros) for a row", TEMPLATE_COLUMNS, descriptions, types);
+        TabularData data = new TabularDataSupport(new TabularType("templates",
+            "Template management data (namespaces, macros)", rowType, new String[] {TEMPLATE_COLUMNS[0]}));
 
-        for (String name : namespaceHash.keySet()) {
-            String nameSpaceName = name;
-            if (globalNamespace.equals(namespaceHash.get(name))) {
-                nameSpaceName = "<global>";
-            }
-            String[] macroNames = new String[namespaceHash.get(name).size()];
-            int i = 0;
-            for (String macroName : namespaceHash.get(name).keySet()) {
-                macroNames[i] = macroName;
-                i++;
+        if (store != null) {
+            for (Map.Entry<String, String[]> entry : store.getMacroNames().entrySet()) {
+                data.put(new CompositeDataSupport(rowType, TEMPLATE_COLUMNS, new Object[] {entry.getKey(),
+                    entry.getValue()}));
             }
+        }
+
+        return data;
+    }
 
-            result.put(nameSpaceName, macroNames);
+    /**
+     * @param templateStatistics the statistics of some templates
+     * @return the same statistics, in the form exposed through JMX
+     */
+    private List<JMXTemplateStatistics> toJMX(List<RenderStatistics.TemplateStatistics> templateStatistics)
+    {
+        List<JMXTemplateStatistics> result = new ArrayList<JMXTemplateStatistics>(templateStatistics.size());
+        for (RenderStatistics.TemplateStatistics template : templateStatistics) {
+            long hits = template.getHits();
+            long average = hits > 0 ? template.getTotalTime() / hits / NANOS_PER_MICRO : 0;
+            result.add(new JMXTemplateStatistics(template.getTemplateName(), hits, average, template.getMaxTime()
+                / NANOS_PER_MICRO));
         }
 
         return result;
     }
 
     /**
-     * Helper method to access a private field.
-     *
-     * @param instance the instance containing the field to access 
-     * @param fieldName the name of the field to access
-     * @return the field object
-     * @throws NoSuchFieldException in case of an error when accessing the private field
-     * @throws IllegalAccessException in case of an error when accessing the private field
+     * @return the cache of parsed templates of the engine or {@code null} if the engine doesn't have one
+     */
+    private ParsedTemplateCache getParseCache()
+    {
+        return this.engine instanceof DefaultVelocityEngine ? ((DefaultVelocityEngine) this.engine).getParseCache()
+            : null;
+    }
+
+    /**
+     * @return the macro namespaces of the engine or {@code null} if the engine doesn't provide them
+     */
+    private MacroNamespaceStore getNamespaceStore()
+    {
+        return this.engine instanceof DefaultVelocityEngine ? ((DefaultVelocityEngine) this.engine)
+            .getNamespaceStore() : null;
+    }
+
+    /**
+     * @return the statistics of the evaluations of the engine or {@code null} if the engine doesn't provide them
      */
-    private Object getField(Object instance, String fieldName) throws NoSuchFieldException, IllegalAccessException
+    private RenderStatistics getStatistics()
     {
-        Field field = instance.getClass().getDeclaredField(fieldName);
-        field.setAccessible(true);
-        return field.get(instance);
+        return this.engine instanceof DefaultVelocityEngine ? ((DefaultVelocityEngine) this.engine).getStatistics()
+            : null;
     }
 }
@@ -0,0 +1,137 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.velocity.internal.jmx;
+
+import java.util.List;
+
+import javax.management.openmbean.TabularData;
+
+/**
+ * MXBean API related to Velocity Engines. Supports the following features:
+ * <ul>
+ *   <li>Retrieve list of template namespaces along with the name of macros registered in each template namespace</li>
+ *   <li>Retrieve statistics about the cache of parsed templates</li>
+ *   <li>Retrieve statistics about the evaluations: time spent, characters written, errors, most used and slowest
+ *   templates</li>
+ * </ul>
+ *
+ * @version $Id$
+ * @since 2.4M2
+ */
+public interface JMXVelocityEngineMXBean
+{
+    /**
+     * @return the list of template namespaces along with the name of macros registered in each template namespace
+     */
+    TabularData getTemplates();
+
+    /**
+     * @return the number of parsed templates currently cached
+     * @since 3.1M2
+     */
+    int getParseCacheSize();
+
+    /**
+     * @return the number of evaluations which reused an already parsed template
+     * @since 3.1M2
+     */
+    long getParseCacheHits();
+
+    /**
+     * @return the number of evaluations which had to parse the template
+     * @since 3.1M2
+     */
+    long getParseCacheMisses();
+
+    /**
+     * @return the number of macro namespaces holding local macros
+     * @since 3.1M2
+     */
+    int getMacroNamespaceCount();
+
+    /**
+     * @return the estimated memory used by the local macros, in bytes
+     * @since 3.1M2
+     */
+    long getMacroNamespaceEstimatedSize();
+
+    /**
+     * @return the number of macro namespaces cleared to respect the configured limits
+     * @since 3.1M2
+     */
+    long getMacroNamespaceEvictions();
+
+    /**
+     * @return the number of evaluations, successful or not
+     * @since 3.1M2
+     */
+    long getEvaluations();
+
+    /**
+     * @return the number of evaluations which failed
+     * @since 3.1M2
+     */
+    long getErrors();
+
+    /**
+     * @return the number of templates parsed
+     * @since 3.1M2
+     */
+    long getParses();
+
+    /**
+     * @return the time spent parsing templates, in milliseconds
+     * @since 3.1M2
+     */
+    long getParseTime();
+
+    /**
+     * @return the time spent rendering templates, in milliseconds. The templates evaluated while rendering another
+     *         template are not counted again since their time is included in the time of the other template
+     * @since 3.1M2
+     */
+    long getRenderTime();
+
+    /**
+     * @return the number of characters written by the evaluations, the templates evaluated while rendering another
+     *         template not being counted again
+     * @since 3.1M2
+     */
+    long getWrittenCharacters();
+
+    /**
+     * @return the statistics of each evaluated template, from the most evaluated to the least evaluated
+     * @since 3.1M2
+     */
+    List<JMXTemplateStatistics> getTemplateStatistics();
+
+    /**
+     * @return the statistics of the templates with the longest evaluations, from the slowest to the fastest
+     * @since 3.1M2
+     */
+    List<JMXTemplateStatistics> getSlowestTemplates();
+
+    /**
+     * Reset the statistics of the evaluations.
+     * 
+     * @since 3.1M2
+     */
+    void resetStatistics();
+}
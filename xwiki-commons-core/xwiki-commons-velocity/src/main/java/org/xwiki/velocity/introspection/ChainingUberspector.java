@@ -24,9 +24,15 @@
 import org.apache.velocity.runtime.RuntimeServices;
 import org.apache.velocity.util.ClassUtils;
 import org.apache.velocity.util.RuntimeServicesAware;
+import org.apache.velocity.util.introspection.Info;
 import org.apache.velocity.util.introspection.SecureUberspector;
 import org.apache.velocity.util.introspection.Uberspect;
 import org.apache.velocity.util.introspection.UberspectLoggable;
+import org.apache.velocity.util.introspection.VelMethod;
+import org.apache.velocity.util.introspection.VelPropertyGet;
+import org.apache.velocity.util.introspection.VelPropertySet;
+import org.xwiki.velocity.internal.introspection.LocationDependentMember;
+import org.xwiki.velocity.internal.introspection.MemberResolutionCache;
 
 /**
  * <p>
@@ -53,6 +59,11 @@
  * to forward calls). If a uberspector in the middle of the chain is not chainable, then it will break the chain at that
  * point (all previos uberspectors will be discarded from the chain).
  * </p>
+ * <p>
+ * The methods, getters and setters resolved by the chain are cached by receiver class, member name and argument
+ * classes, so each uberspector in the chain is only asked once for a given member, unless the resolved member is a
+ * {@link LocationDependentMember} or the receiver is a class.
+ * </p>
  * 
  * @since 1.5M1
  * @see ChainableUberspector
@@ -67,6 +78,9 @@ public class ChainingUberspector extends AbstractChainableUberspector implements
     /** The runtime is needed for accessing the configuration. */
     private RuntimeServices runtime;
 
+    /** The members already resolved by the chain. */
+    private final MemberResolutionCache cache = new MemberResolutionCache();
+
     /**
      * {@inheritDoc}
      * 
@@ -176,4 +190,84 @@ protected Uberspect instantiateUberspector(String classname)
         }
         return (Uberspect) o;
     }
+
+    /**
+     * {@inheritDoc}
+     * 
+     * @see AbstractChainableUberspector#getMethod(Object, String, Object[], Info)
+     */
+    @Override
+    public VelMethod getMethod(Object obj, String methodName, Object[] args, Info i) throws Exception
+    {
+        if (!MemberResolutionCache.isCacheable(obj)) {
+            return super.getMethod(obj, methodName, args, i);
+        }
+
+        MemberResolutionCache.Key key =
+            new MemberResolutionCache.Key(MemberResolutionCache.Kind.METHOD, methodName, args);
+        MemberResolutionCache.Resolution resolution = this.cache.get(obj.getClass(), key);
+        if (resolution != null) {
+            return (VelMethod) resolution.getMember();
+        }
+
+        VelMethod method = super.getMethod(obj, methodName, args, i);
+        if (!(method instanceof LocationDependentMember)) {
+            this.cache.put(obj.getClass(), key, method);
+        }
+
+        return method;
+    }
+
+    /**
+     * {@inheritDoc}
+     * 
+     * @see AbstractChainableUberspector#getPropertyGet(Object, String, Info)
+     */
+    @Override
+    public VelPropertyGet getPropertyGet(Object obj, String identifier, Info i) throws Exception
+    {
+        if (!MemberResolutionCache.isCacheable(obj)) {
+            return super.getPropertyGet(obj, identifier, i);
+        }
+
+        MemberResolutionCache.Key key = new MemberResolutionCache.Key(MemberResolutionCache.Kind.GETTER, identifier);
+        MemberResolutionCache.Resolution resolution = this.cache.get(obj.getClass(), key);
+        if (resolution != null) {
+            return (VelPropertyGet) resolution.getMember();
+        }
+
+        VelPropertyGet getter = super.getPropertyGet(obj, identifier, i);
+        if (!(getter instanceof LocationDependentMember)) {
+            this.cache.put(obj.getClass(), key, getter);
+        }
+
+        return getter;
+    }
+
+    /**
+     * {@inheritDoc}
+     * 
+     * @see AbstractChainableUberspector#getPropertySet(Object, String, Object, Info)
+     */
+    @Override
+    public VelPropertySet getPropertySet(Object obj, String identifier, Object arg, Info i) throws Exception
+    {
+        if (!MemberResolutionCache.isCacheable(obj)) {
+            return super.getPropertySet(obj, identifier, arg, i);
+        }
+
+        MemberResolutionCache.Key key =
+            new MemberResolutionCache.Key(MemberResolutionCache.Kind.SETTER, identifier, arg);
+        MemberResolutionCache.Resolution resolution = this.cache.get(obj.getClass(), key);
+        if (resolution != null) {
+            return (VelPropertySet) resolution.getMember();
+        }
+
+        VelPropertySet setter = super.getPropertySet(obj, identifier, arg, i);
+        if (!(setter instanceof LocationDependentMember)) {
+            this.cache.put(obj.getClass(), key, setter);
+        }
+
+        return setter;
+    }
 }
@@ -21,6 +21,10 @@
 package org.xwiki.velocity.introspection;
 
 import java.lang.reflect.Method;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.WeakHashMap;
 
 import org.apache.velocity.util.introspection.Info;
 import org.apache.velocity.util.introspection.Introspector;
@@ -29,12 +33,19 @@
 import org.apache.velocity.util.introspection.VelMethod;
 import org.apache.velocity.util.introspection.VelPropertyGet;
 import org.apache.velocity.util.introspection.VelPropertySet;
+import org.xwiki.velocity.internal.introspection.LocationDependentMember;
 
 /**
  * Chainable Velocity Uberspector that checks for deprecated method calls. It does that by checking
  * if the returned method has a Deprecated annotation. Because this is a chainable uberspector, it
  * has to re-get the method using a default introspector, which is not safe; future uberspectors
  * might not be able to return a precise method name, or a method of the original target object.
+ * <p>
+ * The deprecated members are returned wrapped as {@link LocationDependentMember}s, so that the chain heads don't
+ * cache them and every template location using them goes through this check, while the non deprecated members are
+ * cached by the chain heads and thus checked only once. Whether a method is deprecated is remembered for each method,
+ * as long as its class is loaded. The warning is logged at most once per
+ * {@link #WARNING_INTERVAL} for a given template location.
  * 
  * @since 1.5M1
  * @version $Id$
@@ -43,6 +54,39 @@
 public class DeprecatedCheckUberspector extends AbstractChainableUberspector implements Uberspect,
     ChainableUberspector, UberspectLoggable
 {
+    /**
+     * The minimum time in milliseconds between two warnings for the same template location.
+     * 
+     * @since 3.1M2
+     */
+    public static final long WARNING_INTERVAL = 60L * 60L * 1000L;
+
+    /**
+     * The maximum number of template locations for which to remember when the last warning was logged.
+     */
+    private static final int MAX_WARNING_LOCATIONS = 1000;
+
+    /**
+     * Whether each method already checked is deprecated. The methods are weakly referenced so that their classes can
+     * be unloaded.
+     */
+    private final Map<Method, Boolean> deprecations = Collections.synchronizedMap(new WeakHashMap<Method, Boolean>());
+
+    /**
+     * When the last warning was logged for each template location.
+     */
+    private final Map<String, Long> warnings = new LinkedHashMap<String, Long>()
+    {
+        /** Class version. */
+        private static final long serialVersionUID = 1L;
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Long> eldest)
+        {
+            return size() > MAX_WARNING_LOCATIONS;
+        }
+    };
+
     /**
      * {@inheritDoc}
      * 
@@ -65,11 +109,9 @@ public VelMethod getMethod(Object obj, String methodName, Object[] args, Info i)
         throws Exception
     {
         VelMethod method = super.getMethod(obj, methodName, args, i);
-        if (method != null) {
-            Method m = introspector.getMethod(obj.getClass(), method.getMethodName(), args);
-            if (m != null && m.isAnnotationPresent(Deprecated.class)) {
-                logWarning("method", obj, method.getMethodName(), i);
-            }
+        if (method != null && isDeprecated(obj, method.getMethodName(), args)) {
+            logWarning("method", obj, method.getMethodName(), i);
+            return new DeprecatedMethod(method);
         }
         return method;
     }
@@ -84,12 +126,9 @@ public VelMethod getMethod(Object obj, String methodName, Object[] args, Info i)
     public VelPropertyGet getPropertyGet(Object obj, String identifier, Info i) throws Exception
     {
         VelPropertyGet method = super.getPropertyGet(obj, identifier, i);
-        if (method != null) {
-            Method m =
-                introspector.getMethod(obj.getClass(), method.getMethodName(), new Object[] {});
-            if (m != null && m.isAnnotationPresent(Deprecated.class)) {
-                logWarning("getter", obj, method.getMethodName(), i);
-            }
+        if (method != null && isDeprecated(obj, method.getMethodName(), new Object[] {})) {
+            logWarning("getter", obj, method.getMethodName(), i);
+            return new DeprecatedPropertyGet(method);
         }
         return method;
     }
@@ -104,18 +143,36 @@ public VelPropertyGet getPropertyGet(Object obj, String identifier, Info i) thro
     public VelPropertySet getPropertySet(Object obj, String identifier, Object arg, Info i)
         throws Exception
     {
-        // TODO Auto-generated method stub
         VelPropertySet method = super.getPropertySet(obj, identifier, arg, i);
-        if (method != null) {
-            Method m =
-                introspector.getMethod(obj.getClass(), method.getMethodName(), new Object[] {arg});
-            if (m != null && m.isAnnotationPresent(Deprecated.class)) {
-                logWarning("setter", obj, method.getMethodName(), i);
-            }
+        if (method != null && isDeprecated(obj, method.getMethodName(), new Object[] {arg})) {
+            logWarning("setter", obj, method.getMethodName(), i);
+            return new DeprecatedPropertySet(method);
         }
         return method;
     }
 
+    /**
+     * @param object the object on which the method is called
+     * @param methodName the name of the resolved method
+     * @param args the arguments passed to the method
+     * @return {@code true} if the method is deprecated
+     */
+    private boolean isDeprecated(Object object, String methodName, Object[] args)
+    {
+        Method m = introspector.getMethod(object.getClass(), methodName, args);
+        if (m == null) {
+            return false;
+        }
+
+        Boolean deprecated = this.deprecations.get(m);
+        if (deprecated == null) {
+            deprecated = m.isAnnotationPresent(Deprecated.class);
+            this.deprecations.put(m, deprecated);
+        }
+
+        return deprecated;
+    }
+
     /**
      * Helper method to log a warning when a deprecation has been found.
      * 
@@ -127,8 +184,178 @@ public VelPropertySet getPropertySet(Object obj, String identifier, Object arg,
      */
     private void logWarning(String deprecationType, Object object, String methodName, Info info)
     {
-        log.warn(String.format("Deprecated usage of %s [%s] in %s@%d,%d", deprecationType, object
-            .getClass().getCanonicalName()
-            + "." + methodName, info.getTemplateName(), info.getLine(), info.getColumn()));
+        if (!log.isWarnEnabled()) {
+            return;
+        }
+
+        String location = info.getTemplateName() + '@' + info.getLine() + ',' + info.getColumn();
+        long now = System.currentTimeMillis();
+        synchronized (this.warnings) {
+            Long lastWarning = this.warnings.get(location);
+            if (lastWarning != null && now - lastWarning < WARNING_INTERVAL) {
+                return;
+            }
+            this.warnings.put(location, now);
+        }
+        log.warn(String.format("Deprecated usage of %s [%s] in %s", deprecationType, object.getClass()
+            .getCanonicalName()
+            + "." + methodName, location));
+    }
+
+    /**
+     * Deprecated method, which must be checked again for each template location using it.
+     */
+    private static final class DeprecatedMethod implements VelMethod, LocationDependentMember
+    {
+        /**
+         * The wrapped method.
+         */
+        private final VelMethod method;
+
+        /**
+         * @param method the wrapped method
+         */
+        DeprecatedMethod(VelMethod method)
+        {
+            this.method = method;
+        }
+
+        /**
+         * {@inheritDoc}
+         * 
+         * @see VelMethod#invoke(java.lang.Object, java.lang.Object[])
+         */
+        public Object invoke(Object o, Object[] params) throws Exception
+        {
+            return this.method.invoke(o, params);
+        }
+
+        /**
+         * {@inheritDoc}
+         * 
+         * @see VelMethod#isCacheable()
+         */
+        public boolean isCacheable()
+        {
+            return this.method.isCacheable();
+        }
+
+        /**
+         * {@inheritDoc}
+         * 
+         * @see VelMethod#getMethodName()
+         */
+        public String getMethodName()
+        {
+            return this.method.getMethodName();
+        }
+
+        /**
+         * {@inheritDoc}
+         * 
+         * @see VelMethod#getReturnType()
+         */
+        public Class getReturnType()
+        {
+            return this.method.getReturnType();
+        }
+    }
+
+    /**
+     * Deprecated getter, which must be checked again for each template location using it.
+     */
+    private static final class DeprecatedPropertyGet implements VelPropertyGet, LocationDependentMember
+    {
+        /**
+         * The wrapped getter.
+         */
+        private final VelPropertyGet getter;
+
+        /**
+         * @param getter the wrapped getter
+         */
+        DeprecatedPropertyGet(VelPropertyGet getter)
+        {
+            this.getter = getter;
+        }
+
+        /**
+         * {@inheritDoc}
+         * 
+         * @see VelPropertyGet#invoke(java.lang.Object)
+         */
+        public Object invoke(Object o) throws Exception
+        {
+            return this.getter.invoke(o);
+        }
+
+        /**
+         * {@inheritDoc}
+         * 
+         * @see VelPropertyGet#isCacheable()
+         */
+        public boolean isCacheable()
+        {
+            return this.getter.isCacheable();
+        }
+
+        /**
+         * {@inheritDoc}
+         * 
+         * @see VelPropertyGet#getMethodName()
+         */
+        public String getMethodName()
+        {
+            return this.getter.getMethodName();
+        }
+    }
+
+    /**
+     * Deprecated setter, which must be checked again for each template location using it.
+     */
+    private static final class DeprecatedPropertySet implements VelPropertySet, LocationDependentMember
+    {
+        /**
+         * The wrapped setter.
+         */
+        private final VelPropertySet setter;
+
+        /**
+         * @param setter the wrapped setter
+         */
+        DeprecatedPropertySet(VelPropertySet setter)
+        {
+            this.setter = setter;
+        }
+
+        /**
+         * {@inheritDoc}
+         * 
+         * @see VelPropertySet#invoke(java.lang.Object, java.lang.Object)
+         */
+        public Object invoke(Object o, Object arg) throws Exception
+        {
+            return this.setter.invoke(o, arg);
+        }
+
+        /**
+         * {@inheritDoc}
+         * 
+         * @see VelPropertySet#isCacheable()
+         */
+        public boolean isCacheable()
+        {
+            return this.setter.isCacheable();
+        }
+
+        /**
+         * {@inheritDoc}
+         * 
+         * @see VelPropertySet#getMethodName()
+         */
+        public String getMethodName()
+        {
+            return this.setter.getMethodName();
+        }
     }
 }
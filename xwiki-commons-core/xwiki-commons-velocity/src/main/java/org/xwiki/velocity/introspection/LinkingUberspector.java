@@ -36,6 +36,8 @@
 import org.apache.velocity.util.introspection.VelMethod;
 import org.apache.velocity.util.introspection.VelPropertyGet;
 import org.apache.velocity.util.introspection.VelPropertySet;
+import org.xwiki.velocity.internal.introspection.LocationDependentMember;
+import org.xwiki.velocity.internal.introspection.MemberResolutionCache;
 
 /**
  * <p>
@@ -58,6 +60,11 @@
  * property is not defined or contains only wrong classnames, then by default a <code>SecureUberspector</code> is used
  * as the only entry in the array.
  * </p>
+ * <p>
+ * The methods, getters and setters resolved by the array are cached by receiver class, member name and argument
+ * classes, so each uberspector in the array is only asked once for a given member, unless the resolved member is a
+ * {@link LocationDependentMember} or the receiver is a class.
+ * </p>
  * 
  * @since 1.5RC1
  * @see ChainingUberspector
@@ -74,6 +81,9 @@ public class LinkingUberspector extends UberspectImpl implements Uberspect, Runt
     /** The array of uberspectors to use. */
     private List<Uberspect> uberspectors;
 
+    /** The members already resolved by the array. */
+    private final MemberResolutionCache cache = new MemberResolutionCache();
+
     /**
      * {@inheritDoc}
      * 
@@ -210,14 +220,27 @@ public Iterator getIterator(Object obj, Info i) throws Exception
     @Override
     public VelMethod getMethod(Object obj, String methodName, Object[] args, Info i) throws Exception
     {
-        VelMethod method;
+        MemberResolutionCache.Key key = null;
+        if (MemberResolutionCache.isCacheable(obj)) {
+            key = new MemberResolutionCache.Key(MemberResolutionCache.Kind.METHOD, methodName, args);
+            MemberResolutionCache.Resolution resolution = this.cache.get(obj.getClass(), key);
+            if (resolution != null) {
+                return (VelMethod) resolution.getMember();
+            }
+        }
+
+        VelMethod method = null;
         for (Uberspect u : this.uberspectors) {
             method = u.getMethod(obj, methodName, args, i);
             if (method != null) {
-                return method;
+                break;
             }
         }
-        return null;
+
+        if (key != null && !(method instanceof LocationDependentMember)) {
+            this.cache.put(obj.getClass(), key, method);
+        }
+        return method;
     }
 
     /**
@@ -229,14 +252,27 @@ public VelMethod getMethod(Object obj, String methodName, Object[] args, Info i)
     @Override
     public VelPropertyGet getPropertyGet(Object obj, String identifier, Info i) throws Exception
     {
-        VelPropertyGet getter;
+        MemberResolutionCache.Key key = null;
+        if (MemberResolutionCache.isCacheable(obj)) {
+            key = new MemberResolutionCache.Key(MemberResolutionCache.Kind.GETTER, identifier);
+            MemberResolutionCache.Resolution resolution = this.cache.get(obj.getClass(), key);
+            if (resolution != null) {
+                return (VelPropertyGet) resolution.getMember();
+            }
+        }
+
+        VelPropertyGet getter = null;
         for (Uberspect u : this.uberspectors) {
             getter = u.getPropertyGet(obj, identifier, i);
             if (getter != null) {
-                return getter;
+                break;
             }
         }
-        return null;
+
+        if (key != null && !(getter instanceof LocationDependentMember)) {
+            this.cache.put(obj.getClass(), key, getter);
+        }
+        return getter;
     }
 
     /**
@@ -248,13 +284,26 @@ public VelPropertyGet getPropertyGet(Object obj, String identifier, Info i) thro
     @Override
     public VelPropertySet getPropertySet(Object obj, String identifier, Object arg, Info i) throws Exception
     {
-        VelPropertySet setter;
+        MemberResolutionCache.Key key = null;
+        if (MemberResolutionCache.isCacheable(obj)) {
+            key = new MemberResolutionCache.Key(MemberResolutionCache.Kind.SETTER, identifier, arg);
+            MemberResolutionCache.Resolution resolution = this.cache.get(obj.getClass(), key);
+            if (resolution != null) {
+                return (VelPropertySet) resolution.getMember();
+            }
+        }
+
+        VelPropertySet setter = null;
         for (Uberspect u : this.uberspectors) {
             setter = u.getPropertySet(obj, identifier, arg, i);
             if (setter != null) {
-                return setter;
+                break;
             }
         }
-        return null;
+
+        if (key != null && !(setter instanceof LocationDependentMember)) {
+            this.cache.put(obj.getClass(), key, setter);
+        }
+        return setter;
     }
 }
@@ -21,15 +21,23 @@
 
 import java.util.Arrays;
 import java.util.Properties;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
 
 import org.apache.velocity.VelocityContext;
 import org.apache.velocity.tools.generic.ListTool;
 import org.jmock.Expectations;
+import org.jmock.api.Invocation;
+import org.jmock.lib.action.CustomAction;
 import org.junit.Assert;
 import org.junit.Test;
+import org.xwiki.component.event.ComponentDescriptorAddedEvent;
 import org.xwiki.component.manager.ComponentManager;
+import org.xwiki.observation.EventListener;
+import org.xwiki.observation.ObservationManager;
 import org.xwiki.test.AbstractMockingComponentTestCase;
 import org.xwiki.test.annotation.MockingRequirement;
+import org.xwiki.velocity.StaticVelocityContextInitializer;
 import org.xwiki.velocity.VelocityConfiguration;
 import org.xwiki.velocity.VelocityContextInitializer;
 
@@ -40,9 +48,52 @@
  */
 public class DefaultVelocityContextFactoryTest extends AbstractMockingComponentTestCase
 {
+    /**
+     * Tool counting its instances.
+     */
+    public static class CountingTool
+    {
+        private static final AtomicInteger INSTANCES = new AtomicInteger();
+
+        public CountingTool()
+        {
+            INSTANCES.incrementAndGet();
+        }
+    }
+
+    /**
+     * Tool which can't be instantiated, counting the instantiation attempts.
+     */
+    public static class FailingTool
+    {
+        private static final AtomicInteger ATTEMPTS = new AtomicInteger();
+
+        public FailingTool()
+        {
+            ATTEMPTS.incrementAndGet();
+            throw new IllegalStateException("Failing tool");
+        }
+    }
+
+    /**
+     * Tool which is slow to instantiate, counting its instances.
+     */
+    public static class SlowTool
+    {
+        private static final AtomicInteger INSTANCES = new AtomicInteger();
+
+        public SlowTool() throws InterruptedException
+        {
+            INSTANCES.incrementAndGet();
+            Thread.sleep(50);
+        }
+    }
+
     @MockingRequirement
     private DefaultVelocityContextFactory factory;
 
+    private EventListener listener;
+
     /**
      * @see org.xwiki.test.AbstractMockingComponentTestCase#configure()
      */
@@ -51,9 +102,33 @@ public void configure() throws Exception
         final VelocityConfiguration configuration = getComponentManager().lookup(VelocityConfiguration.class);
         final Properties properties = new Properties();
         properties.put("listtool", ListTool.class.getName());
+        properties.put("countingtool", CountingTool.class.getName());
+        properties.put("threadtool", ListTool.class.getName());
+        properties.put("threadtool.scope", "thread");
+        properties.put("contexttool", ListTool.class.getName());
+        properties.put("contexttool.scope", "context");
+        properties.put("failingtool", FailingTool.class.getName());
+        properties.put("failingtool.scope", "context");
+        properties.put("slowtool", SlowTool.class.getName());
+        properties.put("slowtool.scope", "context");
+        final ComponentManager mockComponentManager = getComponentManager().lookup(ComponentManager.class);
+        final ObservationManager mockObservationManager = getMockery().mock(ObservationManager.class);
         getMockery().checking(new Expectations() {{
             allowing(configuration).getTools();
             will(returnValue(properties));
+            allowing(mockComponentManager).hasComponent(ObservationManager.class);
+            will(returnValue(true));
+            allowing(mockComponentManager).lookup(ObservationManager.class);
+            will(returnValue(mockObservationManager));
+            oneOf(mockObservationManager).addListener(with(any(EventListener.class)));
+            will(new CustomAction("store the listener")
+            {
+                public Object invoke(Invocation invocation) throws Throwable
+                {
+                    listener = (EventListener) invocation.getParameter(0);
+                    return null;
+                }
+            });
         }});
     }
 
@@ -71,7 +146,8 @@ public void testCreateDifferentContext() throws Exception
         final ComponentManager mockComponentManager = getComponentManager().lookup(ComponentManager.class);
         getMockery().checking(new Expectations() {{
             exactly(2).of(mockInitializer).initialize(with(any(VelocityContext.class)));
-            exactly(2). of(mockComponentManager).lookupList(VelocityContextInitializer.class);
+            // The initializers are cached
+            oneOf(mockComponentManager).lookupList(VelocityContextInitializer.class);
             will(returnValue(Arrays.asList(mockInitializer)));
         }});
 
@@ -84,4 +160,158 @@ public void testCreateDifferentContext() throws Exception
         Assert.assertSame(context2.get("listtool"), context1.get("listtool"));
         Assert.assertNull(context2.get("param"));
     }
+
+    /**
+     * Verify that the cached initializers are refreshed when an initializer is registered.
+     */
+    @Test
+    public void testInitializersRefreshedWhenRegistered() throws Exception
+    {
+        final VelocityContextInitializer mockInitializer = getMockery().mock(VelocityContextInitializer.class);
+        final ComponentManager mockComponentManager = getComponentManager().lookup(ComponentManager.class);
+        getMockery().checking(new Expectations() {{
+            exactly(2).of(mockComponentManager).lookupList(VelocityContextInitializer.class);
+            will(onConsecutiveCalls(returnValue(Arrays.asList()), returnValue(Arrays.asList(mockInitializer))));
+            exactly(2).of(mockInitializer).initialize(with(any(VelocityContext.class)));
+        }});
+
+        this.factory.createContext();
+        this.factory.createContext();
+
+        this.listener.onEvent(new ComponentDescriptorAddedEvent(VelocityContextInitializer.class), null, null);
+
+        this.factory.createContext();
+        this.factory.createContext();
+    }
+
+    /**
+     * Verify that static initializers are only called once and that their contributions are shared.
+     */
+    @Test
+    public void testStaticInitializersAreCalledOnce() throws Exception
+    {
+        final StaticVelocityContextInitializer mockInitializer =
+            getMockery().mock(StaticVelocityContextInitializer.class);
+        final ComponentManager mockComponentManager = getComponentManager().lookup(ComponentManager.class);
+        getMockery().checking(new Expectations() {{
+            oneOf(mockComponentManager).lookupList(VelocityContextInitializer.class);
+            will(returnValue(Arrays.asList(mockInitializer)));
+            oneOf(mockInitializer).initialize(with(any(VelocityContext.class)));
+            will(new CustomAction("put a static entry")
+            {
+                public Object invoke(Invocation invocation) throws Throwable
+                {
+                    ((VelocityContext) invocation.getParameter(0)).put("static", "value");
+                    return null;
+                }
+            });
+        }});
+
+        VelocityContext context1 = this.factory.createContext();
+        VelocityContext context2 = this.factory.createContext();
+
+        Assert.assertEquals("value", context1.get("static"));
+        Assert.assertEquals("value", context2.get("static"));
+        Assert.assertNotNull(context2.get("listtool"));
+
+        // The shared context is read-only
+        context1.put("static", "other");
+        Assert.assertEquals("value", context2.get("static"));
+    }
+
+    /**
+     * Verify that the tools are instantiated when used, according to their scope.
+     */
+    @Test
+    public void testToolScopes() throws Exception
+    {
+        final ComponentManager mockComponentManager = getComponentManager().lookup(ComponentManager.class);
+        getMockery().checking(new Expectations() {{
+            oneOf(mockComponentManager).lookupList(VelocityContextInitializer.class);
+            will(returnValue(Arrays.asList()));
+        }});
+
+        CountingTool.INSTANCES.set(0);
+        final VelocityContext context1 = this.factory.createContext();
+        VelocityContext context2 = this.factory.createContext();
+        Assert.assertEquals(0, CountingTool.INSTANCES.get());
+        Assert.assertSame(context1.get("countingtool"), context2.get("countingtool"));
+        Assert.assertEquals(1, CountingTool.INSTANCES.get());
+
+        Assert.assertNotNull(context1.get("contexttool"));
+        Assert.assertSame(context1.get("contexttool"), context1.get("contexttool"));
+        Assert.assertNotSame(context1.get("contexttool"), context2.get("contexttool"));
+
+        Assert.assertNotNull(context1.get("threadtool"));
+        Assert.assertSame(context1.get("threadtool"), context2.get("threadtool"));
+        final AtomicReference<Object> otherThreadTool = new AtomicReference<Object>();
+        Thread thread = new Thread()
+        {
+            @Override
+            public void run()
+            {
+                otherThreadTool.set(context1.get("threadtool"));
+            }
+        };
+        thread.start();
+        thread.join();
+        Assert.assertNotNull(otherThreadTool.get());
+        Assert.assertNotSame(context1.get("threadtool"), otherThreadTool.get());
+
+        // The scope entries are not tools
+        Assert.assertNull(context1.get("threadtool.scope"));
+    }
+
+    /**
+     * Verify that a tool which fails to be instantiated is not instantiated again.
+     */
+    @Test
+    public void testFailingToolIsInstantiatedOnce() throws Exception
+    {
+        final ComponentManager mockComponentManager = getComponentManager().lookup(ComponentManager.class);
+        getMockery().checking(new Expectations() {{
+            oneOf(mockComponentManager).lookupList(VelocityContextInitializer.class);
+            will(returnValue(Arrays.asList()));
+        }});
+
+        FailingTool.ATTEMPTS.set(0);
+        VelocityContext context1 = this.factory.createContext();
+        VelocityContext context2 = this.factory.createContext();
+        Assert.assertNull(context1.get("failingtool"));
+        Assert.assertNull(context1.get("failingtool"));
+        Assert.assertNull(context2.get("failingtool"));
+        Assert.assertEquals(1, FailingTool.ATTEMPTS.get());
+    }
+
+    /**
+     * Verify that concurrent first uses of a context tool share the same instance.
+     */
+    @Test
+    public void testContextToolIsInstantiatedOncePerContext() throws Exception
+    {
+        final ComponentManager mockComponentManager = getComponentManager().lookup(ComponentManager.class);
+        getMockery().checking(new Expectations() {{
+            oneOf(mockComponentManager).lookupList(VelocityContextInitializer.class);
+            will(returnValue(Arrays.asList()));
+        }});
+
+        SlowTool.INSTANCES.set(0);
+        final VelocityContext context = this.factory.createContext();
+        final AtomicReference<Object> otherThreadTool = new AtomicReference<Object>();
+        Thread thread = new Thread()
+        {
+            @Override
+            public void run()
+            {
+                otherThreadTool.set(context.get("slowtool"));
+            }
+        };
+        thread.start();
+        Object tool = context.get("slowtool");
+        thread.join();
+
+        Assert.assertNotNull(tool);
+        Assert.assertSame(tool, otherThreadTool.get());
+        Assert.assertEquals(1, SlowTool.INSTANCES.get());
+    }
 }
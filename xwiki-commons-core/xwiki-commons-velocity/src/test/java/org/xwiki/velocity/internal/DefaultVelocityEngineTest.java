@@ -23,17 +23,28 @@
 import java.io.StringReader;
 import java.io.StringWriter;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedList;
 import java.util.List;
 import java.util.Properties;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import org.apache.velocity.context.Context;
+import org.apache.velocity.util.introspection.Info;
 import org.apache.velocity.util.introspection.SecureUberspector;
+import org.apache.velocity.util.introspection.UberspectImpl;
+import org.apache.velocity.util.introspection.VelMethod;
 import org.jmock.Expectations;
 import org.junit.Assert;
 import org.junit.Test;
 import org.xwiki.test.AbstractMockingComponentTestCase;
 import org.xwiki.test.annotation.MockingRequirement;
 import org.xwiki.velocity.VelocityConfiguration;
+import org.xwiki.velocity.XWikiVelocityException;
 import org.xwiki.velocity.introspection.ChainingUberspector;
 import org.xwiki.velocity.introspection.DeprecatedCheckUberspector;
 
@@ -42,6 +53,21 @@
  */
 public class DefaultVelocityEngineTest extends AbstractMockingComponentTestCase
 {
+    /**
+     * Uberspector counting the method resolutions.
+     */
+    public static class CountingUberspector extends UberspectImpl
+    {
+        private static final AtomicInteger METHOD_RESOLUTIONS = new AtomicInteger();
+
+        @Override
+        public VelMethod getMethod(Object obj, String methodName, Object[] args, Info i) throws Exception
+        {
+            METHOD_RESOLUTIONS.incrementAndGet();
+            return super.getMethod(obj, methodName, args, i);
+        }
+    }
+
     @MockingRequirement
     private DefaultVelocityEngine engine;
 
@@ -155,4 +181,313 @@ public void testConfigureMacrosToBeGlobal() throws Exception
         this.engine.evaluate(context, writer, "template2", "#mymacro");
         Assert.assertEquals("test", writer.toString());
     }
+
+    @Test
+    public void testParsedTemplatesAreCached() throws Exception
+    {
+        this.engine.initialize(new Properties());
+        Context context = new org.apache.velocity.VelocityContext();
+        context.put("name", "World");
+        String source = "Hello $name";
+
+        StringWriter writer = new StringWriter();
+        this.engine.evaluate(context, writer, "mytemplate", source);
+        this.engine.evaluate(context, writer, "mytemplate", new StringReader(source));
+        // Same source under another name
+        this.engine.evaluate(context, writer, "othertemplate", source);
+        // Another source under the same name
+        this.engine.evaluate(context, writer, "mytemplate", "Bye $name");
+
+        Assert.assertEquals("Hello WorldHello WorldHello WorldBye World", writer.toString());
+        Assert.assertEquals(1, this.engine.getParseCache().getHits());
+        Assert.assertEquals(3, this.engine.getParseCache().getMisses());
+        Assert.assertEquals(3, this.engine.getParseCache().size());
+    }
+
+    @Test
+    public void testParseCacheIsBounded() throws Exception
+    {
+        Properties properties = new Properties();
+        properties.put(DefaultVelocityEngine.PARSE_CACHE_SIZE, "2");
+        this.engine.initialize(properties);
+        Context context = new org.apache.velocity.VelocityContext();
+
+        this.engine.evaluate(context, new StringWriter(), "template1", "1");
+        this.engine.evaluate(context, new StringWriter(), "template2", "2");
+        this.engine.evaluate(context, new StringWriter(), "template1", "1");
+        this.engine.evaluate(context, new StringWriter(), "template3", "3");
+        Assert.assertEquals(2, this.engine.getParseCache().size());
+
+        // template2 was the least recently used
+        this.engine.evaluate(context, new StringWriter(), "template1", "1");
+        this.engine.evaluate(context, new StringWriter(), "template2", "2");
+        Assert.assertEquals(2, this.engine.getParseCache().getHits());
+        Assert.assertEquals(4, this.engine.getParseCache().getMisses());
+    }
+
+    @Test
+    public void testParseCacheDisabled() throws Exception
+    {
+        Properties properties = new Properties();
+        properties.put(DefaultVelocityEngine.PARSE_CACHE_SIZE, "0");
+        this.engine.initialize(properties);
+        StringWriter writer = new StringWriter();
+        this.engine.evaluate(new org.apache.velocity.VelocityContext(), writer, "mytemplate", "#set($foo='hello')$foo");
+        this.engine.evaluate(new org.apache.velocity.VelocityContext(), writer, "mytemplate", "#set($foo='hello')$foo");
+        Assert.assertEquals("hellohello", writer.toString());
+        Assert.assertNull(this.engine.getParseCache());
+    }
+
+    /**
+     * Verify that the macros defined by a cached template are registered again when the template is evaluated.
+     */
+    @Test
+    public void testMacrosRegisteredWhenTemplateIsCached() throws Exception
+    {
+        this.engine.initialize(new Properties());
+        Context context = new org.apache.velocity.VelocityContext();
+        String source = "#if(true)#macro(mymacro)test#end#end#mymacro";
+
+        StringWriter writer = new StringWriter();
+        this.engine.evaluate(context, writer, "template", source);
+        this.engine.clearMacroNamespace("template");
+        this.engine.evaluate(context, writer, "template", source);
+        Assert.assertEquals("testtest", writer.toString());
+
+        // Redefine the macro in the same namespace
+        writer = new StringWriter();
+        this.engine.evaluate(context, writer, "template", "#macro(mymacro)other#end#mymacro");
+        this.engine.evaluate(context, writer, "template", source);
+        Assert.assertEquals("othertest", writer.toString());
+        Assert.assertEquals(2, this.engine.getParseCache().getHits());
+    }
+
+    /**
+     * Verify that the methods resolved while rendering a cached template are reused by the next renderings.
+     */
+    @Test
+    public void testResolvedMethodsAreReused() throws Exception
+    {
+        Properties properties = new Properties();
+        properties.setProperty("runtime.introspector.uberspect", CountingUberspector.class.getName());
+        this.engine.initialize(properties);
+        CountingUberspector.METHOD_RESOLUTIONS.set(0);
+
+        StringWriter writer = new StringWriter();
+        for (int i = 0; i < 3; ++i) {
+            Context context = new org.apache.velocity.VelocityContext();
+            context.put("list", Arrays.asList("a", "b"));
+            this.engine.evaluate(context, writer, "mytemplate", "$list.size() $list.get(0)|");
+        }
+        Assert.assertEquals(2, CountingUberspector.METHOD_RESOLUTIONS.get());
+
+        // Another receiver class has to be resolved again
+        Context context = new org.apache.velocity.VelocityContext();
+        context.put("list", new LinkedList<String>(Arrays.asList("c")));
+        this.engine.evaluate(context, writer, "mytemplate", "$list.size() $list.get(0)|");
+        Assert.assertEquals(4, CountingUberspector.METHOD_RESOLUTIONS.get());
+
+        Assert.assertEquals("2 a|2 a|2 a|1 c|", writer.toString());
+    }
+
+    /**
+     * Verify that the macros of a namespace used by concurrent renderings are cleared only once the last rendering
+     * stops using it, and never while a rendering is using it.
+     */
+    @Test
+    public void testConcurrentMacroNamespaceUsage() throws Exception
+    {
+        this.engine.initialize(new Properties());
+
+        int threads = 8;
+        final int iterations = 500;
+        final String[] namespaces = new String[] {"namespace1", "namespace2"};
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        List<Future<Integer>> results = new ArrayList<Future<Integer>>();
+        for (int i = 0; i < threads; i++) {
+            final String namespace = namespaces[i % namespaces.length];
+            results.add(executor.submit(new Callable<Integer>()
+            {
+                public Integer call() throws Exception
+                {
+                    int failures = 0;
+                    for (int j = 0; j < iterations; j++) {
+                        engine.startedUsingMacroNamespace(namespace);
+                        try {
+                            Context context = new org.apache.velocity.VelocityContext();
+                            engine.evaluate(context, new StringWriter(), namespace, "#macro(mymacro)ok#end");
+                            StringWriter writer = new StringWriter();
+                            engine.evaluate(context, writer, namespace, "#mymacro()");
+                            if (!"ok".equals(writer.toString())) {
+                                failures++;
+                            }
+                        } finally {
+                            engine.stoppedUsingMacroNamespace(namespace);
+                        }
+                    }
+                    return failures;
+                }
+            }));
+        }
+        executor.shutdown();
+
+        for (Future<Integer> result : results) {
+            Assert.assertEquals(Integer.valueOf(0), result.get());
+        }
+
+        // The namespaces are cleared once nobody uses them anymore.
+        for (String namespace : namespaces) {
+            StringWriter writer = new StringWriter();
+            this.engine.evaluate(new org.apache.velocity.VelocityContext(), writer, namespace, "#mymacro()");
+            Assert.assertEquals("#mymacro()", writer.toString());
+        }
+    }
+
+    /**
+     * Verify that the least recently used macro namespaces are cleared when there are too many of them, unless they
+     * are in use.
+     */
+    @Test
+    public void testMacroNamespacesAreBounded() throws Exception
+    {
+        Properties properties = new Properties();
+        properties.put(DefaultVelocityEngine.NAMESPACE_MAX_COUNT, "2");
+        this.engine.initialize(properties);
+        Context context = new org.apache.velocity.VelocityContext();
+
+        this.engine.startedUsingMacroNamespace("namespace1");
+        this.engine.evaluate(context, new StringWriter(), "namespace1", "#macro(mymacro)1#end");
+        this.engine.evaluate(context, new StringWriter(), "namespace2", "#macro(mymacro)2#end");
+        // No macro defined: doesn't count
+        this.engine.evaluate(context, new StringWriter(), "namespace3", "text");
+        Assert.assertEquals(2, this.engine.getNamespaceStore().size());
+
+        // namespace1 is the least recently used but it's in use
+        this.engine.evaluate(context, new StringWriter(), "namespace4", "#macro(mymacro)4#end");
+        Assert.assertEquals(2, this.engine.getNamespaceStore().size());
+        Assert.assertEquals(1, this.engine.getNamespaceStore().getEvictions());
+
+        StringWriter writer = new StringWriter();
+        this.engine.evaluate(context, writer, "namespace1", "#mymacro");
+        this.engine.evaluate(context, writer, "namespace2", "#mymacro");
+        this.engine.evaluate(context, writer, "namespace4", "#mymacro");
+        Assert.assertEquals("1#mymacro4", writer.toString());
+
+        // Once not used anymore the namespace is cleared
+        this.engine.stoppedUsingMacroNamespace("namespace1");
+        Assert.assertEquals(1, this.engine.getNamespaceStore().size());
+    }
+
+    /**
+     * Verify that the namespaces are evicted in batches, so that they are not sorted for each new namespace.
+     */
+    @Test
+    public void testMacroNamespacesAreEvictedInBatches() throws Exception
+    {
+        Properties properties = new Properties();
+        properties.put(DefaultVelocityEngine.NAMESPACE_MAX_COUNT, "20");
+        this.engine.initialize(properties);
+        Context context = new org.apache.velocity.VelocityContext();
+
+        for (int i = 0; i < 21; i++) {
+            this.engine.evaluate(context, new StringWriter(), "namespace" + i, "#macro(mymacro)ok#end");
+        }
+        // A tenth below the limit
+        Assert.assertEquals(18, this.engine.getNamespaceStore().size());
+        Assert.assertEquals(3, this.engine.getNamespaceStore().getEvictions());
+
+        // No eviction until the limit is exceeded again
+        for (int i = 21; i < 23; i++) {
+            this.engine.evaluate(context, new StringWriter(), "namespace" + i, "#macro(mymacro)ok#end");
+        }
+        Assert.assertEquals(20, this.engine.getNamespaceStore().size());
+        Assert.assertEquals(3, this.engine.getNamespaceStore().getEvictions());
+        Assert.assertFalse(this.engine.getNamespaceStore().getMacroNames().containsKey("namespace2"));
+        Assert.assertTrue(this.engine.getNamespaceStore().getMacroNames().containsKey("namespace3"));
+    }
+
+    @Test
+    public void testMacroNamespacesMemoryIsBounded() throws Exception
+    {
+        Properties properties = new Properties();
+        properties.put(DefaultVelocityEngine.NAMESPACE_MAX_SIZE, "1000");
+        this.engine.initialize(properties);
+        Context context = new org.apache.velocity.VelocityContext();
+
+        // 21 characters, about 336 bytes each
+        String source = "#macro(mymacro)ok#end";
+        for (int i = 0; i < 5; i++) {
+            this.engine.evaluate(context, new StringWriter(), "namespace" + i, source);
+            // Evaluating the same template again doesn't change the estimate
+            this.engine.evaluate(context, new StringWriter(), "namespace" + i, source);
+        }
+
+        Assert.assertEquals(2, this.engine.getNamespaceStore().size());
+        Assert.assertEquals(2 * 21 * 16, this.engine.getNamespaceStore().getEstimatedSize());
+        Assert.assertEquals(3, this.engine.getNamespaceStore().getEvictions());
+    }
+
+    @Test
+    public void testMacroNamespaceSourcesAreBounded() throws Exception
+    {
+        this.engine.initialize(new Properties());
+        Context context = new org.apache.velocity.VelocityContext();
+
+        // 22 characters, about 352 bytes each, only the last sources of a namespace are counted
+        for (int i = 0; i < 10; i++) {
+            this.engine.evaluate(context, new StringWriter(), "namespace", "#macro(mymacro)ok" + i + "#end");
+        }
+
+        Assert.assertEquals(1, this.engine.getNamespaceStore().size());
+        Assert.assertEquals(4 * 22 * 16, this.engine.getNamespaceStore().getEstimatedSize());
+    }
+
+    @Test
+    public void testMacroNamespacesNotBoundedWhenMacrosAreGlobal() throws Exception
+    {
+        Properties properties = new Properties();
+        properties.put("velocimacro.permissions.allow.inline.local.scope", "false");
+        properties.put(DefaultVelocityEngine.NAMESPACE_MAX_COUNT, "1");
+        this.engine.initialize(properties);
+        Context context = new org.apache.velocity.VelocityContext();
+
+        this.engine.evaluate(context, new StringWriter(), "template1", "#macro(mymacro1)1#end");
+        this.engine.evaluate(context, new StringWriter(), "template2", "#macro(mymacro2)2#end");
+
+        Assert.assertEquals(0, this.engine.getNamespaceStore().size());
+        Assert.assertEquals(0, this.engine.getNamespaceStore().getEvictions());
+        Assert.assertEquals(Arrays.asList("mymacro1", "mymacro2"), Arrays.asList(this.engine.getNamespaceStore()
+            .getMacroNames().get(MacroNamespaceStore.GLOBAL_NAMESPACE)));
+    }
+
+    @Test
+    public void testStatistics() throws Exception
+    {
+        this.engine.initialize(new Properties());
+        Context context = new org.apache.velocity.VelocityContext();
+
+        this.engine.evaluate(context, new StringWriter(), "template1", "hello");
+        this.engine.evaluate(context, new StringWriter(), "template1", "hello");
+        this.engine.evaluate(context, new StringWriter(), "template2", "#set($a = 'world')$a");
+        try {
+            this.engine.evaluate(context, new StringWriter(), "template3", "#if(");
+            Assert.fail("Should have thrown an exception");
+        } catch (XWikiVelocityException expected) {
+            // Invalid template
+        }
+
+        RenderStatistics statistics = this.engine.getStatistics();
+        Assert.assertEquals(4, statistics.getEvaluations());
+        Assert.assertEquals(1, statistics.getErrors());
+        Assert.assertEquals(3, statistics.getParses());
+        Assert.assertEquals(15, statistics.getWrittenCharacters());
+        Assert.assertEquals(2, statistics.getTemplates().size());
+        Assert.assertEquals("template1", statistics.getTemplates().get(0).getTemplateName());
+        Assert.assertEquals(2, statistics.getTemplates().get(0).getHits());
+        Assert.assertEquals(1, statistics.getSlowestTemplates(1).size());
+
+        statistics.reset();
+        Assert.assertEquals(0, statistics.getEvaluations());
+        Assert.assertTrue(statistics.getTemplates().isEmpty());
+    }
 }
@@ -0,0 +1,171 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ *
+ */
+package org.xwiki.velocity.internal;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+
+import org.jmock.Expectations;
+import org.jmock.api.Invocation;
+import org.jmock.lib.action.CustomAction;
+import org.junit.Assert;
+import org.junit.Test;
+import org.xwiki.component.manager.ComponentLookupException;
+import org.xwiki.component.manager.ComponentManager;
+import org.xwiki.management.JMXBeanRegistration;
+import org.xwiki.test.AbstractMockingComponentTestCase;
+import org.xwiki.test.annotation.MockingRequirement;
+import org.xwiki.velocity.VelocityEngine;
+import org.xwiki.velocity.XWikiVelocityException;
+
+/**
+ * Unit tests for {@link DefaultVelocityFactory}.
+ *
+ * @version $Id$
+ */
+public class DefaultVelocityFactoryTest extends AbstractMockingComponentTestCase
+{
+    @MockingRequirement
+    private DefaultVelocityFactory factory;
+
+    @Test
+    public void testEngineIsCreatedOnlyOnce() throws Exception
+    {
+        final VelocityEngine engine = getMockery().mock(VelocityEngine.class);
+        final ComponentManager componentManager = getComponentManager().lookup(ComponentManager.class);
+        final JMXBeanRegistration jmxRegistration = getComponentManager().lookup(JMXBeanRegistration.class);
+        final Properties properties = new Properties();
+        getMockery().checking(new Expectations() {{
+            oneOf(componentManager).lookup(VelocityEngine.class);
+            will(returnValue(engine));
+            oneOf(engine).initialize(properties);
+            oneOf(jmxRegistration).registerMBean(with(any(Object.class)), with(any(String.class)));
+        }});
+
+        Assert.assertFalse(this.factory.hasVelocityEngine("key"));
+        Assert.assertNull(this.factory.getVelocityEngine("key"));
+
+        Assert.assertSame(engine, this.factory.createVelocityEngine("key", properties));
+        Assert.assertSame(engine, this.factory.createVelocityEngine("key", properties));
+        Assert.assertTrue(this.factory.hasVelocityEngine("key"));
+        Assert.assertSame(engine, this.factory.getVelocityEngine("key"));
+        Assert.assertFalse(this.factory.hasVelocityEngine("otherkey"));
+    }
+
+    @Test
+    public void testRecursiveCreationFails() throws Exception
+    {
+        final VelocityEngine engine = getMockery().mock(VelocityEngine.class);
+        final ComponentManager componentManager = getComponentManager().lookup(ComponentManager.class);
+        final JMXBeanRegistration jmxRegistration = getComponentManager().lookup(JMXBeanRegistration.class);
+        final Properties properties = new Properties();
+        final List<Object> recursiveResults = new LinkedList<Object>();
+        getMockery().checking(new Expectations() {{
+            oneOf(componentManager).lookup(VelocityEngine.class);
+            will(returnValue(engine));
+            oneOf(engine).initialize(properties);
+            will(new CustomAction("create the engine again")
+            {
+                public Object invoke(Invocation invocation) throws Throwable
+                {
+                    recursiveResults.add(String.valueOf(factory.getVelocityEngine("key")));
+                    try {
+                        factory.createVelocityEngine("key", properties);
+                    } catch (XWikiVelocityException e) {
+                        recursiveResults.add(e.getMessage());
+                    }
+                    return null;
+                }
+            });
+            oneOf(jmxRegistration).registerMBean(with(any(Object.class)), with(any(String.class)));
+        }});
+
+        Assert.assertSame(engine, this.factory.createVelocityEngine("key", properties));
+        Assert.assertEquals(Arrays.<Object> asList("null",
+            "Velocity Engine [key] is already being created by this thread"), recursiveResults);
+    }
+
+    @Test
+    public void testFailedCreationCanBeRetried() throws Exception
+    {
+        final VelocityEngine engine = getMockery().mock(VelocityEngine.class);
+        final ComponentManager componentManager = getComponentManager().lookup(ComponentManager.class);
+        final JMXBeanRegistration jmxRegistration = getComponentManager().lookup(JMXBeanRegistration.class);
+        final Properties properties = new Properties();
+        getMockery().checking(new Expectations() {{
+            exactly(2).of(componentManager).lookup(VelocityEngine.class);
+            will(onConsecutiveCalls(throwException(new ComponentLookupException("error")), returnValue(engine)));
+            oneOf(engine).initialize(properties);
+            oneOf(jmxRegistration).registerMBean(with(any(Object.class)), with(any(String.class)));
+        }});
+
+        try {
+            this.factory.createVelocityEngine("key", properties);
+            Assert.fail("Should have thrown an exception");
+        } catch (XWikiVelocityException expected) {
+            Assert.assertEquals("Failed to create Velocity Engine", expected.getMessage());
+        }
+        Assert.assertFalse(this.factory.hasVelocityEngine("key"));
+
+        Assert.assertSame(engine, this.factory.createVelocityEngine("key", properties));
+        Assert.assertTrue(this.factory.hasVelocityEngine("key"));
+    }
+
+    @Test
+    public void testCreateVelocityEngines() throws Exception
+    {
+        final VelocityEngine engine1 = getMockery().mock(VelocityEngine.class, "engine1");
+        final VelocityEngine engine2 = getMockery().mock(VelocityEngine.class, "engine2");
+        final List<VelocityEngine> engines =
+            Collections.synchronizedList(new LinkedList<VelocityEngine>(Arrays.asList(engine1, engine2)));
+        final ComponentManager componentManager = getComponentManager().lookup(ComponentManager.class);
+        final JMXBeanRegistration jmxRegistration = getComponentManager().lookup(JMXBeanRegistration.class);
+        getMockery().checking(new Expectations() {{
+            allowing(componentManager).lookup(VelocityEngine.class);
+            will(new CustomAction("return the next engine")
+            {
+                public Object invoke(Invocation invocation) throws Throwable
+                {
+                    return engines.remove(0);
+                }
+            });
+            allowing(engine1).initialize(with(any(Properties.class)));
+            allowing(engine2).initialize(with(any(Properties.class)));
+            allowing(jmxRegistration).registerMBean(with(any(Object.class)), with(any(String.class)));
+        }});
+
+        Map<String, Properties> configurations = new LinkedHashMap<String, Properties>();
+        configurations.put("key1", new Properties());
+        configurations.put("key2", new Properties());
+        Map<String, VelocityEngine> created = this.factory.createVelocityEngines(configurations);
+
+        Assert.assertEquals(Arrays.asList("key1", "key2"), Arrays.asList(created.keySet().toArray()));
+        Assert.assertNotSame(created.get("key1"), created.get("key2"));
+        Assert.assertSame(created.get("key1"), this.factory.getVelocityEngine("key1"));
+        Assert.assertSame(created.get("key2"), this.factory.getVelocityEngine("key2"));
+        Assert.assertTrue(engines.isEmpty());
+    }
+}
@@ -0,0 +1,163 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ *
+ */
+package org.xwiki.velocity.internal;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+
+import org.apache.velocity.VelocityContext;
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * Unit tests for {@link LayeredVelocityContext}.
+ * 
+ * @version $Id$
+ * @since 3.1M2
+ */
+public class LayeredVelocityContextTest
+{
+    @Test
+    public void testCloneIsIsolated()
+    {
+        LayeredVelocityContext context = new LayeredVelocityContext();
+        context.put("shared", "value");
+        context.put("modified", "value");
+        context.put("removed", "value");
+
+        LayeredVelocityContext clone = (LayeredVelocityContext) context.clone();
+        clone.put("modified", "clone");
+        clone.remove("removed");
+        clone.put("added", "clone");
+        context.put("shared", "original");
+
+        Assert.assertEquals("original", context.get("shared"));
+        Assert.assertEquals("value", context.get("modified"));
+        Assert.assertEquals("value", context.get("removed"));
+        Assert.assertNull(context.get("added"));
+
+        Assert.assertEquals("value", clone.get("shared"));
+        Assert.assertEquals("clone", clone.get("modified"));
+        Assert.assertNull(clone.get("removed"));
+        Assert.assertFalse(clone.containsKey("removed"));
+        Assert.assertEquals("clone", clone.get("added"));
+        Assert.assertEquals(new HashSet<Object>(Arrays.asList("shared", "modified", "added")),
+            new HashSet<Object>(Arrays.asList(clone.getKeys())));
+
+        // A removed key can be set again
+        clone.put("removed", "again");
+        Assert.assertEquals("again", clone.get("removed"));
+    }
+
+    @Test
+    public void testWritesAfterCloneAreNotVisible() throws Exception
+    {
+        final LayeredVelocityContext context = new LayeredVelocityContext();
+        context.put("key", "value");
+        LayeredVelocityContext clone = (LayeredVelocityContext) context.clone();
+        context.put("key", "modified");
+        context.put("added", "value");
+        context.remove("key");
+
+        Assert.assertEquals("value", clone.get("key"));
+        Assert.assertNull(clone.get("added"));
+        Assert.assertEquals(1, clone.getKeys().length);
+
+        // Clone while another thread keeps writing to the context
+        final int count = 10000;
+        Thread writer = new Thread()
+        {
+            @Override
+            public void run()
+            {
+                for (int i = 0; i < count; ++i) {
+                    context.put("key" + i, i);
+                }
+            }
+        };
+        writer.start();
+        List<LayeredVelocityContext> clones = new ArrayList<LayeredVelocityContext>();
+        List<Integer> sizes = new ArrayList<Integer>();
+        while (writer.isAlive()) {
+            LayeredVelocityContext concurrentClone = (LayeredVelocityContext) context.clone();
+            clones.add(concurrentClone);
+            sizes.add(concurrentClone.getKeys().length);
+        }
+        writer.join();
+
+        for (int i = 0; i < clones.size(); ++i) {
+            LayeredVelocityContext concurrentClone = clones.get(i);
+            int size = sizes.get(i);
+            Assert.assertEquals(size, concurrentClone.getKeys().length);
+            // The added key and the keys written before the clone was taken
+            for (int j = 0; j < size - 1; ++j) {
+                Assert.assertEquals(j, concurrentClone.get("key" + j));
+            }
+            Assert.assertNull(concurrentClone.get("key" + (size - 1)));
+        }
+        Assert.assertEquals(count - 1, context.get("key" + (count - 1)));
+    }
+
+    @Test
+    public void testNullValues()
+    {
+        LayeredVelocityContext context = new LayeredVelocityContext();
+        context.put("key", "value");
+        LayeredVelocityContext clone = (LayeredVelocityContext) context.clone();
+        clone.put("key", null);
+
+        Assert.assertTrue(clone.containsKey("key"));
+        Assert.assertNull(clone.get("key"));
+        Assert.assertEquals("value", context.get("key"));
+    }
+
+    @Test
+    public void testNestedClones()
+    {
+        LayeredVelocityContext context = new LayeredVelocityContext();
+        for (int i = 0; i < 20; ++i) {
+            context.put("key" + i, i);
+            context.remove("key" + (i - 1));
+            LayeredVelocityContext clone = (LayeredVelocityContext) context.clone();
+            clone.put("key" + i, "clone");
+            context = clone;
+        }
+
+        Assert.assertEquals("clone", context.get("key19"));
+        Assert.assertNull(context.get("key18"));
+        Assert.assertEquals(1, context.getKeys().length);
+    }
+
+    @Test
+    public void testInnerContext()
+    {
+        VelocityContext inner = new VelocityContext();
+        inner.put("tool", "tool");
+        LayeredVelocityContext context = new LayeredVelocityContext(inner);
+        context.put("key", "value");
+
+        LayeredVelocityContext clone = (LayeredVelocityContext) context.clone();
+        Assert.assertEquals("tool", clone.get("tool"));
+        Assert.assertEquals("value", clone.get("key"));
+    }
+}
@@ -0,0 +1,109 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ *
+ */
+package org.xwiki.velocity.internal;
+
+import java.util.List;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * Unit tests for {@link RenderStatistics}.
+ * 
+ * @version $Id$
+ * @since 3.1M2
+ */
+public class RenderStatisticsTest
+{
+    @Test
+    public void testLeastRecentlyRenderedTemplatesAreAggregated()
+    {
+        RenderStatistics statistics = new RenderStatistics();
+        for (int i = 0; i < 1000; ++i) {
+            statistics.rendered("template" + i, 10, 1);
+        }
+        // template0 is now the most recently rendered
+        statistics.rendered("template0", 20, 1);
+        statistics.rendered("new", 10, 1);
+
+        // The 100 least recently rendered templates are aggregated
+        List<RenderStatistics.TemplateStatistics> templates = statistics.getTemplates();
+        Assert.assertEquals(902, templates.size());
+        Assert.assertEquals(RenderStatistics.OTHER_TEMPLATES, templates.get(0).getTemplateName());
+        Assert.assertEquals(100, templates.get(0).getHits());
+        Assert.assertEquals(1000, templates.get(0).getTotalTime());
+        Assert.assertEquals("template0", templates.get(1).getTemplateName());
+        Assert.assertEquals(2, templates.get(1).getHits());
+
+        long hits = 0;
+        for (RenderStatistics.TemplateStatistics template : templates) {
+            Assert.assertFalse("template1".equals(template.getTemplateName()));
+            hits += template.getHits();
+        }
+        Assert.assertEquals(statistics.getEvaluations(), hits);
+        Assert.assertEquals("template0", statistics.getSlowestTemplates(1).get(0).getTemplateName());
+
+        statistics.reset();
+        Assert.assertTrue(statistics.getTemplates().isEmpty());
+    }
+
+    @Test
+    public void testRenderingOfEvictedTemplateIsNotLost()
+    {
+        RenderStatistics statistics = new RenderStatistics();
+        for (int i = 0; i < 1000; ++i) {
+            statistics.rendered("template" + i, 10, 1);
+        }
+        RenderStatistics.TemplateStatistics evicted = null;
+        for (RenderStatistics.TemplateStatistics template : statistics.getTemplates()) {
+            if ("template0".equals(template.getTemplateName())) {
+                evicted = template;
+            }
+        }
+
+        statistics.rendered("new", 10, 1);
+        // A thread which got the statistics of the template before it was evicted
+        evicted.rendered(30, statistics.getEvaluations());
+
+        RenderStatistics.TemplateStatistics others = statistics.getTemplates().get(0);
+        Assert.assertEquals(RenderStatistics.OTHER_TEMPLATES, others.getTemplateName());
+        Assert.assertEquals(101, others.getHits());
+        Assert.assertEquals(1030, others.getTotalTime());
+        Assert.assertEquals(30, others.getMaxTime());
+    }
+
+    @Test
+    public void testNestedRenderingsAreCountedOnceInTotals()
+    {
+        RenderStatistics statistics = new RenderStatistics();
+        statistics.startRendering();
+        statistics.startRendering();
+        statistics.rendered("included", 10, 5);
+        statistics.stopRendering();
+        statistics.rendered("including", 30, 12);
+        statistics.stopRendering();
+
+        Assert.assertEquals(2, statistics.getEvaluations());
+        Assert.assertEquals(30, statistics.getRenderTime());
+        Assert.assertEquals(12, statistics.getWrittenCharacters());
+        Assert.assertEquals(2, statistics.getTemplates().size());
+    }
+}
@@ -25,9 +25,12 @@
 import org.xwiki.test.AbstractComponentTestCase;
 import org.xwiki.velocity.VelocityEngine;
 
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
 import javax.management.openmbean.CompositeData;
 import javax.management.openmbean.TabularData;
 import java.io.StringWriter;
+import java.lang.management.ManagementFactory;
 import java.util.Collection;
 import java.util.HashMap;
 import java.util.Map;
@@ -68,4 +71,53 @@ public void testGetTemplates() throws Exception
         Assert.assertEquals(1, retrievedData.get("testmacronamespace").length);
         Assert.assertEquals("testmacro", retrievedData.get("testmacronamespace")[0]);
     }
+
+    @Test
+    public void testGetTemplatesIsRebuiltOnlyWhenNamespacesChange() throws Exception
+    {
+        VelocityEngine engine = getComponentManager().lookup(VelocityEngine.class);
+        engine.initialize(new Properties());
+        JMXVelocityEngine jmxBean = new JMXVelocityEngine(engine);
+
+        TabularData data = jmxBean.getTemplates();
+        engine.evaluate(new VelocityContext(), new StringWriter(), "template", "no macro");
+        Assert.assertSame(data, jmxBean.getTemplates());
+
+        engine.evaluate(new VelocityContext(), new StringWriter(), "template", "#macro(testmacro)#end");
+        data = jmxBean.getTemplates();
+        Assert.assertEquals(2, data.values().size());
+
+        engine.clearMacroNamespace("template");
+        Assert.assertEquals(1, jmxBean.getTemplates().values().size());
+    }
+
+    @Test
+    public void testStatisticsExposedAsMXBean() throws Exception
+    {
+        VelocityEngine engine = getComponentManager().lookup(VelocityEngine.class);
+        engine.initialize(new Properties());
+        engine.evaluate(new VelocityContext(), new StringWriter(), "template1", "hello");
+        engine.evaluate(new VelocityContext(), new StringWriter(), "template1", "hello");
+        engine.evaluate(new VelocityContext(), new StringWriter(), "template2", "world");
+
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        ObjectName name = new ObjectName("org.xwiki:type=Velocity,domain=Engines,name=testStatistics");
+        server.registerMBean(new JMXVelocityEngine(engine), name);
+        try {
+            Assert.assertEquals(3L, server.getAttribute(name, "Evaluations"));
+            Assert.assertEquals(0L, server.getAttribute(name, "Errors"));
+            Assert.assertEquals(15L, server.getAttribute(name, "WrittenCharacters"));
+
+            CompositeData[] templates = (CompositeData[]) server.getAttribute(name, "TemplateStatistics");
+            Assert.assertEquals(2, templates.length);
+            Assert.assertEquals("template1", templates[0].get("templateName"));
+            Assert.assertEquals(2L, templates[0].get("hits"));
+            Assert.assertEquals(2, ((CompositeData[]) server.getAttribute(name, "SlowestTemplates")).length);
+
+            server.invoke(name, "resetStatistics", null, null);
+            Assert.assertEquals(0L, server.getAttribute(name, "Evaluations"));
+        } finally {
+            server.unregisterMBean(name);
+        }
+    }
 }
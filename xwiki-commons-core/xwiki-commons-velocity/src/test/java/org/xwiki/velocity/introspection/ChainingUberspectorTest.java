@@ -42,6 +42,22 @@
  */
 public class ChainingUberspectorTest extends AbstractComponentTestCase
 {
+    public static class FirstClass
+    {
+        public static String name()
+        {
+            return "first";
+        }
+    }
+
+    public static class SecondClass
+    {
+        public static String name()
+        {
+            return "second";
+        }
+    }
+
     private VelocityEngine engine;
 
     private Logger mockLogger;
@@ -239,6 +255,7 @@ public void testDeprecatedUberspector() throws Exception
         // Define expectations on the Logger
         this.loggingVerification.become("on");
         getMockery().checking(new Expectations() {{
+            allowing(mockLogger).isWarnEnabled(); will(returnValue(true));
             oneOf(mockLogger).warn("Deprecated usage of method [java.util.Date.getYear] in mytemplate@1,19");
             oneOf(mockLogger).warn("Deprecated usage of getter [java.util.Date.getMonth] in mytemplate@1,40");
         }});
@@ -250,4 +267,73 @@ public void testDeprecatedUberspector() throws Exception
         Assert.assertEquals(1, TestingUberspector.methodCalls);
         Assert.assertEquals(1, TestingUberspector.getterCalls);
     }
+
+    /*
+     * Tests that the deprecated members are not cached by the chain, so that each location using them is reported.
+     * Velocity itself caches the methods by name for the whole rendering, hence the two templates.
+     */
+    @Test
+    public void testDeprecatedMethodIsReportedForEachLocation() throws Exception
+    {
+        Properties prop = new Properties();
+        prop.setProperty(RuntimeConstants.UBERSPECT_CLASSNAME, ChainingUberspector.class.getCanonicalName());
+        prop.setProperty(ChainingUberspector.UBERSPECT_CHAIN_CLASSNAMES, UberspectImpl.class.getCanonicalName() + ","
+            + DeprecatedCheckUberspector.class.getCanonicalName());
+        this.engine.initialize(prop);
+        VelocityContext context = new org.apache.velocity.VelocityContext();
+        context.put("date", new Date());
+
+        this.loggingVerification.become("on");
+        getMockery().checking(new Expectations() {{
+            allowing(mockLogger).isWarnEnabled(); will(returnValue(true));
+            oneOf(mockLogger).warn("Deprecated usage of method [java.util.Date.getYear] in template1@1,7");
+            oneOf(mockLogger).warn("Deprecated usage of method [java.util.Date.getYear] in template2@1,7");
+            oneOf(mockLogger).warn("Deprecated usage of getter [java.util.Date.getMonth] in template2@2,7");
+            oneOf(mockLogger).warn("Deprecated usage of getter [java.util.Date.getMonth] in template2@3,7");
+        }});
+
+        this.engine.evaluate(context, new StringWriter(), "template1", new StringReader("$date.getYear()"));
+        this.engine.evaluate(context, new StringWriter(), "template2",
+            new StringReader("$date.getYear()\n$date.month\n$date.month"));
+    }
+
+    /*
+     * Tests that the resolved methods, including the ones which don't exist, are cached.
+     */
+    @Test
+    public void testResolvedMethodsAreCached() throws Exception
+    {
+        Properties prop = new Properties();
+        prop.setProperty(RuntimeConstants.UBERSPECT_CLASSNAME, ChainingUberspector.class.getCanonicalName());
+        prop.setProperty(ChainingUberspector.UBERSPECT_CHAIN_CLASSNAMES, UberspectImpl.class.getCanonicalName() + "," + TestingUberspector.class.getCanonicalName());
+        TestingUberspector.methodCalls = 0;
+        this.engine.initialize(prop);
+        StringWriter writer = new StringWriter();
+        this.engine.evaluate(new org.apache.velocity.VelocityContext(), writer, "template1", new StringReader(
+            "#set($foo = 'hello')$foo.toString()$foo.missing()"));
+        this.engine.evaluate(new org.apache.velocity.VelocityContext(), writer, "template2", new StringReader(
+            "#set($foo = 'world')$foo.toString()$foo.missing()"));
+        Assert.assertEquals("hello$foo.missing()world$foo.missing()", writer.toString());
+        Assert.assertEquals(2, TestingUberspector.methodCalls);
+    }
+
+    /*
+     * Tests that the static methods called on classes are not cached by receiver class, since all the classes have
+     * the same class.
+     */
+    @Test
+    public void testStaticMethodsAreResolvedOnEachClass() throws Exception
+    {
+        Properties prop = new Properties();
+        prop.setProperty(RuntimeConstants.UBERSPECT_CLASSNAME, ChainingUberspector.class.getCanonicalName());
+        prop.setProperty(ChainingUberspector.UBERSPECT_CHAIN_CLASSNAMES, UberspectImpl.class.getCanonicalName());
+        this.engine.initialize(prop);
+        org.apache.velocity.VelocityContext context = new org.apache.velocity.VelocityContext();
+        context.put("first", FirstClass.class);
+        context.put("second", SecondClass.class);
+        StringWriter writer = new StringWriter();
+        this.engine.evaluate(context, writer, "template1", new StringReader("$first.name()"));
+        this.engine.evaluate(context, writer, "template2", new StringReader("$second.name()"));
+        Assert.assertEquals("firstsecond", writer.toString());
+    }
 }
@@ -0,0 +1,109 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ *
+ */
+package org.xwiki.velocity.introspection;
+
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+
+import org.apache.velocity.runtime.RuntimeServices;
+import org.apache.velocity.runtime.log.Log;
+import org.apache.velocity.runtime.log.LogChute;
+import org.apache.velocity.util.introspection.Info;
+import org.apache.velocity.util.introspection.UberspectImpl;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Unit tests for {@link DeprecatedCheckUberspector}.
+ * 
+ * @version $Id$
+ * @since 3.1M2
+ */
+public class DeprecatedCheckUberspectorTest
+{
+    private List<String> warnings = new ArrayList<String>();
+
+    private DeprecatedCheckUberspector uberspector = new DeprecatedCheckUberspector();
+
+    @Before
+    public void setUp() throws Exception
+    {
+        Log log = new Log(new LogChute()
+        {
+            public void init(RuntimeServices rs)
+            {
+            }
+
+            public void log(int level, String message)
+            {
+                if (level == LogChute.WARN_ID) {
+                    warnings.add(message);
+                }
+            }
+
+            public void log(int level, String message, Throwable t)
+            {
+                log(level, message);
+            }
+
+            public boolean isLevelEnabled(int level)
+            {
+                return true;
+            }
+        });
+
+        UberspectImpl inner = new UberspectImpl();
+        inner.setLog(log);
+        this.uberspector.setLog(log);
+        this.uberspector.wrap(inner);
+        this.uberspector.init();
+    }
+
+    @Test
+    public void testWarningsAreLimitedPerLocation() throws Exception
+    {
+        Date date = new Date();
+        Info location = new Info("template", 1, 2);
+        for (int i = 0; i < 3; ++i) {
+            Assert.assertNotNull(this.uberspector.getMethod(date, "getYear", new Object[] {}, location));
+        }
+        Assert.assertNotNull(this.uberspector.getPropertyGet(date, "month", new Info("template", 3, 4)));
+
+        Assert.assertEquals(2, this.warnings.size());
+        Assert.assertEquals("Deprecated usage of method [java.util.Date.getYear] in template@1,2", this.warnings.get(0));
+        Assert.assertEquals("Deprecated usage of getter [java.util.Date.getMonth] in template@3,4", this.warnings.get(1));
+    }
+
+    @Test
+    public void testNoWarningForNonDeprecatedMethods() throws Exception
+    {
+        Date date = new Date();
+        Info location = new Info("template", 1, 2);
+        Assert.assertNotNull(this.uberspector.getMethod(date, "getTime", new Object[] {}, location));
+        Assert.assertNotNull(this.uberspector.getPropertyGet(date, "time", location));
+        Assert.assertNotNull(this.uberspector.getPropertySet(date, "time", 0L, location));
+        Assert.assertNull(this.uberspector.getMethod(date, "missing", new Object[] {}, location));
+
+        Assert.assertTrue(this.warnings.isEmpty());
+    }
+}
@@ -39,6 +39,22 @@
  */
 public class LinkingUberspectorTest extends AbstractComponentTestCase
 {
+    public static class FirstClass
+    {
+        public static String name()
+        {
+            return "first";
+        }
+    }
+
+    public static class SecondClass
+    {
+        public static String name()
+        {
+            return "second";
+        }
+    }
+
     private VelocityEngine engine;
 
     @Override
@@ -157,4 +173,44 @@ public void testSecureUberspectorEnabledByDefault() throws Exception
             "#set($foo = 'hello')" + "#set($bar = $foo.getClass().getConstructors())$foo$bar"));
         Assert.assertEquals("hello$bar", writer.toString());
     }
+
+    /*
+     * Tests that the resolved methods, including the ones which don't exist, are cached.
+     */
+    @Test
+    public void testResolvedMethodsAreCached() throws Exception
+    {
+        Properties prop = new Properties();
+        prop.setProperty(RuntimeConstants.UBERSPECT_CLASSNAME, LinkingUberspector.class.getCanonicalName());
+        prop.setProperty(LinkingUberspector.UBERSPECT_ARRAY_CLASSNAMES, TestingUberspector.class.getCanonicalName() + "," + UberspectImpl.class.getCanonicalName());
+        TestingUberspector.methodCalls = 0;
+        this.engine.initialize(prop);
+        StringWriter writer = new StringWriter();
+        this.engine.evaluate(new org.apache.velocity.VelocityContext(), writer, "template1", new StringReader(
+            "#set($foo = 'hello')$foo.toString()$foo.missing()"));
+        this.engine.evaluate(new org.apache.velocity.VelocityContext(), writer, "template2", new StringReader(
+            "#set($foo = 'world')$foo.toString()$foo.missing()"));
+        Assert.assertEquals("hello$foo.missing()world$foo.missing()", writer.toString());
+        Assert.assertEquals(2, TestingUberspector.methodCalls);
+    }
+
+    /*
+     * Tests that the static methods called on classes are not cached by receiver class, since all the classes have
+     * the same class.
+     */
+    @Test
+    public void testStaticMethodsAreResolvedOnEachClass() throws Exception
+    {
+        Properties prop = new Properties();
+        prop.setProperty(RuntimeConstants.UBERSPECT_CLASSNAME, LinkingUberspector.class.getCanonicalName());
+        prop.setProperty(LinkingUberspector.UBERSPECT_ARRAY_CLASSNAMES, UberspectImpl.class.getCanonicalName());
+        this.engine.initialize(prop);
+        org.apache.velocity.VelocityContext context = new org.apache.velocity.VelocityContext();
+        context.put("first", FirstClass.class);
+        context.put("second", SecondClass.class);
+        StringWriter writer = new StringWriter();
+        this.engine.evaluate(context, writer, "template1", new StringReader("$first.name()"));
+        this.engine.evaluate(context, writer, "template2", new StringReader("$second.name()"));
+        Assert.assertEquals("firstsecond", writer.toString());
+    }
 }